@@ -420,6 +420,24 @@ public abstract class AXRegister {
     return (int) Math.round(value/naturalUnitsPerCount);
   }
 
+  /**
+   * <p>Check whether {@link #toNaturalUnits} and {@link #fromNaturalUnits}
+   * are the default linear conversions by {@link #naturalUnitsPerCount}, i.e.
+   * not overridden.</p>
+   **/
+  public boolean hasLinearNaturalUnits() {
+    try {
+      Class<?> c = getClass();
+      return
+        (c.getMethod("toNaturalUnits", int.class).getDeclaringClass() ==
+         AXRegister.class) &&
+        (c.getMethod("fromNaturalUnits", float.class).getDeclaringClass() ==
+         AXRegister.class);
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
   /** check if this is a boolean valued register **/
   public boolean isBoolean() {
     return (min == 0) && (max == 1);
@@ -455,4 +473,25 @@ public abstract class AXRegister {
       getDynamixelType().toUpperCase()+"_"+
       prettyName.toUpperCase().replace(' ', '_');
   }
+
+  /**
+   * <p>Inverse of {@link #toIdentifierString}, returns null if there is no
+   * such register.</p>
+   **/
+  public static AXRegister fromIdentifierString(String identifier) {
+
+    for (int i = 0; i < AX12Register.NUM_REGISTERS; i++) {
+      AXRegister r = AX12Register.getRegister(i);
+      if (r.toIdentifierString().equals(identifier))
+        return r;
+    }
+
+    for (int i = 0; i < AXS1Register.NUM_REGISTERS; i++) {
+      AXRegister r = AXS1Register.getRegister(i);
+      if (r.toIdentifierString().equals(identifier))
+        return r;
+    }
+
+    return null;
+  }
 }
@@ -22,8 +22,10 @@ package brbrain;
 
 import static brbrain.AX12Register.*;
 
-import gnu.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 import java.io.*;
 
 /**
@@ -61,8 +63,13 @@ import java.io.*;
  * <p>Several constructors are provided to allow the actual communication link
  * between the host PC and the CM-5 to be implemented in different ways:<ul>
  *
- * <li>over a serial port accessed as a regular file</li>
- * <li>over a serial port accessed with the RXTX library</li>
+ * <li>over a serial port accessed as a regular file ({@link FileLink})</li>
+ * <li>over a serial port accessed with the RXTX library ({@link
+ * RXTXLink})</li>
+ * <li>over any other {@link CM5Link}, e.g. an in-memory {@link
+ * LoopbackLink}</li>
+ * <li>to no CM-5 at all, using an in-process {@link CM5Simulator} with
+ * {@link SimulatedDynamixel}s</li>
  *
  * </ul>The RXTX codepath has the advantage of internally setting the
  * communications parameters (115.2kbps, 8N1, no flow control).  The regular
@@ -104,21 +111,71 @@ import java.io.*;
  * values.  For example, the natural units for the {@link
  * AX12Register#AX12_PRESENT_POSITION} register are degrees.</p>
  *
- * <p>To keep format specification simple, you can only specify one contiguous
- * block of registers to read and a separate contiguous block of registers to
- * write per Dynamixel.  The blocks can be different on different Dynamixels,
- * and you can specify an arbitrary set of Dynamixel IDs to which you will be
- * communicating; this set need not include all of the Dynamixels that are
- * actually connected to your CM-5.  On a write, all registers are written in
- * synchrony with the REG_WRITE/ACTION instructions supported by the
- * Dynamixels.</p>
+ * <p>A format is a list of up to {@link #MAX_FORMAT_BLOCKS} contiguous
+ * blocks of registers, each on one Dynamixel.  Usually there is one block per
+ * Dynamixel, but a Dynamixel may appear more than once to cover several
+ * disjoint blocks, e.g. {@link AX12Register#AX12_PRESENT_POSITION} and {@link
+ * AX12Register#AX12_ERROR} without all the registers in between.  The blocks
+ * can be different on different Dynamixels, and you can specify an arbitrary
+ * set of Dynamixel IDs to which you will be communicating; this set need not
+ * include all of the Dynamixels that are actually connected to your CM-5.  On
+ * a write, all registers are written in synchrony, see {@link
+ * WriteStrategy}.</p>
  *
  * <p>A cache of most-recently read data is maintained and may be queried with
- * {@link #getCachedValue}.</p>
+ * {@link #getCachedValue} and {@link #getCachedValues}.  Cache queries take
+ * no lock, so UI and logging threads may poll them at any rate without
+ * contending with the I/O thread.  For a consistent view of a whole frame,
+ * including its status and ADC values, use {@link #getLatestFrame}.</p>
  *
- * <p>Every method which involves actual communication with the CM-5 is
- * synchronized.  Synchronize on the BRBrain object to perform multiple
- * communications in a single uninterrupted transaction.</p>
+ * <p>Instead of polling with {@link #read(float[])} the CM-5 can be told to
+ * acquire and send the read format periodically on its own with {@link
+ * #startStreaming}, which saves the request packet and the link turnaround on
+ * every sample.  Each received frame updates the cache and is delivered to
+ * any registered {@link FrameListener}s.  While streaming, commands whose
+ * response is just an {@link Instruction#I_STATUS}, such as {@link
+ * #write(float[])}, may still be used.</p>
+ *
+ * <h2>Threading</h2>
+ *
+ * <p>All communication with the CM-5 happens on a single I/O thread, started
+ * on first use, which owns the {@link #link} and executes a queue of {@link
+ * IOTask}s in order.  The asynchronous methods such as {@link
+ * #readAsync(int[])}, {@link #writeAsync(float[])} and {@link #pingAsync}
+ * just queue a task and return a <code>CompletableFuture</code>, so any
+ * number of requests from any number of threads may be outstanding without
+ * the callers holding locks.  Arrays passed to them must not be touched
+ * until the future completes.</p>
+ *
+ * <p>The synchronous methods are thin wrappers which queue a task and wait
+ * for it, so each is a single uninterrupted transaction with the CM-5.  Use
+ * {@link #submit} or {@link #call} to perform multiple communications in a
+ * single uninterrupted transaction; tasks may freely use the synchronous API
+ * since on the I/O thread it runs inline.  Queries of host side state, such
+ * as {@link #getCachedValue} and {@link #getReadFormat}, never wait for
+ * communication in progress.</p>
+ *
+ * <p>Once the formats are set, a write and read cycle which runs on the I/O
+ * thread, i.e. inside an {@link IOTask} or a {@link FrameListener},
+ * allocates nothing, so long control runs don't suffer GC pauses.  This
+ * includes {@link #read()} and {@link #readNatural()} with {@link
+ * #setReuseResults}.  The same cycle from a control thread also allocates
+ * nothing: synchronous reads and writes hand the work to the I/O thread in
+ * a preallocated request, which one thread at a time can use while no
+ * asynchronous request is queued.  Otherwise, and for all other synchronous
+ * methods, a small request is allocated per call.</p>
+ *
+ * <p>Every byte exchanged with the CM-5 is recorded in a small off-heap
+ * {@link ProtocolTrace}, which can be dumped with {@link #dumpTrace}, or
+ * automatically on errors with {@link #setTraceDumpFile}, and then rendered
+ * with <code>java brbrain.ProtocolTrace <i>file</i></code>.</p>
+ *
+ * <p>Interrupting a thread waiting in a synchronous method makes it throw
+ * InterruptedException and dequeues its task if it has not started yet, but
+ * a transaction already in progress always runs to completion so the
+ * protocol stays in sync.  A read or write in progress in the preallocated
+ * request is waited for before throwing, since it still uses the
+ * caller's arrays.</p>
  *
  * <h2>Usage Example</h2>
  *
@@ -238,19 +295,21 @@ import java.io.*;
  * <li>0xF1: {@link Instruction#I_SET_READ_FORMAT}.  Data is in the following
  * form:<pre>
  *
- * num dynamixels in the range [0, {@link #MAX_DYNAMIXELS}]
- * dynamixel 0 id
- * dynamixel 0 start byte
- * dynamixel 0 num bytes
- * dynamixel 1 id
- * dynamixel 1 start byte
- * dynamixel 1 num bytes
+ * num blocks in the range [0, {@link #MAX_FORMAT_BLOCKS}]
+ * block 0 dynamixel id
+ * block 0 start byte
+ * block 0 num bytes
+ * block 1 dynamixel id
+ * block 1 start byte
+ * block 1 num bytes
  * ...
- * dynamixel (n-1) id
- * dynamixel (n-1) start byte
- * dynamixel (n-1) num bytes
+ * block (n-1) dynamixel id
+ * block (n-1) start byte
+ * block (n-1) num bytes
  * 
- * </pre>The CM-5 responds with a {@link Instruction#I_STATUS} packet. If any
+ * </pre>A dynamixel id may occur in more than one block.  The CM-5 acquires
+ * the blocks in order and responds with a {@link Instruction#I_STATUS}
+ * packet. If any
  * dynamixel id is outside the closed interval [0, {@link
  * AXRegister#MAX_DYNAMIXEL_ID}], or if the span of registers for any given
  * dynamixel extends beyond the last register, the CM-5 will respond with an
@@ -260,14 +319,14 @@ import java.io.*;
  * <li>0xF2: {@link Instruction#I_SET_WRITE_FORMAT}.  Data is in the following
  * form:<pre>
  *
- * num dynamixels in the range [0, {@link #MAX_DYNAMIXELS}]
- * dynamixel 0 id
- * dynamixel 0 start byte
- * dynamixel 0 num bytes
+ * num blocks in the range [0, {@link #MAX_FORMAT_BLOCKS}]
+ * block 0 dynamixel id
+ * block 0 start byte
+ * block 0 num bytes
  * ...
- * dynamixel (<i>n</i>-1) id
- * dynamixel (<i>n</i>-1) start byte
- * dynamixel (<i>n</i>-1) num bytes
+ * block (<i>n</i>-1) dynamixel id
+ * block (<i>n</i>-1) start byte
+ * block (<i>n</i>-1) num bytes
  * 
  * </pre>The CM-5 responds with a {@link Instruction#I_STATUS} packet. If any
  * dynamixel id is outside the closed interval [0, {@link
@@ -290,7 +349,81 @@ import java.io.*;
  * recent {@link Instruction#I_SET_WRITE_FORMAT}, and for each dynamixel the
  * number of data bytes sent is again specified by the most recent {@link
  * Instruction#I_SET_WRITE_FORMAT}.  The CM-5 responds with a {@link
- * Instruction#I_STATUS} packet.</li>
+ * Instruction#I_STATUS} packet.  The data is written to the Dynamixels with
+ * the {@link #getWriteStrategy} implied by the write format.</li>
+ *
+ * <li>0xF5: {@link Instruction#I_STREAM_START}.  Data is one byte, the
+ * stream period in CM-5 timer ticks of about 10ms.  The CM-5 responds with a
+ * {@link Instruction#I_STATUS} packet and then, as long as it is not handling
+ * some other command, acquires the current read format and sends it in an
+ * {@link Instruction#I_DATA} packet each period, or back to back if the
+ * period is 0 or shorter than the acquisition time.  The status of each such
+ * packet covers only its own acquisition.  A new {@link
+ * Instruction#I_STREAM_START} just changes the period.</li>
+ *
+ * <li>0xF6: {@link Instruction#I_STREAM_STOP}.  No data is sent.  Streaming
+ * stops and the CM-5 responds with a {@link Instruction#I_STATUS} packet,
+ * which may be preceded by streamed {@link Instruction#I_DATA} packets (as
+ * may be the response to any other command sent while streaming).</li>
+ *
+ * <li>0xF7: {@link Instruction#I_WRITE_READ}.  Data is the same as for
+ * {@link Instruction#I_WRITE_DATA}.  The CM-5 performs the write and then
+ * acquires the current read format, and responds with a {@link
+ * Instruction#I_DATA} packet whose status covers both.</li>
+ *
+ * <li>0xF8: {@link Instruction#I_SET_MODE}.  Data is one byte, a bitmask of
+ * MODE_* flags.  The CM-5 responds with a {@link Instruction#I_STATUS}
+ * packet, and only changes the mode if that is error free.  With {@link
+ * #MODE_POLL} the CM-5 acquires the read format one dynamixel at a time
+ * whenever it is idle, alternating between two buffers, and every {@link
+ * Instruction#I_DATA} packet is sent immediately from the most recently
+ * completed buffer (the first after enabling polling or setting the read
+ * format waits for one complete acquisition).  The status and retry count
+ * then also cover that acquisition.  With {@link #MODE_DELTA} frames may be
+ * sent as {@link Instruction#I_DELTA_DATA} instead.  Both bits are refused,
+ * and cleared by a later {@link Instruction#I_SET_READ_FORMAT}, if the read
+ * format is longer than {@link #MAX_BUFFERED_BYTES}.  Re-sending the current
+ * mode makes the next frame a keyframe.</li>
+ *
+ * <li>0xF9: {@link Instruction#I_SET_BAUD}.  Data is one byte, an index into
+ * {@link #CM5_BAUD_RATES}.  The CM-5 responds with a {@link
+ * Instruction#I_STATUS} packet at the old baud rate and, if that is error
+ * free, switches to the new rate after about 20ms.  The host must then send
+ * an {@link Instruction#I_PING} of the CM-5 itself at the new rate within
+ * the CM-5 receive timeout of about 1s, which is answered as usual.  Anything
+ * else, or nothing, makes the CM-5 return to the old rate.  The CM-5 always
+ * starts at {@link #RXTX_DEF_BAUD_RATE} after reset.</li>
+ *
+ * <li>0xFD: {@link Instruction#I_SELECT_SLOT}.  Data is one byte, the format
+ * ({@link #F_READ} or {@link #F_WRITE}) in the high bit and a slot index less
+ * than {@link #NUM_FORMAT_SLOTS} in the low bits.  The CM-5 holds that many
+ * formats in each direction, all initially empty, and {@link
+ * Instruction#I_SET_READ_FORMAT} and {@link Instruction#I_SET_WRITE_FORMAT}
+ * set the one in the selected slot (initially 0).  The CM-5 responds with a
+ * {@link Instruction#I_STATUS} packet, and only makes the slot current if
+ * that is error free.  A read slot longer than {@link #MAX_BUFFERED_BYTES} is
+ * refused with {@link #MODE_POLL} or {@link #MODE_DELTA}.</li>
+ *
+ * <li>0xFE: {@link Instruction#I_SCAN}.  Data is two bytes, the first and
+ * last dynamixel id to scan, in the range [0, {@link
+ * AXRegister#MAX_DYNAMIXEL_ID}].  The CM-5 reads the model number of each id
+ * in turn, waiting only about 3ms for the start of each reply, and responds
+ * with a packet of the same instruction whose data is in the following
+ * form:<pre>
+ *
+ * presence bits of ids first to first+7, LSB first
+ * model number (low byte first) of each of those present
+ * presence bits of ids first+8 to first+15
+ * ...
+ * status byte
+ * retry count byte
+ * ADC pos channel
+ * ADC neg channel
+ * ADC therm channel
+ *
+ * </pre>Where the last presence byte only covers the ids up to last.  If the
+ * request is invalid the CM-5 responds with a {@link Instruction#I_STATUS}
+ * packet instead.</li>
  *
  * </ul></p>
  *
@@ -314,6 +447,8 @@ import java.io.*;
  * ADC pos channel
  * ADC neg channel
  * ADC therm channel
+ * [sample age]
+ * [sequence number]
  *
  * </pre>Where <i>n</i> is the number of dynamixels specified in the most
  * recent {@link Instruction#I_SET_READ_FORMAT}, and for each dynamixel the
@@ -322,7 +457,24 @@ import java.io.*;
  * data bytes, the bytes are still sent by the CM-5 to the host but with value
  * 0xFF.  The final status, retry count, and ADC bytes are always sent and have
  * the same semantics as the payload of an {@link Instruction#I_STATUS}
- * packet.</li>
+ * packet.  The sample age byte is only sent with {@link #MODE_POLL}, it is
+ * the number of CM-5 timer ticks of about 10ms since the data bytes were
+ * acquired, saturating at 255.  The sequence number is only sent with {@link
+ * #MODE_DELTA}, it is incremented (mod 256) for every frame.</li>
+ *
+ * <li>0xFC: {@link Instruction#I_DELTA_DATA}.  Only sent with {@link
+ * #MODE_DELTA}, in place of an {@link Instruction#I_DATA} packet whenever
+ * that would be longer.  Data is in the following form:<pre>
+ *
+ * change bitmap bytes
+ * changed bytes
+ *
+ * </pre>The bitmap has one bit for every data byte of the equivalent {@link
+ * Instruction#I_DATA} packet (including the trailing status, ADC, age and
+ * sequence number bytes), LSB first, set iff the byte differs from the
+ * previous frame.  The changed bytes follow in order.  At least every {@link
+ * #DELTA_KEYFRAME_INTERVAL} frames a whole {@link Instruction#I_DATA}
+ * keyframe is sent instead.</li>
  *
  * </ul></p>
  *
@@ -335,7 +487,10 @@ public class BRBrain {
   private static final String svnid =
   "$Id: BRBrain.java 28 2008-09-29 16:24:46Z vona $";
 
-  /** whether to show protocol debug messages **/
+  /**
+   * <p>Whether to show protocol debug messages, this is slow, see {@link
+   * #getTrace} for an alternative which can stay on.</p>
+   **/
   public boolean debug = false;
 
   /** whether to enable debug log of failed recv packets **/
@@ -344,10 +499,20 @@ public class BRBrain {
   /** whether to log to {@link #recvPacketDebugBuffer} **/
   protected boolean recvPacketDebug = enableRecvPacketDebug;
 
-  /** debug log for recv packets **/
-  protected List<Byte> recvPacketDebugBuffer = new ArrayList<Byte>();
+  /** capacity of {@link #recvPacketDebugBuffer} **/
+  public static final int RECV_PACKET_DEBUG_SIZE = 256;
+
+  /**
+   * <p>Debug log for recv packets, a ring holding the last {@link
+   * #RECV_PACKET_DEBUG_SIZE} bytes of the packet in progress.</p>
+   **/
+  protected final byte[] recvPacketDebugBuffer =
+    new byte[RECV_PACKET_DEBUG_SIZE];
+
+  /** number of bytes logged to {@link #recvPacketDebugBuffer} **/
+  protected int recvPacketDebugLength = 0;
 
-  /** a cached register value **/
+  /** a snapshot of a cached register value **/
   public class CachedValue {
 
     /** the cached value **/
@@ -367,28 +532,116 @@ public class BRBrain {
     }
   }
 
-  /** cache of most recently read data **/
-  protected Map<AXRegister, Map<Integer, CachedValue>> cache =
-    new HashMap<AXRegister, Map<Integer, CachedValue>>();
+  /** number of recycled {@link Frame}s, see {@link #getLatestFrame} **/
+  public static final int FRAME_RING_SIZE = 16;
+
+  /** {@link #getCachedValues} update time of a register never read **/
+  public static final long NOT_CACHED = Long.MIN_VALUE;
+
+  /**
+   * <p>Cache columns per dynamixel, the AX-12 register ordinals followed by
+   * the AX-S1 register ordinals, see {@link #cacheIndex}.</p>
+   **/
+  protected static final int CACHE_COLUMNS =
+    AX12Register.NUM_REGISTERS+AXS1Register.NUM_REGISTERS;
+
+  /** cache size **/
+  protected static final int CACHE_SIZE = (MAX_DYNAMIXEL_ID+1)*CACHE_COLUMNS;
+
+  /**
+   * <p>Cache of most recently read data, indexed by {@link #cacheIndex}.</p>
+   *
+   * <p>The cache is written only by the I/O thread with {@link #stateLock}
+   * held, and only between the two increments of {@link #cacheSeq} that
+   * bracket each update.  Readers take no lock, instead they retry if
+   * {@link #cacheSeq} was odd or changed while they were reading.</p>
+   **/
+  protected final AtomicIntegerArray cache = new AtomicIntegerArray(CACHE_SIZE);
+
+  /**
+   * <p>Nanotime of the frame that last updated each {@link #cache} entry, or
+   * {@link #NOT_CACHED}.</p>
+   **/
+  protected final AtomicLongArray cacheLastUpdateNS =
+    new AtomicLongArray(fill(new long[CACHE_SIZE], NOT_CACHED));
+
+  /** {@link #cache} sequence lock, odd while an update is in progress **/
+  protected final AtomicInteger cacheSeq = new AtomicInteger();
 
   /** RXTX port owner name **/
-  public static final String RXTX_PORT_OWNER_NAME = "BRBrain";
+  public static final String RXTX_PORT_OWNER_NAME =
+    RXTXLink.RXTX_PORT_OWNER_NAME;
 
   /** timeout in ms to wait to open a port with RXTX **/
-  public static final int RXTX_OPEN_TIMEOUT_MS = 1000;
+  public static final int RXTX_OPEN_TIMEOUT_MS = RXTXLink.RXTX_OPEN_TIMEOUT_MS;
 
   /** default receive timout in ms **/
   public static final int DEF_TIMEOUT_MS = 1000;
 
-  /** receive poll time in ms **/
+  /** receive poll time in ms for {@link WaitStrategy#SLEEP} **/
   public static final int RECV_POLL_MS = 1;
 
+  /** default park time in ns for {@link WaitStrategy#PARK} **/
+  public static final long DEF_PARK_NS = 50000;
+
+  /** polls before yielding for {@link WaitStrategy#SPIN_YIELD} **/
+  public static final int SPIN_TRIES = 100;
+
   /** ms to wait before draining recv buffer in {@link #recover} **/
   public static final int RECOVER_MS = 500;
 
+  /**
+   * <p>Max total number of ids and data bytes in a SYNC_WRITE, see {@link
+   * WriteStrategy#SYNC_WRITE}.</p>
+   **/
+  public static final int MAX_SYNC_WRITE_BYTES = 251;
+
+  /** max stream period in CM-5 timer ticks, see {@link #startStreaming} **/
+  public static final int MAX_STREAM_PERIOD_TICKS = 255;
+
+  /** {@link #setPolling} mode bit, see {@link Instruction#I_SET_MODE} **/
+  public static final int MODE_POLL = (1<<0);
+
+  /** {@link #setDeltaEncoding} mode bit, see {@link Instruction#I_SET_MODE} **/
+  public static final int MODE_DELTA = (1<<1);
+
+  /** max total num read format bytes with {@link #MODE_POLL} or DELTA **/
+  public static final int MAX_BUFFERED_BYTES = 256;
+
+  /** number of formats in each direction held by the CM-5 **/
+  public static final int NUM_FORMAT_SLOTS = 4;
+
+  /** max {@link Instruction#I_DELTA_DATA} frames between keyframes **/
+  public static final int DELTA_KEYFRAME_INTERVAL = 50;
+
+  /** how long the idle I/O thread waits for a streamed frame at a time **/
+  public static final long STREAM_POLL_NS = 1000000;
+
+  /**
+   * <p>Streamed frames dropped less than this apart are one burst of errors,
+   * which dumps the trace only once, see {@link #setTraceDumpFile}.</p>
+   **/
+  public static final long STREAM_ERROR_BURST_NS = 1000000000L;
+
+  /** max ms {@link #close} waits for the I/O thread to exit **/
+  public static final int CLOSE_JOIN_MS = 1000;
+
   /** default baudrate for RXTX **/
   public static final int RXTX_DEF_BAUD_RATE = 115200;
 
+  /** PC link baud rates of the CM-5, see {@link #negotiateBaudRate} **/
+  public static final int[] CM5_BAUD_RATES =
+    new int[] {38400, 57600, 76800, 115200, 250000, 1000000};
+
+  /** ms to wait for the CM-5 to switch baud rate before verifying **/
+  public static final int BAUD_SWITCH_MS = 50;
+
+  /** ms to wait for the CM-5 to give up on a baud rate switch **/
+  public static final int BAUD_REVERT_MS = 1500;
+
+  /** initial capacity of {@link #sendBuffer}, grown as needed **/
+  public static final int DEF_SEND_BUFFER_SIZE = 128;
+
   /**
    * NOTE: do not reference any RXTX classes in static initializers to avoid
    * runtime NoClassDefFoundError when using the ADMIN jar without RXTX on
@@ -419,8 +672,17 @@ public class BRBrain {
   /** CM-5 status bit **/
   public static final int S_DYNAMIXEL_CHECKSUM_ERROR =    (1<<7);
 
-  /** maximum number of dynamixels in a format **/
-  public static final int MAX_DYNAMIXELS = 32;
+  /** maximum number of register blocks in a format **/
+  public static final int MAX_FORMAT_BLOCKS = 64;
+
+  /** maximum number of dynamixels in a format, each takes at least a block **/
+  public static final int MAX_DYNAMIXELS = MAX_FORMAT_BLOCKS;
+
+  /**
+   * <p>Number of bytes of status, retry count and ADC channels trailing each
+   * {@link Instruction#I_STATUS} and {@link Instruction#I_DATA} packet.</p>
+   **/
+  public static final int STATUS_LENGTH = 5;
 
   /** read format **/
   protected static final int F_READ = 0;
@@ -548,24 +810,7 @@ public class BRBrain {
    * @return printStream
    **/
   public static PrintStream listPorts(PrintStream printStream) {
-   
-    //do this here as it prints stuff
-    Enumeration e = CommPortIdentifier.getPortIdentifiers();
-
-    printStream.println("\nAvailable Ports:\n");
-
-    while(e.hasMoreElements()) {
-      
-      CommPortIdentifier id = (CommPortIdentifier) (e.nextElement());
-
-      printStream.println("name: " + id.getName());
-      printStream.println("  type: " +
-                          ((id.getPortType()==CommPortIdentifier.PORT_SERIAL) ?
-                           "serial" : "parallel"));
-      printStream.println("  current owner: " + id.getCurrentOwner());
-    }
-
-    return printStream;
+    return RXTXLink.listPorts(printStream);
   }
 
   /** covers {@link #listPorts(PrintStream)}, uses System.out **/
@@ -584,8 +829,16 @@ public class BRBrain {
     I_SET_WRITE_FORMAT(0xf2),
     I_READ_DATA(0xf3),
     I_WRITE_DATA(0xf4),
+    I_STREAM_START(0xf5),
+    I_STREAM_STOP(0xf6),
+    I_WRITE_READ(0xf7),
+    I_SET_MODE(0xf8),
+    I_SET_BAUD(0xf9),
     I_STATUS(0xfa),
-    I_DATA(0xfb);
+    I_DATA(0xfb),
+    I_DELTA_DATA(0xfc),
+    I_SELECT_SLOT(0xfd),
+    I_SCAN(0xfe);
 
     public final int code;
 
@@ -595,475 +848,2016 @@ public class BRBrain {
   }
 
   /**
-   * <p>Setup an BRBrain talking to a CM-5 on the specified serial port at the
-   * specified baud rate.</p>
-   *
-   * <p>Note that this method does no transmission on the port, and does not
-   * verify the presence of a CM-5 running the correct firmware.</p>
-   *
-   * <p>A {@link #recover} is performed.</p>
+   * <p>Ways the CM-5 writes data to the Dynamixels, see {@link
+   * #getWriteStrategy}.</p>
    *
-   * @param portName an RXTX serial port name, see {@link #listPorts} 
-   * @param baudRate the baud rate in bits per second
+   * <p>The firmware picks {@link #SYNC_WRITE} whenever the write format
+   * qualifies, otherwise {@link #REG_WRITE_ACTION}.</p>
+   **/
+  public static enum WriteStrategy {
+
+    /**
+     * <p>A REG_WRITE to each Dynamixel in turn, retried on checksum errors,
+     * followed by a broadcast ACTION.  Missing or failing Dynamixels are
+     * reported in the status.</p>
+     *
+     * <p>A Dynamixel only holds one REG_WRITE, so when it has more than one
+     * block in the write format all but its last block are sent with an
+     * immediate WRITE_DATA instead.  Put the block that must take effect in
+     * synchrony, e.g. the goal position, last.</p>
+     **/
+    REG_WRITE_ACTION,
+
+    /**
+     * <p>One broadcast SYNC_WRITE packet.  Used when all Dynamixels in the
+     * write format share the same start register and number of bytes and
+     * the packet fits within {@link #MAX_SYNC_WRITE_BYTES}.  Much faster, but
+     * broadcasts get no status packets, so there are no retries and missing
+     * or failing Dynamixels are not detected.  Data with a bad checksum from
+     * the host is not written at all.</p>
+     **/
+    SYNC_WRITE;
+  }
+
+  /**
+   * <p>Ways to wait for response bytes from the CM-5, see {@link
+   * #setWaitStrategy}.</p>
    *
-   * @exception IOException if there was a problem opening the port
-   * @exception InterruptedException if interrupted during {@link #recover}
-   * @exception IllegalStateException if the specified port is not recognized
-   * by RXTX as a serial port, or if RXTX silently failed to open the port 
+   * <p>These trade CPU usage for latency.  The default {@link #SLEEP} is
+   * cheapest, but the actual sleep time is often well above {@link
+   * #RECV_POLL_MS}, which adds a latency floor to every round trip.</p>
    **/
-  public BRBrain(String portName, int baudRate)
-    throws IOException, InterruptedException {
+  public static enum WaitStrategy {
 
-    if (portName == null)
-      throw new IllegalArgumentException("null port name");
+    /** poll and {@link Thread#sleep} {@link #RECV_POLL_MS} in between **/
+    SLEEP,
 
-    try {
+    /** poll continuously, consumes a whole core while waiting **/
+    BUSY_SPIN,
 
-      CommPortIdentifier id = CommPortIdentifier.getPortIdentifier(portName);
-      CommPort port = id.open(RXTX_PORT_OWNER_NAME, RXTX_OPEN_TIMEOUT_MS);
+    /** poll continuously for {@link #SPIN_TRIES}, then yield in between **/
+    SPIN_YIELD,
 
-      if (!(port instanceof SerialPort))
-        throw new IllegalStateException("RXTX port \"" + portName +
-                                        "\" is not a SerialPort");
+    /** poll and {@link LockSupport#parkNanos} in between **/
+    PARK,
 
-      serialPort = (SerialPort) port;
+    /**
+     * <p>Block in the {@link CM5Link#recv} itself, e.g. using the RXTX native
+     * receive timeout.</p>
+     **/
+    BLOCKING;
+  }
 
-      serialPort.disableReceiveFraming();
-      serialPort.disableReceiveThreshold();
-      serialPort.disableReceiveTimeout();
+  /**
+   * <p>A unit of work executed on the I/O thread, see {@link #submit}.</p>
+   **/
+  public static interface IOTask<T> {
 
-      setBaudRate(baudRate);
+    /** runs on the I/O thread, may use the synchronous API freely **/
+    T run() throws IOException, InterruptedException;
+  }
 
-      serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_NONE);
+  /** an {@link IOTask} in the {@link #ioQueue} and the future it completes **/
+  protected static class IORequest<T> implements Runnable {
 
-      toCM5 = serialPort.getOutputStream();
-      fromCM5 = serialPort.getInputStream();
+    /** the task **/
+    protected final IOTask<T> task;
 
-      Runtime.getRuntime().addShutdownHook(new Thread() {
-          public void run() {
-            close();
-          } });
-      
-/*
+    /** completed with the result of {@link #task} **/
+    protected final CompletableFuture<T> future = new CompletableFuture<T>();
 
-  NOTE: Do not directly reference RXTX exceptions, by doing so you would
-  require the RXTX jar to be present at runtime or a NoClassDefFoundError is
-  thrown.  Instead a generic Exception clause handles these exceptions below.
+    /** make a request for the given task **/
+    protected IORequest(IOTask<T> task) {
+      this.task = task;
+    }
 
-    } catch (NoSuchPortException e) {
+    /** run {@link #task} unless the {@link #future} is already done **/
+    public void run() {
 
-      IOException ioe = new IOException("no such port "+portName);
-      ioe.initCause(e);
-      throw ioe;
+      if (future.isDone()) //cancelled while queued
+        return;
 
-    } catch (PortInUseException e) {
+      try {
+        future.complete(task.run());
+      } catch (Throwable t) {
+        future.completeExceptionally(t);
+      }
+    }
+  }
 
-      IOException ioe = new IOException("port "+portName+" in use");
-      ioe.initCause(e);
-      throw ioe;
+  /**
+   * <p>The preallocated request of the synchronous read and write methods,
+   * see {@link #claimSyncCall}.</p>
+   *
+   * <p>A claimed call goes from {@link #FREE} to {@link #PENDING}, the I/O
+   * thread then moves it to {@link #RUNNING} and {@link #DONE}, and the
+   * claiming thread frees it again once it has taken the result.</p>
+   **/
+  protected static class SyncCall {
 
-    } catch (UnsupportedCommOperationException e) {
+    /** {@link #state} when unclaimed **/
+    protected static final int FREE = 0;
 
-      IOException ioe = new IOException("unsupported comm operation");
-      ioe.initCause(e);
-      throw ioe;
+    /** {@link #state} when claimed and waiting for the I/O thread **/
+    protected static final int PENDING = 1;
 
-    } 
-*/
+    /** {@link #state} while the I/O thread runs it **/
+    protected static final int RUNNING = 2;
 
-    } catch (Exception e) {
+    /** {@link #state} when the result is ready **/
+    protected static final int DONE = 3;
 
-      IOException ioe = new IOException("error opening RXTX port");
-      ioe.initCause(e);
+    /** {@link #op} running {@link #read(Object)} **/
+    protected static final int READ = 0;
 
-      throw ioe;
-    }
+    /** {@link #op} running {@link #write(Object)} **/
+    protected static final int WRITE = 1;
 
-    if (fromCM5 == null)
-      throw new IllegalStateException("RXTX failed to provide input stream");
+    /** {@link #op} running {@link #writeRead(Object, Object)} **/
+    protected static final int WRITE_READ = 2;
 
-    if (toCM5 == null)
-      throw new IllegalStateException("RXTX failed to provide output stream");
+    /** {@link #op} running {@link #read()} **/
+    protected static final int READ_RESULT = 3;
 
-    recover();
-  }
+    /** {@link #op} running {@link #readNatural()} **/
+    protected static final int READ_NATURAL_RESULT = 4;
 
-  /** covers {@link #BRBrain(String, int)} uses {@link #RXTX_DEF_BAUD_RATE} **/
-  public BRBrain(String portName)
-    throws IOException, InterruptedException {
-    this(portName, RXTX_DEF_BAUD_RATE);
-  }
+    /** one of the states **/
+    protected final AtomicInteger state = new AtomicInteger(FREE);
 
-  /**
-   * <p>Same as {@link #BRBrain(String)} but connect to CM-5 via a file instead
-   * of with RXTX.</p>
-   **/
-  public BRBrain(File port) throws IOException, InterruptedException {
+    /** which method to run **/
+    protected int op;
 
-    if (port == null)
-      throw new IllegalArgumentException("null port");
-    
-    toCM5 = new FileOutputStream(port);
-    fromCM5 = new FileInputStream(port);
-  }
- 
-  /** waits {@link #RECOVER_MS} and then drains recv buf **/
-  public synchronized void recover() throws IOException, InterruptedException {
-    Thread.sleep(RECOVER_MS);
-    drainFromCM5();
-    checksum = 0;
-  }
+    /** data to write, if any **/
+    protected Object out;
 
-  /** drain {@link #fromCM5} **/
-  protected synchronized void drainFromCM5()
-    throws IOException, InterruptedException {
-    while (fromCM5.available() != 0)
-      recvByte(false);
-  }
+    /** data to read into, if any **/
+    protected Object in;
 
-  /** attempt to set the baud rate, works only if using RXTX **/
-  protected synchronized void setBaudRate(int baudRate) throws IOException {
+    /** the claiming thread, unparked when {@link #DONE} **/
+    protected Thread caller;
 
-    if (serialPort == null)
-      throw new IllegalStateException("no serial port -- not using RXTX?");
+    /** the returned status of an int op **/
+    protected int status;
 
-    try {
-      //NOTE: Do not make the databits, stopbits, parity, or flowcontrol
-      //settings static class constants.  By doing so you would require the
-      //RXTX jar to be present at runtime or a NoClassDefFoundError is thrown.
-      serialPort.setSerialPortParams(baudRate,
-                                     SerialPort.DATABITS_8,
-                                     SerialPort.STOPBITS_1,
-                                     SerialPort.PARITY_NONE);
-    } catch (UnsupportedCommOperationException e) {
-      IOException ioe = new IOException("unsupported comm operation");
-      ioe.initCause(e);
-      throw ioe;
-    }
-  }
+    /** the returned array of a result op **/
+    protected Object value;
 
-  /** 
-   * <p>Interact with the user and the CM-5 bootloader to flash new firmware to
-   * the CM-5.</p>
-   *
-   * @param binary an InputStream from which the new firmware binary is read
-   * @param log an output stream to which progress and prompt messages are
-   * displayed
-   *
-   * @return the number of bytes flashed, negative of that if verify failed
-   *
-   * @exception IOException if there was an input our output error
-   * @exception InterruptedException if there was a timeout
-   **/
-  public synchronized int flashCM5(InputStream binary, PrintStream log)
-    throws IOException, InterruptedException {
-    
-    int bytesSent = 0;
-    int b;
- 
-    if (binary == null)
-      throw new IllegalArgumentException("null binary");
+    /** what the op threw, if anything **/
+    protected Throwable error;
 
-    if (log != null) {
-      log.println("waiting for CM5 reset, press MODE");
-      log.flush();
-    }
+    /**
+     * <p>Wait until {@link #DONE}, on failure free and rethrow like {@link
+     * #call}.</p>
+     *
+     * <p>An interrupt while still {@link #PENDING} withdraws the call.  Once
+     * it is {@link #RUNNING} the arguments are in use, so it is awaited
+     * before throwing InterruptedException.</p>
+     **/
+    protected void await() throws IOException, InterruptedException {
 
-    drainFromCM5();
+      boolean interrupted = false;
 
-    int baudRateWas = -1;
+      while (state.get() != DONE) {
 
-    if (serialPort != null) {
+        LockSupport.park(this);
 
-      baudRateWas = serialPort.getBaudRate();
-      
-      if (baudRateWas != CM5_BOOTLOADER_BAUDRATE) {
-        
-        if (log != null) {
-          log.println("switching from "+baudRateWas+
-                      "bps to "+CM5_BOOTLOADER_BAUDRATE+"bps");
-          log.flush();
+        if (Thread.interrupted()) {
+
+          if (state.compareAndSet(PENDING, DONE)) {
+            free();
+            throw new InterruptedException();
+          }
+
+          interrupted = true;
         }
-        
-        setBaudRate(CM5_BOOTLOADER_BAUDRATE);
       }
-    } else {
-      if (log != null) {
-        log.println(
-          "not using RXTX so no control of baudrate, please ensure it is "+
-          CM5_BOOTLOADER_BAUDRATE+"bps");
-        log.flush();
+
+      Throwable t = error;
+
+      if (interrupted || (t != null)) {
+
+        free();
+
+        if (interrupted)
+          throw new InterruptedException();
+
+        throw toIOException(t);
       }
     }
 
-    double deadline = System.nanoTime() + FLASH_TIMEOUT_MS*1e6;
+    /** {@link #await} and take {@link #status} **/
+    protected int awaitStatus() throws IOException, InterruptedException {
+      await();
+      int ret = status;
+      free();
+      return ret;
+    }
 
-    int nextMsgChar = 0;
-    while (nextMsgChar < CM5_BOOTLOADER_MSG.length()) {
-      
-      if (System.nanoTime() > deadline)
-        throw new IOException("timout waiting for CM-5 reset");
-      
-      if (nextMsgChar == 0) {
-        sendByte('#', false);
-        Thread.sleep(50); //important
-      }
-      
-      while ((fromCM5.available() != 0) &&
-             (nextMsgChar < CM5_BOOTLOADER_MSG.length())) {
-        if (recvByte(false) == CM5_BOOTLOADER_MSG.charAt(nextMsgChar))
-          nextMsgChar++;
-        else
-          nextMsgChar = 0;
-      }
+    /** {@link #await} and take {@link #value} **/
+    protected Object awaitValue() throws IOException, InterruptedException {
+      await();
+      Object ret = value;
+      free();
+      return ret;
     }
 
-    if (log != null) {
-      log.println("detected reset to CM-5 bootloader");
-      log.println("initiating binary upload to address 0");
-      log.flush();
+    /** drop references and go back to {@link #FREE} **/
+    protected void free() {
+      out = in = value = null;
+      caller = null;
+      error = null;
+      state.set(FREE);
     }
+  }
 
-    Thread.sleep(FLASH_DELAY_MS);
+  /** host side copy of a format slot, see {@link #defineReadSlot} **/
+  protected static class FormatSlot {
 
-    drainFromCM5();
+    /** see {@link #getReadSlotName} **/
+    protected String name;
 
-    sendByte('\n', false);
-    sendByte('l', false);
-    sendByte('\n', false);
+    /** num dynamixels in the format **/
+    protected int numDynamixels = 0;
 
-    Thread.sleep(FLASH_DELAY_MS);
+    /** dynamixel ids **/
+    protected int[] axID = new int[0];
 
-    drainFromCM5();
+    /** start regs **/
+    protected AXRegister[] startReg = new AXRegister[0];
 
-    if (log != null) {
-      log.print("uploading binary");
-      log.flush();
-    }
+    /** num regs **/
+    protected int[] numReg = new int[0];
 
-    ByteArrayOutputStream verifyStream = new ByteArrayOutputStream(128*1024);
+    /** num bytes as sent to the CM-5 **/
+    protected int[] numBytes = new int[0];
 
-    for (b = binary.read(); b >= 0; b = binary.read(), bytesSent++) {
+    /** total num regs **/
+    protected int totalNumRegs = 0;
 
-      sendByte(b, false);
+    /** total num bytes **/
+    protected int totalNumBytes = 0;
 
-      verifyStream.write(b);
+    /** compiled codec **/
+    protected FormatPlan plan = new FormatPlan();
 
-      if ((log != null) && (bytesSent > 0) && (bytesSent%100 == 0)) {
-        log.print(".");
-        log.flush();
-      }
+    /** make <i>n</i> empty slots **/
+    protected static FormatSlot[] newSlots(int n) {
+      FormatSlot[] slots = new FormatSlot[n];
+      for (int i = 0; i < n; i++)
+        slots[i] = new FormatSlot();
+      return slots;
     }
+  }
 
-    if (log != null) {
-      log.println("\nflashed "+bytesSent+" bytes");
-      log.println("upload complete");
-      log.flush();
-    }
+  /**
+   * <p>A format compiled into flat per register arrays, so that the read and
+   * write codecs don't have to walk the {@link AXRegister}s of each block on
+   * every frame.</p>
+   *
+   * <p>Entry <i>k</i> is the <i>k</i>th register of the format, in the order
+   * of the read or write data.</p>
+   **/
+  protected static class FormatPlan {
 
-    if (log != null) {
-      log.println("verifying");
-      log.flush();
-    }
+    /** total num regs **/
+    protected final int numRegs;
 
-    Thread.sleep(FLASH_DELAY_MS);
+    /** dynamixel id **/
+    protected final int[] id;
 
-    drainFromCM5();
+    /** the register **/
+    protected final AXRegister[] reg;
 
-    sendByte('\n', false);
-    sendByte('u', false);
-    sendByte('p', false);
-    sendByte(' ', false);
-    sendByte('0', false);
-    sendByte(',', false);
-    sendByte(' ', false);
-    String hexBytesSent = Integer.toHexString(bytesSent);
-    for (int i = 0; i < hexBytesSent.length(); i++)
-      sendByte(hexBytesSent.charAt(i), false);
-    sendByte('\n', false);
+    /** byte offset in the packet data **/
+    protected final int[] offset;
 
-    Thread.sleep(FLASH_DELAY_MS);
+    /** register width in bytes **/
+    protected final int[] width;
 
-    drainFromCM5();
+    /** see {@link AXRegister#signMagnitude11Bit} **/
+    protected final boolean[] signMagnitude;
 
-    if (log != null) {
-      log.println("press START to initiate verify");
-      log.flush();
-    }
+    /** see {@link AXRegister#naturalUnitsPerCount} **/
+    protected final float[] naturalUnitsPerCount;
 
-    byte[] verifyArray = verifyStream.toByteArray();
+    /**
+     * <p>The register if it has nonlinear natural units, see {@link
+     * AXRegister#hasLinearNaturalUnits}, else null.</p>
+     **/
+    protected final AXRegister[] nonlinear;
 
-    int verifyFailedAt = -1;
+    /** see {@link BRBrain#cacheIndex} **/
+    protected final int[] cacheIndex;
 
-    for (int i = 0; i < bytesSent; i++) {
-      
-      deadline = System.nanoTime() + FLASH_TIMEOUT_MS*1e6;
-      while (fromCM5.available() == 0) 
-        if (System.nanoTime() > deadline)
-          throw new IOException("timout waiting for verify data");
+    /** an empty plan **/
+    protected FormatPlan() {
+      this(0, new int[0], new AXRegister[0], new int[0], new int[0]);
+    }
 
-      if ((log != null) && (i == 0)) {
-        log.print("verifying");
-        log.flush();
+    /**
+     * <p>Compile the first <i>n</i> blocks of a format, args as for {@link
+     * BRBrain#axID}, {@link BRBrain#startReg}, {@link BRBrain#numReg} and
+     * {@link BRBrain#numBytes}.</p>
+     **/
+    protected FormatPlan(int n, int[] axID, AXRegister[] startReg,
+                         int[] numReg, int[] numBytes) {
+
+      int m = 0;
+      for (int i = 0; i < n; i++)
+        m += numReg[i];
+
+      numRegs = m;
+      id = new int[m];
+      reg = new AXRegister[m];
+      offset = new int[m];
+      width = new int[m];
+      signMagnitude = new boolean[m];
+      naturalUnitsPerCount = new float[m];
+      nonlinear = new AXRegister[m];
+      cacheIndex = new int[m];
+
+      for (int i = 0, k = 0, base = 0; i < n; base += numBytes[i++]) {
+
+        AXRegister start = startReg[i];
+
+        for (int j = 0; j < numReg[i]; j++, k++) {
+
+          AXRegister r = start.getRelativeRegister(j);
+
+          id[k] = axID[i];
+          reg[k] = r;
+          offset[k] = base+(r.startAddr-start.startAddr);
+          width[k] = r.width;
+          signMagnitude[k] = r.signMagnitude11Bit;
+          naturalUnitsPerCount[k] = r.naturalUnitsPerCount;
+          nonlinear[k] = r.hasLinearNaturalUnits() ? null : r;
+          cacheIndex[k] = BRBrain.cacheIndex(axID[i], r);
+        }
       }
+    }
+  }
 
-      if ((log != null) && (i > 0) && (i%100 == 0)) {
-        log.print(".");
-        log.flush();
+  /**
+   * <p>A versioned copy of one decoded {@link Instruction#I_DATA} frame, see
+   * {@link #getLatestFrame}.</p>
+   *
+   * <p>To avoid allocation a BRBrain recycles its frames.  A frame is never
+   * modified while it is the latest frame, so the getters of the frame just
+   * returned by {@link #getLatestFrame()} are coherent with each other.  It
+   * then stays unchanged until at least {@link #FRAME_RING_SIZE}-1 further
+   * frames have been published, and is then refilled in place with a new
+   * {@link #getSequence}, which is 0 while it is being refilled.  Consumers
+   * which keep a frame longer than that should take a private snapshot with
+   * {@link #getLatestFrame(Frame)}.</p>
+   *
+   * <p>Like the cache the contents are held in volatile fields and atomic
+   * arrays, written with {@link #sequence} 0, so a reader which sees the same
+   * nonzero {@link #sequence} before and after reading them has seen one
+   * frame.</p>
+   **/
+  public static class Frame {
+
+    /** see {@link #getSequence}, 0 while being filled **/
+    protected volatile long sequence = 0;
+
+    /** see {@link #getTimeNS} **/
+    protected volatile long timeNS;
+
+    /** see {@link #getStatus} **/
+    protected volatile int status;
+
+    /** see {@link #getADC} **/
+    protected final AtomicIntegerArray adc = new AtomicIntegerArray(3);
+
+    /** see {@link #getSampleAgeTicks} **/
+    protected volatile int sampleAgeTicks = -1;
+
+    /** see {@link #getNumValues} **/
+    protected volatile int numValues = 0;
+
+    /** the values, in the order of the read format, grown as necessary **/
+    protected volatile AtomicIntegerArray data = new AtomicIntegerArray(0);
+
+    /** the read format of the values **/
+    protected volatile FormatPlan plan = new FormatPlan();
+
+    /** sequence number of the frame, counting from 1 **/
+    public long getSequence() {
+      return sequence;
+    }
+
+    /** nanotime at which the frame was decoded **/
+    public long getTimeNS() {
+      return timeNS;
+    }
+
+    /** the CM-5 status and retry bytes as the 0th and 1st byte **/
+    public int getStatus() {
+      return status;
+    }
+
+    /** the raw ADC reading of the given channel **/
+    public int getADC(int channel) {
+
+      if ((channel < 0) || (channel >= adc.length()))
+        throw new IllegalArgumentException("unknown channel "+channel);
+
+      return adc.get(channel);
+    }
+
+    /** see {@link BRBrain#getSampleAgeTicks} **/
+    public int getSampleAgeTicks() {
+      return sampleAgeTicks;
+    }
+
+    /** the number of register values **/
+    public int getNumValues() {
+      return numValues;
+    }
+
+    /** the <i>k</i>th register value **/
+    public int getValue(int k) {
+
+      if ((k < 0) || (k >= numValues))
+        throw new IndexOutOfBoundsException("no value "+k);
+
+      return data.get(k);
+    }
+
+    /** dynamixel id of the <i>k</i>th register value **/
+    public int getID(int k) {
+      getValue(k);
+      return plan.id[k];
+    }
+
+    /** register of the <i>k</i>th register value **/
+    public AXRegister getRegister(int k) {
+      getValue(k);
+      return plan.reg[k];
+    }
+
+    /** index of a register value, or -1 if not in the frame **/
+    public int indexOf(int axID, AXRegister register) {
+      FormatPlan p = plan;
+      for (int k = 0; k < numValues; k++)
+        if ((p.id[k] == axID) && (p.reg[k] == register))
+          return k;
+      return -1;
+    }
+
+    /**
+     * <p>Copy all register values into <i>values</i>, reallocating as
+     * necessary, and return it.</p>
+     **/
+    public int[] getValues(int[] values) {
+      AtomicIntegerArray d = data;
+      int n = Math.min(numValues, d.length());
+      values = ensureCapacity(values, n);
+      for (int k = 0; k < n; k++)
+        values[k] = d.get(k);
+      return values;
+    }
+
+    /**
+     * <p>Copy this frame into <i>dest</i>, or a new frame if null.</p>
+     *
+     * <p>This takes no lock and does not wait.  It is always coherent for the
+     * frame just returned by {@link #getLatestFrame()}.</p>
+     *
+     * @return <i>dest</i>, or null if this frame was being refilled, in which
+     * case the contents of <i>dest</i> are undefined and its {@link
+     * #getSequence} is 0
+     **/
+    public Frame copy(Frame dest) {
+
+      long seq = sequence;
+
+      if (seq == 0)
+        return null;
+
+      if (dest == null)
+        dest = new Frame();
+
+      dest.sequence = 0;
+
+      dest.timeNS = timeNS;
+      dest.status = status;
+      for (int i = 0; i < adc.length(); i++)
+        dest.adc.lazySet(i, adc.get(i));
+      dest.sampleAgeTicks = sampleAgeTicks;
+
+      //a refill may swap in a shorter array before updating numValues
+      AtomicIntegerArray d = data;
+      int n = numValues;
+
+      if (n > d.length())
+        return null;
+
+      AtomicIntegerArray dd = dest.data;
+      if (dd.length() < n)
+        dest.data = dd = new AtomicIntegerArray(n);
+
+      for (int k = 0; k < n; k++)
+        dd.lazySet(k, d.get(k));
+
+      dest.numValues = n;
+      dest.plan = plan;
+
+      if (sequence != seq)
+        return null;
+
+      dest.sequence = seq;
+
+      return dest;
+    }
+  }
+
+  /**
+   * <p>Receives every {@link Instruction#I_DATA} frame decoded by a BRBrain,
+   * whether streamed or in response to a read, see {@link
+   * #addFrameListener}.</p>
+   **/
+  public static interface FrameListener {
+
+    /**
+     * <p>Called on the I/O thread for each decoded frame, after the cache has
+     * been updated.</p>
+     *
+     * <p>This should return quickly, it holds up all communication with the
+     * CM-5.  It may use the asynchronous API, and the synchronous API runs
+     * inline.  RuntimeExceptions thrown are counted and reported, see {@link
+     * #getNumListenerErrors}, they do not fail the read or stop
+     * streaming.</p>
+     *
+     * @param brain the BRBrain that received the frame
+     * @param data the register values in the order of the read format, only
+     * valid for the duration of the call
+     * @param status the CM-5 status and retry bytes as the 0th and 1st byte
+     *
+     * <p>{@link #getSampleAgeTicks} and {@link #getLatestFrame} are also
+     * current for the duration of the call.</p>
+     **/
+    void frameReceived(BRBrain brain, int[] data, int status);
+  }
+
+  /**
+   * <p>Setup an BRBrain talking to a CM-5 over the given link.</p>
+   *
+   * <p>Note that this method does no transmission on the link, and does not
+   * verify the presence of a CM-5 running the correct firmware.</p>
+   *
+   * @param link the link to the CM-5, owned by this BRBrain from now on
+   **/
+  public BRBrain(CM5Link link) {
+
+    if (link == null)
+      throw new IllegalArgumentException("null link");
+
+    this.link = link;
+  }
+
+  /**
+   * <p>Setup an BRBrain talking to a CM-5 on the specified serial port at the
+   * specified baud rate, using an {@link RXTXLink}.</p>
+   *
+   * <p>Note that this method does no transmission on the port, and does not
+   * verify the presence of a CM-5 running the correct firmware.</p>
+   *
+   * <p>A {@link #recover} is performed.</p>
+   *
+   * @param portName an RXTX serial port name, see {@link #listPorts} 
+   * @param baudRate the baud rate in bits per second
+   *
+   * @exception IOException if there was a problem opening the port
+   * @exception InterruptedException if interrupted during {@link #recover}
+   * @exception IllegalStateException if the specified port is not recognized
+   * by RXTX as a serial port, or if RXTX silently failed to open the port 
+   **/
+  public BRBrain(String portName, int baudRate)
+    throws IOException, InterruptedException {
+
+    this(new RXTXLink(portName, baudRate));
+
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+        public void run() {
+          close();
+        } });
+
+    recover();
+  }
+
+  /** covers {@link #BRBrain(String, int)} uses {@link #RXTX_DEF_BAUD_RATE} **/
+  public BRBrain(String portName)
+    throws IOException, InterruptedException {
+    this(portName, RXTX_DEF_BAUD_RATE);
+  }
+
+  /**
+   * <p>Same as {@link #BRBrain(String)} but connect to CM-5 via a file instead
+   * of with RXTX, using a {@link FileLink}.</p>
+   **/
+  public BRBrain(File port) throws IOException, InterruptedException {
+    this(new FileLink(port));
+  }
+
+  /** get the link to the CM-5 **/
+  public CM5Link getLink() {
+    return link;
+  }
+
+  /**
+   * <p>Queue a task for execution on the I/O thread, starting it if
+   * necessary.</p>
+   *
+   * <p>Tasks run one at a time in the order they were submitted, each as an
+   * uninterrupted transaction with the CM-5.</p>
+   *
+   * @param task the task to run
+   *
+   * @return a future completed with the result of the task, or exceptionally
+   * with whatever it threw, or with an IOException if this BRBrain is or
+   * becomes {@link #close}d before the task runs
+   **/
+  public <T> CompletableFuture<T> submit(IOTask<T> task) {
+
+    IORequest<T> request = new IORequest<T>(task);
+
+    synchronized (stateLock) {
+
+      if (closed) {
+        request.future.completeExceptionally(new IOException("closed"));
+        return request.future;
       }
-        
-      b = recvByte(false);
 
-      if ((verifyFailedAt < 0) && ((b&0xff) != (verifyArray[i]&0xff)))
-        verifyFailedAt = i;
+      if (ioThread == null)
+        startIOThread();
+
+      ioQueue.add(request);
     }
 
-    if (log != null) {
-      log.print("\n");
-      log.flush();
+    LockSupport.unpark(ioThread);
+
+    return request.future;
+  }
+
+  /**
+   * <p>Run a task on the I/O thread and wait for its result.</p>
+   *
+   * <p>If called on the I/O thread itself the task is run inline.</p>
+   *
+   * @param task the task to run
+   *
+   * @return the result of the task
+   *
+   * @exception IOException if the task threw one or there was some other
+   * problem running it
+   * @exception InterruptedException if the task threw one or the calling
+   * thread was interrupted while waiting
+   **/
+  public <T> T call(IOTask<T> task) throws IOException, InterruptedException {
+
+    if (onIOThread())
+      return task.run();
+
+    CompletableFuture<T> future = submit(task);
+
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      future.cancel(false);
+      throw e;
+    } catch (ExecutionException e) {
+      throw toIOException(e.getCause());
     }
+  }
 
-    if (log != null) {
+  /**
+   * <p>Rethrow what an {@link IOTask} threw if it is an InterruptedException
+   * or unchecked, else return it as an IOException, wrapping if
+   * necessary.</p>
+   **/
+  protected static IOException toIOException(Throwable cause)
+    throws InterruptedException {
+
+    if (cause instanceof IOException)
+      return (IOException) cause;
+    if (cause instanceof InterruptedException)
+      throw (InterruptedException) cause;
+    if (cause instanceof RuntimeException)
+      throw (RuntimeException) cause;
+    if (cause instanceof Error)
+      throw (Error) cause;
+
+    IOException ioe = new IOException("error running I/O task");
+    ioe.initCause(cause);
+    return ioe;
+  }
 
-      if (verifyFailedAt >= 0) {
-        log.println("warning, verify failed at byte "+verifyFailedAt);
-        log.println("value should have been "+
-                    Integer.toHexString(verifyArray[verifyFailedAt]&0xff));
-      } else {
-        log.println("verified "+bytesSent+" bytes");
+  /**
+   * <p>Claim the {@link #syncCall} to hand a synchronous read or write to the
+   * I/O thread without allocating, starting it if necessary.</p>
+   *
+   * <p>Only one thread at a time can hold it, and only while nothing is
+   * queued, so that it does not overtake requests submitted earlier.</p>
+   *
+   * @return the claimed call, for {@link SyncCall#awaitStatus} or {@link
+   * SyncCall#awaitValue}, or null if the caller should use {@link #call}
+   * instead
+   **/
+  protected SyncCall claimSyncCall(int op, Object out, Object in) {
+
+    SyncCall s = syncCall;
+
+    synchronized (stateLock) {
+
+      if (closed || !ioQueue.isEmpty() ||
+          (s.state.get() != SyncCall.FREE))
+        return null;
+
+      if (ioThread == null)
+        startIOThread();
+
+      s.op = op;
+      s.out = out;
+      s.in = in;
+      s.caller = Thread.currentThread();
+
+      s.state.set(SyncCall.PENDING);
+    }
+
+    LockSupport.unpark(ioThread);
+
+    return s;
+  }
+
+  /** run a {@link SyncCall#PENDING} {@link #syncCall} on the I/O thread **/
+  protected void runSyncCall(SyncCall s) {
+
+    Thread caller = s.caller;
+    Throwable error = null;
+
+    try {
+      switch (s.op) {
+      case SyncCall.READ: s.status = read(s.in); break;
+      case SyncCall.WRITE: s.status = write(s.out); break;
+      case SyncCall.WRITE_READ: s.status = writeRead(s.out, s.in); break;
+      case SyncCall.READ_RESULT: s.value = read(); break;
+      case SyncCall.READ_NATURAL_RESULT: s.value = readNatural(); break;
+      default: throw new IllegalStateException("unknown op "+s.op);
       }
-      
-      log.flush();
+    } catch (Throwable t) {
+      error = t;
     }
 
-    Thread.sleep(FLASH_DELAY_MS);
+    s.error = error;
+    s.state.set(SyncCall.DONE);
 
-    drainFromCM5();
+    LockSupport.unpark(caller);
 
-    if (serialPort != null) {
-      if (baudRateWas != CM5_BOOTLOADER_BAUDRATE) {
-        
-        if (log != null) {
-          log.println("returning to "+baudRateWas+"bps");
-          log.flush();
+    if ((error != null) && (traceDumpFile != null))
+      dumpTraceOnError();
+  }
+
+  /** check whether the calling thread is the I/O thread **/
+  protected boolean onIOThread() {
+    return Thread.currentThread() == ioThread;
+  }
+
+  /** start {@link #ioThread}, caller must hold {@link #stateLock} **/
+  protected void startIOThread() {
+
+    ioThread = new Thread("BRBrain I/O") {
+        public void run() {
+          ioLoop();
+        } };
+
+    ioThread.setDaemon(true);
+    ioThread.start();
+  }
+
+  /**
+   * <p>Body of {@link #ioThread}, runs requests until {@link #close}d.</p>
+   *
+   * <p>Should the loop die of an unexpected exception this BRBrain is {@link
+   * #close}d, so that queued and future requests fail rather than hang.</p>
+   **/
+  protected void ioLoop() {
+    boolean ok = false;
+    try {
+      while (!closed) {
+
+        if (syncCall.state.compareAndSet(SyncCall.PENDING, SyncCall.RUNNING)) {
+          runSyncCall(syncCall);
+          continue;
         }
-        
-        setBaudRate(baudRateWas);
+
+        IORequest<?> request = ioQueue.poll();
+
+        if (request != null) {
+
+          request.run();
+
+          if ((traceDumpFile != null) &&
+              request.future.isCompletedExceptionally() &&
+              !request.future.isCancelled())
+            dumpTraceOnError();
+
+        } else if (streaming) {
+          pollStreamFrame();
+        } else {
+
+          //submit() and claimSyncCall() unpark, close() interrupts
+          LockSupport.park(this);
+
+          if (Thread.interrupted())
+            throw new InterruptedException();
+        }
+      }
+      ok = true;
+    } catch (InterruptedException e) {
+      ok = closed;
+    } finally {
+      if (!ok) {
+        System.err.println("W: BRBrain I/O thread died, closing");
+        close();
       }
     }
+  }
 
-    if (log != null) {
-      log.println("waiting for CM5 reset, press MODE");
-      log.flush();
+  /**
+   * <p>Wait up to {@link #STREAM_POLL_NS} for the start of a streamed frame
+   * and receive it.</p>
+   *
+   * <p>Bytes that don't start a frame and frames that fail to be received
+   * are dropped and counted, see {@link #getNumStreamErrors}.  This resyncs
+   * the stream after errors.  A lost delta frame reference is restored with
+   * {@link #ensureDeltaReference}.</p>
+   **/
+  protected void pollStreamFrame() throws InterruptedException {
+    try {
+
+      ensureDeltaReference();
+
+      if (link.recv(recvByteBuffer, 0, 1, STREAM_POLL_NS) == 0)
+        return;
+
+      ProtocolTrace t = trace;
+      if (t != null)
+        t.record(ProtocolTrace.RECV, recvByteBuffer, 0, 1);
+
+      startRecvPacketDebug();
+
+      recvInstruction = checksum = recvByteBuffer[0]&0xff;
+
+      if (!isFrame(checksum)) {
+        streamError();
+        return;
+      }
+
+      recvStreamFrame();
+
+    } catch (IOException e) {
+      if (debug)
+        System.err.println("W: dropped stream frame: "+e.getMessage());
+      streamError();
+    } catch (RuntimeException e) {
+      //a decoding bug must not kill the I/O thread
+      System.err.println("W: dropped stream frame: "+e);
+      streamError();
     }
+  }
 
-    deadline = System.nanoTime() + FLASH_TIMEOUT_MS*1e6;
+  /**
+   * <p>Count a dropped streamed frame, see {@link #getNumStreamErrors}, and
+   * dump the trace if it starts a burst, see {@link
+   * #STREAM_ERROR_BURST_NS}.</p>
+   **/
+  protected void streamError() {
 
-    while (fromCM5.available() == 0)
-      if (System.nanoTime() > deadline)
-        throw new IOException("timout waiting for CM-5 reset");
+    long now = System.nanoTime();
 
-    b = recvByte(false);
+    boolean first =
+      (numStreamErrors == 0) || (now-lastStreamErrorNS > STREAM_ERROR_BURST_NS);
+
+    numStreamErrors++;
+    lastStreamErrorNS = now;
+
+    if (first && (traceDumpFile != null))
+      dumpTraceOnError();
+  }
+
+  /** get the {@link ProtocolTrace}, null if none **/
+  public ProtocolTrace getTrace() {
+    return trace;
+  }
+
+  /**
+   * <p>Set the {@link ProtocolTrace} recording all bytes exchanged with the
+   * CM-5, or null to record none.</p>
+   *
+   * <p>By default there is a trace with {@link
+   * ProtocolTrace#DEF_CAPACITY}.</p>
+   **/
+  public void setTrace(ProtocolTrace trace) {
+    this.trace = trace;
+  }
+
+  /**
+   * <p>Set a file to which the {@link #getTrace} is dumped whenever a task
+   * on the I/O thread fails with an exception, and on the first streamed
+   * frame dropped in each burst of errors, see {@link
+   * #STREAM_ERROR_BURST_NS}, or null for none (the default).</p>
+   *
+   * <p>Each dump goes to a new file, numbered as by {@link
+   * #getTraceDumpFile(int)} and skipping files which already exist, so later
+   * errors never overwrite the dump of the first.</p>
+   **/
+  public void setTraceDumpFile(File traceDumpFile) {
+    this.traceDumpFile = traceDumpFile;
+  }
+
+  /** see {@link #setTraceDumpFile} **/
+  public File getTraceDumpFile() {
+    return traceDumpFile;
+  }
+
+  /**
+   * <p>Dump the {@link #getTrace} to a file, see {@link
+   * ProtocolTrace#dump}.</p>
+   *
+   * @exception IllegalStateException if there is no trace
+   **/
+  public void dumpTrace(final File file)
+    throws IOException, InterruptedException {
+
+    if (!onIOThread()) {
+      call(new IOTask<Void>() {
+          public Void run() throws IOException, InterruptedException {
+            dumpTrace(file);
+            return null;
+          } });
+      return;
+    }
+
+    ProtocolTrace t = trace;
+
+    if (t == null)
+      throw new IllegalStateException("no trace");
+
+    t.dump(file);
+  }
+
+  /**
+   * <p>Get the name of the <i>number</i>th automatic trace dump, the {@link
+   * #getTraceDumpFile} with the number inserted before any extension,
+   * e.g. <code>trace-000001.bin</code> for <code>trace.bin</code>, or null
+   * if none.</p>
+   **/
+  public File getTraceDumpFile(int number) {
+
+    File file = traceDumpFile;
+
+    if (file == null)
+      return null;
+
+    String name = file.getName();
+
+    int dot = name.lastIndexOf('.');
+    if (dot <= 0)
+      dot = name.length();
+
+    return new File(file.getParentFile(),
+                    name.substring(0, dot)+String.format("-%06d", number)+
+                    name.substring(dot));
+  }
+
+  /** dump the {@link #trace} to the next free numbered dump file, if any **/
+  protected void dumpTraceOnError() {
+
+    ProtocolTrace t = trace;
+
+    if ((t == null) || (traceDumpFile == null))
+      return;
+
+    File file;
+    do {
+      file = getTraceDumpFile(++numTraceDumps);
+    } while ((file != null) && file.exists());
+
+    if (file == null)
+      return;
+
+    try {
+      t.dump(file);
+      System.err.println("W: dumped protocol trace to "+file);
+    } catch (IOException e) {
+      System.err.println("W: failed to dump protocol trace: "+e.getMessage());
+    }
+  }
+
+  /** fail all requests remaining in {@link #ioQueue} and {@link #syncCall} **/
+  protected void failPendingRequests() {
+
+    for (IORequest<?> request = ioQueue.poll();
+         request != null;
+         request = ioQueue.poll())
+      request.future.completeExceptionally(new IOException("closed"));
+
+    SyncCall s = syncCall;
+
+    if (s.state.compareAndSet(SyncCall.PENDING, SyncCall.RUNNING)) {
+      Thread caller = s.caller;
+      s.error = new IOException("closed");
+      s.state.set(SyncCall.DONE);
+      LockSupport.unpark(caller);
+    }
+  }
+ 
+  /** waits {@link #RECOVER_MS} and then drains recv buf **/
+  public void recover() throws IOException, InterruptedException {
+
+    if (!onIOThread()) {
+      call(new IOTask<Void>() {
+          public Void run() throws IOException, InterruptedException {
+            recover();
+            return null;
+          } });
+      return;
+    }
+
+    Thread.sleep(RECOVER_MS);
+    drainFromCM5();
+    checksum = 0;
+    sendingPacket = false;
+    sendLength = 0;
+  }
+
+  /** drain {@link #link} **/
+  protected void drainFromCM5()
+    throws IOException, InterruptedException {
+    while (link.available() != 0)
+      recvByte(false);
+  }
+
+  /**
+   * <p>Attempt to set the baud rate, works only if the {@link #link} supports
+   * it (e.g. {@link RXTXLink}).</p>
+   *
+   * @exception IllegalStateException if the link has no baud rate control
+   **/
+  protected void setBaudRate(int baudRate) throws IOException {
+    link.setBaudRate(baudRate);
+  }
+
+  /**
+   * <p>Switch the PC link of both the CM-5 and the {@link #link} to a
+   * faster (or slower) baud rate, see {@link Instruction#I_SET_BAUD}.</p>
+   *
+   * <p>The switch is verified with a ping at the new rate.  If that fails
+   * both sides fall back to the current rate, which takes about {@link
+   * #BAUD_REVERT_MS}.  Whether a given rate works depends on the serial
+   * adapter and cabling, FTDI USB adapters generally handle all of {@link
+   * #CM5_BAUD_RATES}.  The CM-5 goes back to {@link #RXTX_DEF_BAUD_RATE} when
+   * reset, but otherwise keeps the new rate beyond this BRBrain.</p>
+   *
+   * @param preferred the desired rate, one of {@link #CM5_BAUD_RATES}
+   *
+   * @return the baud rate in effect afterwards, either <i>preferred</i> or
+   * the previous rate
+   *
+   * @exception IllegalArgumentException if <i>preferred</i> is not one of
+   * {@link #CM5_BAUD_RATES}
+   * @exception IllegalStateException if streaming, or if the link has no
+   * baud rate control
+   * @exception IOException if there was a communication error, or if the
+   * CM-5 could not be reached at either rate afterwards
+   * @exception InterruptedException if the calling thread was interrupted
+   * while waiting for response bytes from the CM-5
+   **/
+  public int negotiateBaudRate(final int preferred)
+    throws IOException, InterruptedException {
+
+    if (!onIOThread())
+      return call(new IOTask<Integer>() {
+          public Integer run() throws IOException, InterruptedException {
+            return negotiateBaudRate(preferred);
+          } });
+
+    int code = -1;
+    for (int i = 0; i < CM5_BAUD_RATES.length; i++)
+      if (CM5_BAUD_RATES[i] == preferred)
+        code = i;
+
+    if (code < 0)
+      throw new IllegalArgumentException("unsupported baud rate "+preferred);
+
+    checkNotStreaming("baud rate negotiation");
+
+    int was = link.getBaudRate();
+
+    if (was <= 0)
+      throw new IllegalStateException("link has no baud rate control");
+
+    if (was == preferred)
+      return was;
+
+    startSendPacket(Instruction.I_SET_BAUD);
+    sendByte(code);
+    endSendPacket();
+
+    if (!verifyStatus(recvStatus(), "setting baud rate", true))
+      return was;
+
+    if (tryBaudRate(preferred, BAUD_SWITCH_MS))
+      return preferred;
+
+    if (tryBaudRate(was, BAUD_REVERT_MS))
+      return was;
+
+    //maybe just the verification reply was lost
+    if (tryBaudRate(preferred, 0))
+      return preferred;
+
+    throw new IOException(
+      "lost CM-5 switching from "+was+" to "+preferred+"bps");
+  }
+
+  /**
+   * <p>Set the {@link #link} baud rate, wait <i>ms</i>, drain, and ping the
+   * CM-5.</p>
+   *
+   * @return true iff the ping succeeded
+   **/
+  protected boolean tryBaudRate(int baudRate, int ms)
+    throws InterruptedException {
+    try {
+
+      setBaudRate(baudRate);
+
+      Thread.sleep(ms);
+
+      drainFromCM5();
+
+      return (pingCM5()&0xff) == 0;
+
+    } catch (IOException e) {
+      if (debug)
+        System.err.println(
+          "W: ping at "+baudRate+"bps failed: "+e.getMessage());
+      return false;
+    }
+  }
+
+  /** 
+   * <p>Interact with the user and the CM-5 bootloader to flash new firmware to
+   * the CM-5.</p>
+   *
+   * @param binary an InputStream from which the new firmware binary is read
+   * @param log an output stream to which progress and prompt messages are
+   * displayed
+   *
+   * @return the number of bytes flashed, negative of that if verify failed
+   *
+   * @exception IOException if there was an input our output error
+   * @exception InterruptedException if there was a timeout
+   **/
+  public int flashCM5(final InputStream binary, final PrintStream log)
+    throws IOException, InterruptedException {
+
+    if (!onIOThread())
+      return call(new IOTask<Integer>() {
+          public Integer run() throws IOException, InterruptedException {
+            return flashCM5(binary, log);
+          } });
+    
+    int bytesSent = 0;
+    int b;
+ 
+    if (binary == null)
+      throw new IllegalArgumentException("null binary");
+
+    if (log != null) {
+      log.println("waiting for CM5 reset, press MODE");
+      log.flush();
+    }
+
+    drainFromCM5();
+
+    int baudRateWas = link.getBaudRate();
+
+    if (baudRateWas > 0) {
+      
+      if (baudRateWas != CM5_BOOTLOADER_BAUDRATE) {
+        
+        if (log != null) {
+          log.println("switching from "+baudRateWas+
+                      "bps to "+CM5_BOOTLOADER_BAUDRATE+"bps");
+          log.flush();
+        }
+        
+        setBaudRate(CM5_BOOTLOADER_BAUDRATE);
+      }
+    } else {
+      if (log != null) {
+        log.println(
+          "link has no control of baudrate, please ensure it is "+
+          CM5_BOOTLOADER_BAUDRATE+"bps");
+        log.flush();
+      }
+    }
+
+    double deadline = System.nanoTime() + FLASH_TIMEOUT_MS*1e6;
+
+    int nextMsgChar = 0;
+    while (nextMsgChar < CM5_BOOTLOADER_MSG.length()) {
+      
+      if (System.nanoTime() > deadline)
+        throw new IOException("timout waiting for CM-5 reset");
+      
+      if (nextMsgChar == 0) {
+        sendByte('#', false);
+        Thread.sleep(50); //important
+      }
+      
+      while ((link.available() != 0) &&
+             (nextMsgChar < CM5_BOOTLOADER_MSG.length())) {
+        if (recvByte(false) == CM5_BOOTLOADER_MSG.charAt(nextMsgChar))
+          nextMsgChar++;
+        else
+          nextMsgChar = 0;
+      }
+    }
+
+    if (log != null) {
+      log.println("detected reset to CM-5 bootloader");
+      log.println("initiating binary upload to address 0");
+      log.flush();
+    }
+
+    Thread.sleep(FLASH_DELAY_MS);
+
+    drainFromCM5();
+
+    sendByte('\n', false);
+    sendByte('l', false);
+    sendByte('\n', false);
+
+    Thread.sleep(FLASH_DELAY_MS);
+
+    drainFromCM5();
+
+    if (log != null) {
+      log.print("uploading binary");
+      log.flush();
+    }
+
+    ByteArrayOutputStream verifyStream = new ByteArrayOutputStream(128*1024);
+
+    for (b = binary.read(); b >= 0; b = binary.read(), bytesSent++) {
+
+      sendByte(b, false);
+
+      verifyStream.write(b);
+
+      if ((log != null) && (bytesSent > 0) && (bytesSent%100 == 0)) {
+        log.print(".");
+        log.flush();
+      }
+    }
+
+    if (log != null) {
+      log.println("\nflashed "+bytesSent+" bytes");
+      log.println("upload complete");
+      log.flush();
+    }
+
+    if (log != null) {
+      log.println("verifying");
+      log.flush();
+    }
+
+    Thread.sleep(FLASH_DELAY_MS);
+
+    drainFromCM5();
+
+    sendByte('\n', false);
+    sendByte('u', false);
+    sendByte('p', false);
+    sendByte(' ', false);
+    sendByte('0', false);
+    sendByte(',', false);
+    sendByte(' ', false);
+    String hexBytesSent = Integer.toHexString(bytesSent);
+    for (int i = 0; i < hexBytesSent.length(); i++)
+      sendByte(hexBytesSent.charAt(i), false);
+    sendByte('\n', false);
+
+    Thread.sleep(FLASH_DELAY_MS);
+
+    drainFromCM5();
+
+    if (log != null) {
+      log.println("press START to initiate verify");
+      log.flush();
+    }
+
+    byte[] verifyArray = verifyStream.toByteArray();
+
+    int verifyFailedAt = -1;
+
+    for (int i = 0; i < bytesSent; i++) {
+      
+      deadline = System.nanoTime() + FLASH_TIMEOUT_MS*1e6;
+      while (link.available() == 0) 
+        if (System.nanoTime() > deadline)
+          throw new IOException("timout waiting for verify data");
+
+      if ((log != null) && (i == 0)) {
+        log.print("verifying");
+        log.flush();
+      }
+
+      if ((log != null) && (i > 0) && (i%100 == 0)) {
+        log.print(".");
+        log.flush();
+      }
+        
+      b = recvByte(false);
+
+      if ((verifyFailedAt < 0) && ((b&0xff) != (verifyArray[i]&0xff)))
+        verifyFailedAt = i;
+    }
+
+    if (log != null) {
+      log.print("\n");
+      log.flush();
+    }
+
+    if (log != null) {
+
+      if (verifyFailedAt >= 0) {
+        log.println("warning, verify failed at byte "+verifyFailedAt);
+        log.println("value should have been "+
+                    Integer.toHexString(verifyArray[verifyFailedAt]&0xff));
+      } else {
+        log.println("verified "+bytesSent+" bytes");
+      }
+      
+      log.flush();
+    }
+
+    Thread.sleep(FLASH_DELAY_MS);
+
+    drainFromCM5();
+
+    if (baudRateWas > 0) {
+      if (baudRateWas != CM5_BOOTLOADER_BAUDRATE) {
+        
+        if (log != null) {
+          log.println("returning to "+baudRateWas+"bps");
+          log.flush();
+        }
+        
+        setBaudRate(baudRateWas);
+      }
+    }
+
+    if (log != null) {
+      log.println("waiting for CM5 reset, press MODE");
+      log.flush();
+    }
+
+    deadline = System.nanoTime() + FLASH_TIMEOUT_MS*1e6;
+
+    while (link.available() == 0)
+      if (System.nanoTime() > deadline)
+        throw new IOException("timout waiting for CM-5 reset");
+
+    b = recvByte(false);
+
+    if (b != 0xff) {
+
+      if (log != null) {
+        log.println(
+          "warning reset byte was 0x"+Integer.toHexString(b)+" not 0xff");
+        log.flush();
+      }
+
+    } else {
+
+      if (log != null) {
+        log.println("detected CM-5 reset to user code");
+        log.flush();
+      }
+    }
+
+    if (verifyFailedAt >= 0)
+      bytesSent = -bytesSent;
+
+    return bytesSent;
+  }
+
+  /** covers {@link #flashCM5(InputStream, PrintStream)} **/
+  public int flashCM5(File binary, PrintStream log)
+    throws IOException, InterruptedException {
+    return flashCM5(new FileInputStream(binary), System.out);
+  }
+
+  /** covers {@link #flashCM5(File, PrintStream)} **/
+  public int flashCM5(String binary, PrintStream log)
+    throws IOException, InterruptedException {
+    return flashCM5(new File(binary), System.out);
+  }
+
+  /** covers {@link #flashCM5(String, PrintStream)}, uses System.out **/
+  public int flashCM5(String binary)
+    throws IOException, InterruptedException {
+    return flashCM5(binary, System.out);
+  }
+
+  /**
+   * <p>Issue {@link Instruction#I_PING} packet requesting ping of the
+   * indicated dynamixel.</p>
+   *
+   * @param id the id of the dynamixel to ping in the closed interval [0,
+   * {@link AXRegister#MAX_DYNAMIXEL_ID}] or 255 to ping the CM-5 itself
+   *
+   * @return the CM-5 status and retry bytes as the 0th and 1st byte of the
+   * returned int
+   *
+   * @exception IOException if there was a communication error
+   * @exception InterruptedException if the calling thread was interrupted
+   * while waiting for response bytes from the CM-5
+   **/
+  public int pingDynamixel(final int id)
+    throws IOException, InterruptedException {
+
+    if (!onIOThread())
+      return call(new IOTask<Integer>() {
+          public Integer run() throws IOException, InterruptedException {
+            return pingDynamixel(id);
+          } });
+
+    if ((AX12_ID.check(id) != 0) && (id != 255))
+      throw new IllegalArgumentException("invalid id "+id);
+
+    startSendPacket(Instruction.I_PING);
+    sendByte(id);
+    endSendPacket();
+
+    return recvStatus();
+  }
+
+  /** covers {@link #pingDynamixel}, uses id 255 to ping the CM-5 itself **/
+  public int pingCM5()
+    throws IOException, InterruptedException {
+    return pingDynamixel(255);
+  }
+
+  /** asynchronous {@link #pingDynamixel}, see class header doc **/
+  public CompletableFuture<Integer> pingAsync(final int id) {
+    return submit(new IOTask<Integer>() {
+        public Integer run() throws IOException, InterruptedException {
+          return pingDynamixel(id);
+        } });
+  }
+
+  /**
+   * <p>Start streaming the current read format, see class header doc.</p>
+   *
+   * <p>While streaming {@link #read(float[])} and {@link #setReadFormat} are
+   * not allowed, use a {@link FrameListener} or {@link #getCachedValue}
+   * instead.  Calling this while already streaming changes the period.</p>
+   *
+   * @param periodTicks the period in CM-5 timer ticks of about 10ms, in the
+   * closed interval [0, {@link #MAX_STREAM_PERIOD_TICKS}], 0 to stream
+   * frames back to back
+   *
+   * @return the CM-5 status and retry bytes as the 0th and 1st byte of the
+   * returned int, streaming only started if the status byte is zero
+   *
+   * @exception IOException if there was a communication error
+   * @exception InterruptedException if the calling thread was interrupted
+   * while waiting for response bytes from the CM-5
+   **/
+  public int startStreaming(final int periodTicks)
+    throws IOException, InterruptedException {
+
+    if (!onIOThread())
+      return call(new IOTask<Integer>() {
+          public Integer run() throws IOException, InterruptedException {
+            return startStreaming(periodTicks);
+          } });
+
+    if ((periodTicks < 0) || (periodTicks > MAX_STREAM_PERIOD_TICKS))
+      throw new IllegalArgumentException("invalid period "+periodTicks);
+
+    boolean wasStreaming = streaming;
+
+    startSendPacket(Instruction.I_STREAM_START);
+    sendByte(periodTicks);
+    endSendPacket();
+
+    int status = recvStatus();
+
+    streaming = wasStreaming || ((status&0xff) == 0);
+
+    return status;
+  }
+
+  /**
+   * <p>Stop streaming, see {@link #startStreaming}.</p>
+   *
+   * <p>This is harmless if not streaming, and may also be used to stop a CM-5
+   * left streaming by some other host session.</p>
+   *
+   * @return the CM-5 status and retry bytes as the 0th and 1st byte of the
+   * returned int
+   *
+   * @exception IOException if there was a communication error
+   * @exception InterruptedException if the calling thread was interrupted
+   * while waiting for response bytes from the CM-5
+   **/
+  public int stopStreaming() throws IOException, InterruptedException {
+
+    if (!onIOThread())
+      return call(new IOTask<Integer>() {
+          public Integer run() throws IOException, InterruptedException {
+            return stopStreaming();
+          } });
+
+    startSendPacket(Instruction.I_STREAM_STOP);
+    endSendPacket();
+
+    //accept frames sent before the stop was handled
+    streaming = true;
+
+    try {
+      return recvStatus();
+    } finally {
+      streaming = false;
+    }
+  }
+
+  /** check whether {@link #startStreaming} is in effect **/
+  public boolean isStreaming() {
+    return streaming;
+  }
+
+  /** get the number of streamed frames dropped due to errors so far **/
+  public long getNumStreamErrors() {
+    return numStreamErrors;
+  }
+
+  /**
+   * <p>Turn background polling on or off, see {@link #MODE_POLL}.</p>
+   *
+   * <p>While polling the CM-5 keeps acquiring the read format whenever it is
+   * idle, and answers reads (and {@link #writeRead}, and streamed frames)
+   * immediately from the most recent complete acquisition instead of
+   * acquiring it on demand.  This takes the dynamixel bus time out of the
+   * round trip at the price of slightly stale data, see {@link
+   * #getSampleAgeTicks}.  Commands may wait for the acquisition of one
+   * dynamixel to finish before the CM-5 starts on them.</p>
+   *
+   * @param enable whether to poll
+   *
+   * @return the CM-5 status and retry bytes as the 0th and 1st byte of the
+   * returned int, the mode is only changed if the status byte is zero
+   *
+   * @exception IllegalStateException if enabling and the read format is
+   * longer than {@link #MAX_BUFFERED_BYTES}
+   * @exception IOException if there was a communication error
+   * @exception InterruptedException if the calling thread was interrupted
+   * while waiting for response bytes from the CM-5
+   **/
+  public int setPolling(final boolean enable)
+    throws IOException, InterruptedException {
+
+    if (!onIOThread())
+      return call(new IOTask<Integer>() {
+          public Integer run() throws IOException, InterruptedException {
+            return setPolling(enable);
+          } });
+
+    if (enable && (totalNumBytes[F_READ] > MAX_BUFFERED_BYTES))
+      throw new IllegalStateException(
+        "read format longer than "+MAX_BUFFERED_BYTES+" bytes");
+
+    return setMode(enable ? (mode|MODE_POLL) : (mode&~MODE_POLL));
+  }
+
+  /** check whether {@link #setPolling} is in effect **/
+  public boolean isPolling() {
+    synchronized (stateLock) {
+      return (mode&MODE_POLL) != 0;
+    }
+  }
+
+  /**
+   * <p>Turn delta encoding of frames on or off, see {@link #MODE_DELTA}.</p>
+   *
+   * <p>With delta encoding the CM-5 sends only the bytes of each frame that
+   * changed since the previous one, plus a bitmap of which, whenever that is
+   * shorter.  Frames are reconstructed transparently, so this is just a way
+   * to get more frames per second over the PC link when most of the read
+   * format rarely changes.  A lost frame spoils the deltas up to the next
+   * keyframe, which is requested on the next read, and otherwise comes at
+   * least every {@link #DELTA_KEYFRAME_INTERVAL} frames.  Streamed frames
+   * that can't be reconstructed are dropped and counted in {@link
+   * #getNumStreamErrors}.</p>
+   *
+   * @param enable whether to delta encode frames
+   *
+   * @return the CM-5 status and retry bytes as the 0th and 1st byte of the
+   * returned int, the mode is only changed if the status byte is zero
+   *
+   * @exception IllegalStateException if enabling and the read format is
+   * longer than {@link #MAX_BUFFERED_BYTES}
+   * @exception IOException if there was a communication error
+   * @exception InterruptedException if the calling thread was interrupted
+   * while waiting for response bytes from the CM-5
+   **/
+  public int setDeltaEncoding(final boolean enable)
+    throws IOException, InterruptedException {
+
+    if (!onIOThread())
+      return call(new IOTask<Integer>() {
+          public Integer run() throws IOException, InterruptedException {
+            return setDeltaEncoding(enable);
+          } });
+
+    if (enable && (totalNumBytes[F_READ] > MAX_BUFFERED_BYTES))
+      throw new IllegalStateException(
+        "read format longer than "+MAX_BUFFERED_BYTES+" bytes");
+
+    return setMode(enable ? (mode|MODE_DELTA) : (mode&~MODE_DELTA));
+  }
+
+  /** check whether {@link #setDeltaEncoding} is in effect **/
+  public boolean isDeltaEncoding() {
+    synchronized (stateLock) {
+      return (mode&MODE_DELTA) != 0;
+    }
+  }
+
+  /**
+   * <p>Get the age of the most recently decoded frame in CM-5 timer ticks of
+   * about 10ms, saturating at 255, or -1 if it was not from {@link
+   * #setPolling}.</p>
+   **/
+  public int getSampleAgeTicks() {
+    synchronized (stateLock) {
+      return sampleAgeTicks;
+    }
+  }
+
+  /**
+   * <p>Send {@link Instruction#I_SET_MODE} and adopt <i>newMode</i> if the
+   * CM-5 accepts it.</p>
+   *
+   * <p>This is allowed while streaming: frames sent before the status still
+   * use the old mode, and those after it the new one.  With {@link
+   * #MODE_DELTA} the first of the latter is a keyframe.</p>
+   *
+   * @return the CM-5 status and retry bytes as the 0th and 1st byte of the
+   * returned int
+   **/
+  protected int setMode(int newMode) throws IOException, InterruptedException {
+
+    startSendPacket(Instruction.I_SET_MODE);
+    sendByte(newMode);
+    endSendPacket();
+
+    int status = recvStatus();
+
+    if ((status&0xff) == 0) {
+
+      synchronized (stateLock) {
+        mode = newMode;
+      }
+
+      deltaRefValid = false;
+      keyframePending = true;
+
+      recvBuffer =
+        ensureCapacity(recvBuffer, totalNumBytes[F_READ]+dataTrailerLength()+1);
+    }
+
+    return status;
+  }
+
+  /**
+   * <p>Number of bytes trailing the data bytes of an {@link
+   * Instruction#I_DATA} packet in the current mode, not counting the
+   * checksum.</p>
+   **/
+  protected int dataTrailerLength() {
+    return STATUS_LENGTH+
+      (((mode&MODE_POLL) != 0) ? 1 : 0)+
+      (((mode&MODE_DELTA) != 0) ? 1 : 0);
+  }
+
+  /**
+   * <p>With {@link #MODE_DELTA}, ask the CM-5 for a keyframe if the {@link
+   * #deltaRef} was lost and none is on its way.</p>
+   **/
+  protected void ensureDeltaReference()
+    throws IOException, InterruptedException {
+    if (((mode&MODE_DELTA) != 0) && !deltaRefValid && !keyframePending)
+      verifyStatus(setMode(mode), "requesting keyframe");
+  }
+
+  /** throw IllegalStateException if {@link #isStreaming} **/
+  protected void checkNotStreaming(String operation) {
+    if (streaming)
+      throw new IllegalStateException(operation+" not allowed while streaming");
+  }
+
+  /** add a {@link FrameListener}, no effect if already added **/
+  public void addFrameListener(FrameListener listener) {
+    synchronized (stateLock) {
+
+      for (FrameListener l : frameListeners)
+        if (l.equals(listener))
+          return;
+
+      FrameListener[] ls =
+        Arrays.copyOf(frameListeners, frameListeners.length+1);
+      ls[frameListeners.length] = listener;
+
+      frameListeners = ls;
+    }
+  }
+
+  /** remove a {@link FrameListener}, no effect if not added **/
+  public void removeFrameListener(FrameListener listener) {
+    synchronized (stateLock) {
+      for (int i = 0; i < frameListeners.length; i++) {
+        if (frameListeners[i].equals(listener)) {
+          FrameListener[] ls = new FrameListener[frameListeners.length-1];
+          System.arraycopy(frameListeners, 0, ls, 0, i);
+          System.arraycopy(frameListeners, i+1, ls, i, ls.length-i);
+          frameListeners = ls;
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * <p>Get the most recently decoded frame, or null if none yet.</p>
+   *
+   * <p>This takes no lock.  The returned frame is not modified while it is
+   * the latest frame, and is recycled only after {@link #FRAME_RING_SIZE}-1
+   * further frames, see {@link Frame}.</p>
+   **/
+  public Frame getLatestFrame() {
+    return latestFrame;
+  }
+
+  /**
+   * <p>Snapshot the most recently decoded frame into <i>dest</i>, or a new
+   * frame if null.</p>
+   *
+   * <p>This takes no lock and never waits for the I/O thread, the snapshot
+   * is coherent and is never recycled.  It only copies again if {@link
+   * #FRAME_RING_SIZE}-1 frames were decoded during the copy, taking the then
+   * latest frame.</p>
+   *
+   * @return <i>dest</i>, or null if no frame has been decoded yet
+   **/
+  public Frame getLatestFrame(Frame dest) {
+    for (;;) {
+
+      Frame frame = latestFrame;
+
+      if (frame == null)
+        return null;
+
+      if (dest == null)
+        dest = new Frame();
+
+      if (frame.copy(dest) != null)
+        return dest;
+    }
+  }
+
+  /**
+   * <p>Snapshot the just decoded frame into the next {@link #frameRing} entry
+   * and publish it as the {@link #latestFrame}, caller must hold {@link
+   * #stateLock}.</p>
+   **/
+  protected void publishFrame(int status) {
+
+    long seq = ++frameSequence;
+
+    int i = (int) (seq%FRAME_RING_SIZE);
+
+    Frame frame = frameRing[i];
+
+    if (frame == null)
+      frame = frameRing[i] = new Frame();
+
+    frame.sequence = 0;
+
+    //volatile and lazySet() stores are ordered after the zero sequence
+    frame.timeNS = frameNS;
+    frame.status = status;
+    for (int k = 0; k < adcValue.length; k++)
+      frame.adc.lazySet(k, adcValue[k]);
+    frame.sampleAgeTicks = sampleAgeTicks;
+
+    int n = plan[F_READ].numRegs;
+
+    AtomicIntegerArray d = frame.data;
+    if (d.length() < n)
+      frame.data = d = new AtomicIntegerArray(n);
+
+    for (int k = 0; k < n; k++)
+      d.lazySet(k, frameData[k]);
+
+    frame.numValues = n;
+    frame.plan = plan[F_READ];
+
+    frame.sequence = seq;
+
+    latestFrame = frame;
+  }
+
+  /** call all {@link #frameListeners} on {@link #frameData} **/
+  protected void fireFrameReceived(int status) {
+    //iterating an array allocates nothing
+    FrameListener[] ls = frameListeners;
+    for (int i = 0; i < ls.length; i++) {
+      try {
+        ls[i].frameReceived(this, frameData, status);
+      } catch (RuntimeException e) {
+        numListenerErrors++;
+        System.err.println("W: frame listener failed: "+e);
+      }
+    }
+  }
+
+  /**
+   * <p>Get the number of times a {@link FrameListener} threw so far, the
+   * exceptions are reported on stderr and otherwise ignored.</p>
+   **/
+  public long getNumListenerErrors() {
+    return numListenerErrors;
+  }
+
+  /**
+   * <p>Scan for presence of dynamixels with IDs in the closed interval [0,
+   * <code>maxID</code>].</p>
+   *
+   * @param dynamixels presence written here, (re)consed if null or too short 
+   *
+   * @return the array of dynamixel presence
+   **/
+  public boolean[] scan(final boolean[] dynamixels, final int maxID)
+    throws IOException, InterruptedException {
+    return scan(dynamixels, null, 0, maxID);
+  }
+
+  /**
+   * <p>Scan for presence of dynamixels with IDs in the closed interval
+   * [<code>minID</code>, <code>maxID</code>], and get their model
+   * numbers.</p>
+   *
+   * <p>This takes one {@link Instruction#I_SCAN} round trip, during which
+   * the CM-5 spends about 3ms on each absent id.  With older firmware that
+   * doesn't know {@link Instruction#I_SCAN} it falls back to an {@link
+   * #pingDynamixel} of each id, each of which costs the CM-5 dynamixel
+   * receive timeout of about 100ms if absent, and the model numbers are not
+   * available.</p>
+   *
+   * @param dynamixels presence written here, (re)consed if null or too
+   * short, entries outside the interval are left alone
+   * @param modelNumbers if not null, the model number of each present
+   * dynamixel is written here at the index of its id, and -1 for the other
+   * ids in the interval
+   * @param minID the first id to scan
+   * @param maxID the last id to scan
+   *
+   * @return the array of dynamixel presence
+   *
+   * @exception IllegalArgumentException if the interval is empty or not in
+   * [0, {@link AXRegister#MAX_DYNAMIXEL_ID}], or if <i>modelNumbers</i> is
+   * too short
+   **/
+  public boolean[] scan(final boolean[] dynamixels, final int[] modelNumbers,
+                        final int minID, final int maxID)
+    throws IOException, InterruptedException {
+
+    if (!onIOThread())
+      return call(new IOTask<boolean[]>() {
+          public boolean[] run() throws IOException, InterruptedException {
+            return scan(dynamixels, modelNumbers, minID, maxID);
+          } });
+
+    if (maxID > MAX_DYNAMIXEL_ID)
+      throw new IllegalArgumentException("maxID can be at most "+
+                                         MAX_DYNAMIXEL_ID);
+
+    if ((minID < 0) || (minID > maxID))
+      throw new IllegalArgumentException("invalid minID "+minID);
+
+    if ((modelNumbers != null) && (modelNumbers.length < (maxID+1)))
+      throw new IllegalArgumentException("modelNumbers too short");
+
+    boolean[] present = dynamixels;
+
+    if ((present == null) || (present.length < (maxID+1)))
+      present = new boolean[maxID+1];
+
+    for (int i = minID; i <= maxID; i++) {
+      present[i] = false;
+      if (modelNumbers != null)
+        modelNumbers[i] = -1;
+    }
 
-    if (b != 0xff) {
+    if (scanSupported) {
 
-      if (log != null) {
-        log.println(
-          "warning reset byte was 0x"+Integer.toHexString(b)+" not 0xff");
-        log.flush();
-      }
+      int status = recvScan(present, modelNumbers, minID, maxID);
 
-    } else {
+      if (recvInstruction == Instruction.I_SCAN.code)
+        return present;
 
-      if (log != null) {
-        log.println("detected CM-5 reset to user code");
-        log.flush();
-      }
-    }
+      if ((status&0xff) == S_INVALID_PC_COMMAND) {
 
-    if (verifyFailedAt >= 0)
-      bytesSent = -bytesSent;
+        System.err.println(
+          "W: CM-5 firmware does not support I_SCAN, pinging each id");
 
-    return bytesSent;
-  }
+        scanSupported = false;
 
-  /** covers {@link #flashCM5(InputStream, PrintStream)} **/
-  public synchronized int flashCM5(File binary, PrintStream log)
-    throws IOException, InterruptedException {
-    return flashCM5(new FileInputStream(binary), System.out);
-  }
+        //let the CM-5 clear its rx buf after the invalid command
+        Thread.sleep(RECOVER_MS);
+      }
+    }
 
-  /** covers {@link #flashCM5(File, PrintStream)} **/
-  public synchronized int flashCM5(String binary, PrintStream log)
-    throws IOException, InterruptedException {
-    return flashCM5(new File(binary), System.out);
-  }
+    for (int i = minID; i <= maxID; i++)
+      present[i] = (pingDynamixel(i) == 0);
 
-  /** covers {@link #flashCM5(String, PrintStream)}, uses System.out **/
-  public synchronized int flashCM5(String binary)
-    throws IOException, InterruptedException {
-    return flashCM5(binary, System.out);
+    return present;
   }
 
   /**
-   * <p>Issue {@link Instruction#I_PING} packet requesting ping of the
-   * indicated dynamixel.</p>
+   * <p>Send an {@link Instruction#I_SCAN} and receive its reply.</p>
    *
-   * @param id the id of the dynamixel to ping in the closed interval [0,
-   * {@link AXRegister#MAX_DYNAMIXEL_ID}] or 255 to ping the CM-5 itself
+   * <p>If the reply was an {@link Instruction#I_STATUS} packet, as it is from
+   * firmware that doesn't know {@link Instruction#I_SCAN}, the {@link
+   * #recvInstruction} says so and nothing is written to the arrays.</p>
    *
    * @return the CM-5 status and retry bytes as the 0th and 1st byte of the
    * returned int
-   *
-   * @exception IOException if there was a communication error
-   * @exception InterruptedException if the calling thread was interrupted
-   * while waiting for response bytes from the CM-5
    **/
-  public synchronized int pingDynamixel(int id)
+  protected int recvScan(boolean[] present, int[] modelNumbers,
+                         int minID, int maxID)
     throws IOException, InterruptedException {
 
-    if ((AX12_ID.check(id) != 0) && (id != 255))
-      throw new IllegalArgumentException("invalid id "+id);
-
-    startSendPacket(Instruction.I_PING);
-    sendByte(id);
+    startSendPacket(Instruction.I_SCAN);
+    sendByte(minID);
+    sendByte(maxID);
     endSendPacket();
 
-    return recvStatus();
-  }
+    startRecvPacket(Instruction.I_SCAN);
 
-  /** covers {@link #pingDynamixel}, uses id 255 to ping the CM-5 itself **/
-  public synchronized int pingCM5()
-    throws IOException, InterruptedException {
-    return pingDynamixel(255);
-  }
+    if (recvInstruction == Instruction.I_SCAN.code) {
 
-  /**
-   * <p>Scan for presence of dynamixels with IDs in the closed interval [0,
-   * <code>maxID</code>].</p>
-   *
-   * @param dynamixels presence written here, (re)consed if null or too short 
-   *
-   * @return the array of dynamixel presence
-   **/
-  public synchronized boolean[] scan(boolean[] dynamixels, int maxID)
-    throws IOException, InterruptedException {
+      for (int id = minID; id <= maxID; id += 8) {
 
-    if (maxID > MAX_DYNAMIXEL_ID)
-      throw new IllegalArgumentException("maxID can be at most "+
-                                         MAX_DYNAMIXEL_ID);
+        int bits = recvByte();
+
+        for (int j = 0; (j < 8) && ((id+j) <= maxID); j++) {
+
+          if ((bits&(1<<j)) == 0)
+            continue;
+
+          int model = recvByte();
+          model |= recvByte()<<8;
 
-    if ((dynamixels == null) || (dynamixels.length < (maxID+1)))
-      dynamixels = new boolean[maxID+1];
+          present[id+j] = true;
 
-    for (int i = 0; i <= maxID; i++)
-      dynamixels[i] = (pingDynamixel(i) == 0);
+          if (modelNumbers != null)
+            modelNumbers[id+j] = model;
+        }
+      }
+    }
+
+    int status = recvByte();
+    status |= recvByte()<<8;
+
+    recvADCs();
 
-    return dynamixels;
+    endRecvPacket();
+
+    return status;
   }
 
   /** covers {@link #scan(boolean[], int)}, always conses **/
-  public synchronized boolean[] scan(int maxID)
+  public boolean[] scan(int maxID)
     throws IOException, InterruptedException {
     return scan(null, maxID);
   }
@@ -1078,7 +2872,9 @@ public class BRBrain {
    * dynamixels in the read format is considered to be the number of contiguous
    * valid dynamixel IDs (i.e. ids in the interval [0, {@link
    * AXRegister#MAX_DYNAMIXEL_ID}]) starting with the zeroth entry in the id
-   * array.  A copy is made.
+   * array.  An id may be repeated to read another, disjoint, block of
+   * registers from the same dynamixel, each such entry counts as a dynamixel
+   * in the other args and in the read data.  A copy is made.
    * @param start the start register on each dynamixel in the read format, must
    * either be length 1, implying same start reg for all dynamixels, or have at
    * least as many non-null initial entries as the number of read dynamixels.
@@ -1091,16 +2887,15 @@ public class BRBrain {
    * @return the returned {@link Instruction#I_STATUS} byte from the CM-5
    *
    * @exception IllegalArgumentException if the number of dynamixels in the
-   * format exceeds {@link #MAX_DYNAMIXELS}, if a dynamixel ID is used more
-   * than once in the format, if the latter args are too short, if the number
-   * of registers is negative, or if the span of registers extends beyond the
-   * last register
+   * format exceeds {@link #MAX_FORMAT_BLOCKS}, if the blocks of a dynamixel
+   * that is used more than once in the format overlap, if the latter args are
+   * too short, if the number of registers is negative, or if the span of
+   * registers extends beyond the last register
    * @exception IOException if there was a communication error
    * @exception InterruptedException if the calling thread was interrupted
    * while waiting for response bytes from the CM-5
    **/
-  public synchronized int setReadFormat(int[] id,
-                                        AXRegister[] start, int[] num) 
+  public int setReadFormat(int[] id, AXRegister[] start, int[] num)
     throws IOException, InterruptedException {
     return setFormat(F_READ, id, start, num);
   }
@@ -1111,8 +2906,7 @@ public class BRBrain {
    * @exception IllegalArgumentException if any register block {@link
    * AXRegister#containsReadOnlyRegs}
    **/
-  public synchronized int setWriteFormat(int[] id,
-                                         AXRegister[] start, int[] num)
+  public int setWriteFormat(int[] id, AXRegister[] start, int[] num)
     throws IOException, InterruptedException {
     return setFormat(F_WRITE, id, start, num);
   }
@@ -1136,6 +2930,38 @@ public class BRBrain {
     checkAXIDs(id, id.length);
   }
 
+  /**
+   * <p>Verify that no two of the first <i>n</i> register blocks on the same
+   * dynamixel overlap, args as for {@link #setReadFormat}.</p>
+   **/
+  public static void checkBlocks(int[] id, AXRegister[] start, int[] num,
+                                 int n) {
+
+    for (int i = 0; i < n; i++) {
+
+      AXRegister si = (start.length > 1) ? start[i] : start[0];
+      int ui = (num.length > 1) ? num[i] : num[0];
+
+      if (ui <= 0)
+        continue;
+
+      for (int j = 0; j < i; j++) {
+
+        if (id[j] != id[i])
+          continue;
+
+        AXRegister sj = (start.length > 1) ? start[j] : start[0];
+        int uj = (num.length > 1) ? num[j] : num[0];
+
+        if ((uj > 0) &&
+            (si.ordinal < sj.ordinal+uj) && (sj.ordinal < si.ordinal+ui))
+          throw new IllegalArgumentException(
+            "overlapping register blocks on dynamixel ID "+id[i]+
+            " at indices "+j+" and "+i);
+      }
+    }
+  }
+
   /**
    * <p>Common impl of {@link #setReadFormat} and {@link #setWriteFormat}.</p>
    *
@@ -1148,18 +2974,25 @@ public class BRBrain {
    *
    * @return the CM-5 status
    **/
-  protected synchronized int setFormat(int f,
-                                       int[] id,
-                                       AXRegister[] start, int[] num)
+  protected int setFormat(final int f,
+                          final int[] id,
+                          final AXRegister[] start, final int[] num)
     throws IOException, InterruptedException {
 
+    if (!onIOThread())
+      return call(new IOTask<Integer>() {
+          public Integer run() throws IOException, InterruptedException {
+            return setFormat(f, id, start, num);
+          } });
+
+    if (f == F_READ)
+      checkNotStreaming("setting the read format");
+
     int n;
-    for (n = 0; (n < MAX_DYNAMIXELS) && (id != null) && (n < id.length); n++)
+    for (n = 0; (n < MAX_FORMAT_BLOCKS) && (id != null) && (n < id.length); n++)
       if (AX12_ID.check(id[n]) != 0)
         break;
 
-    checkAXIDs(id, n);
-
     if (((start.length > 1) && (start.length < n)) || 
         ((num.length > 1) && (num.length < n)))
       throw new IllegalArgumentException("latter args insufficient length");
@@ -1176,62 +3009,346 @@ public class BRBrain {
         throw new IllegalArgumentException("latter args invalid at index "+i);
     }
 
-    axID[f] = dup(id, axID[f], n);
+    checkBlocks(id, start, num, n);
 
-    if (start.length > 1) {
-      startReg[f] = AXRegister.dup(start, startReg[f], n);
-    } else {
-      if (startReg[f].length < n)
-        startReg[f] = new AXRegister[n];
-      for (int i = 0; i < n; i++)
-        startReg[f][i] = start[0];
-    }
+    synchronized (stateLock) {
 
-    if (num.length > 1) {
-      numReg[f] = dup(num, numReg[f], n);
-    } else {
-      if (numReg[f].length < n)
-        numReg[f] = new int[n];
-      for (int i = 0; i < n; i++)
-        numReg[f][i] = num[0];
-    }
+      axID[f] = dup(id, axID[f], n);
+
+      if (start.length > 1) {
+        startReg[f] = AXRegister.dup(start, startReg[f], n);
+      } else {
+        if (startReg[f].length < n)
+          startReg[f] = new AXRegister[n];
+        for (int i = 0; i < n; i++)
+          startReg[f][i] = start[0];
+      }
+
+      if (num.length > 1) {
+        numReg[f] = dup(num, numReg[f], n);
+      } else {
+        if (numReg[f].length < n)
+          numReg[f] = new int[n];
+        for (int i = 0; i < n; i++)
+          numReg[f][i] = num[0];
+      }
+
+      numDynamixels[f] = n;
+
+      numBytes[f] = ensureCapacity(numBytes[f], n);
+
+      totalNumRegs[f] = 0;
+      totalNumBytes[f] = 0;
+
+      for (int i = 0; i < n; i++) {
+
+        if (numReg[f][i] > 0) {
+
+          AXRegister lastReg =
+            startReg[f][i].getRelativeRegister(numReg[f][i]-1);
+
+          numBytes[f][i] =
+            (lastReg.startAddr+lastReg.width)-startReg[f][i].startAddr;
 
-    numDynamixels[f] = n;
+        } else {
+          numBytes[f][i] = 0;
+        }
+
+        totalNumRegs[f] += numReg[f][i];
+        totalNumBytes[f] += numBytes[f][i];
+      }
+
+      plan[f] =
+        new FormatPlan(n, axID[f], startReg[f], numReg[f], numBytes[f]);
+
+      saveSlot(f);
+
+      formatChanged(f);
+
+      //the firmware drops polling and delta encoding the same way
+      if ((f == F_READ) && (totalNumBytes[f] > MAX_BUFFERED_BYTES))
+        mode &= ~(MODE_POLL|MODE_DELTA);
+    }
 
     startSendPacket(FMT_INSTRUCTION[f]);
 
     sendByte(n);
 
-    totalNumRegs[f] = 0;
-
     for (int i = 0; i < n; i++) {
-
       sendByte(id[i]);
+      sendByte((numBytes[f][i] > 0) ? startReg[f][i].startAddr : 0);
+      sendByte(numBytes[f][i]);
+    }
+
+    endSendPacket();
+
+    return recvStatus();
+  }
 
-      if (numReg[f][i] > 0) {
+  /**
+   * <p>Bring the state derived from the <i>f</i>th format up to date after
+   * it was set or its slot was selected, caller must hold {@link
+   * #stateLock}.</p>
+   **/
+  protected void formatChanged(int f) {
+
+    if (f == F_WRITE) {
+      writeStrategy = qualifiesForSyncWrite() ?
+        WriteStrategy.SYNC_WRITE : WriteStrategy.REG_WRITE_ACTION;
+      return;
+    }
 
-        sendByte(startReg[f][i].startAddr);
+    if (frameData.length != totalNumRegs[f])
+      frameData = new int[totalNumRegs[f]];
 
-        AXRegister lastReg =
-          startReg[f][i].getRelativeRegister(numReg[f][i]-1);
+    deltaRefValid = false;
+    keyframePending = true;
 
-        int nb = (lastReg.startAddr+lastReg.width)-startReg[f][i].startAddr;
+    recvBuffer =
+      ensureCapacity(recvBuffer, totalNumBytes[F_READ]+dataTrailerLength()+1);
+  }
 
-//        System.err.println("nb: "+nb);
+  /**
+   * <p>Define a read format in one of the {@link #NUM_FORMAT_SLOTS} slots
+   * held by the CM-5, so that it can later be switched to with a one byte
+   * {@link #selectReadSlot(int)} instead of re-sending it.</p>
+   *
+   * <p>This selects the slot and then calls {@link #setReadFormat}, which
+   * see, so the slot stays selected.</p>
+   *
+   * @param slot the slot index
+   * @param name a name for {@link #selectReadSlot(String)}, or null
+   *
+   * @return the CM-5 status and retry bytes as the 0th and 1st byte of the
+   * returned int
+   *
+   * @exception IllegalArgumentException if the slot index is out of range or
+   * the format is invalid as for {@link #setReadFormat}
+   * @exception IllegalStateException if streaming
+   * @exception IOException if there was a communication error
+   * @exception InterruptedException if the calling thread was interrupted
+   * while waiting for response bytes from the CM-5
+   **/
+  public int defineReadSlot(int slot, String name,
+                            int[] id, AXRegister[] start, int[] num)
+    throws IOException, InterruptedException {
+    return defineSlot(F_READ, slot, name, id, start, num);
+  }
 
-        sendByte(nb);
+  /** 
+   * <p>Similar to {@link #defineReadSlot}, see {@link #setWriteFormat}.</p>
+   **/
+  public int defineWriteSlot(int slot, String name,
+                             int[] id, AXRegister[] start, int[] num)
+    throws IOException, InterruptedException {
+    return defineSlot(F_WRITE, slot, name, id, start, num);
+  }
 
-      } else {
-        sendByte(0);
-        sendByte(0);
-      }
+  /**
+   * <p>Make a read format defined with {@link #defineReadSlot} current, see
+   * {@link Instruction#I_SELECT_SLOT}.</p>
+   *
+   * <p>Unlike {@link #setReadFormat} this is allowed while streaming: frames
+   * sent before the status still use the old format, and those after it the
+   * new one.</p>
+   *
+   * @param slot the slot index
+   *
+   * @return the CM-5 status and retry bytes as the 0th and 1st byte of the
+   * returned int, the slot is only selected if the status byte is zero
+   *
+   * @exception IllegalArgumentException if the slot index is out of range
+   * @exception IllegalStateException if the slot is longer than {@link
+   * #MAX_BUFFERED_BYTES} and {@link #isPolling} or {@link #isDeltaEncoding}
+   * @exception IOException if there was a communication error
+   * @exception InterruptedException if the calling thread was interrupted
+   * while waiting for response bytes from the CM-5
+   **/
+  public int selectReadSlot(int slot) throws IOException, InterruptedException {
+    return selectSlot(F_READ, slot);
+  }
+
+  /** 
+   * <p>Similar to {@link #selectReadSlot(int)}, for slots defined with
+   * {@link #defineWriteSlot}.</p>
+   **/
+  public int selectWriteSlot(int slot)
+    throws IOException, InterruptedException {
+    return selectSlot(F_WRITE, slot);
+  }
+
+  /**
+   * <p>Covers {@link #selectReadSlot(int)}, selects the lowest slot with the
+   * given name.</p>
+   *
+   * @exception IllegalArgumentException if there is no such slot
+   **/
+  public int selectReadSlot(String name)
+    throws IOException, InterruptedException {
+    return selectSlot(F_READ, findSlot(F_READ, name));
+  }
+
+  /**
+   * <p>Covers {@link #selectWriteSlot(int)}, selects the lowest slot with the
+   * given name.</p>
+   *
+   * @exception IllegalArgumentException if there is no such slot
+   **/
+  public int selectWriteSlot(String name)
+    throws IOException, InterruptedException {
+    return selectSlot(F_WRITE, findSlot(F_WRITE, name));
+  }
+
+  /** get the index of the currently selected read format slot **/
+  public int getReadSlot() {
+    synchronized (stateLock) {
+      return formatSlot[F_READ];
+    }
+  }
+
+  /** get the index of the currently selected write format slot **/
+  public int getWriteSlot() {
+    synchronized (stateLock) {
+      return formatSlot[F_WRITE];
+    }
+  }
+
+  /** get the name of a read format slot, null if none **/
+  public String getReadSlotName(int slot) {
+    return getSlotName(F_READ, slot);
+  }
+
+  /** get the name of a write format slot, null if none **/
+  public String getWriteSlotName(int slot) {
+    return getSlotName(F_WRITE, slot);
+  }
+
+  /**
+   * <p>Common impl of {@link #defineReadSlot} and {@link
+   * #defineWriteSlot}.</p>
+   *
+   * @return the CM-5 status
+   **/
+  protected int defineSlot(final int f, final int slot, final String name,
+                           final int[] id,
+                           final AXRegister[] start, final int[] num)
+    throws IOException, InterruptedException {
+
+    if (!onIOThread())
+      return call(new IOTask<Integer>() {
+          public Integer run() throws IOException, InterruptedException {
+            return defineSlot(f, slot, name, id, start, num);
+          } });
+
+    if (f == F_READ)
+      checkNotStreaming("setting the read format");
+
+    int status = selectSlot(f, slot);
 
-      totalNumRegs[f] += numReg[f][i];
+    if ((status&0xff) != 0)
+      return status;
+
+    status = setFormat(f, id, start, num);
+
+    synchronized (stateLock) {
+      slots[f][slot].name = name;
     }
 
+    return status;
+  }
+
+  /**
+   * <p>Common impl of {@link #selectReadSlot(int)} and {@link
+   * #selectWriteSlot(int)}.</p>
+   *
+   * @return the CM-5 status
+   **/
+  protected int selectSlot(final int f, final int slot)
+    throws IOException, InterruptedException {
+
+    if (!onIOThread())
+      return call(new IOTask<Integer>() {
+          public Integer run() throws IOException, InterruptedException {
+            return selectSlot(f, slot);
+          } });
+
+    if ((slot < 0) || (slot >= NUM_FORMAT_SLOTS))
+      throw new IllegalArgumentException("invalid format slot "+slot);
+
+    if ((f == F_READ) && ((mode&(MODE_POLL|MODE_DELTA)) != 0) &&
+        (slots[f][slot].totalNumBytes > MAX_BUFFERED_BYTES))
+      throw new IllegalStateException(
+        "read format longer than "+MAX_BUFFERED_BYTES+" bytes");
+
+    startSendPacket(Instruction.I_SELECT_SLOT);
+    sendByte((f<<7)|slot);
     endSendPacket();
 
-    return recvStatus();
+    int status = recvStatus();
+
+    if ((status&0xff) == 0) {
+      synchronized (stateLock) {
+        loadSlot(f, slot);
+        formatChanged(f);
+      }
+    }
+
+    return status;
+  }
+
+  /** get the index of the lowest <i>f</i>th format slot named <i>name</i> **/
+  protected int findSlot(int f, String name) {
+    synchronized (stateLock) {
+      for (int i = 0; i < NUM_FORMAT_SLOTS; i++)
+        if ((name != null) && name.equals(slots[f][i].name))
+          return i;
+    }
+    throw new IllegalArgumentException("no format slot named "+name);
+  }
+
+  /** common impl of {@link #getReadSlotName} and {@link #getWriteSlotName} **/
+  protected String getSlotName(int f, int slot) {
+    if ((slot < 0) || (slot >= NUM_FORMAT_SLOTS))
+      throw new IllegalArgumentException("invalid format slot "+slot);
+    synchronized (stateLock) {
+      return slots[f][slot].name;
+    }
+  }
+
+  /**
+   * <p>Store the current <i>f</i>th format in its selected slot, caller
+   * must hold {@link #stateLock}.</p>
+   **/
+  protected void saveSlot(int f) {
+    FormatSlot s = slots[f][formatSlot[f]];
+    s.numDynamixels = numDynamixels[f];
+    s.axID = axID[f];
+    s.startReg = startReg[f];
+    s.numReg = numReg[f];
+    s.numBytes = numBytes[f];
+    s.totalNumRegs = totalNumRegs[f];
+    s.totalNumBytes = totalNumBytes[f];
+    s.plan = plan[f];
+  }
+
+  /**
+   * <p>Make the <i>f</i>th format the one stored in <i>slot</i>, caller must
+   * hold {@link #stateLock}.</p>
+   *
+   * <p>The arrays are shared, not copied, so re-setting the format while the
+   * slot is selected changes the slot, as on the CM-5.</p>
+   **/
+  protected void loadSlot(int f, int slot) {
+    FormatSlot s = slots[f][slot];
+    formatSlot[f] = slot;
+    numDynamixels[f] = s.numDynamixels;
+    axID[f] = s.axID;
+    startReg[f] = s.startReg;
+    numReg[f] = s.numReg;
+    numBytes[f] = s.numBytes;
+    totalNumRegs[f] = s.totalNumRegs;
+    totalNumBytes[f] = s.totalNumBytes;
+    plan[f] = s.plan;
   }
 
   /**
@@ -1246,19 +3363,22 @@ public class BRBrain {
    *
    * @return the number of dynamixels in the current read format
    **/
-  public synchronized int getReadFormat(int[] id,
-                                        AXRegister[] start, int[] num) {
+  public int getReadFormat(int[] id, AXRegister[] start, int[] num) {
     return getFormat(F_READ, id, start, num);
   }
 
   /** get the number of dynamixels in the current read format **/
-  public synchronized int getNumReadDynamixels() {
-    return numDynamixels[F_READ];
+  public int getNumReadDynamixels() {
+    synchronized (stateLock) {
+      return numDynamixels[F_READ];
+    }
   }
 
   /** get the total number of registers in the current read format **/
-  public synchronized int getTotalNumReadRegs() {
-    return totalNumRegs[F_READ];
+  public int getTotalNumReadRegs() {
+    synchronized (stateLock) {
+      return totalNumRegs[F_READ];
+    }
   }
 
   /**
@@ -1268,19 +3388,53 @@ public class BRBrain {
    *
    * @return the number of dynamixels in the current write format
    **/
-  public synchronized int getWriteFormat(int[] id,
-                                         AXRegister[] start, int[] num)  {
+  public int getWriteFormat(int[] id, AXRegister[] start, int[] num) {
     return getFormat(F_WRITE, id, start, num);
   }
 
   /** get the number of dynamixels in the current write format **/
-  public synchronized int getNumWriteDynamixels() {
-    return numDynamixels[F_WRITE];
+  public int getNumWriteDynamixels() {
+    synchronized (stateLock) {
+      return numDynamixels[F_WRITE];
+    }
+  }
+
+  /**
+   * <p>Get the {@link WriteStrategy} the CM-5 uses with the current write
+   * format.</p>
+   **/
+  public WriteStrategy getWriteStrategy() {
+    synchronized (stateLock) {
+      return writeStrategy;
+    }
+  }
+
+  /**
+   * <p>Check whether the current write format qualifies for {@link
+   * WriteStrategy#SYNC_WRITE}, mirroring the same check in the
+   * firmware.</p>
+   **/
+  protected boolean qualifiesForSyncWrite() {
+
+    int n = numDynamixels[F_WRITE];
+
+    if ((n == 0) || (numBytes[F_WRITE][0] == 0) ||
+        (n*(numBytes[F_WRITE][0]+1) > MAX_SYNC_WRITE_BYTES))
+      return false;
+
+    for (int i = 1; i < n; i++)
+      if ((numBytes[F_WRITE][i] != numBytes[F_WRITE][0]) ||
+          (startReg[F_WRITE][i].startAddr != startReg[F_WRITE][0].startAddr))
+        return false;
+
+    return true;
   }
 
   /** get the total number of registers in the current write format **/
-  public synchronized int getTotalNumWriteRegs() {
-    return totalNumRegs[F_WRITE];
+  public int getTotalNumWriteRegs() {
+    synchronized (stateLock) {
+      return totalNumRegs[F_WRITE];
+    }
   }
 
   /**
@@ -1295,9 +3449,16 @@ public class BRBrain {
    *
    * @return the number of dynamixels in the format
    **/
-  protected synchronized int getFormat(int f,
-                                       int[] id,
-                                       AXRegister[] start, int[] num) {
+  protected int getFormat(int f, int[] id, AXRegister[] start, int[] num) {
+    synchronized (stateLock) {
+      return getFormatLocked(f, id, start, num);
+    }
+  }
+
+  /** {@link #getFormat} with {@link #stateLock} held **/
+  protected int getFormatLocked(int f,
+                                int[] id,
+                                AXRegister[] start, int[] num) {
     int n = numDynamixels[f];
 
     if (id != null)
@@ -1366,33 +3527,60 @@ public class BRBrain {
                           (int[]) args[2]);
   }
 
+  /** error message of {@link #parseFormatArgs} **/
+  protected static final String FORMAT_ARGS_MSG =
+    "args must be <int, AXRegister, int> triples, "+
+    "each optionally followed by further <AXRegister, int> pairs";
+
   /** 
    * <p>Parse read or write format from a contiguous array, for jscheme API
    * convienience.</p>
    *
-   * @param args an integer multiple of &lt;Integer, {@link AXRegister},
-   * Integer&gt; triples
+   * <p>Each Integer id may be followed by more than one &lt;{@link
+   * AXRegister}, Integer&gt; pair, giving several register blocks on that
+   * dynamixel.  So <code>3, PRESENT_POSITION, 1, ERROR, 1, 7,
+   * PRESENT_POSITION, 1</code> is the same as <code>3, PRESENT_POSITION, 1, 3,
+   * ERROR, 1, 7, PRESENT_POSITION, 1</code>.</p>
+   *
+   * @param args a sequence of &lt;Integer, {@link AXRegister}, Integer&gt;
+   * triples, each optionally followed by further &lt;{@link AXRegister},
+   * Integer&gt; pairs
    *
    * @return a three-element array consisting of an array of int, an array of
    * {@link AXRegister}, and an array of int, giving the dynamixel id, start
-   * register and number of registers respectively in the format
+   * register and number of registers respectively of each block in the format
    **/
   protected Object[] parseFormatArgs(Object[] args) {
 
-    if ((args != null) && ((args.length%3) != 0))
-      throw new IllegalArgumentException(
-        "args must be an integer multiple of <int, AXRegister, int> triples");
+    int len = (args != null) ? args.length : 0;
 
-    int n = (args != null) ? args.length/3 : 0;
+    //count the blocks first, the rest is checked below
+    int n = 0;
+    for (int k = 0; k < len; n++)
+      k += ((k == 0) || (args[k] instanceof Integer)) ? 3 : 2;
 
     int[] id = new int[n];
     AXRegister[] start = new AXRegister[n];
     int[] num = new int[n];
 
+    int k = 0;
     for (int i = 0; i < n; i++) {
-      id[i] = ((Integer) (args[3*i])).intValue();
-      start[i] = (AXRegister) (args[3*i+1]);
-      num[i] = ((Integer) (args[3*i+2])).intValue();
+
+      try {
+
+        if ((i == 0) || (args[k] instanceof Integer))
+          id[i] = ((Integer) (args[k++])).intValue();
+        else
+          id[i] = id[i-1];
+
+        start[i] = (AXRegister) (args[k++]);
+        num[i] = ((Integer) (args[k++])).intValue();
+
+      } catch (ClassCastException e) {
+        throw new IllegalArgumentException(FORMAT_ARGS_MSG);
+      } catch (ArrayIndexOutOfBoundsException e) {
+        throw new IllegalArgumentException(FORMAT_ARGS_MSG);
+      }
     }
     
     return new Object[] {id, start, num};
@@ -1464,12 +3652,29 @@ public class BRBrain {
    * <p>Read int register values and CM-5 status into an array, for jscheme API
    * convenience.</p>
    *
+   * <p>The array is new unless {@link #setReuseResults} is in effect.</p>
+   *
    * @return an array of {@link #totalNumRegs}[F_READ]+1 values, with the last
    * set to the CM-5 status/retries
    **/
-  public synchronized int[] read() throws IOException, InterruptedException {
+  public int[] read() throws IOException, InterruptedException {
+
+    if (!onIOThread()) {
+
+      SyncCall s = claimSyncCall(SyncCall.READ_RESULT, null, null);
+
+      if (s != null)
+        return (int[]) s.awaitValue();
+
+      return call(new IOTask<int[]>() {
+          public int[] run() throws IOException, InterruptedException {
+            return read();
+          } });
+    }
+
     int n = totalNumRegs[F_READ];
-    int[] ret = new int[n+1];
+    int[] ret = reuseResults ? (readResult = ensureLength(readResult, n+1)) :
+      new int[n+1];
     ret[n] = read(ret);
     return ret;
   }
@@ -1478,17 +3683,54 @@ public class BRBrain {
    * <p>Read natural register values and CM-5 status into an array, for jscheme
    * API convenience.</p>
    *
+   * <p>The array is new unless {@link #setReuseResults} is in effect.</p>
+   *
    * @return an array of {@link #totalNumRegs}[F_READ]+1 values, with the last
    * set to the CM-5 status/retries
    **/
-  public synchronized float[] readNatural()
+  public float[] readNatural()
     throws IOException, InterruptedException {
+
+    if (!onIOThread()) {
+
+      SyncCall s = claimSyncCall(SyncCall.READ_NATURAL_RESULT, null, null);
+
+      if (s != null)
+        return (float[]) s.awaitValue();
+
+      return call(new IOTask<float[]>() {
+          public float[] run() throws IOException, InterruptedException {
+            return readNatural();
+          } });
+    }
+
     int n = totalNumRegs[F_READ];
-    float[] ret = new float[n+1];
+    float[] ret = reuseResults ?
+      (readNaturalResult = ensureLength(readNaturalResult, n+1)) :
+      new float[n+1];
     ret[n] = read(ret);
     return ret;
   }
 
+  /**
+   * <p>Set whether {@link #read()} and {@link #readNatural()} return the same
+   * array on every call, as long as the read format keeps its length, instead
+   * of a new one.</p>
+   *
+   * <p>This removes the last per-call allocation of those methods when they
+   * run on the I/O thread, but the returned array is then only valid until
+   * the next call.  See the class header doc for calls from another
+   * thread.  Default false.</p>
+   **/
+  public void setReuseResults(boolean reuseResults) {
+    this.reuseResults = reuseResults;
+  }
+
+  /** see {@link #setReuseResults} **/
+  public boolean getReuseResults() {
+    return reuseResults;
+  }
+
   /**
    * <p>Read data from dynamixels in natural units according to the current
    * read format.</p>
@@ -1505,110 +3747,442 @@ public class BRBrain {
    * @exception InterruptedException if the calling thread was interrupted
    * while waiting for response bytes from the CM-5
    **/
-  public synchronized int read(float[] data)
+  public int read(float[] data)
     throws IOException, InterruptedException {
     return read((Object) data);
   }
 
   /** same as {@link #read(float[])} but reads register ints directly **/
-  public synchronized int read(int[] data)
+  public int read(int[] data)
     throws IOException, InterruptedException {
     return read((Object) data);
   }
 
+  /** asynchronous {@link #read(float[])}, see class header doc **/
+  public CompletableFuture<Integer> readAsync(float[] data) {
+    return readAsync((Object) data);
+  }
+
+  /** asynchronous {@link #read(int[])}, see class header doc **/
+  public CompletableFuture<Integer> readAsync(int[] data) {
+    return readAsync((Object) data);
+  }
+
+  /** common impl of {@link #readAsync(float[])} and readAsync(int[]) **/
+  protected CompletableFuture<Integer> readAsync(final Object data) {
+    return submit(new IOTask<Integer>() {
+        public Integer run() throws IOException, InterruptedException {
+          return read(data);
+        } });
+  }
+
   /** common impl of {@link #read(float[])} and {@link #read(int[])} **/
-  protected synchronized int read(Object data)
+  protected int read(final Object data)
     throws IOException, InterruptedException {
 
-    int[] intData = null;
-    float[] naturalData = null;
+    if (!onIOThread()) {
 
-    if (data instanceof int[]) {
-      intData = (int[]) data;
-      if (intData.length < totalNumRegs[F_READ])
-        throw new IllegalArgumentException(
-          "must pass an array of at least length "+totalNumRegs[F_READ]);
-    } else if (data instanceof float[]) {
-      naturalData = (float[]) data;
-      if (naturalData.length < totalNumRegs[F_READ])
-        throw new IllegalArgumentException(
-          "must pass an array of at least length "+totalNumRegs[F_READ]);
-    } else {
-      throw new IllegalArgumentException("unsupported data type");
+      SyncCall s = claimSyncCall(SyncCall.READ, null, data);
+
+      if (s != null)
+        return s.awaitStatus();
+
+      return call(new IOTask<Integer>() {
+          public Integer run() throws IOException, InterruptedException {
+            return read(data);
+          } });
     }
 
+    checkData(F_READ, data);
+
+    checkNotStreaming("read");
+
+    ensureDeltaReference();
+
     startSendPacket(Instruction.I_READ_DATA);
     endSendPacket();
 
     startRecvPacket(Instruction.I_DATA);
 
-    int k = 0;
+    return recvDataFrame(data);
+  }
+
+  /**
+   * <p>Check that <i>data</i> is an int[] or float[] with at least as many
+   * entries as the total number of registers in format <i>f</i>.</p>
+   *
+   * @exception IllegalArgumentException if not
+   **/
+  protected void checkData(int f, Object data) {
+
+    int length = 0;
+
+    if (data instanceof int[])
+      length = ((int[]) data).length;
+    else if (data instanceof float[])
+      length = ((float[]) data).length;
+    else
+      throw new IllegalArgumentException("unsupported data type");
+
+    if (length < totalNumRegs[f])
+      throw new IllegalArgumentException(
+        "must pass an array of at least length "+totalNumRegs[f]);
+  }
+
+  /** covers {@link #recvDataFrame(int[], float[])} for int[] or float[] **/
+  protected int recvDataFrame(Object data)
+    throws IOException, InterruptedException {
+    return recvDataFrame((data instanceof int[]) ? (int[]) data : null,
+                         (data instanceof float[]) ? (float[]) data : null);
+  }
+
+  /**
+   * <p>Receive the rest of an {@link Instruction#I_DATA} or {@link
+   * Instruction#I_DELTA_DATA} packet whose instruction byte was already
+   * received, see {@link #recvInstruction}, decode it with {@link
+   * #decodeFrame}, and pass it to the {@link #frameListeners}.</p>
+   *
+   * @return the CM-5 status and retry bytes as the 0th and 1st byte of the
+   * returned int
+   *
+   * @exception IOException also if a delta frame could not be reconstructed
+   **/
+  protected int recvDataFrame(int[] intData, float[] naturalData)
+    throws IOException, InterruptedException {
+
+    if (!recvFrame())
+      throw new IOException("lost delta frame reference, try again");
+
+    return decodeFrame(intData, naturalData);
+  }
 
-    for (int i = 0; i < numDynamixels[F_READ]; i++) {
-      for (int j = 0; j < numReg[F_READ][i]; j++) {
+  /**
+   * <p>Like {@link #recvDataFrame(int[], float[])} but for a streamed frame,
+   * which is dropped and counted in {@link #numStreamErrors} if it could not
+   * be reconstructed.</p>
+   **/
+  protected void recvStreamFrame()
+    throws IOException, InterruptedException {
+
+    if (!recvFrame()) {
+      streamError();
+      return;
+    }
+
+    decodeFrame(null, null);
+  }
+
+  /**
+   * <p>Receive the rest of a frame whose instruction byte was already
+   * received, leaving the equivalent {@link Instruction#I_DATA} payload in
+   * {@link #recvBuffer}.</p>
+   *
+   * @return false if it was an {@link Instruction#I_DELTA_DATA} frame which
+   * could not be reconstructed because the {@link #deltaRef} was lost, in
+   * which case it is dropped
+   **/
+  protected boolean recvFrame()
+    throws IOException, InterruptedException {
 
-        int value = 0;
+    int n = totalNumBytes[F_READ]+dataTrailerLength();
 
-        AXRegister reg = startReg[F_READ][i].getRelativeRegister(j);
+    boolean delta = (mode&MODE_DELTA) != 0;
 
-//        System.err.println("reading "+reg+" ("+reg.width+" bytes)");
+    try {
+
+      if (recvInstruction == Instruction.I_DELTA_DATA.code) {
+        if (!delta)
+          throw new IOException("unexpected delta frame");
+        return recvDeltaFrame(n);
+      }
 
-        for (int b = 0; b < reg.width; b++)
-          value |= recvByte()<<(8*b);
+      int sum = checksum;
 
-        value = reg.decode(value);
+      recvBuffer = ensureCapacity(recvBuffer, n+1);
 
-        if (intData != null)
-          intData[k++] = value;
-        else
-          naturalData[k++] = reg.toNaturalUnits(value);
+      recvBytes(recvBuffer, 0, n+1);
 
-        updateCachedValue(axID[F_READ][i], reg, value);
+      for (int i = 0; i < n; i++)
+        sum += recvBuffer[i]&0xff;
+
+      endRecvPacket(sum, n);
+
+      if (delta) {
+        deltaRef = ensureCapacity(deltaRef, n);
+        System.arraycopy(recvBuffer, 0, deltaRef, 0, n);
+        deltaRefValid = true;
+        keyframePending = false;
       }
+
+      return true;
+
+    } catch (IOException e) {
+      deltaRefValid = keyframePending = false;
+      throw e;
     }
+  }
 
-    int status = recvByte();
+  /**
+   * <p>Receive the rest of an {@link Instruction#I_DELTA_DATA} packet and
+   * reconstruct the equivalent <i>n</i> byte {@link Instruction#I_DATA}
+   * payload in {@link #recvBuffer} from the {@link #deltaRef}.</p>
+   *
+   * @return false if the {@link #deltaRef} was lost or the sequence number
+   * shows a lost frame
+   **/
+  protected boolean recvDeltaFrame(int n)
+    throws IOException, InterruptedException {
 
-    status |= recvByte()<<8;
+    int sum = checksum;
 
-    recvADCs();
+    int numBitmap = (n+7)/8;
 
-    endRecvPacket();
+    deltaBitmap = ensureCapacity(deltaBitmap, numBitmap);
 
-    return status;
+    recvBytes(deltaBitmap, 0, numBitmap);
+
+    int numChanged = 0;
+
+    for (int i = 0; i < numBitmap; i++) {
+      sum += deltaBitmap[i]&0xff;
+      numChanged += Integer.bitCount(deltaBitmap[i]&0xff);
+    }
+
+    if (numChanged > n)
+      throw new IOException("invalid delta bitmap");
+
+    recvBuffer = ensureCapacity(recvBuffer, n+1);
+
+    recvBytes(recvBuffer, 0, numChanged+1);
+
+    for (int i = 0; i < numChanged; i++)
+      sum += recvBuffer[i]&0xff;
+
+    endRecvPacket(sum, numChanged);
+
+    if (!deltaRefValid)
+      return false;
+
+    //expand in place from the back, the changed bytes are packed at the front
+    for (int k = n-1, j = numChanged-1; k >= 0; k--)
+      recvBuffer[k] = ((deltaBitmap[k/8]&(1<<(k%8))) != 0) ?
+        recvBuffer[j--] : deltaRef[k];
+
+    if (((recvBuffer[n-1]-deltaRef[n-1])&0xff) != 1) {
+      deltaRefValid = false;
+      return false;
+    }
+
+    System.arraycopy(recvBuffer, 0, deltaRef, 0, n);
+
+    return true;
   }
 
-  /** update {@link #cache} **/
-  protected synchronized void updateCachedValue(int axID,
-                                                AXRegister register,
-                                                int value) {
+  /**
+   * <p>Decode an {@link Instruction#I_DATA} payload in {@link #recvBuffer}
+   * with {@link #decodeData} and {@link #decodeStatus}, publish it with
+   * {@link #publishFrame}, and pass it to the {@link #frameListeners}.</p>
+   *
+   * @return the CM-5 status and retry bytes as the 0th and 1st byte of the
+   * returned int
+   **/
+  protected int decodeFrame(int[] intData, float[] naturalData) {
+
+    int len = totalNumBytes[F_READ];
 
-    Map<Integer, CachedValue> cvs = cache.get(register);
+    int status;
 
-    if (cvs == null) {
-      cvs = new LinkedHashMap<Integer, CachedValue>();
-      cache.put(register, cvs);
+    synchronized (stateLock) {
+      decodeData(intData, naturalData);
+      status = decodeStatus(len);
+      sampleAgeTicks = ((mode&MODE_POLL) != 0) ?
+        recvBuffer[len+STATUS_LENGTH]&0xff : -1;
+      publishFrame(status);
     }
 
-    CachedValue cv = cvs.get(axID);
+    if (frameListeners.length > 0)
+      fireFrameReceived(status);
+
+    return status;
+  }
+
+  /**
+   * <p>Decode a received {@link Instruction#I_DATA} payload from {@link
+   * #recvBuffer} into {@link #frameData}, the {@link #cache}, and at most one
+   * of <i>intData</i> or <i>naturalData</i>, caller must hold {@link
+   * #stateLock}.</p>
+   **/
+  protected void decodeData(int[] intData, float[] naturalData) {
+
+    FormatPlan p = plan[F_READ];
+
+    final byte[] buf = recvBuffer;
+    final int[] offset = p.offset, width = p.width;
+    final boolean[] signMagnitude = p.signMagnitude;
+
+    long ns = frameNS = System.nanoTime();
+
+    int seq = cacheSeq.get()+1;
+    cacheSeq.set(seq);
 
-    if (cv == null) {
-      cv = new CachedValue();
-      cvs.put(axID, cv);
+    for (int k = 0; k < p.numRegs; k++) {
+
+      int at = offset[k];
+
+      int value = buf[at]&0xff;
+
+      for (int b = 1; b < width[k]; b++)
+        value |= (buf[at+b]&0xff)<<(8*b);
+
+      //see AXRegister.decode()
+      if (signMagnitude[k] && ((value&(1<<10)) != 0))
+        value = -(value&0x3ff);
+
+      frameData[k] = value;
+
+      if (intData != null)
+        intData[k] = value;
+      else if (naturalData != null)
+        naturalData[k] = (p.nonlinear[k] == null) ?
+          value*p.naturalUnitsPerCount[k] :
+          p.nonlinear[k].toNaturalUnits(value);
+
+      //lazySet() is ordered after the odd cacheSeq
+      cache.lazySet(p.cacheIndex[k], value);
+      cacheLastUpdateNS.lazySet(p.cacheIndex[k], ns);
     }
 
-    cv.value = value;
-    cv.lastUpdateNS = System.nanoTime();
+    cacheSeq.set(seq+1);
+  }
+
+  /** update {@link #cache}, caller must hold {@link #stateLock} **/
+  protected void updateCachedValue(int axID, AXRegister register, int value) {
+
+    int i = cacheIndex(axID, register);
+
+    int seq = cacheSeq.get()+1;
+    cacheSeq.set(seq);
+
+    cache.lazySet(i, value);
+    cacheLastUpdateNS.lazySet(i, System.nanoTime());
+
+    cacheSeq.set(seq+1);
+  }
+
+  /**
+   * <p>Index of a register in the {@link #cache}.</p>
+   *
+   * @exception IllegalArgumentException if <i>axID</i> is not in the range
+   * [0, {@link AXRegister#MAX_DYNAMIXEL_ID}] or <i>register</i> is neither an
+   * {@link AX12Register} nor an {@link AXS1Register}
+   **/
+  protected static int cacheIndex(int axID, AXRegister register) {
+
+    if ((axID < 0) || (axID > MAX_DYNAMIXEL_ID))
+      throw new IllegalArgumentException("invalid dynamixel ID "+axID);
+
+    int column = register.ordinal;
+
+    if (register instanceof AXS1Register)
+      column += AX12Register.NUM_REGISTERS;
+    else if (!(register instanceof AX12Register))
+      throw new IllegalArgumentException("unsupported register "+register);
+
+    return axID*CACHE_COLUMNS+column;
   }
 
   /**
    * <p>Look up the most recent {@link CachedValue} of of the specified reg,
    * null if none.</p>
+   *
+   * <p>This takes no lock, the returned value is a snapshot.</p>
+   **/
+  public CachedValue getCachedValue(int axID, AXRegister register) {
+
+    if ((axID < 0) || (axID > MAX_DYNAMIXEL_ID))
+      return null;
+
+    int i = cacheIndex(axID, register);
+
+    for (;;) {
+
+      int seq = cacheSeq.get();
+
+      int value = cache.get(i);
+      long ns = cacheLastUpdateNS.get(i);
+
+      if (((seq&1) != 0) || (cacheSeq.get() != seq))
+        continue;
+
+      if (ns == NOT_CACHED)
+        return null;
+
+      CachedValue cv = new CachedValue();
+      cv.value = value;
+      cv.lastUpdateNS = ns;
+
+      return cv;
+    }
+  }
+
+  /**
+   * <p>Look up the most recent cached values of one register on several
+   * dynamixels at once, without allocating or taking any lock.</p>
+   *
+   * <p>All returned values are from the same consistent state of the cache,
+   * i.e. never from two different frames where both updated them.</p>
+   *
+   * @param register the register to look up
+   * @param axID the dynamixel ids to look up
+   * @param values the cached values are stored here, 0 if none, must be at
+   * least as long as <i>axID</i>
+   * @param lastUpdateNS the update nanotimes are stored here, {@link
+   * #NOT_CACHED} if none, may be null, else must be at least as long as
+   * <i>axID</i>
+   *
+   * @return the number of ids which had a cached value
+   *
+   * @exception IllegalArgumentException if any id is not in the range [0,
+   * {@link AXRegister#MAX_DYNAMIXEL_ID}]
    **/
-  public synchronized CachedValue getCachedValue(int axID,
-                                                 AXRegister register) {
-    Map<Integer, CachedValue> cvs = cache.get(register);
-    return (cvs == null) ? null : cvs.get(axID);
+  public int getCachedValues(AXRegister register, int[] axID,
+                             int[] values, long[] lastUpdateNS) {
+
+    for (int j = 0; j < axID.length; j++)
+      cacheIndex(axID[j], register);
+
+    for (;;) {
+
+      int seq = cacheSeq.get();
+
+      if ((seq&1) != 0)
+        continue;
+
+      int n = 0;
+
+      for (int j = 0; j < axID.length; j++) {
+
+        int i = cacheIndex(axID[j], register);
+
+        long ns = cacheLastUpdateNS.get(i);
+
+        values[j] = cache.get(i);
+
+        if (lastUpdateNS != null)
+          lastUpdateNS[j] = ns;
+
+        if (ns != NOT_CACHED)
+          n++;
+      }
+
+      if (cacheSeq.get() == seq)
+        return n;
+    }
+  }
+
+  /** covers {@link #getCachedValues(AXRegister, int[], int[], long[])} **/
+  public int getCachedValues(AXRegister register, int[] axID, int[] values) {
+    return getCachedValues(register, axID, values, null);
   }
 
   /**
@@ -1625,64 +4199,178 @@ public class BRBrain {
    * @exception InterruptedException if the calling thread was interrupted
    * while waiting for response bytes from the CM-5
    **/
-  public synchronized int write(float[] data)
+  public int write(float[] data)
+    throws IOException, InterruptedException {
+    return write((Object) data);
+  }
+
+  /** same as {@link #write(float[])} but writes register ints directly **/
+  public int write(int[] data)
     throws IOException, InterruptedException {
     return write((Object) data);
   }
 
-  /** same as {@link #write(float[])} but writes register ints directly **/
-  public synchronized int write(int[] data)
-    throws IOException, InterruptedException {
-    return write((Object) data);
-  }
+  /** asynchronous {@link #write(float[])}, see class header doc **/
+  public CompletableFuture<Integer> writeAsync(float[] data) {
+    return writeAsync((Object) data);
+  }
+
+  /** asynchronous {@link #write(int[])}, see class header doc **/
+  public CompletableFuture<Integer> writeAsync(int[] data) {
+    return writeAsync((Object) data);
+  }
+
+  /** common impl of {@link #writeAsync(float[])} and writeAsync(int[]) **/
+  protected CompletableFuture<Integer> writeAsync(final Object data) {
+    return submit(new IOTask<Integer>() {
+        public Integer run() throws IOException, InterruptedException {
+          return write(data);
+        } });
+  }
+
+  /** common impl of {@link #write(float[])} and {@link #write(int[])} **/
+  public int write(final Object data)
+    throws IOException, InterruptedException {
+
+    if (!onIOThread()) {
+
+      SyncCall s = claimSyncCall(SyncCall.WRITE, data, null);
+
+      if (s != null)
+        return s.awaitStatus();
+
+      return call(new IOTask<Integer>() {
+          public Integer run() throws IOException, InterruptedException {
+            return write(data);
+          } });
+    }
+
+    checkData(F_WRITE, data);
+
+    sendWritePacket(Instruction.I_WRITE_DATA, data);
+
+    return recvStatus();
+  }
+
+  /**
+   * <p>Write data in natural units and then read data in natural units in a
+   * single round trip with the CM-5, according to the current write and read
+   * formats.</p>
+   *
+   * <p>This has the same effect as {@link #write(float[])} followed by {@link
+   * #read(float[])}, but saves one request/response pair.  Not allowed while
+   * {@link #isStreaming}.</p>
+   *
+   * @param out the data to write, see {@link #write(float[])}
+   * @param in the read data is stored here, see {@link #read(float[])}
+   *
+   * @return the combined CM-5 status and retry bytes of the write and the read
+   * as the 0th and 1st byte of the returned int
+   *
+   * @exception IOException if there was a communication error
+   * @exception InterruptedException if the calling thread was interrupted
+   * while waiting for response bytes from the CM-5
+   **/
+  public int writeRead(float[] out, float[] in)
+    throws IOException, InterruptedException {
+    return writeRead((Object) out, (Object) in);
+  }
+
+  /** same as {@link #writeRead(float[], float[])} but with register ints **/
+  public int writeRead(int[] out, int[] in)
+    throws IOException, InterruptedException {
+    return writeRead((Object) out, (Object) in);
+  }
+
+  /** asynchronous {@link #writeRead(float[], float[])} **/
+  public CompletableFuture<Integer> writeReadAsync(float[] out, float[] in) {
+    return writeReadAsync((Object) out, (Object) in);
+  }
+
+  /** asynchronous {@link #writeRead(int[], int[])} **/
+  public CompletableFuture<Integer> writeReadAsync(int[] out, int[] in) {
+    return writeReadAsync((Object) out, (Object) in);
+  }
+
+  /** common impl of the writeReadAsync() variants **/
+  protected CompletableFuture<Integer> writeReadAsync(final Object out,
+                                                      final Object in) {
+    return submit(new IOTask<Integer>() {
+        public Integer run() throws IOException, InterruptedException {
+          return writeRead(out, in);
+        } });
+  }
+
+  /** common impl of the writeRead() variants **/
+  protected int writeRead(final Object out, final Object in)
+    throws IOException, InterruptedException {
+
+    if (!onIOThread()) {
+
+      SyncCall s = claimSyncCall(SyncCall.WRITE_READ, out, in);
+
+      if (s != null)
+        return s.awaitStatus();
+
+      return call(new IOTask<Integer>() {
+          public Integer run() throws IOException, InterruptedException {
+            return writeRead(out, in);
+          } });
+    }
+
+    checkData(F_WRITE, out);
+    checkData(F_READ, in);
+
+    checkNotStreaming("writeRead");
 
-  /** common impl of {@link #write(float[])} and {@link #write(int[])} **/
-  public synchronized int write(Object data)
-    throws IOException, InterruptedException {
+    ensureDeltaReference();
 
-    int[] intData = null;
-    float[] naturalData = null;
+    sendWritePacket(Instruction.I_WRITE_READ, out);
 
-    if (data instanceof int[]) {
-      intData = (int[]) data;
-      if (intData.length < totalNumRegs[F_WRITE])
-        throw new IllegalArgumentException(
-          "must pass an array of at least length "+totalNumRegs[F_WRITE]);
-    } else if (data instanceof float[]) {
-      naturalData = (float[]) data;
-      if (naturalData.length < totalNumRegs[F_WRITE])
-        throw new IllegalArgumentException(
-          "must pass an array of at least length "+totalNumRegs[F_WRITE]);
-    } else {
-      throw new IllegalArgumentException("unsupported data type");
-    }
+    startRecvPacket(Instruction.I_DATA);
 
-    startSendPacket(Instruction.I_WRITE_DATA);
+    return recvDataFrame(in);
+  }
 
-    int k = 0;
+  /**
+   * <p>Send a packet with the given instruction and the write format data
+   * encoded from <i>data</i>, which must already have passed {@link
+   * #checkData}.</p>
+   **/
+  protected void sendWritePacket(Instruction instruction, Object data)
+    throws IOException {
 
-    for (int i = 0; i < numDynamixels[F_WRITE]; i++) {
-      for (int j = 0; j < numReg[F_WRITE][i]; j++) {
+    int[] intData = (data instanceof int[]) ? (int[]) data : null;
+    float[] naturalData = (data instanceof float[]) ? (float[]) data : null;
 
-        int value = 0;
+    startSendPacket(instruction);
 
-        AXRegister reg = startReg[F_WRITE][i].getRelativeRegister(j);
+    FormatPlan p = plan[F_WRITE];
 
-        if (intData != null)
-          value = intData[k++];
-        else
-          value = reg.fromNaturalUnits(naturalData[k++]);
+    final int[] width = p.width;
+    final boolean[] signMagnitude = p.signMagnitude;
 
-        value = reg.encode(value);
+    //the registers of a write format are contiguous on the wire
+    for (int k = 0; k < p.numRegs; k++) {
 
-        for (int b = 0; b < reg.width; b++)
-          sendByte(value>>(8*b));
-      }
+      int value;
+
+      if (intData != null)
+        value = intData[k];
+      else if (p.nonlinear[k] == null)
+        value = Math.round(naturalData[k]/p.naturalUnitsPerCount[k]);
+      else
+        value = p.nonlinear[k].fromNaturalUnits(naturalData[k]);
+
+      //see AXRegister.encode()
+      if (signMagnitude[k] && (value < 0))
+        value = (1<<10)|(-value);
+
+      for (int b = 0; b < width[k]; b++)
+        sendByte(value>>(8*b));
     }
 
     endSendPacket();
-
-    return recvStatus();
   }
 
   /** set the timeout for a response from the CM-5 in ms, returns old value **/
@@ -1697,6 +4385,88 @@ public class BRBrain {
     return timeoutMS;
   }
 
+  /**
+   * <p>Set the {@link WaitStrategy} used while waiting for response bytes
+   * from the CM-5.</p>
+   *
+   * @param waitStrategy the new strategy
+   *
+   * @return the previous strategy
+   **/
+  public synchronized WaitStrategy setWaitStrategy(WaitStrategy waitStrategy) {
+
+    if (waitStrategy == null)
+      throw new IllegalArgumentException("null wait strategy");
+
+    WaitStrategy waitStrategyWas = this.waitStrategy;
+    this.waitStrategy = waitStrategy;
+    return waitStrategyWas;
+  }
+
+  /** get the current {@link WaitStrategy} **/
+  public synchronized WaitStrategy getWaitStrategy() {
+    return waitStrategy;
+  }
+
+  /**
+   * <p>Set the period in ns for which {@link WaitStrategy#PARK} parks between
+   * polls, returns old value.</p>
+   **/
+  public synchronized long setParkNS(long parkNS) {
+
+    if (parkNS <= 0)
+      throw new IllegalArgumentException("park period must be positive");
+
+    long parkNSWas = this.parkNS;
+    this.parkNS = parkNS;
+    return parkNSWas;
+  }
+
+  /** get the period in ns for which {@link WaitStrategy#PARK} parks **/
+  public synchronized long getParkNS() {
+    return parkNS;
+  }
+
+  /**
+   * <p>Idle while waiting for response bytes from the CM-5 according to the
+   * current {@link WaitStrategy}.</p>
+   *
+   * @param tries the number of consecutive polls that found no data
+   *
+   * @exception InterruptedException if the calling thread was interrupted
+   **/
+  protected void recvIdle(int tries) throws InterruptedException {
+
+    switch (waitStrategy) {
+
+    case SLEEP:
+      Thread.sleep(RECV_POLL_MS);
+      break;
+
+    case SPIN_YIELD:
+      if (tries >= SPIN_TRIES)
+        Thread.yield();
+      if (Thread.interrupted())
+        throw new InterruptedException();
+      break;
+
+    case BUSY_SPIN:
+      if (Thread.interrupted())
+        throw new InterruptedException();
+      break;
+
+    case PARK:
+      LockSupport.parkNanos(parkNS);
+      if (Thread.interrupted())
+        throw new InterruptedException();
+      break;
+
+    case BLOCKING:
+      //the link itself blocked for up to the receive timeout
+      break;
+    }
+  }
+
   /**
    * <p>Receive a byte from the CM-5.</p>
    *
@@ -1709,41 +4479,96 @@ public class BRBrain {
    * @exception InterruptedException if the calling thread was interrupted
    * while waiting for response bytes from the CM-5
    **/
-  protected synchronized int recvByte(boolean addToChecksum)
+  protected int recvByte(boolean addToChecksum)
     throws IOException, InterruptedException {
 
-    double deadline = System.nanoTime() + timeoutMS*1e6;
+    recvBytes(recvByteBuffer, 0, 1);
 
-    while (fromCM5.available() == 0) {
-      
-      if (System.nanoTime() > deadline) {
+    int b = recvByteBuffer[0]&0xff;
+
+    if (addToChecksum)
+      checksum += b;
+
+    return b;
+  }
+
+  /**
+   * <p>Receive a block of bytes from the CM-5.</p>
+   *
+   * <p>Bytes are taken from {@link #link} as they become available, the
+   * timeout is restarted whenever progress is made.  In between, the thread
+   * idles according to the current {@link WaitStrategy}.</p>
+   *
+   * @param buf the buffer into which to receive
+   * @param off the offset in buf at which to start
+   * @param len the number of bytes to receive
+   *
+   * @exception IOException if there was a communication error
+   * @exception InterruptedException if the calling thread was interrupted
+   * while waiting for response bytes from the CM-5
+   **/
+  protected void recvBytes(byte[] buf, int off, int len)
+    throws IOException, InterruptedException {
+
+    boolean blocking = (waitStrategy == WaitStrategy.BLOCKING);
+
+    long deadline = System.nanoTime() + (long) (timeoutMS*1e6);
+
+    int tries = 0;
+
+    while (len > 0) {
+
+      long remaining = blocking ? (deadline-System.nanoTime()) : 0;
+
+      int n = link.recv(buf, off, len, Math.max(remaining, 0));
+
+      if (n <= 0) {
+
+        if (System.nanoTime() > deadline) {
+
+          if (recvPacketDebug)
+            for (int i = Math.max(recvPacketDebugLength-RECV_PACKET_DEBUG_SIZE,
+                                  0);
+                 i < recvPacketDebugLength; i++)
+              dbg("RP "+i, recvPacketDebugBuffer[i%RECV_PACKET_DEBUG_SIZE]);
 
-        if (recvPacketDebug) {
-          int i = 0;
-          for (byte b : recvPacketDebugBuffer)
-            dbg("RP "+(i++), b);
+          recvPacketDebug = false;
+
+          throw new IOException("timeout waiting for response from CM-5");
         }
 
-        recvPacketDebug = false;
+        recvIdle(tries++);
 
-        throw new IOException("timeout waiting for response from CM-5");
+        continue;
       }
-      
-      Thread.sleep(RECV_POLL_MS);
-    }
 
-    int b = fromCM5.read();
+      ProtocolTrace t = trace;
+      if (t != null)
+        t.record(ProtocolTrace.RECV, buf, off, n);
 
-    if (addToChecksum)
-      checksum += b;
+      for (int i = off; i < off+n; i++) {
 
-    if (debug)
-      dbg("R", b);
-    
-    if (recvPacketDebug)
-      recvPacketDebugBuffer.add((byte) (b&0xff));
-    
-    return b;
+        if (debug)
+          dbg("R", buf[i]);
+
+        if (recvPacketDebug)
+          recvPacketDebugBuffer[(recvPacketDebugLength++)%
+                                RECV_PACKET_DEBUG_SIZE] = buf[i];
+      }
+
+      off += n;
+      len -= n;
+
+      tries = 0;
+
+      deadline = System.nanoTime() + (long) (timeoutMS*1e6);
+    }
+  }
+
+  /** start logging an incoming packet to {@link #recvPacketDebugBuffer} **/
+  protected void startRecvPacketDebug() {
+    recvPacketDebugLength = 0;
+    recvPacketDebug = enableRecvPacketDebug;
   }
 
   /** print a debug message for a byte **/
@@ -1754,7 +4579,7 @@ public class BRBrain {
   }
 
   /** covers {@link #recvByte(boolean)}, always adds to checksum **/
-  protected synchronized int recvByte()
+  protected int recvByte()
     throws IOException, InterruptedException {
     return recvByte(true);
   }
@@ -1762,18 +4587,42 @@ public class BRBrain {
   /**
    * <p>Send a byte to the CM-5.</p>
    *
+   * <p>Between {@link #startSendPacket} and {@link #endSendPacket} the byte is
+   * only appended to {@link #sendBuffer}, the whole packet is handed to {@link
+   * #link} in a single send by {@link #endSendPacket}.  Otherwise (e.g. when
+   * talking to the bootloader in {@link #flashCM5}) the byte is written
+   * immediately.</p>
+   *
    * @param b the byte to send
    * @param addToChecksum whether to add the value of the sent byte to the
    * current {@link #checksum} in progress, after sending the byte
    *
    * @exception IOException if there was a communication error
    **/
-  protected synchronized void sendByte(int b, boolean addToChecksum)
+  protected void sendByte(int b, boolean addToChecksum)
     throws IOException {
 
     b = b&0xff;
 
-    toCM5.write(b);
+    if (sendingPacket) {
+
+      if (sendLength == sendBuffer.length) {
+        byte[] grown = new byte[2*sendBuffer.length];
+        System.arraycopy(sendBuffer, 0, grown, 0, sendLength);
+        sendBuffer = grown;
+      }
+
+      sendBuffer[sendLength++] = (byte) b;
+
+    } else {
+      sendByteBuffer[0] = (byte) b;
+
+      ProtocolTrace t = trace;
+      if (t != null)
+        t.record(ProtocolTrace.SEND_RAW, sendByteBuffer, 0, 1);
+
+      link.send(sendByteBuffer, 0, 1);
+    }
 
     if (addToChecksum)
       checksum += b;
@@ -1783,41 +4632,78 @@ public class BRBrain {
   }
 
   /** covers {@link #sendByte(int, boolean)}, always adds to checksum **/
-  protected synchronized void sendByte(int b)
+  protected void sendByte(int b)
     throws IOException {
     sendByte(b, true);
   }
 
-  /** start an outgoing packet with the given instruction **/
-  protected synchronized void startSendPacket(Instruction instruction) 
+  /**
+   * <p>Start an outgoing packet with the given instruction.</p>
+   *
+   * <p>Subsequent {@link #sendByte}s are accumulated in {@link #sendBuffer}
+   * until {@link #endSendPacket}.</p>
+   **/
+  protected void startSendPacket(Instruction instruction) 
     throws IOException {
     checksum = 0;
+    sendLength = 0;
+    sendingPacket = true;
     sendByte(instruction.code);
   }
 
-  /** end an outgoing packet, sending checksum **/
-  protected synchronized void endSendPacket() throws IOException {
+  /** end an outgoing packet, sending the whole packet and its checksum **/
+  protected void endSendPacket() throws IOException {
+
     sendByte((~checksum)&0xff);
-    toCM5.flush();
+
+    sendingPacket = false;
+
+    ProtocolTrace t = trace;
+    if (t != null)
+      t.record(ProtocolTrace.SEND, sendBuffer, 0, sendLength);
+
+    link.send(sendBuffer, 0, sendLength);
   }
 
   /** start an incoming packet expecting the given instruction **/
-  protected synchronized void startRecvPacket(Instruction instruction) 
+  protected void startRecvPacket(Instruction instruction) 
     throws IOException, InterruptedException {
 
-    recvPacketDebugBuffer.clear();
-    recvPacketDebug = enableRecvPacketDebug;
+    startRecvPacketDebug();
 
     checksum = 0;
     int b = recvByte();
-    if (b != instruction.code)
+
+    recvInstruction = b;
+
+    //streamed frames may precede the response to any other command
+    while (streaming && isFrame(b) && (instruction != Instruction.I_DATA)) {
+      recvStreamFrame();
+      startRecvPacketDebug();
+      checksum = 0;
+      recvInstruction = b = recvByte();
+    }
+
+    if ((b != instruction.code) &&
+        !((instruction == Instruction.I_DATA) && isFrame(b)) &&
+        !((instruction == Instruction.I_SCAN) &&
+          (b == Instruction.I_STATUS.code)))
       throw new IOException(
         "expected "+instruction+" return packet, got 0x"+
         Integer.toHexString(b));
   }
 
+  /**
+   * <p>Check whether <i>b</i> is the instruction of an {@link
+   * Instruction#I_DATA} or {@link Instruction#I_DELTA_DATA} frame.</p>
+   **/
+  protected static boolean isFrame(int b) {
+    return (b == Instruction.I_DATA.code) ||
+      (b == Instruction.I_DELTA_DATA.code);
+  }
+
   /** end an incoming packet, validating checksum **/
-  protected synchronized void endRecvPacket() 
+  protected void endRecvPacket() 
     throws IOException, InterruptedException {
 
     int b = recvByte(false);
@@ -1830,23 +4716,95 @@ public class BRBrain {
         ", should be 0x"+Integer.toHexString((~checksum)&0xff));
   }
 
-  /** receive a {@link Instruction#I_STATUS} packet, return payload **/
-  protected synchronized int recvStatus() 
+  /**
+   * <p>Receive a whole incoming packet with a known data length into {@link
+   * #recvBuffer}.</p>
+   *
+   * <p>The instruction byte is verified, the data bytes are left in {@link
+   * #recvBuffer} starting at index 0, followed by the checksum byte.  The
+   * caller is expected to sum the data bytes while decoding them and then
+   * call {@link #endRecvPacket(int, int)}.</p>
+   *
+   * @param instruction the expected instruction
+   * @param len the number of data bytes to expect
+   *
+   * @return the checksum contribution of the instruction byte
+   **/
+  protected int recvPacket(Instruction instruction, int len)
     throws IOException, InterruptedException {
-    startRecvPacket(Instruction.I_STATUS);
-    int status = recvByte();
-    status |= recvByte()<<8;
-    recvADCs();
-    endRecvPacket();
+
+    startRecvPacket(instruction);
+
+    recvBuffer = ensureCapacity(recvBuffer, len+1);
+
+    recvBytes(recvBuffer, 0, len+1);
+
+    return checksum;
+  }
+
+  /**
+   * <p>End an incoming packet received by {@link #recvPacket}, validating
+   * checksum.</p>
+   *
+   * @param sum the unsigned byte sum of the instruction and data bytes
+   * @param len the number of data bytes, the checksum is in {@link
+   * #recvBuffer} just after them
+   **/
+  protected void endRecvPacket(int sum, int len)
+    throws IOException {
+
+    recvPacketDebug = false;
+
+    int b = recvBuffer[len]&0xff;
+
+    if (b != ((~sum)&0xff))
+      throw new IOException(
+        "invalid checksum 0x"+Integer.toHexString(b)+
+        ", should be 0x"+Integer.toHexString((~sum)&0xff));
+  }
+
+  /**
+   * <p>Decode the status, retry count, and ADC bytes at the given offset in
+   * {@link #recvBuffer}, storing the ADC channel readings in {@link
+   * #adcValue}.</p>
+   *
+   * @return the CM-5 status and retry bytes as the 0th and 1st byte of the
+   * returned int
+   **/
+  protected int decodeStatus(int off) {
+    int status = recvBuffer[off]&0xff;
+    status |= (recvBuffer[off+1]&0xff)<<8;
+    adcValue[CHANNEL_POS] = recvBuffer[off+2]&0xff;
+    adcValue[CHANNEL_NEG] = recvBuffer[off+3]&0xff;
+    adcValue[CHANNEL_THERM] = recvBuffer[off+4]&0xff;
     return status;
   }
 
+  /** receive a {@link Instruction#I_STATUS} packet, return payload **/
+  protected int recvStatus() 
+    throws IOException, InterruptedException {
+
+    int sum = recvPacket(Instruction.I_STATUS, STATUS_LENGTH);
+
+    for (int i = 0; i < STATUS_LENGTH; i++)
+      sum += recvBuffer[i]&0xff;
+
+    endRecvPacket(sum, STATUS_LENGTH);
+
+    synchronized (stateLock) {
+      return decodeStatus(0);
+    }
+  }
+
   /** receive and store the ADC channel readings in {@link #adcValue} **/
-  protected synchronized void recvADCs()
+  protected void recvADCs()
     throws IOException, InterruptedException {
-    adcValue[CHANNEL_POS] = recvByte();
-    adcValue[CHANNEL_NEG] = recvByte();
-    adcValue[CHANNEL_THERM] = recvByte();
+    int pos = recvByte(), neg = recvByte(), therm = recvByte();
+    synchronized (stateLock) {
+      adcValue[CHANNEL_POS] = pos;
+      adcValue[CHANNEL_NEG] = neg;
+      adcValue[CHANNEL_THERM] = therm;
+    }
   }
 
   /** convert a raw ADC reading to V at the input of the 3.3k/10k divider **/
@@ -1855,22 +4813,55 @@ public class BRBrain {
   }
 
   /** get the most recent ADC reading for the given channel **/
-  public synchronized int getADC(int channel) {
+  public int getADC(int channel) {
 
-    if ((channel < 0) || (channel > adcValue.length))
+    if ((channel < 0) || (channel >= adcValue.length))
       throw new IllegalArgumentException("unknown channel "+channel);
 
-    return adcValue[channel];
+    synchronized (stateLock) {
+      return adcValue[channel];
+    }
   }
 
-  /** close the serial port, no further comms possible **/
-  public synchronized void close() {
-    serialPort.close();
-  }
+  /**
+   * <p>Stop the I/O thread, failing any queued requests, and close the {@link
+   * #link}, no further comms possible.</p>
+   *
+   * <p>The running I/O thread keeps this BRBrain reachable, so it is never
+   * closed by garbage collection, always call this when done.</p>
+   **/
+  public void close() {
+
+    Thread t;
+
+    synchronized (stateLock) {
+
+      if (closed)
+        return;
+
+      closed = true;
 
-  /** {@link #close}s **/
-  protected void finalize() {
-    close();
+      t = ioThread;
+    }
+
+    if ((t != null) && (t != Thread.currentThread())) {
+
+      t.interrupt();
+
+      try {
+        t.join(CLOSE_JOIN_MS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    failPendingRequests();
+
+    try {
+      link.close();
+    } catch (IOException e) {
+      System.err.println("W: error closing link: "+e.getMessage());
+    }
   }
 
   /**
@@ -1957,6 +4948,12 @@ public class BRBrain {
     return dup(from, to, from.length);
   }
 
+  /** fill all of <i>a</i> with <i>v</i> and return it **/
+  public static long[] fill(long[] a, long v) {
+    Arrays.fill(a, v);
+    return a;
+  }
+
   /** make sure <i>a</i> is at least length <i>n</i> **/
   public static int[] ensureCapacity(int[] a, int n) {
     if ((a == null) || (a.length < n))
@@ -1964,6 +4961,13 @@ public class BRBrain {
     return a;
   }
 
+  /** make sure <i>a</i> is at least length <i>n</i> **/
+  public static byte[] ensureCapacity(byte[] a, int n) {
+    if ((a == null) || (a.length < n))
+      a = new byte[n];
+    return a;
+  }
+
   /** make sure <i>a</i> is at least length <i>n</i> **/
   public static boolean[] ensureCapacity(boolean[] a, int n) {
     if ((a == null) || (a.length < n))
@@ -1978,21 +4982,144 @@ public class BRBrain {
     return a;
   }
 
-  /** serial port talking to the CM-5 **/
-  protected SerialPort serialPort;
+  /** make sure <i>a</i> is exactly length <i>n</i> **/
+  public static int[] ensureLength(int[] a, int n) {
+    if ((a == null) || (a.length != n))
+      a = new int[n];
+    return a;
+  }
+
+  /** make sure <i>a</i> is exactly length <i>n</i> **/
+  public static float[] ensureLength(float[] a, int n) {
+    if ((a == null) || (a.length != n))
+      a = new float[n];
+    return a;
+  }
+
+  /** link talking to the CM-5 **/
+  protected CM5Link link;
+
+  /** guards host side state shared with the I/O thread **/
+  protected final Object stateLock = new Object();
+
+  /** the I/O thread, null until first use **/
+  protected volatile Thread ioThread;
+
+  /** requests for {@link #ioThread} **/
+  protected final BlockingQueue<IORequest<?>> ioQueue =
+    new LinkedBlockingQueue<IORequest<?>>();
+
+  /** see {@link #claimSyncCall} **/
+  protected final SyncCall syncCall = new SyncCall();
+
+  /** whether {@link #close}d **/
+  protected volatile boolean closed = false;
+
+  /** see {@link #isStreaming} **/
+  protected volatile boolean streaming = false;
+
+  /** see {@link #getNumStreamErrors} **/
+  protected volatile long numStreamErrors = 0;
+
+  /** see {@link #getNumListenerErrors}, only written on the I/O thread **/
+  protected volatile long numListenerErrors = 0;
+
+  /** see {@link #addFrameListener}, replaced on each change **/
+  protected volatile FrameListener[] frameListeners = new FrameListener[0];
+
+  /** see {@link #getWriteStrategy} **/
+  protected WriteStrategy writeStrategy = WriteStrategy.REG_WRITE_ACTION;
+
+  /** bitmask of MODE_* flags in effect on the CM-5, see {@link #setMode} **/
+  protected int mode = 0;
+
+  /** see {@link #getSampleAgeTicks} **/
+  protected int sampleAgeTicks = -1;
+
+  /** see {@link #setReuseResults} **/
+  protected volatile boolean reuseResults = false;
+
+  /** see {@link #getTrace} **/
+  protected volatile ProtocolTrace trace = new ProtocolTrace();
+
+  /** see {@link #setTraceDumpFile} **/
+  protected volatile File traceDumpFile = null;
+
+  /** number of the last trace dump file tried, only used on the I/O thread **/
+  protected int numTraceDumps = 0;
+
+  /** nanotime of the last {@link #streamError}, only used on the I/O thread **/
+  protected long lastStreamErrorNS;
+
+  /** reused result of {@link #read()} **/
+  protected int[] readResult;
+
+  /** reused result of {@link #readNatural()} **/
+  protected float[] readNaturalResult;
+
+  /** false once the CM-5 turned out not to know {@link Instruction#I_SCAN} **/
+  protected boolean scanSupported = true;
+
+  /** instruction byte of the incoming packet, see {@link #startRecvPacket} **/
+  protected int recvInstruction = 0;
+
+  /**
+   * <p>The payload of the last frame received with {@link #MODE_DELTA}, the
+   * reference for the next {@link Instruction#I_DELTA_DATA}.</p>
+   **/
+  protected byte[] deltaRef = new byte[0];
+
+  /** whether {@link #deltaRef} matches the CM-5 **/
+  protected boolean deltaRefValid = false;
+
+  /** whether the CM-5 will send a keyframe next **/
+  protected boolean keyframePending = false;
+
+  /** change bitmap of an incoming {@link Instruction#I_DELTA_DATA} **/
+  protected byte[] deltaBitmap = new byte[0];
 
-  /** output stream to CM-5 **/
-  protected OutputStream toCM5; 
+  /** the most recently decoded frame, in the order of the read format **/
+  protected int[] frameData = new int[0];
 
-  /** input stream from CM-5 **/
-  protected InputStream fromCM5;
+  /** nanotime at which {@link #frameData} was decoded **/
+  protected long frameNS = 0;
+
+  /** number of frames published by {@link #publishFrame} **/
+  protected long frameSequence = 0;
+
+  /** recycled {@link Frame}s, see {@link #publishFrame} **/
+  protected final Frame[] frameRing = new Frame[FRAME_RING_SIZE];
+
+  /** see {@link #getLatestFrame} **/
+  protected volatile Frame latestFrame = null;
 
   /** timout in ms to wait for a response byte from the CM-5 **/
-  protected double timeoutMS = DEF_TIMEOUT_MS;
+  protected volatile double timeoutMS = DEF_TIMEOUT_MS;
+
+  /** how to wait for response bytes from the CM-5 **/
+  protected volatile WaitStrategy waitStrategy = WaitStrategy.SLEEP;
+
+  /** park time in ns for {@link WaitStrategy#PARK} **/
+  protected volatile long parkNS = DEF_PARK_NS;
+
+  /** scratch buffer for {@link #recvByte(boolean)} **/
+  protected byte[] recvByteBuffer = new byte[1];
+
+  /** scratch buffer for {@link #sendByte(int, boolean)} outside a packet **/
+  protected byte[] sendByteBuffer = new byte[1];
 
   /** checksum in progress **/
   protected int checksum = 0;
 
+  /** outgoing packet being assembled, see {@link #sendByte} **/
+  protected byte[] sendBuffer = new byte[DEF_SEND_BUFFER_SIZE];
+
+  /** number of valid bytes in {@link #sendBuffer} **/
+  protected int sendLength = 0;
+
+  /** whether an outgoing packet is being assembled in {@link #sendBuffer} **/
+  protected boolean sendingPacket = false;
+
   /** num dynamixels in current {@link #F_READ} and {@link #F_WRITE} **/
   protected int[] numDynamixels = new int[] {0, 0};
 
@@ -2019,5 +5146,43 @@ public class BRBrain {
     new int[numDynamixels[0]],
     new int[numDynamixels[1]]
   };
+
+  /** 
+   * <p>Num bytes in current {@link #F_READ} and {@link #F_WRITE} as sent to
+   * the CM-5, including any unused addresses spanned by the registers.</p>
+   **/
+  protected int[][] numBytes = 
+    new int[][] {
+    new int[numDynamixels[0]],
+    new int[numDynamixels[1]]
+  };
+
+  /** total num bytes in current {@link #F_READ} and {@link #F_WRITE} **/
+  protected int[] totalNumBytes = new int[] {0, 0};
+
+  /** compiled codecs of current {@link #F_READ} and {@link #F_WRITE} **/
+  protected FormatPlan[] plan = new FormatPlan[] {
+    new FormatPlan(),
+    new FormatPlan()
+  };
+
+  /** selected {@link #F_READ} and {@link #F_WRITE} {@link #slots} **/
+  protected int[] formatSlot = new int[] {0, 0};
+
+  /** 
+   * <p>Host side copies of the {@link #F_READ} and {@link #F_WRITE} format
+   * slots on the CM-5, see {@link Instruction#I_SELECT_SLOT}.</p>
+   **/
+  protected final FormatSlot[][] slots =
+    new FormatSlot[][] {
+    FormatSlot.newSlots(NUM_FORMAT_SLOTS),
+    FormatSlot.newSlots(NUM_FORMAT_SLOTS)
+  };
+
+  /**
+   * <p>Incoming packet data, sized when the read format is set to hold a
+   * whole {@link Instruction#I_DATA} packet, see {@link #recvPacket}.</p>
+   **/
+  protected byte[] recvBuffer = new byte[STATUS_LENGTH+1];
 }
 
@@ -0,0 +1,94 @@
+/**
+ * <p>Transport between a BRBrain host and a CM-5.</p>
+ *
+ * <p>This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.</p>
+ *
+ * <p>This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.</p>
+ *
+ * <p>You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 59
+ * Temple Place - Suite 330, Boston, MA 02111-1307, USA.</p>
+ **/
+
+package brbrain;
+
+import java.io.*;
+
+/**
+ * <p>Transport between a {@link BRBrain} host and a CM-5.</p>
+ *
+ * <p>A link moves raw bytes; the packet protocol is entirely implemented by
+ * {@link BRBrain}.  Implementations are provided for RXTX serial ports
+ * ({@link RXTXLink}), serial ports accessed as regular files ({@link
+ * FileLink}), and an in-memory pair of endpoints ({@link LoopbackLink}) which
+ * can be used to connect a {@link BRBrain} to a simulator or test
+ * harness.  Sessions on any link can be recorded with a {@link CaptureLink}
+ * and played back with a {@link ReplayLink}.</p>
+ *
+ * <p>{@link BRBrain} only ever calls a link from one thread at a time, so
+ * implementations need not be thread safe with respect to concurrent
+ * sends or concurrent receives.</p>
+ **/
+public interface CM5Link {
+
+  /**
+   * <p>Send a block of bytes, returning only when they have all been handed
+   * to the underlying transport.</p>
+   *
+   * @param buf the bytes to send
+   * @param off the offset of the first byte to send
+   * @param len the number of bytes to send
+   *
+   * @exception IOException if there was a communication error
+   **/
+  void send(byte[] buf, int off, int len) throws IOException;
+
+  /**
+   * <p>Receive up to <i>len</i> bytes.</p>
+   *
+   * <p>If any bytes are available they are returned immediately.  Otherwise
+   * waits up to <i>timeoutNS</i> for at least one byte to arrive.  A timeout
+   * of zero makes this a non-blocking poll.</p>
+   *
+   * @param buf the buffer into which to receive
+   * @param off the offset in buf at which to start
+   * @param len the maximum number of bytes to receive
+   * @param timeoutNS the maximum time to wait in ns
+   *
+   * @return the number of bytes received, 0 on timeout
+   *
+   * @exception IOException if there was a communication error or the link
+   * reached end of stream
+   * @exception InterruptedException if the calling thread was interrupted
+   * while waiting
+   **/
+  int recv(byte[] buf, int off, int len, long timeoutNS)
+    throws IOException, InterruptedException;
+
+  /** get the number of bytes that can be received without waiting **/
+  int available() throws IOException;
+
+  /** discard all bytes that can be received without waiting **/
+  void drain() throws IOException;
+
+  /**
+   * <p>Set the link baud rate in bits per second.</p>
+   *
+   * @exception IllegalStateException if this link does not support baud rate
+   * control
+   * @exception IOException if the rate could not be set
+   **/
+  void setBaudRate(int baudRate) throws IOException;
+
+  /** get the link baud rate in bits per second, or -1 if unknown **/
+  int getBaudRate();
+
+  /** close the link, no further comms possible **/
+  void close() throws IOException;
+}
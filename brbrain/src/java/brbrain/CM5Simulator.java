@@ -0,0 +1,1770 @@
+/**
+ * <p>In-process simulator of the BRBrain CM-5 firmware.</p>
+ *
+ * <p>This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.</p>
+ *
+ * <p>This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.</p>
+ *
+ * <p>You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 59
+ * Temple Place - Suite 330, Boston, MA 02111-1307, USA.</p>
+ **/
+
+package brbrain;
+
+import java.io.*;
+import java.util.*;
+
+import static brbrain.BRBrain.*;
+
+/**
+ * <p>In-process simulator of the BRBrain CM-5 firmware.</p>
+ *
+ * <p>This is a {@link CM5Link} which, instead of talking to a real CM-5,
+ * interprets the host packets the same way the command loop in
+ * <tt>firmware/brbrain.c</tt> does and produces the same replies.  Construct
+ * a {@link BRBrain} on it to benchmark or regression test host code without a
+ * robot on the bench:
+ *
+ * <code><pre>
+ * CM5Simulator sim = new CM5Simulator();
+ * sim.addDynamixel(SimulatedDynamixel.createAX12(3));
+ * sim.addDynamixel(SimulatedDynamixel.createAX12(7));
+ * BRBrain b = new BRBrain(sim);
+ * </pre></code></p>
+ *
+ * <p>Behind the simulated CM-5 is a virtual Dynamixel bus holding a set of
+ * {@link SimulatedDynamixel}s.  Each firmware handler walks the bus the same
+ * way the firmware does, including splitting reads into blocks of at most
+ * {@link #MAX_DYNAMIXEL_BLOCK_READ} bytes, special handling of the virtual
+ * error register, the retry loop on Dynamixel checksum errors, and stuffing
+ * the reply with 0xFF for data that could not be acquired.  Streaming with
+ * {@link Instruction#I_STREAM_START}, background polling with {@link
+ * BRBrain#MODE_POLL}, delta frames with {@link BRBrain#MODE_DELTA}, format
+ * slots with {@link Instruction#I_SELECT_SLOT} and bus scans with {@link
+ * Instruction#I_SCAN} are supported, the idle time work of the firmware is
+ * done on demand as the host sends or receives.</p>
+ *
+ * <h2>Timing Model</h2>
+ *
+ * <p>Every byte on the PC link takes 10 bit times (8N1) at the link baud
+ * rate.  Every byte on the Dynamixel bus takes 10 bit times at {@link
+ * #DYNAMIXEL_BAUD_RATE}, each Dynamixel waits its return delay time (register
+ * 5) before answering, and a Dynamixel that does not answer costs the
+ * firmware's Dynamixel receive timeout.  Like the firmware, the bytes of each
+ * Dynamixel in an {@link Instruction#I_DATA} reply are transmitted to the
+ * host as soon as they are acquired, overlapping with acquisition of the
+ * next Dynamixel, and the firmware waits when its {@link #PC_TX_BUFFER_SIZE}
+ * byte transmit buffer is full.  Time
+ * spent computing on the CM-5 itself is not modeled, nor is the PC receive
+ * timeout of the firmware.</p>
+ *
+ * <p>In {@link #setRealTime real time} mode (the default) reply bytes only
+ * become available to {@link #recv} at their modeled arrival time on the
+ * host's {@link System#nanoTime} clock.  Otherwise replies are available
+ * immediately and the modeled time is accumulated in a virtual clock, see
+ * {@link #getSimulatedTimeNS}.</p>
+ *
+ * <h2>Fault Injection</h2>
+ *
+ * <p>Faults are injected at random, with configurable probabilities and a
+ * configurable {@link #setSeed seed}:<ul>
+ *
+ * <li>{@link #setDropReplyProbability}: a whole reply to the host is lost,
+ * the host times out</li>
+ *
+ * <li>{@link #setReplyChecksumErrorProbability}: the checksum of a reply to
+ * the host is corrupted</li>
+ *
+ * <li>{@link #setDynamixelTimeoutProbability}: a Dynamixel does not answer a
+ * request</li>
+ *
+ * <li>{@link #setDynamixelChecksumErrorProbability}: a Dynamixel answer has a
+ * bad checksum, causing a retry</li>
+ *
+ * <li>{@link #setInvalidResponseProbability}: a Dynamixel answer is garbled,
+ * causing the firmware to stuff the corresponding reply bytes with 0xFF</li>
+ *
+ * <li>{@link #setMaxBaudRate}: bytes sent by the host above this rate are
+ * lost, as with a serial adapter or cable that can't keep up</li>
+ *
+ * </ul></p>
+ **/
+public class CM5Simulator implements CM5Link {
+
+  /** max non-broadcast dynamixel ID **/
+  public static final int MAX_DYNAMIXEL_ID = AXRegister.MAX_DYNAMIXEL_ID;
+
+  /** broadcast dynamixel ID **/
+  public static final int ID_BCAST = 0xfe;
+
+  /** virtual dynamixel register holding error code **/
+  public static final int VIRTUAL_ERROR_REG_ADDR =
+    SimulatedDynamixel.VIRTUAL_ERROR_REG_ADDR;
+
+  /** address of last dynamixel register, including the virtual one **/
+  public static final int MAX_START_ADDR = 54;
+
+  /** total number of bytes in dynamixel register bank including virtual **/
+  public static final int NUM_REG_BYTES = SimulatedDynamixel.NUM_REG_BYTES;
+
+  /** max number of bytes readable in one block from a dynamixel **/
+  public static final int MAX_DYNAMIXEL_BLOCK_READ = 20;
+
+  /** max tries of a dynamixel bus transaction **/
+  public static final int MAX_DYNAMIXEL_TRIES = 4;
+
+  /** dynamixel error bit signaling a bad instruction checksum **/
+  public static final int DYNAMIXEL_INSTRUCTION_CHECKSUM_ERROR = (1<<4);
+
+  /** CM-5 to dynamixel packet instruction **/
+  public static final int D_I_PING = 0x01;
+
+  /** CM-5 to dynamixel packet instruction **/
+  public static final int D_I_READ_DATA = 0x02;
+
+  /** CM-5 to dynamixel packet instruction **/
+  public static final int D_I_WRITE_DATA = 0x03;
+
+  /** CM-5 to dynamixel packet instruction **/
+  public static final int D_I_REG_WRITE = 0x04;
+
+  /** CM-5 to dynamixel packet instruction **/
+  public static final int D_I_ACTION = 0x05;
+
+  /** CM-5 to dynamixel packet instruction **/
+  public static final int D_I_SYNC_WRITE = 0x83;
+
+  /** dynamixel bus baud rate **/
+  public static final int DYNAMIXEL_BAUD_RATE = 1000000;
+
+  /** bit times per byte on both the PC link and the dynamixel bus (8N1) **/
+  public static final int BITS_PER_BYTE = 10;
+
+  /** firmware timer tick, 16MHz/1024/156 **/
+  public static final long TICK_NS = 9984000;
+
+  /** firmware PC receive timeout **/
+  public static final int RX_PC_TIMEOUT_TICKS = 100;
+
+  /** firmware delay before switching baud rate **/
+  public static final int BAUD_SWITCH_DELAY_TICKS = 2;
+
+  /** firmware dynamixel receive timeout **/
+  public static final int RX_DYNAMIXEL_TIMEOUT_TICKS = 10;
+
+  /** firmware wait for the start of each reply in <tt>handleScan()</tt> **/
+  public static final long SCAN_TIMEOUT_NS = 3000000;
+
+  /** address of the model number in every dynamixel **/
+  public static final int MODEL_NUMBER_ADDR = 0;
+
+  /** width of the model number in every dynamixel **/
+  public static final int MODEL_NUMBER_BYTES = 2;
+
+  /** firmware delay before clearing rx bufs on invalid command **/
+  public static final int RX_CLEAR_DELAY_TICKS = 50;
+
+  /** firmware PC transmit buffer size **/
+  public static final int PC_TX_BUFFER_SIZE = 128;
+
+  /** header, id, length, instruction and checksum of a dynamixel packet **/
+  public static final int DYNAMIXEL_PACKET_OVERHEAD = 6;
+
+  /** mode bits known to the firmware, see <tt>handleSetMode()</tt> **/
+  public static final int MODE_ALL = MODE_POLL|MODE_DELTA;
+
+  /** status, retries, ADC channels, age and sequence number **/
+  public static final int MAX_FRAME_TRAILER = STATUS_LENGTH+2;
+
+  /** longest idle gap simulated in full while polling and not streaming **/
+  public static final long MAX_IDLE_POLL_NS = 100000000;
+
+  /** default raw ADC readings (about 9.6V battery) **/
+  public static final int[] DEF_ADC_VALUES = new int[] {121, 0, 128};
+
+  /** make a simulator with an empty bus talking at the default baud rate **/
+  public CM5Simulator() {
+    pcBaudRate = hostBaudRate = RXTX_DEF_BAUD_RATE;
+    System.arraycopy(DEF_ADC_VALUES, 0, adcValue, 0, adcValue.length);
+  }
+
+  /** add a dynamixel to the bus, replacing any with the same ID **/
+  public synchronized void addDynamixel(SimulatedDynamixel d) {
+    removeDynamixel(d.getID());
+    bus.add(d);
+  }
+
+  /** remove the dynamixel with the given ID from the bus, if any **/
+  public synchronized SimulatedDynamixel removeDynamixel(int id) {
+    SimulatedDynamixel d = getDynamixel(id);
+    if (d != null)
+      bus.remove(d);
+    return d;
+  }
+
+  /** get the dynamixel with the given ID, null if none **/
+  public synchronized SimulatedDynamixel getDynamixel(int id) {
+    for (SimulatedDynamixel d : bus)
+      if (d.getID() == id)
+        return d;
+    return null;
+  }
+
+  /** set whether replies are delayed in real time, see class header doc **/
+  public synchronized void setRealTime(boolean realTime) {
+    this.realTime = realTime;
+  }
+
+  /** check whether replies are delayed in real time **/
+  public synchronized boolean isRealTime() {
+    return realTime;
+  }
+
+  /**
+   * <p>Get the current simulation time in ns.</p>
+   *
+   * <p>In real time mode this is just {@link System#nanoTime}, otherwise it
+   * is the virtual clock, which starts at 0 and advances as reply bytes are
+   * consumed by {@link #recv} and as {@link #recv} waits.</p>
+   **/
+  public synchronized long getSimulatedTimeNS() {
+    return now();
+  }
+
+  /** get the number of host commands handled so far **/
+  public synchronized long getNumCommands() {
+    return numCommands;
+  }
+
+  /** get the number of frames streamed so far **/
+  public synchronized long getNumFrames() {
+    return numFrames;
+  }
+
+  /** get the total time the dynamixel bus was busy so far in ns **/
+  public synchronized long getBusyBusNS() {
+    return busyBusNS;
+  }
+
+  /** set a raw 8-bit ADC reading, see {@link BRBrain#CHANNEL_POS} etc **/
+  public synchronized void setADC(int channel, int value) {
+    adcValue[channel] = value&0xff;
+  }
+
+  /** reseed the fault injection random number generator **/
+  public synchronized void setSeed(long seed) {
+    random.setSeed(seed);
+  }
+
+  /** see class header doc **/
+  public synchronized void setDropReplyProbability(double p) {
+    dropReplyProbability = p;
+  }
+
+  /** see class header doc **/
+  public synchronized void setReplyChecksumErrorProbability(double p) {
+    replyChecksumErrorProbability = p;
+  }
+
+  /** see class header doc **/
+  public synchronized void setDynamixelTimeoutProbability(double p) {
+    dynamixelTimeoutProbability = p;
+  }
+
+  /** see class header doc **/
+  public synchronized void setDynamixelChecksumErrorProbability(double p) {
+    dynamixelChecksumErrorProbability = p;
+  }
+
+  /** see class header doc **/
+  public synchronized void setInvalidResponseProbability(double p) {
+    invalidResponseProbability = p;
+  }
+
+  /** see class header doc **/
+  public synchronized void setMaxBaudRate(int baudRate) {
+    maxBaudRate = baudRate;
+  }
+
+  /** get the firmware side baud rate of the PC link **/
+  public synchronized int getCM5BaudRate() {
+    return pcBaudRate;
+  }
+
+  /**
+   * <p>Bytes arrive at the simulated CM-5 serially at the link baud rate,
+   * complete commands are handled immediately.</p>
+   *
+   * <p>If the host baud rate differs from the firmware PC baud rate the
+   * bytes are lost as line noise.</p>
+   **/
+  public synchronized void send(byte[] buf, int off, int len)
+    throws IOException {
+
+    checkOpen();
+
+    checkBaudVerify(now());
+
+    if ((hostBaudRate != pcBaudRate) || (hostBaudRate > maxBaudRate))
+      return;
+
+    long t = Math.max(now(), hostTxFreeNS);
+
+    for (int i = 0; i < len; i++) {
+
+      t += pcByteNS();
+
+      if (rxCount == rxData.length) {
+        rxData = Arrays.copyOf(rxData, 2*rxCount);
+        rxArrival = Arrays.copyOf(rxArrival, 2*rxCount);
+      }
+
+      rxData[rxCount] = buf[off+i];
+      rxArrival[rxCount] = t;
+      rxCount++;
+    }
+
+    hostTxFreeNS = t;
+
+    process();
+  }
+
+  public synchronized int recv(byte[] buf, int off, int len, long timeoutNS)
+    throws IOException, InterruptedException {
+
+    checkOpen();
+
+    if (!realTime) {
+
+      if ((txCount == 0) && streaming) {
+        idleUntil(nextFrameNS);
+        txStreamFrame();
+      }
+
+      int n = take(buf, off, len, Long.MAX_VALUE);
+
+      if (n == 0)
+        simNS += timeoutNS;
+
+      return n;
+    }
+
+    long deadline = System.nanoTime()+timeoutNS;
+
+    for (;;) {
+
+      long t = System.nanoTime();
+
+      idleUntil(t);
+
+      int n = take(buf, off, len, t);
+
+      if ((n > 0) || (t >= deadline))
+        return n;
+
+      long wake = deadline;
+
+      if ((txCount > 0) && (txArrival[txHead] < wake))
+        wake = txArrival[txHead];
+
+      if (streaming && (nextFrameNS < wake))
+        wake = nextFrameNS;
+
+      long waitNS = Math.max(wake-t, 1000);
+
+      wait(waitNS/1000000, (int) (waitNS%1000000));
+    }
+  }
+
+  public synchronized int available() throws IOException {
+
+    checkOpen();
+
+    if (!realTime)
+      return txCount;
+
+    long t = System.nanoTime();
+
+    idleUntil(t);
+
+    int n = 0;
+    while ((n < txCount) && (txArrival[(txHead+n)%txData.length] <= t))
+      n++;
+
+    return n;
+  }
+
+  public synchronized void drain() throws IOException {
+    checkOpen();
+    take(null, 0, available(), Long.MAX_VALUE);
+  }
+
+  /** sets the host side baud rate, see {@link #send} **/
+  public synchronized void setBaudRate(int baudRate) {
+
+    if (baudRate <= 0)
+      throw new IllegalArgumentException("invalid baud rate "+baudRate);
+
+    hostBaudRate = baudRate;
+  }
+
+  /** gets the host side baud rate **/
+  public synchronized int getBaudRate() {
+    return hostBaudRate;
+  }
+
+  public synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+
+  /** throw if {@link #close}d **/
+  protected void checkOpen() throws IOException {
+    if (closed)
+      throw new IOException("simulator closed");
+  }
+
+  /** current simulation time **/
+  protected long now() {
+    return realTime ? System.nanoTime() : simNS;
+  }
+
+  /** time to transfer one byte on the PC link **/
+  protected long pcByteNS() {
+    return (BITS_PER_BYTE*1000000000L)/pcBaudRate;
+  }
+
+  /** time to transfer one byte on the dynamixel bus **/
+  protected long dynamixelByteNS() {
+    return (BITS_PER_BYTE*1000000000L)/DYNAMIXEL_BAUD_RATE;
+  }
+
+  /**
+   * <p>Dequeue up to <i>len</i> reply bytes that have arrived by
+   * <i>limitNS</i>.</p>
+   *
+   * @param buf where to store the bytes, or null to discard them
+   **/
+  protected int take(byte[] buf, int off, int len, long limitNS) {
+
+    int n = 0;
+
+    while ((n < len) && (txCount > 0) && (txArrival[txHead] <= limitNS)) {
+
+      if (buf != null)
+        buf[off+n] = txData[txHead];
+
+      if (!realTime && (txArrival[txHead] > simNS))
+        simNS = txArrival[txHead];
+
+      txHead = (txHead+1)%txData.length;
+      txCount--;
+      n++;
+    }
+
+    return n;
+  }
+
+  /** true with probability p **/
+  protected boolean chance(double p) {
+    return (p > 0.0) && (random.nextDouble() < p);
+  }
+
+  /** handle all complete commands received so far **/
+  protected void process() {
+
+    while (rxCount > 0) {
+
+      int need = commandLength();
+
+      if ((need < 0) || (rxCount < need))
+        return;
+
+      idleUntil(rxArrival[0]);
+
+      if (baudVerifyPending && !verifyBaud())
+        continue;
+
+      rxPos = 0;
+      status = 0;
+      numDynamixelRetries = 0;
+      checksumRxPC = 0;
+
+      numCommands++;
+
+      dropReply = chance(dropReplyProbability);
+      corruptReply = chance(replyChecksumErrorProbability);
+
+      int instruction = rxPC();
+
+      int handler = ((instruction&0xf0) == 0xf0) ? (instruction&0x0f) : -1;
+
+      if (handler == (Instruction.I_PING.code&0x0f))
+        handlePing();
+      else if (handler == (Instruction.I_SET_READ_FORMAT.code&0x0f))
+        setFormat(F_READ);
+      else if (handler == (Instruction.I_SET_WRITE_FORMAT.code&0x0f))
+        setFormat(F_WRITE);
+      else if (handler == (Instruction.I_READ_DATA.code&0x0f))
+        handleReadData();
+      else if (handler == (Instruction.I_WRITE_DATA.code&0x0f))
+        handleWriteData();
+      else if (handler == (Instruction.I_STREAM_START.code&0x0f))
+        handleStreamStart();
+      else if (handler == (Instruction.I_STREAM_STOP.code&0x0f))
+        handleStreamStop();
+      else if (handler == (Instruction.I_WRITE_READ.code&0x0f))
+        handleWriteRead();
+      else if (handler == (Instruction.I_SET_MODE.code&0x0f))
+        handleSetMode();
+      else if (handler == (Instruction.I_SET_BAUD.code&0x0f))
+        handleSetBaud();
+      else if (handler == (Instruction.I_SELECT_SLOT.code&0x0f))
+        handleSelectSlot();
+      else if (handler == (Instruction.I_SCAN.code&0x0f))
+        handleScan();
+      else
+        handleInvalid();
+
+      consumeRx(rxPos);
+    }
+  }
+
+  /**
+   * <p>Get the total length of the command at the head of the received
+   * bytes, or -1 if that can't be determined yet.</p>
+   **/
+  protected int commandLength() {
+
+    int instruction = rxData[0]&0xff;
+
+    if (instruction == Instruction.I_PING.code)
+      return 3;
+
+    if ((instruction == Instruction.I_SET_READ_FORMAT.code) ||
+        (instruction == Instruction.I_SET_WRITE_FORMAT.code)) {
+
+      if (rxCount < 2)
+        return -1;
+
+      int n = rxData[1]&0xff;
+
+      return (n > MAX_FORMAT_BLOCKS) ? 2 : (2+3*n+1);
+    }
+
+    if (instruction == Instruction.I_READ_DATA.code)
+      return 2;
+
+    if ((instruction == Instruction.I_WRITE_DATA.code) ||
+        (instruction == Instruction.I_WRITE_READ.code))
+      return 2+totalNumBytes[F_WRITE];
+
+    if (instruction == Instruction.I_STREAM_START.code)
+      return 3;
+
+    if (instruction == Instruction.I_STREAM_STOP.code)
+      return 2;
+
+    if ((instruction == Instruction.I_SET_MODE.code) ||
+        (instruction == Instruction.I_SET_BAUD.code) ||
+        (instruction == Instruction.I_SELECT_SLOT.code))
+      return 3;
+
+    if (instruction == Instruction.I_SCAN.code)
+      return 4;
+
+    return 1;
+  }
+
+  /** drop the first n received bytes **/
+  protected void consumeRx(int n) {
+    System.arraycopy(rxData, n, rxData, 0, rxCount-n);
+    System.arraycopy(rxArrival, n, rxArrival, 0, rxCount-n);
+    rxCount -= n;
+  }
+
+  /** rx from pc, waiting for it to arrive **/
+  protected int rxPC() {
+
+    if (rxArrival[rxPos] > fwNS)
+      fwNS = rxArrival[rxPos];
+
+    int b = rxData[rxPos++]&0xff;
+
+    checksumRxPC += b;
+
+    return b;
+  }
+
+  /** rx checksum from PC and validate it **/
+  protected void endRXPacketPC() {
+
+    int sum = checksumRxPC;
+
+    int checksum = rxPC();
+
+    if (checksum != ((~sum)&0xff))
+      status |= S_PC_CHECKSUM_ERROR;
+  }
+
+  /** tx to pc, the byte is on the wire once the previous one is done **/
+  protected void txPC(int b, boolean addToChecksum) {
+
+    b &= 0xff;
+
+    if (addToChecksum)
+      checksumTxPC += b;
+
+    if (dropReply)
+      return;
+
+    pcTxFreeNS = Math.max(pcTxFreeNS, fwNS)+pcByteNS();
+
+    //the firmware blocks while its tx buffer is full
+    long backlogNS = PC_TX_BUFFER_SIZE*pcByteNS();
+    if (pcTxFreeNS-fwNS > backlogNS)
+      fwNS = pcTxFreeNS-backlogNS;
+
+    if (txCount == txData.length) {
+
+      byte[] data = new byte[2*txData.length];
+      long[] arrival = new long[2*txData.length];
+
+      for (int i = 0; i < txCount; i++) {
+        data[i] = txData[(txHead+i)%txData.length];
+        arrival[i] = txArrival[(txHead+i)%txData.length];
+      }
+
+      txData = data;
+      txArrival = arrival;
+      txHead = 0;
+    }
+
+    int tail = (txHead+txCount)%txData.length;
+
+    txData[tail] = (byte) b;
+    txArrival[tail] = pcTxFreeNS;
+    txCount++;
+
+    notifyAll();
+  }
+
+  /** send instruction to pc **/
+  protected void startTXPacketPC(Instruction instruction) {
+    checksumTxPC = 0;
+    txPC(instruction.code, true);
+  }
+
+  /** send checksum to pc **/
+  protected void endTXPacketPC() {
+
+    int checksum = (~checksumTxPC)&0xff;
+
+    if (corruptReply)
+      checksum ^= 0x5a;
+
+    txPC(checksum, false);
+  }
+
+  /** tx the status, retries, and adc values to the PC **/
+  protected void txStatusBytesPC() {
+    txPC(status, true);
+    txPC(numDynamixelRetries, true);
+    txPC(adcValue[CHANNEL_POS], true);
+    txPC(adcValue[CHANNEL_NEG], true);
+    txPC(adcValue[CHANNEL_THERM], true);
+  }
+
+  /** tx a status packet to the PC **/
+  protected void txStatusPC() {
+    startTXPacketPC(Instruction.I_STATUS);
+    txStatusBytesPC();
+    endTXPacketPC();
+  }
+
+  /** send a packet to the dynamixel bus **/
+  protected void txPacketDynamixel(int numParams) {
+    long ns = (DYNAMIXEL_PACKET_OVERHEAD+numParams)*dynamixelByteNS();
+    fwNS += ns;
+    busyBusNS += ns;
+  }
+
+  /**
+   * <p>Receive a response packet from dynamixel <i>d</i>, which is stored in
+   * {@link #rxID}, {@link #rxN}, {@link #rxError} and {@link #dxParams}.</p>
+   *
+   * @param d the addressed dynamixel, null if none
+   * @param numParamsExpected the expected number of params
+   * @param read the address to read params from, or -1 if not a read
+   *
+   * @return false on timeout
+   **/
+  protected boolean rxPacketDynamixel(SimulatedDynamixel d,
+                                      int numParamsExpected, int read) {
+
+    if ((d == null) || chance(dynamixelTimeoutProbability)) {
+      long ns = RX_DYNAMIXEL_TIMEOUT_TICKS*TICK_NS;
+      fwNS += ns;
+      busyBusNS += ns;
+      status |= S_DYNAMIXEL_TIMEOUT;
+      return false;
+    }
+
+    long ns =
+      d.getReturnDelayNS()+
+      (DYNAMIXEL_PACKET_OVERHEAD+numParamsExpected)*dynamixelByteNS();
+    fwNS += ns;
+    busyBusNS += ns;
+
+    rxID = d.getID();
+    rxN = numParamsExpected;
+
+    if (read >= 0)
+      rxError = d.read(read, numParamsExpected, dxParams, 0);
+    else
+      rxError = d.ping();
+
+    if (chance(invalidResponseProbability)) {
+      rxN = numParamsExpected+1;
+      status |= S_INVALID_DYNAMIXEL_RESPONSE;
+    }
+
+    if (chance(dynamixelChecksumErrorProbability))
+      status |= S_DYNAMIXEL_CHECKSUM_ERROR;
+
+    return true;
+  }
+
+  /** clr stat flg & ret true iff checksum fail and still have tries left **/
+  protected boolean tryDynamixelAgain(int dynamixelError) {
+
+    if ((((dynamixelError&DYNAMIXEL_INSTRUCTION_CHECKSUM_ERROR) != 0) ||
+         ((status&S_DYNAMIXEL_CHECKSUM_ERROR) != 0)) &&
+        (numDynamixelRetries < (MAX_DYNAMIXEL_TRIES-1))) {
+      numDynamixelRetries++;
+      status &= ~S_DYNAMIXEL_CHECKSUM_ERROR;
+      return true;
+    }
+
+    return false;
+  }
+
+  /** see <tt>handlePing()</tt> in the firmware **/
+  protected void handlePing() {
+
+    int addr = rxPC();
+
+    endRXPacketPC();
+
+    if (addr <= MAX_DYNAMIXEL_ID) {
+
+      SimulatedDynamixel d = getDynamixel(addr);
+
+      rxID = rxError = 0xff;
+
+      do {
+
+        if (d != null)
+          d.step(fwNS);
+
+        txPacketDynamixel(0);
+
+      } while (rxPacketDynamixel(d, 0, -1) && tryDynamixelAgain(rxError));
+
+      if (rxID != addr)
+        status |= S_INVALID_DYNAMIXEL_RESPONSE;
+    }
+
+    if (addr == ID_BCAST)
+      status |= S_INVALID_PC_COMMAND;
+
+    txStatusPC();
+  }
+
+  /** see <tt>handleScan()</tt> in the firmware **/
+  protected void handleScan() {
+
+    int first = rxPC(), last = rxPC();
+
+    endRXPacketPC();
+
+    if (status != 0) {
+      txStatusPC();
+      return;
+    }
+
+    if ((first > last) || (last > MAX_DYNAMIXEL_ID)) {
+      status |= S_INVALID_PC_COMMAND;
+      txStatusPC();
+      return;
+    }
+
+    startTXPacketPC(Instruction.I_SCAN);
+
+    //one presence byte per 8 ids, each followed by the model numbers of the
+    //present ones
+    int present = 0, k = 0;
+
+    for (int id = first; id <= last; id++) {
+
+      if (scanDynamixel(id, scanModel, k*MODEL_NUMBER_BYTES))
+        present |= (1<<k);
+
+      if ((++k == 8) || (id == last)) {
+
+        txPC(present, true);
+
+        for (int j = 0; j < k; j++)
+          if ((present&(1<<j)) != 0)
+            for (int b = 0; b < MODEL_NUMBER_BYTES; b++)
+              txPC(scanModel[j*MODEL_NUMBER_BYTES+b], true);
+
+        present = k = 0;
+      }
+    }
+
+    txStatusBytesPC();
+    endTXPacketPC();
+  }
+
+  /** see <tt>scanDynamixel()</tt> in the firmware **/
+  protected boolean scanDynamixel(int id, byte[] model, int off) {
+
+    SimulatedDynamixel d = getDynamixel(id);
+
+    rxID = rxN = rxError = 0xff;
+
+    do {
+
+      if (d != null)
+        d.step(fwNS);
+
+      txPacketDynamixel(2);
+
+      //most ids are absent, the firmware doesn't wait out the usual timeout
+      if ((d == null) || (d.getReturnDelayNS() >= SCAN_TIMEOUT_NS) ||
+          chance(dynamixelTimeoutProbability)) {
+        fwNS += SCAN_TIMEOUT_NS;
+        busyBusNS += SCAN_TIMEOUT_NS;
+        return false;
+      }
+
+    } while (rxPacketDynamixel(d, MODEL_NUMBER_BYTES, MODEL_NUMBER_ADDR) &&
+             tryDynamixelAgain(rxError));
+
+    System.arraycopy(dxParams, 0, model, off, MODEL_NUMBER_BYTES);
+
+    return (rxID == id) && (rxN == MODEL_NUMBER_BYTES);
+  }
+
+  /** see <tt>setFormat()</tt> in the firmware **/
+  protected void setFormat(int f) {
+
+    numDynamixels[f] = 0;
+    totalNumBytes[f] = 0;
+
+    if (f == F_WRITE)
+      syncWrite = false;
+
+    rxFormat(f);
+
+    //the format is stored in the selected slot
+    slotNumDynamixels[f][formatSlot[f]] = numDynamixels[f];
+    slotTotalNumBytes[f][formatSlot[f]] = totalNumBytes[f];
+
+    formatChanged(f);
+
+    if ((f == F_READ) && ((mode&(MODE_POLL|MODE_DELTA)) != 0) &&
+        (totalNumBytes[F_READ] > MAX_BUFFERED_BYTES)) {
+      mode &= ~(MODE_POLL|MODE_DELTA);
+      status |= S_INVALID_PC_COMMAND;
+    }
+
+    txStatusPC();
+  }
+
+  /** the part of <tt>setFormat()</tt> before <tt>DONE</tt> **/
+  protected void rxFormat(int f) {
+
+    int totalBytes = 0;
+
+    int n = rxPC();
+
+    if (n > MAX_FORMAT_BLOCKS) {
+      status |= S_INVALID_PC_COMMAND;
+      return;
+    }
+
+    for (int i = 0; i < n; i++) {
+
+      int id = rxPC();
+
+      if (id > MAX_DYNAMIXEL_ID) {
+        status |= S_INVALID_PC_COMMAND;
+        return;
+      }
+
+      int start = rxPC();
+
+      if (start > MAX_START_ADDR) {
+        status |= S_INVALID_PC_COMMAND;
+        return;
+      }
+
+      int nb = rxPC();
+
+      if (nb > (NUM_REG_BYTES-start)) {
+        status |= S_INVALID_PC_COMMAND;
+        return;
+      }
+
+      axID[f][i] = id;
+      startAddr[f][i] = start;
+      numBytes[f][i] = nb;
+
+      totalBytes += nb;
+    }
+
+    totalNumBytes[f] = totalBytes;
+    numDynamixels[f] = n;
+
+    endRXPacketPC();
+  }
+
+  /** see <tt>formatChanged()</tt> in the firmware **/
+  protected void formatChanged(int f) {
+
+    if (f == F_READ) {
+      pollReset();
+      deltaValid = false;
+      return;
+    }
+
+    int n = numDynamixels[f];
+
+    //a dynamixel only holds one REG_WRITE, so only its last block gets one
+    for (int i = 0; i < n; i++) {
+
+      writeImmediate[i] = false;
+
+      for (int j = i+1; j < n; j++)
+        if (axID[f][j] == axID[f][i])
+          writeImmediate[i] = true;
+    }
+
+    //SYNC_WRITE iff all share start and length and it fits in one packet
+    syncWrite = (n > 0) && (numBytes[f][0] > 0) &&
+      (n*(numBytes[f][0]+1) <= MAX_SYNC_WRITE_BYTES);
+
+    for (int i = 1; syncWrite && (i < n); i++)
+      if ((startAddr[f][i] != startAddr[f][0]) ||
+          (numBytes[f][i] != numBytes[f][0]))
+        syncWrite = false;
+  }
+
+  /** see <tt>handleSelectSlot()</tt> in the firmware **/
+  protected void handleSelectSlot() {
+
+    int b = rxPC();
+
+    endRXPacketPC();
+
+    if (status == 0) {
+
+      //high bit is the format, low bits the slot
+      int f = b>>7, slot = b&0x7f;
+
+      if ((slot >= NUM_FORMAT_SLOTS) ||
+          ((f == F_READ) && ((mode&(MODE_POLL|MODE_DELTA)) != 0) &&
+           (slotTotalNumBytes[f][slot] > MAX_BUFFERED_BYTES))) {
+        status |= S_INVALID_PC_COMMAND;
+      } else {
+
+        formatSlot[f] = slot;
+
+        numDynamixels[f] = slotNumDynamixels[f][slot];
+        totalNumBytes[f] = slotTotalNumBytes[f][slot];
+        axID[f] = slotAxID[f][slot];
+        startAddr[f] = slotStartAddr[f][slot];
+        numBytes[f] = slotNumBytes[f][slot];
+
+        formatChanged(f);
+      }
+    }
+
+    txStatusPC();
+  }
+
+  /** see <tt>handleReadData()</tt> in the firmware **/
+  protected void handleReadData() {
+    endRXPacketPC();
+    txDataPC();
+  }
+
+  /** see <tt>txDataPC()</tt> in the firmware **/
+  protected void txDataPC() {
+
+    if ((mode&(MODE_POLL|MODE_DELTA)) != 0) {
+      txBufferedDataPC();
+      return;
+    }
+
+    startTXPacketPC(Instruction.I_DATA);
+
+    for (int i = 0; i < numDynamixels[F_READ]; i++) {
+
+      readDynamixel(i, readData, 0);
+
+      for (int j = 0; j < numBytes[F_READ][i]; j++)
+        txPC(readData[j], true);
+    }
+
+    txStatusBytesPC();
+
+    endTXPacketPC();
+  }
+
+  /**
+   * <p>See <tt>readDynamixel()</tt> in the firmware, acquires the read format
+   * registers of the <i>i</i>th Dynamixel into <i>dst</i>.</p>
+   **/
+  protected void readDynamixel(int i, byte[] dst, int off) {
+
+    int id = axID[F_READ][i];
+    int start = startAddr[F_READ][i];
+    int n = numBytes[F_READ][i];
+
+    SimulatedDynamixel d = getDynamixel(id);
+
+    boolean returnError = false;
+
+    //read in blocks of up to MAX_DYNAMIXEL_BLOCK_READ bytes
+
+    while (n > 0) {
+
+      int thisN = Math.min(n, MAX_DYNAMIXEL_BLOCK_READ);
+
+      //do we need to read the virtual reg?
+      if ((start+thisN) == VIRTUAL_ERROR_REG_ADDR+1) {
+        returnError = true;
+        thisN--;
+      }
+
+      rxID = rxN = rxError = 0xff;
+
+      do {
+
+        if (d != null)
+          d.step(fwNS);
+
+        txPacketDynamixel((thisN > 0) ? 2 : 0);
+
+      } while (rxPacketDynamixel(d, thisN, (thisN > 0) ? start : -1) &&
+               tryDynamixelAgain(rxError));
+
+      if ((rxID == id) && (rxN == thisN)) {
+
+        System.arraycopy(dxParams, 0, dst, off, thisN);
+
+      } else {
+
+        status |= S_INVALID_DYNAMIXEL_RESPONSE;
+
+        Arrays.fill(dst, off, off+thisN, (byte) 0xff);
+      }
+
+      off += thisN;
+
+      //return the virtual reg?
+      if (returnError) {
+        dst[off++] = (byte) rxError;
+        n--;
+        start++;
+      }
+
+      n -= thisN;
+      start += thisN;
+    }
+  }
+
+  /** see <tt>txBufferedDataPC()</tt> in the firmware **/
+  protected void txBufferedDataPC() {
+
+    int len = totalNumBytes[F_READ];
+
+    byte[] data = ((mode&MODE_POLL) != 0) ? pollData() : acquireData();
+
+    int t = 0;
+
+    trailer[t++] = status;
+    trailer[t++] = numDynamixelRetries;
+    trailer[t++] = adcValue[CHANNEL_POS];
+    trailer[t++] = adcValue[CHANNEL_NEG];
+    trailer[t++] = adcValue[CHANNEL_THERM];
+
+    if ((mode&MODE_POLL) != 0)
+      trailer[t++] = (int) Math.min((fwNS-pollDoneNS)/TICK_NS, 0xff);
+
+    if ((mode&MODE_DELTA) != 0)
+      trailer[t++] = frameSeq = (frameSeq+1)&0xff;
+
+    int total = len+t;
+
+    //send only the changed bytes if that is shorter
+    if (((mode&MODE_DELTA) != 0) && deltaValid && (deltaFramesToKey > 0)) {
+
+      int numChanged = 0;
+      int numBitmap = (total+7)/8;
+
+      Arrays.fill(deltaBitmap, 0, numBitmap, (byte) 0);
+
+      for (int k = 0; k < total; k++)
+        if (frameByte(data, len, k) != deltaRef[k]) {
+          deltaBitmap[k/8] |= (1<<(k%8));
+          numChanged++;
+        }
+
+      if ((numBitmap+numChanged) < total) {
+
+        startTXPacketPC(Instruction.I_DELTA_DATA);
+
+        for (int j = 0; j < numBitmap; j++)
+          txPC(deltaBitmap[j], true);
+
+        for (int k = 0; k < total; k++)
+          if ((deltaBitmap[k/8]&(1<<(k%8))) != 0) {
+            deltaRef[k] = frameByte(data, len, k);
+            txPC(deltaRef[k], true);
+          }
+
+        endTXPacketPC();
+
+        deltaFramesToKey--;
+
+        return;
+      }
+    }
+
+    //keyframe, or a plain frame without MODE_DELTA
+    startTXPacketPC(Instruction.I_DATA);
+
+    for (int k = 0; k < total; k++) {
+      int b = frameByte(data, len, k);
+      if ((mode&MODE_DELTA) != 0)
+        deltaRef[k] = b;
+      txPC(b, true);
+    }
+
+    endTXPacketPC();
+
+    if ((mode&MODE_DELTA) != 0) {
+      deltaValid = true;
+      deltaFramesToKey = DELTA_KEYFRAME_INTERVAL;
+    }
+  }
+
+  /** see <tt>pollData()</tt> in the firmware **/
+  protected byte[] pollData() {
+
+    int cmdStatus = status;
+    int cmdRetries = numDynamixelRetries;
+
+    status = 0;
+    numDynamixelRetries = 0;
+
+    //the first read after a reset waits for one complete acquisition
+    while (!pollValid)
+      pollStep();
+
+    status = cmdStatus|pollStatus[pollFront];
+    numDynamixelRetries = Math.min(cmdRetries+pollRetries[pollFront], 0xff);
+
+    return pollBuffer[pollFront];
+  }
+
+  /** see <tt>acquireData()</tt> in the firmware **/
+  protected byte[] acquireData() {
+
+    int off = 0;
+
+    for (int i = 0; i < numDynamixels[F_READ]; i++) {
+      readDynamixel(i, pollBuffer[0], off);
+      off += numBytes[F_READ][i];
+    }
+
+    return pollBuffer[0];
+  }
+
+  /** see <tt>frameByte()</tt> in the firmware, uses {@link #trailer} **/
+  protected int frameByte(byte[] data, int len, int k) {
+    return (k < len) ? (data[k]&0xff) : trailer[k-len];
+  }
+
+  /** see <tt>pollStep()</tt> in the firmware **/
+  protected void pollStep() {
+
+    int back = pollFront^1;
+
+    if (pollNext < numDynamixels[F_READ]) {
+
+      readDynamixel(pollNext, pollBuffer[back], pollOffset);
+
+      pollStatus[back] |= status;
+      pollRetries[back] = Math.min(pollRetries[back]+numDynamixelRetries, 0xff);
+
+      status = 0;
+      numDynamixelRetries = 0;
+
+      pollOffset += numBytes[F_READ][pollNext];
+      pollNext++;
+    }
+
+    if (pollNext >= numDynamixels[F_READ]) {
+
+      pollFront = back;
+      pollDoneNS = fwNS;
+      pollValid = true;
+
+      pollNext = 0;
+      pollOffset = 0;
+
+      pollStatus[back^1] = 0;
+      pollRetries[back^1] = 0;
+    }
+  }
+
+  /** see <tt>pollReset()</tt> in the firmware **/
+  protected void pollReset() {
+    pollValid = false;
+    pollNext = 0;
+    pollOffset = 0;
+    pollStatus[0] = pollStatus[1] = 0;
+    pollRetries[0] = pollRetries[1] = 0;
+  }
+
+  /** see <tt>handleWriteData()</tt> in the firmware **/
+  protected void handleWriteData() {
+    writeData();
+    txStatusPC();
+  }
+
+  /** see <tt>handleWriteRead()</tt> in the firmware **/
+  protected void handleWriteRead() {
+    writeData();
+    txDataPC();
+  }
+
+  /** see <tt>writeData()</tt> in the firmware **/
+  protected void writeData() {
+
+    if (syncWrite) {
+      syncWriteData();
+      return;
+    }
+
+    for (int i = 0; i < numDynamixels[F_WRITE]; i++) {
+
+      int id = axID[F_WRITE][i];
+      int start = startAddr[F_WRITE][i];
+      int n = numBytes[F_WRITE][i];
+
+      SimulatedDynamixel d = getDynamixel(id);
+
+      for (int j = 0; j < n; j++)
+        dxParams[j] = (byte) rxPC();
+
+      rxID = rxError = 0xff;
+
+      do {
+
+        txPacketDynamixel(n+1);
+
+        if (d != null) {
+          d.step(fwNS);
+          if (writeImmediate[i])
+            d.write(start, dxParams, 0, n);
+          else
+            d.regWrite(start, dxParams, 0, n);
+        }
+
+      } while (rxPacketDynamixel(d, 0, -1) && tryDynamixelAgain(rxError));
+
+      if (rxID != id)
+        status |= S_INVALID_DYNAMIXEL_RESPONSE;
+    }
+
+    txPacketDynamixel(0);
+
+    for (SimulatedDynamixel d : bus) {
+      d.step(fwNS);
+      d.action();
+    }
+
+    endRXPacketPC();
+  }
+
+  /**
+   * <p>See <tt>syncWriteData()</tt> in the firmware.</p>
+   *
+   * <p>A Dynamixel that would have seen a checksum error or that would have
+   * timed out silently misses the write.</p>
+   **/
+  protected void syncWriteData() {
+
+    int n = numBytes[F_WRITE][0];
+    int start = startAddr[F_WRITE][0];
+
+    int k = 0;
+
+    for (int i = 0; i < numDynamixels[F_WRITE]; i++) {
+      syncWriteParams[k++] = (byte) axID[F_WRITE][i];
+      for (int j = 0; j < n; j++)
+        syncWriteParams[k++] = (byte) rxPC();
+    }
+
+    endRXPacketPC();
+
+    if ((status&S_PC_CHECKSUM_ERROR) != 0)
+      return;
+
+    txPacketDynamixel(k+2);
+
+    for (int i = 0; i < k; i += n+1) {
+
+      SimulatedDynamixel d = getDynamixel(syncWriteParams[i]&0xff);
+
+      if ((d == null) ||
+          chance(dynamixelTimeoutProbability) ||
+          chance(dynamixelChecksumErrorProbability))
+        continue;
+
+      d.step(fwNS);
+      d.write(start, syncWriteParams, i+1, n);
+    }
+  }
+
+  /** see <tt>handleStreamStart()</tt> in the firmware **/
+  protected void handleStreamStart() {
+
+    int period = rxPC();
+
+    endRXPacketPC();
+
+    if (status == 0) {
+      streamPeriodNS = period*TICK_NS;
+      nextFrameNS = fwNS; //first frame right after the status
+      streaming = true;
+    }
+
+    txStatusPC();
+  }
+
+  /** see <tt>handleStreamStop()</tt> in the firmware **/
+  protected void handleStreamStop() {
+
+    streaming = false;
+
+    endRXPacketPC();
+
+    txStatusPC();
+  }
+
+  /** see <tt>handleSetMode()</tt> in the firmware **/
+  protected void handleSetMode() {
+
+    int m = rxPC();
+
+    endRXPacketPC();
+
+    if (status == 0) {
+
+      if (((m&~MODE_ALL) != 0) ||
+          (((m&(MODE_POLL|MODE_DELTA)) != 0) &&
+           (totalNumBytes[F_READ] > MAX_BUFFERED_BYTES))) {
+        status |= S_INVALID_PC_COMMAND;
+      } else {
+        mode = m;
+        pollReset();
+        deltaValid = false; //also how the host asks for a keyframe
+      }
+    }
+
+    txStatusPC();
+  }
+
+  /**
+   * <p>See <tt>handleSetBaud()</tt> in the firmware, which waits for the
+   * verification ping inline.  Here that is done by {@link #verifyBaud} or
+   * {@link #checkBaudVerify}.</p>
+   **/
+  protected void handleSetBaud() {
+
+    int code = rxPC();
+
+    endRXPacketPC();
+
+    if ((status == 0) && (code >= CM5_BAUD_RATES.length))
+      status |= S_INVALID_PC_COMMAND;
+
+    txStatusPC();
+
+    if (status != 0)
+      return;
+
+    fwNS = Math.max(fwNS, pcTxFreeNS)+BAUD_SWITCH_DELAY_TICKS*TICK_NS;
+
+    baudWas = pcBaudRate;
+    pcBaudRate = CM5_BAUD_RATES[code];
+
+    //clear the rx buf of everything that arrived by now
+    while ((rxPos < rxCount) && (rxArrival[rxPos] <= fwNS))
+      rxPos++;
+
+    baudVerifyPending = true;
+    baudVerifyDeadlineNS = fwNS+RX_PC_TIMEOUT_TICKS*TICK_NS;
+  }
+
+  /**
+   * <p>Check the complete command at the head of the received bytes as the
+   * verification ping after {@link #handleSetBaud}, reverting the baud rate
+   * and dropping it if it isn't one.</p>
+   *
+   * @return true iff it is the verification ping, to be handled as usual
+   **/
+  protected boolean verifyBaud() {
+
+    baudVerifyPending = false;
+
+    if ((rxArrival[0] <= baudVerifyDeadlineNS) &&
+        ((rxData[0]&0xff) == Instruction.I_PING.code) &&
+        ((rxData[1]&0xff) == 255))
+      return true;
+
+    revertBaud(Math.min(rxArrival[0], baudVerifyDeadlineNS));
+
+    int n = 0;
+    while ((n < rxCount) && (rxArrival[n] <= fwNS))
+      n++;
+
+    consumeRx(Math.max(n, 1));
+
+    return false;
+  }
+
+  /** revert the baud rate if the verification ping is overdue at time t **/
+  protected void checkBaudVerify(long t) {
+    if (baudVerifyPending && (t > baudVerifyDeadlineNS)) {
+      baudVerifyPending = false;
+      revertBaud(baudVerifyDeadlineNS);
+    }
+  }
+
+  /** go back to {@link #baudWas} after a failed verification at time t **/
+  protected void revertBaud(long t) {
+    pcBaudRate = baudWas;
+    fwNS = Math.max(fwNS, t)+RX_CLEAR_DELAY_TICKS*TICK_NS;
+  }
+
+  /**
+   * <p>Do what the firmware does while waiting for a command up to the given
+   * time: emit the streamed frames due before it and poll in between.</p>
+   *
+   * <p>When polling but not streaming only the last {@link
+   * #MAX_IDLE_POLL_NS} of a long idle gap are simulated, the result is the
+   * same.</p>
+   **/
+  protected void idleUntil(long limitNS) {
+
+    boolean polling =
+      ((mode&MODE_POLL) != 0) && (numDynamixels[F_READ] > 0);
+
+    if (polling && !streaming && (limitNS-fwNS > MAX_IDLE_POLL_NS))
+      fwNS = limitNS-MAX_IDLE_POLL_NS;
+
+    for (;;) {
+      if (streaming && (nextFrameNS <= fwNS) && (nextFrameNS < limitNS))
+        txStreamFrame();
+      else if (polling && (fwNS < limitNS))
+        pollStep();
+      else if (streaming && (nextFrameNS < limitNS))
+        txStreamFrame();
+      else
+        return;
+    }
+  }
+
+  /** emit the next streamed frame, as the firmware does when idle **/
+  protected void txStreamFrame() {
+
+    if (nextFrameNS > fwNS)
+      fwNS = nextFrameNS;
+
+    long startNS = fwNS;
+
+    status = 0;
+    numDynamixelRetries = 0;
+
+    dropReply = chance(dropReplyProbability);
+    corruptReply = chance(replyChecksumErrorProbability);
+
+    txDataPC();
+
+    nextFrameNS = Math.max(startNS+streamPeriodNS, fwNS);
+
+    numFrames++;
+  }
+
+  /** see <tt>handleInvalid()</tt> in the firmware **/
+  protected void handleInvalid() {
+
+    status |= S_INVALID_PC_COMMAND;
+    txStatusPC();
+
+    fwNS += RX_CLEAR_DELAY_TICKS*TICK_NS;
+
+    //clear the rx buf of everything that arrived by now
+    while ((rxPos < rxCount) && (rxArrival[rxPos] <= fwNS))
+      rxPos++;
+  }
+
+  /** the virtual dynamixel bus **/
+  protected final List<SimulatedDynamixel> bus =
+    new ArrayList<SimulatedDynamixel>();
+
+  /** whether replies are delayed in real time **/
+  protected boolean realTime = true;
+
+  /** virtual clock when not {@link #realTime} **/
+  protected long simNS = 0;
+
+  /** firmware clock, time at which the firmware finished its last step **/
+  protected long fwNS = 0;
+
+  /** time at which the host to CM-5 direction of the link is free **/
+  protected long hostTxFreeNS = 0;
+
+  /** time at which the CM-5 to host direction of the link is free **/
+  protected long pcTxFreeNS = 0;
+
+  /** baud rate of the firmware side of the PC link **/
+  protected int pcBaudRate;
+
+  /** baud rate of the host side of the PC link **/
+  protected int hostBaudRate;
+
+  /** whether {@link #close}d **/
+  protected boolean closed = false;
+
+  /** bytes received from the host **/
+  protected byte[] rxData = new byte[256];
+
+  /** arrival times at the CM-5 of {@link #rxData} **/
+  protected long[] rxArrival = new long[256];
+
+  /** number of valid bytes in {@link #rxData} **/
+  protected int rxCount = 0;
+
+  /** read position in {@link #rxData} of the current command **/
+  protected int rxPos = 0;
+
+  /** circular queue of bytes sent to the host **/
+  protected byte[] txData = new byte[256];
+
+  /** arrival times at the host of {@link #txData} **/
+  protected long[] txArrival = new long[256];
+
+  /** index of first valid byte in {@link #txData} **/
+  protected int txHead = 0;
+
+  /** number of valid bytes in {@link #txData} **/
+  protected int txCount = 0;
+
+  /** PC rx checksum in progress **/
+  protected int checksumRxPC = 0;
+
+  /** PC tx checksum in progress **/
+  protected int checksumTxPC = 0;
+
+  /** CM-5 status, bitmask of S_* flags **/
+  protected int status = 0;
+
+  /** dynamixel retries during the current command **/
+  protected int numDynamixelRetries = 0;
+
+  /** raw ADC readings **/
+  protected final int[] adcValue = new int[3];
+
+  /** num dynamixels in current {@link BRBrain#F_READ} and F_WRITE **/
+  protected final int[] numDynamixels = new int[] {0, 0};
+
+  /** total num bytes in current {@link BRBrain#F_READ} and F_WRITE **/
+  protected final int[] totalNumBytes = new int[] {0, 0};
+
+  /** num dynamixels in each format slot **/
+  protected final int[][] slotNumDynamixels = new int[2][NUM_FORMAT_SLOTS];
+
+  /** total num bytes in each format slot **/
+  protected final int[][] slotTotalNumBytes = new int[2][NUM_FORMAT_SLOTS];
+
+  /** dynamixel ids in each format slot **/
+  protected final int[][][] slotAxID =
+    new int[2][NUM_FORMAT_SLOTS][MAX_FORMAT_BLOCKS];
+
+  /** start addresses in each format slot **/
+  protected final int[][][] slotStartAddr =
+    new int[2][NUM_FORMAT_SLOTS][MAX_FORMAT_BLOCKS];
+
+  /** num bytes in each format slot **/
+  protected final int[][][] slotNumBytes =
+    new int[2][NUM_FORMAT_SLOTS][MAX_FORMAT_BLOCKS];
+
+  /** selected slots, see {@link #handleSelectSlot} **/
+  protected final int[] formatSlot = new int[] {0, 0};
+
+  /** dynamixel ids in current formats, rows of {@link #slotAxID} **/
+  protected final int[][] axID =
+    new int[][] { slotAxID[F_READ][0], slotAxID[F_WRITE][0] };
+
+  /** start addresses in current formats, rows of {@link #slotStartAddr} **/
+  protected final int[][] startAddr =
+    new int[][] { slotStartAddr[F_READ][0], slotStartAddr[F_WRITE][0] };
+
+  /** num bytes in current formats, rows of {@link #slotNumBytes} **/
+  protected final int[][] numBytes =
+    new int[][] { slotNumBytes[F_READ][0], slotNumBytes[F_WRITE][0] };
+
+  /** buffer for params to/from dynamixel **/
+  protected final byte[] dxParams = new byte[64];
+
+  /** id of the most recent dynamixel response **/
+  protected int rxID;
+
+  /** num params of the most recent dynamixel response **/
+  protected int rxN;
+
+  /** error byte of the most recent dynamixel response **/
+  protected int rxError;
+
+  /** whether to drop the reply to the current command **/
+  protected boolean dropReply;
+
+  /** whether to corrupt the reply checksum of the current command **/
+  protected boolean corruptReply;
+
+  /** fault injection rng **/
+  protected final Random random = new Random();
+
+  /** see {@link #setDropReplyProbability} **/
+  protected double dropReplyProbability = 0.0;
+
+  /** see {@link #setReplyChecksumErrorProbability} **/
+  protected double replyChecksumErrorProbability = 0.0;
+
+  /** see {@link #setDynamixelTimeoutProbability} **/
+  protected double dynamixelTimeoutProbability = 0.0;
+
+  /** see {@link #setDynamixelChecksumErrorProbability} **/
+  protected double dynamixelChecksumErrorProbability = 0.0;
+
+  /** see {@link #setInvalidResponseProbability} **/
+  protected double invalidResponseProbability = 0.0;
+
+  /** see {@link #getNumCommands} **/
+  protected long numCommands = 0;
+
+  /** whether the write format qualifies for SYNC_WRITE **/
+  protected boolean syncWrite = false;
+
+  /** write format blocks sent with WRITE_DATA, see {@link #formatChanged} **/
+  protected final boolean[] writeImmediate = new boolean[MAX_FORMAT_BLOCKS];
+
+  /** model numbers of up to 8 ids in {@link #handleScan} **/
+  protected final byte[] scanModel = new byte[8*MODEL_NUMBER_BYTES];
+
+  /** buffer for the ids and data of a SYNC_WRITE **/
+  protected final byte[] syncWriteParams = new byte[MAX_SYNC_WRITE_BYTES];
+
+  /** whether streaming, see {@link #handleStreamStart} **/
+  protected boolean streaming = false;
+
+  /** stream period **/
+  protected long streamPeriodNS = 0;
+
+  /** firmware time at which the next streamed frame is due **/
+  protected long nextFrameNS = 0;
+
+  /** see {@link #getNumFrames} **/
+  protected long numFrames = 0;
+
+  /** read format data for one dynamixel, see {@link #txDataPC} **/
+  protected final byte[] readData = new byte[NUM_REG_BYTES];
+
+  /** bitmask of MODE_* flags, see {@link #handleSetMode} **/
+  protected int mode = 0;
+
+  /** double buffered background acquisition of the read format **/
+  protected final byte[][] pollBuffer = new byte[2][MAX_BUFFERED_BYTES];
+
+  /** accumulated status of the acquisition into each poll buffer **/
+  protected final int[] pollStatus = new int[2];
+
+  /** accumulated retries of the acquisition into each poll buffer **/
+  protected final int[] pollRetries = new int[2];
+
+  /** index of the most recent complete poll buffer **/
+  protected int pollFront = 0;
+
+  /** whether {@link #pollFront} holds a complete acquisition **/
+  protected boolean pollValid = false;
+
+  /** next dynamixel to acquire into the back poll buffer **/
+  protected int pollNext = 0;
+
+  /** byte offset of {@link #pollNext} in the back poll buffer **/
+  protected int pollOffset = 0;
+
+  /** firmware time at which {@link #pollFront} was completed **/
+  protected long pollDoneNS = 0;
+
+  /** trailing bytes of the frame being sent, see {@link #frameByte} **/
+  protected final int[] trailer = new int[MAX_FRAME_TRAILER];
+
+  /** the last frame sent with MODE_DELTA, valid iff {@link #deltaValid} **/
+  protected final int[] deltaRef =
+    new int[MAX_BUFFERED_BYTES+MAX_FRAME_TRAILER];
+
+  /** whether {@link #deltaRef} is valid **/
+  protected boolean deltaValid = false;
+
+  /** bitmap of the frame bytes that differ from {@link #deltaRef} **/
+  protected final byte[] deltaBitmap =
+    new byte[(MAX_BUFFERED_BYTES+MAX_FRAME_TRAILER+7)/8];
+
+  /** delta frames still allowed before the next keyframe **/
+  protected int deltaFramesToKey = 0;
+
+  /** sequence number of the last frame sent with MODE_DELTA **/
+  protected int frameSeq = 0;
+
+  /** see {@link #setMaxBaudRate} **/
+  protected int maxBaudRate = Integer.MAX_VALUE;
+
+  /** whether the verification ping after {@link #handleSetBaud} is due **/
+  protected boolean baudVerifyPending = false;
+
+  /** firmware time by which the verification ping must arrive **/
+  protected long baudVerifyDeadlineNS = 0;
+
+  /** the baud rate to revert to if verification fails **/
+  protected int baudWas;
+
+  /** see {@link #getBusyBusNS} **/
+  protected long busyBusNS = 0;
+}
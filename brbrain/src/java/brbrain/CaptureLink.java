@@ -0,0 +1,237 @@
+/**
+ * <p>{@link CM5Link} recording a session to a memory-mapped file.</p>
+ *
+ * <p>This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.</p>
+ *
+ * <p>This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.</p>
+ *
+ * <p>You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 59
+ * Temple Place - Suite 330, Boston, MA 02111-1307, USA.</p>
+ **/
+
+package brbrain;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * <p>{@link CM5Link} recording a session to a memory-mapped file.</p>
+ *
+ * <p>A capture link wraps another link and passes everything through to it,
+ * appending every chunk of bytes sent or received to a file, which can later
+ * be fed back into a {@link BRBrain} with a {@link ReplayLink}.  The file is
+ * written through a memory mapping, which is extended by {@link
+ * #DEF_MAP_BYTES} at a time as needed, so recording costs little more than
+ * copying the bytes.  The file is in the following form:<pre>
+ *
+ * int {@link #MAGIC}
+ * int {@link #VERSION}
+ * record 0
+ * ...
+ * record (n-1)
+ * [zeros]
+ *
+ * </pre>Where each record is a long nanotime relative to the start of the
+ * capture, a kind byte ({@link #SEND} or {@link #RECV}), an int data length,
+ * and the data bytes.  Multi-byte values are big endian.  A kind byte of 0
+ * marks the end of the capture, and any zeros after it are truncated by
+ * {@link #close} where the platform allows.</p>
+ *
+ * <p>Bytes discarded by {@link #drain} are recorded as received, since they
+ * were.</p>
+ **/
+public class CaptureLink implements CM5Link {
+
+  /** capture file magic, "BRBC" **/
+  public static final int MAGIC = 0x42524243;
+
+  /** capture file version **/
+  public static final int VERSION = 1;
+
+  /** capture file header bytes **/
+  public static final int HEADER_BYTES = 8;
+
+  /** record header bytes **/
+  public static final int RECORD_HEADER_BYTES = 13;
+
+  /** record kind: bytes sent to the CM-5 **/
+  public static final int SEND = 1;
+
+  /** record kind: bytes received from the CM-5 **/
+  public static final int RECV = 2;
+
+  /** default size of each mapping of the capture file **/
+  public static final int DEF_MAP_BYTES = 1<<22;
+
+  /** the captured link **/
+  protected final CM5Link link;
+
+  /** the capture file **/
+  protected final RandomAccessFile file;
+
+  /** size of each mapping **/
+  protected final int mapBytes;
+
+  /** the current mapping **/
+  protected MappedByteBuffer map;
+
+  /** file offset of {@link #map} **/
+  protected long mapStart;
+
+  /** nanotime of the start of the capture **/
+  protected final long startNS;
+
+  /** for {@link #drain} **/
+  protected final byte[] drainBuffer = new byte[256];
+
+  /** whether {@link #close}d **/
+  protected boolean closed = false;
+
+  /**
+   * <p>Capture a session on <i>link</i> to <i>file</i>, which is created or
+   * truncated.</p>
+   *
+   * @param link the link to capture
+   * @param file the capture file
+   * @param mapBytes the size of each mapping of the capture file
+   **/
+  public CaptureLink(CM5Link link, File file, int mapBytes)
+    throws IOException {
+
+    if (link == null)
+      throw new IllegalArgumentException("null link");
+
+    if (mapBytes < HEADER_BYTES+RECORD_HEADER_BYTES)
+      throw new IllegalArgumentException("invalid mapBytes "+mapBytes);
+
+    this.link = link;
+    this.mapBytes = mapBytes;
+
+    this.file = new RandomAccessFile(file, "rw");
+    this.file.setLength(0);
+
+    mapStart = 0;
+    map = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                     mapStart, mapBytes);
+
+    map.putInt(MAGIC);
+    map.putInt(VERSION);
+
+    startNS = System.nanoTime();
+  }
+
+  /** covers {@link #CaptureLink(CM5Link, File, int)}, default map size **/
+  public CaptureLink(CM5Link link, File file) throws IOException {
+    this(link, file, DEF_MAP_BYTES);
+  }
+
+  /** get the captured link **/
+  public CM5Link getLink() {
+    return link;
+  }
+
+  /** get the number of bytes captured so far, including the header **/
+  public synchronized long getLength() {
+    return mapStart+map.position();
+  }
+
+  /** append a record **/
+  protected synchronized void record(int kind, byte[] buf, int off, int len)
+    throws IOException {
+
+    if (closed)
+      throw new IOException("capture closed");
+
+    long ns = System.nanoTime()-startNS;
+
+    int n = RECORD_HEADER_BYTES+len;
+
+    //keep room for the end marker
+    if (map.remaining() < n+1) {
+      mapStart += map.position();
+      map.force();
+      map = file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                  mapStart, Math.max(mapBytes, n+1));
+    }
+
+    map.putLong(ns);
+    map.put((byte) kind);
+    map.putInt(len);
+    map.put(buf, off, len);
+  }
+
+  public void send(byte[] buf, int off, int len) throws IOException {
+    record(SEND, buf, off, len);
+    link.send(buf, off, len);
+  }
+
+  public int recv(byte[] buf, int off, int len, long timeoutNS)
+    throws IOException, InterruptedException {
+
+    int n = link.recv(buf, off, len, timeoutNS);
+
+    if (n > 0)
+      record(RECV, buf, off, n);
+
+    return n;
+  }
+
+  public int available() throws IOException {
+    return link.available();
+  }
+
+  public synchronized void drain() throws IOException {
+    try {
+      for (int n = link.available(); n > 0; n = link.available()) {
+        n = link.recv(drainBuffer, 0, Math.min(n, drainBuffer.length), 0);
+        if (n <= 0)
+          break;
+        record(RECV, drainBuffer, 0, n);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public void setBaudRate(int baudRate) throws IOException {
+    link.setBaudRate(baudRate);
+  }
+
+  public int getBaudRate() {
+    return link.getBaudRate();
+  }
+
+  /** close the captured link and finish the capture file **/
+  public void close() throws IOException {
+
+    synchronized (this) {
+
+      if (closed)
+        return;
+
+      closed = true;
+
+      long length = mapStart+map.position();
+
+      map.force();
+
+      try {
+        file.setLength(length+1); //keep the end marker
+      } catch (IOException e) {
+        //e.g. not allowed while mapped on some platforms, zeros are harmless
+      }
+
+      file.close();
+    }
+
+    link.close();
+  }
+}
@@ -0,0 +1,724 @@
+/**
+ * <p>Reads frame logs written by a {@link CompactFrameWriter}.</p>
+ *
+ * <p>This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.</p>
+ *
+ * <p>This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.</p>
+ *
+ * <p>You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 59
+ * Temple Place - Suite 330, Boston, MA 02111-1307, USA.</p>
+ **/
+
+package brbrain;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * <p>Reads frame logs written by a {@link CompactFrameWriter}.</p>
+ *
+ * <p>The log is read a block at a time, decoding each selected column into
+ * an array of up to {@link CompactFrameWriter#DEF_BLOCK_ROWS} values, see
+ * {@link #nextBlock(boolean[])}.  Columns which are not selected are skipped
+ * without decoding.  The columns may change from one block to the next when
+ * the log contains several schemas, see {@link #getSchemaNumber}.</p>
+ *
+ * <p>Logs read from a file can also {@link #seekRow} and {@link #seekTime},
+ * using the index records, or a scan of the block records if the log was not
+ * finished.</p>
+ *
+ * <p>{@link #main} dumps logs as text.</p>
+ **/
+public class CompactFrameReader {
+
+  /** the log file, null if reading a stream **/
+  protected final File file;
+
+  /** the log file stream, null if reading a stream **/
+  protected final FileInputStream fileIn;
+
+  /** the source **/
+  protected InputStream in;
+
+  /** offset of the next record **/
+  protected long offset;
+
+  /** the current record body **/
+  protected byte[] body = new byte[256];
+
+  /** length of the current record body **/
+  protected int bodyLen;
+
+  /** decode position in the current record body **/
+  protected int pos;
+
+  /** whether the end of the log was reached **/
+  protected boolean ended = false;
+
+  /** see {@link #getSchemaNumber} **/
+  protected int schemaNumber = 0;
+
+  /** see {@link #getColumnName} **/
+  protected String[] name = new String[0];
+
+  /** see {@link #isLongColumn} **/
+  protected boolean[] isLong = new boolean[0];
+
+  /** see {@link #getColumnID} **/
+  protected int[] id = new int[0];
+
+  /** see {@link #getColumnRegister} **/
+  protected AXRegister[] reg = new AXRegister[0];
+
+  /** see {@link #getStartTimeMS} **/
+  protected long startTimeMS;
+
+  /** see {@link #getStartNS} **/
+  protected long startNS;
+
+  /** see {@link #getValues} **/
+  protected long[][] values = new long[0][];
+
+  /** see {@link #isDecoded} **/
+  protected boolean[] decoded = new boolean[0];
+
+  /** see {@link #getBlockRows} **/
+  protected int blockRows = 0;
+
+  /** see {@link #getBlockFirstRow} **/
+  protected long blockFirstRow = 0;
+
+  /** first row of the next block **/
+  protected long nextRow = 0;
+
+  /** index entries, 4 per block as written, null until needed **/
+  protected long[] index;
+
+  /** number of blocks in {@link #index} **/
+  protected int indexBlocks;
+
+  /** read a log from a stream, which is not seekable **/
+  public CompactFrameReader(InputStream in) throws IOException {
+    this.file = null;
+    this.fileIn = null;
+    this.in = in;
+    readHeader();
+  }
+
+  /** read a log from a file **/
+  public CompactFrameReader(File file) throws IOException {
+    this.file = file;
+    this.fileIn = new FileInputStream(file);
+    this.in = new BufferedInputStream(fileIn, 1<<16);
+    readHeader();
+  }
+
+  /** read and check the magic and version **/
+  protected void readHeader() throws IOException {
+
+    DataInputStream d = new DataInputStream(in);
+
+    if (d.readInt() != CompactFrameWriter.MAGIC)
+      throw new IOException("not a compact frame log");
+
+    int version = d.readInt();
+    if (version != CompactFrameWriter.VERSION)
+      throw new IOException("unsupported compact frame log version "+version);
+
+    offset = 8;
+  }
+
+  /**
+   * <p>Read the next record into {@link #body}, returning its tag, or -1 at
+   * the end of the stream.</p>
+   **/
+  protected int readRecord() throws IOException {
+
+    int tag = in.read();
+
+    if (tag < 0)
+      return -1;
+
+    long len = 0;
+    int n = 1;
+
+    for (int shift = 0; ; shift += 7) {
+
+      int b = in.read();
+      n++;
+
+      if ((b < 0) || (shift > 28))
+        throw new IOException("invalid record at "+offset);
+
+      len |= ((long) (b&0x7f))<<shift;
+
+      if ((b&0x80) == 0)
+        break;
+    }
+
+    if (len > Integer.MAX_VALUE)
+      throw new IOException("invalid record at "+offset);
+
+    if (body.length < len)
+      body = new byte[(int) Math.max(len, 2L*body.length)];
+
+    bodyLen = (int) len;
+
+    for (int off = 0; off < bodyLen; ) {
+      int m = in.read(body, off, bodyLen-off);
+      if (m < 0)
+        throw new EOFException("truncated record at "+offset);
+      off += m;
+    }
+
+    pos = 0;
+    offset += n+bodyLen;
+
+    return tag;
+  }
+
+  /** decode an unsigned varint from {@link #body} **/
+  protected long getVarint() throws IOException {
+
+    long v = 0;
+
+    for (int shift = 0; ; shift += 7) {
+
+      if ((pos >= bodyLen) || (shift > 63))
+        throw new IOException("invalid varint");
+
+      int b = body[pos++];
+
+      v |= ((long) (b&0x7f))<<shift;
+
+      if ((b&0x80) == 0)
+        return v;
+    }
+  }
+
+  /** decode a zig-zag varint from {@link #body} **/
+  protected long getSigned() throws IOException {
+    return CompactFrameWriter.unZigZag(getVarint());
+  }
+
+  /** parse the schema in {@link #body} **/
+  protected void parseSchema() throws IOException {
+
+    List<String> names = new ArrayList<String>();
+    List<Boolean> longs = new ArrayList<Boolean>();
+
+    BufferedReader r = new BufferedReader(
+      new InputStreamReader(new ByteArrayInputStream(body, 0, bodyLen),
+                            "UTF-8"));
+
+    try {
+      for (String line = r.readLine(); line != null; line = r.readLine()) {
+
+        String[] f = line.trim().split("\\s+");
+
+        if (f[0].equals("startTimeMS")) {
+          startTimeMS = Long.parseLong(f[1]);
+        } else if (f[0].equals("startNS")) {
+          startNS = Long.parseLong(f[1]);
+        } else if (f[0].equals("column")) {
+          names.add(f[1]);
+          longs.add(f[2].equals("long"));
+        }
+      }
+    } catch (RuntimeException e) {
+      throw new IOException("invalid compact frame log schema: "+e);
+    }
+
+    int n = names.size();
+
+    name = names.toArray(new String[n]);
+    isLong = new boolean[n];
+    id = new int[n];
+    reg = new AXRegister[n];
+
+    for (int c = 0; c < n; c++) {
+      isLong[c] = longs.get(c);
+      id[c] = FrameRecording.parseColumnID(name[c]);
+      reg[c] = FrameRecording.parseColumnRegister(name[c]);
+    }
+
+    if (values.length != n) {
+      values = new long[n][];
+      for (int c = 0; c < n; c++)
+        values[c] = new long[0];
+      decoded = new boolean[n];
+    }
+
+    blockRows = 0;
+    schemaNumber++;
+  }
+
+  /** covers {@link #nextBlock(boolean[])}, decoding all columns **/
+  public boolean nextBlock() throws IOException {
+    return nextBlock(null);
+  }
+
+  /**
+   * <p>Read the next block, returning false at the end of the log.</p>
+   *
+   * @param columns which columns of the current schema to decode, all if
+   * null, columns beyond its length are not decoded
+   **/
+  public boolean nextBlock(boolean[] columns) throws IOException {
+
+    while (!ended) {
+
+      switch (readRecord()) {
+
+      case CompactFrameWriter.T_SCHEMA:
+        parseSchema();
+        break;
+
+      case CompactFrameWriter.T_BLOCK:
+        decodeBlock(columns);
+        return true;
+
+      case CompactFrameWriter.T_END: case -1:
+        ended = true;
+        break;
+
+      default: //index or unknown
+      }
+    }
+
+    blockRows = 0;
+
+    return false;
+  }
+
+  /**
+   * <p>Decode the current block again with a different selection of
+   * columns, e.g. when {@link #getSchemaNumber} changed with it.</p>
+   **/
+  public void redecodeBlock(boolean[] columns) throws IOException {
+
+    if (blockRows == 0)
+      return;
+
+    pos = 0;
+    nextRow = blockFirstRow;
+
+    decodeBlock(columns);
+  }
+
+  /** decode the block in {@link #body} **/
+  protected void decodeBlock(boolean[] columns) throws IOException {
+
+    long n = getVarint();
+
+    if (n > Integer.MAX_VALUE)
+      throw new IOException("invalid block");
+
+    blockRows = (int) n;
+    blockFirstRow = nextRow;
+    nextRow += blockRows;
+
+    for (int c = 0; c < name.length; c++) {
+
+      int mode = body[pos++];
+      int len = (int) getVarint();
+      int end = pos+len;
+
+      decoded[c] = (columns == null) || ((c < columns.length) && columns[c]);
+
+      if (!decoded[c]) {
+        pos = end;
+        continue;
+      }
+
+      if (values[c].length < blockRows)
+        values[c] = new long[Math.max(blockRows, 2*values[c].length)];
+
+      decode(mode, values[c], blockRows);
+
+      if (pos != end)
+        throw new IOException("invalid column "+name[c]);
+    }
+  }
+
+  /** decode <i>n</i> values in the given mode from {@link #body} **/
+  protected void decode(int mode, long[] v, int n) throws IOException {
+
+    switch (mode) {
+
+    case CompactFrameWriter.M_DELTA: {
+      long prev = 0;
+      for (int i = 0; i < n; i++)
+        v[i] = prev += getSigned();
+      break;
+    }
+
+    case CompactFrameWriter.M_DELTA2: {
+      long prev = 0, delta = 0;
+      for (int i = 0; i < n; i++) {
+        long d = getSigned();
+        delta = (i < 2) ? d : delta+d;
+        v[i] = prev += delta;
+      }
+      break;
+    }
+
+    case CompactFrameWriter.M_RUN: {
+      long value = 0;
+      for (int i = 0; i < n; ) {
+        value += getSigned();
+        long m = getVarint();
+        if ((m < 1) || (m > n-i))
+          throw new IOException("invalid run");
+        for (int end = i+(int) m; i < end; i++)
+          v[i] = value;
+      }
+      break;
+    }
+
+    default:
+      throw new IOException("unknown column mode "+mode);
+    }
+  }
+
+  /** incremented each time the columns are (re)defined **/
+  public int getSchemaNumber() {
+    return schemaNumber;
+  }
+
+  /** get the wall clock time corresponding to {@link #getStartNS} **/
+  public long getStartTimeMS() {
+    return startTimeMS;
+  }
+
+  /** get the nanotime corresponding to {@link #getStartTimeMS} **/
+  public long getStartNS() {
+    return startNS;
+  }
+
+  /** convert a {@link FrameRecorder#TIME_NS} value to wall clock time **/
+  public long toTimeMS(long timeNS) {
+    return startTimeMS+(timeNS-startNS)/1000000;
+  }
+
+  /** get the number of columns **/
+  public int getNumColumns() {
+    return name.length;
+  }
+
+  /** get the name of a column **/
+  public String getColumnName(int column) {
+    return name[column];
+  }
+
+  /** check whether a column holds longs rather than ints **/
+  public boolean isLongColumn(int column) {
+    return isLong[column];
+  }
+
+  /** get the dynamixel id of a register column, or -1 **/
+  public int getColumnID(int column) {
+    return id[column];
+  }
+
+  /** get the register of a register column, or null **/
+  public AXRegister getColumnRegister(int column) {
+    return reg[column];
+  }
+
+  /** get the index of a named column, or -1 if there is none **/
+  public int indexOf(String columnName) {
+    for (int c = 0; c < name.length; c++)
+      if (name[c].equals(columnName))
+        return c;
+    return -1;
+  }
+
+  /** get the index of a register column, or -1 if there is none **/
+  public int indexOf(int axID, AXRegister register) {
+    for (int c = 0; c < name.length; c++)
+      if ((id[c] == axID) && (reg[c] == register))
+        return c;
+    return -1;
+  }
+
+  /** get the number of rows in the current block **/
+  public int getBlockRows() {
+    return blockRows;
+  }
+
+  /** get the row number of the first row in the current block **/
+  public long getBlockFirstRow() {
+    return blockFirstRow;
+  }
+
+  /** check whether a column of the current block was decoded **/
+  public boolean isDecoded(int column) {
+    return decoded[column];
+  }
+
+  /**
+   * <p>Get the decoded values of a column of the current block, the first
+   * {@link #getBlockRows} of which are valid until the next block.</p>
+   **/
+  public long[] getValues(int column) {
+
+    if (!decoded[column])
+      throw new IllegalStateException("column "+name[column]+" not decoded");
+
+    return values[column];
+  }
+
+  /**
+   * <p>Position the log so that the next block read contains <i>row</i>,
+   * or is the first if <i>row</i> is before it, returning the first row of
+   * that block, or -1 if <i>row</i> is past the end.</p>
+   **/
+  public long seekRow(long row) throws IOException {
+    return seek(0, row);
+  }
+
+  /**
+   * <p>Position the log so that the next block read is the last whose first
+   * {@link FrameRecorder#TIME_NS} is at most <i>timeNS</i>, or the first if
+   * there is none, returning its first row, or -1 if the log is empty.  Only
+   * meaningful for logs with a time column first.</p>
+   **/
+  public long seekTime(long timeNS) throws IOException {
+    return seek(3, timeNS);
+  }
+
+  /** seek to the last block with index entry <i>field</i> at most <i>v</i> **/
+  protected long seek(int field, long v) throws IOException {
+
+    loadIndex();
+
+    if (indexBlocks == 0)
+      return -1;
+
+    //last block with value <= v
+    int lo = 0, hi = indexBlocks-1;
+    while (lo < hi) {
+      int mid = (lo+hi+1)>>>1;
+      if (index[4*mid+field] <= v)
+        lo = mid;
+      else
+        hi = mid-1;
+    }
+
+    int i = 4*lo;
+
+    if ((field == 0) && (lo == indexBlocks-1)) {
+      //check the row is in the last block
+      position(index[i+1]);
+      if (readRecord() != CompactFrameWriter.T_BLOCK)
+        throw new IOException("invalid index");
+      if (v >= index[i]+getVarint())
+        return -1;
+    }
+
+    position(index[i+2]);
+    if (readRecord() != CompactFrameWriter.T_SCHEMA)
+      throw new IOException("invalid index");
+    parseSchema();
+
+    position(index[i+1]);
+    nextRow = index[i];
+
+    return nextRow;
+  }
+
+  /** continue reading at the given offset **/
+  protected void position(long off) throws IOException {
+    fileIn.getChannel().position(off);
+    in = new BufferedInputStream(fileIn, 1<<16);
+    offset = off;
+    ended = false;
+  }
+
+  /** add an entry to {@link #index} **/
+  protected void addIndexEntry(long row, long off, long schemaOff, long v0) {
+
+    if (index.length < 4*(indexBlocks+1))
+      index = Arrays.copyOf(index, Math.max(64, 2*index.length));
+
+    int i = 4*indexBlocks++;
+
+    index[i++] = row;
+    index[i++] = off;
+    index[i++] = schemaOff;
+    index[i++] = v0;
+  }
+
+  /**
+   * <p>Load the {@link #index} from the index records, or by scanning the
+   * block records if the log was not finished.</p>
+   **/
+  protected void loadIndex() throws IOException {
+
+    if (file == null)
+      throw new IllegalStateException("not seekable");
+
+    if (index != null)
+      return;
+
+    index = new long[0];
+    indexBlocks = 0;
+
+    long fileLength = file.length();
+
+    long lastIndex = -1;
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      if (fileLength >= 8+12) {
+        raf.seek(fileLength-12);
+        long off = raf.readLong();
+        if (raf.readInt() == CompactFrameWriter.MAGIC)
+          lastIndex = off;
+        else
+          lastIndex = -2;
+      } else {
+        lastIndex = -2;
+      }
+    } finally {
+      raf.close();
+    }
+
+    if (lastIndex == -1) //finished but empty
+      return;
+
+    if (lastIndex >= 0) {
+
+      //walk the index chain back to front
+      List<long[]> chain = new ArrayList<long[]>();
+
+      for (long off = lastIndex; ; ) {
+
+        position(off);
+
+        if (readRecord() != CompactFrameWriter.T_INDEX)
+          throw new IOException("invalid index at "+off);
+
+        long prev = getVarint();
+        int n = (int) getVarint();
+
+        long[] entries = new long[4*n];
+        for (int i = 0; i < 4*n; ) {
+          entries[i++] = getVarint();
+          entries[i++] = getVarint();
+          entries[i++] = getVarint();
+          entries[i++] = getSigned();
+        }
+
+        chain.add(entries);
+
+        if (prev == 0)
+          break;
+
+        off = prev;
+      }
+
+      for (int k = chain.size()-1; k >= 0; k--) {
+        long[] entries = chain.get(k);
+        for (int i = 0; i < entries.length; i += 4)
+          addIndexEntry(entries[i], entries[i+1], entries[i+2],
+                        entries[i+3]);
+      }
+
+      return;
+    }
+
+    //unfinished, scan
+    position(8);
+
+    long row = 0, schemaOff = -1;
+
+    for (;;) {
+
+      long off = offset;
+
+      int tag;
+      try {
+        tag = readRecord();
+      } catch (EOFException e) {
+        break; //truncated last record
+      }
+
+      if ((tag < 0) || (tag == CompactFrameWriter.T_END))
+        break;
+
+      if (tag == CompactFrameWriter.T_SCHEMA) {
+        schemaOff = off;
+      } else if (tag == CompactFrameWriter.T_BLOCK) {
+
+        int n = (int) getVarint();
+
+        //every mode starts with the first value relative to 0
+        long v0 = 0;
+        if (pos < bodyLen) {
+          pos++;
+          getVarint();
+          v0 = getSigned();
+        }
+
+        addIndexEntry(row, off, schemaOff, v0);
+
+        row += n;
+      }
+    }
+  }
+
+  /** close the log **/
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /** dump the rows as tab separated text with lines of column names **/
+  public void dump(PrintStream out) throws IOException {
+
+    int schema = -1;
+
+    while (nextBlock()) {
+
+      if (schema != schemaNumber) {
+        schema = schemaNumber;
+        for (int c = 0; c < name.length; c++)
+          out.print(((c > 0) ? "\t" : "")+name[c]);
+        out.println();
+      }
+
+      for (int i = 0; i < blockRows; i++) {
+        for (int c = 0; c < name.length; c++)
+          out.print(((c > 0) ? "\t" : "")+values[c][i]);
+        out.println();
+      }
+    }
+  }
+
+  /** dump the compact logs given as arguments to stdout **/
+  public static void main(String[] argv) throws IOException {
+
+    if (argv.length == 0) {
+      System.err.println("usage: CompactFrameReader log [log...]");
+      System.exit(1);
+    }
+
+    for (String arg : argv) {
+      System.out.println("# "+arg);
+      CompactFrameReader r = new CompactFrameReader(new File(arg));
+      try {
+        r.dump(System.out);
+      } finally {
+        r.close();
+      }
+    }
+  }
+}
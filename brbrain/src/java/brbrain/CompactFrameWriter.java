@@ -0,0 +1,721 @@
+/**
+ * <p>Writes frame logs in a compact, seekable, streaming format.</p>
+ *
+ * <p>This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.</p>
+ *
+ * <p>This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.</p>
+ *
+ * <p>You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 59
+ * Temple Place - Suite 330, Boston, MA 02111-1307, USA.</p>
+ **/
+
+package brbrain;
+
+import java.io.*;
+
+/**
+ * <p>Writes frame logs in a compact, seekable, streaming format.</p>
+ *
+ * <p>Rows of columns, like those of a {@link FrameRecording}, are buffered
+ * into blocks of up to {@link #DEF_BLOCK_ROWS} rows.  Within a block each
+ * column is encoded separately with whichever of the following takes the
+ * fewest bytes, all as <a
+ * href="https://developers.google.com/protocol-buffers/docs/encoding">zig-zag
+ * varints</a>:<ul>
+ *
+ * <li>{@link #M_DELTA}: the differences of consecutive values, suiting
+ * registers which change a little each frame, like positions</li>
+ *
+ * <li>{@link #M_DELTA2}: the differences of consecutive differences, suiting
+ * regularly spaced values, like frame times</li>
+ *
+ * <li>{@link #M_RUN}: (difference from the previous run value, run length)
+ * pairs, suiting registers which rarely change, like temperatures and
+ * voltages</li>
+ *
+ * </ul>Every block starts from 0, so it can be decoded on its own.  Every
+ * {@link #DEF_INDEX_INTERVAL} blocks an index record lists their first rows,
+ * offsets and first values of column 0, which is the frame time in
+ * recordings.  The file is in the following form:<pre>
+ *
+ * int {@link #MAGIC}
+ * int {@link #VERSION}
+ * record 0
+ * ...
+ * record (n-1)
+ * {@link #T_END} record
+ * long offset of the last {@link #T_INDEX} record, or -1
+ * int {@link #MAGIC}
+ *
+ * </pre>Where each record is a tag byte, a varint body length and the body,
+ * and the bodies are:<ul>
+ *
+ * <li>{@link #T_SCHEMA}: UTF-8 text in the same form as that of a {@link
+ * FrameRecorder} segment, except that columns have no offset, defining the
+ * columns of the following blocks</li>
+ *
+ * <li>{@link #T_BLOCK}: varint rows, then for each column a mode byte, a
+ * varint length and the encoded values</li>
+ *
+ * <li>{@link #T_INDEX}: varint offset of the previous index, or 0 if none,
+ * varint entries, then for each block since the previous index its varint
+ * first row, varint offset, varint offset of its schema, and zig-zag varint
+ * first value of column 0</li>
+ *
+ * </ul>Multi-byte values outside varints are big endian.  Read logs with a
+ * {@link CompactFrameReader}.</p>
+ **/
+public class CompactFrameWriter {
+
+  /** compact log magic, "BRBZ" **/
+  public static final int MAGIC = 0x4252425a;
+
+  /** compact log version **/
+  public static final int VERSION = 1;
+
+  /** record tag: column definitions **/
+  public static final int T_SCHEMA = 1;
+
+  /** record tag: block of rows **/
+  public static final int T_BLOCK = 2;
+
+  /** record tag: block index **/
+  public static final int T_INDEX = 3;
+
+  /** record tag: end of log **/
+  public static final int T_END = 4;
+
+  /** column mode: zig-zag varint differences **/
+  public static final int M_DELTA = 0;
+
+  /** column mode: zig-zag varint differences of differences **/
+  public static final int M_DELTA2 = 1;
+
+  /** column mode: zig-zag varint run value differences and run lengths **/
+  public static final int M_RUN = 2;
+
+  /** default maximum rows per block **/
+  public static final int DEF_BLOCK_ROWS = 1024;
+
+  /** default blocks per index **/
+  public static final int DEF_INDEX_INTERVAL = 64;
+
+  /** the destination **/
+  protected final OutputStream out;
+
+  /** see {@link #DEF_BLOCK_ROWS} **/
+  protected final int blockRows;
+
+  /** see {@link #DEF_INDEX_INTERVAL} **/
+  protected final int indexInterval;
+
+  /** see {@link #getBytesWritten} **/
+  protected long offset = 0;
+
+  /** see {@link #getRowsWritten} **/
+  protected long rows = 0;
+
+  /** column names of the current schema, null if none yet **/
+  protected String[] name;
+
+  /** column types of the current schema **/
+  protected boolean[] isLong;
+
+  /** offset of the current schema record **/
+  protected long schemaOffset;
+
+  /** wall clock start time of the current schema **/
+  protected long schemaStartTimeMS;
+
+  /** nanotime start of the current schema **/
+  protected long schemaStartNS;
+
+  /** read format of the current schema, if from write(BRBrain.Frame) **/
+  protected BRBrain.FormatPlan schemaPlan;
+
+  /** the values of the current block, by column **/
+  protected long[][] block = new long[0][];
+
+  /** rows in the current block **/
+  protected int blockRowsWritten = 0;
+
+  /** record bodies are assembled here **/
+  protected final Buffer body = new Buffer();
+
+  /** encoded columns are assembled here **/
+  protected final Buffer column = new Buffer();
+
+  /** record tags and lengths are assembled here **/
+  protected final byte[] recordHead = new byte[11];
+
+  /** pending index entries, 4 per block **/
+  protected long[] index = new long[0];
+
+  /** blocks in the pending index **/
+  protected int indexBlocks = 0;
+
+  /** offset of the last index record, or -1 **/
+  protected long lastIndexOffset = -1;
+
+  /** whether {@link #close}d **/
+  protected boolean closed = false;
+
+  /** growable byte buffer with varint encoding **/
+  protected static class Buffer {
+
+    /** the bytes **/
+    protected byte[] buf = new byte[256];
+
+    /** the number of valid bytes **/
+    protected int len = 0;
+
+    /** make room for <i>n</i> more bytes **/
+    protected void ensure(int n) {
+      if (len+n > buf.length) {
+        byte[] b = new byte[Math.max(2*buf.length, len+n)];
+        System.arraycopy(buf, 0, b, 0, len);
+        buf = b;
+      }
+    }
+
+    /** append a byte **/
+    protected void put(int b) {
+      ensure(1);
+      buf[len++] = (byte) b;
+    }
+
+    /** append bytes **/
+    protected void put(byte[] b, int off, int n) {
+      ensure(n);
+      System.arraycopy(b, off, buf, len, n);
+      len += n;
+    }
+
+    /** append an unsigned varint **/
+    protected void putVarint(long v) {
+      ensure(10);
+      while ((v & ~0x7fL) != 0) {
+        buf[len++] = (byte) ((v&0x7f)|0x80);
+        v >>>= 7;
+      }
+      buf[len++] = (byte) v;
+    }
+
+    /** append a zig-zag varint **/
+    protected void putSigned(long v) {
+      putVarint(zigZag(v));
+    }
+  }
+
+  /** zig-zag encode a signed value **/
+  public static long zigZag(long v) {
+    return (v<<1)^(v>>63);
+  }
+
+  /** inverse of {@link #zigZag} **/
+  public static long unZigZag(long v) {
+    return (v>>>1)^-(v&1);
+  }
+
+  /** number of bytes in the varint encoding of <i>v</i> **/
+  public static int varintLength(long v) {
+    int n = 1;
+    while ((v & ~0x7fL) != 0) {
+      n++;
+      v >>>= 7;
+    }
+    return n;
+  }
+
+  /**
+   * <p>Start a log on <i>out</i>.</p>
+   *
+   * @param out the destination, closed by {@link #close}
+   * @param blockRows the maximum rows per block
+   * @param indexInterval the number of blocks per index
+   **/
+  public CompactFrameWriter(OutputStream out, int blockRows,
+                            int indexInterval)
+    throws IOException {
+
+    if (blockRows < 1)
+      throw new IllegalArgumentException("invalid blockRows "+blockRows);
+
+    if (indexInterval < 1)
+      throw new IllegalArgumentException(
+        "invalid indexInterval "+indexInterval);
+
+    this.out = out;
+    this.blockRows = blockRows;
+    this.indexInterval = indexInterval;
+
+    index = new long[4*indexInterval];
+
+    writeInt(MAGIC);
+    writeInt(VERSION);
+  }
+
+  /** covers {@link #CompactFrameWriter(OutputStream, int, int)}, defaults **/
+  public CompactFrameWriter(OutputStream out) throws IOException {
+    this(out, DEF_BLOCK_ROWS, DEF_INDEX_INTERVAL);
+  }
+
+  /** start a log in <i>file</i>, which is created or truncated **/
+  public CompactFrameWriter(File file) throws IOException {
+    this(new BufferedOutputStream(new FileOutputStream(file), 1<<16));
+  }
+
+  /** get the number of bytes written so far **/
+  public long getBytesWritten() {
+    return offset;
+  }
+
+  /** get the number of rows written so far, including buffered ones **/
+  public long getRowsWritten() {
+    return rows;
+  }
+
+  /** write a raw int **/
+  protected void writeInt(int v) throws IOException {
+    out.write(v>>>24);
+    out.write(v>>>16);
+    out.write(v>>>8);
+    out.write(v);
+    offset += 4;
+  }
+
+  /** write a record with the current {@link #body} **/
+  protected void writeRecord(int tag) throws IOException {
+
+    byte[] head = recordHead;
+    int n = 0;
+
+    head[n++] = (byte) tag;
+
+    for (long v = body.len; ; v >>>= 7) {
+      if ((v & ~0x7fL) == 0) {
+        head[n++] = (byte) v;
+        break;
+      }
+      head[n++] = (byte) ((v&0x7f)|0x80);
+    }
+
+    out.write(head, 0, n);
+    out.write(body.buf, 0, body.len);
+
+    offset += n+body.len;
+  }
+
+  /**
+   * <p>Define the columns of the following rows, writing out any buffered
+   * rows first.</p>
+   *
+   * @param name the column names, see {@link FrameRecorder}
+   * @param isLong whether each column is long rather than int
+   * @param startTimeMS wall clock time corresponding to <i>startNS</i>
+   * @param startNS nanotime corresponding to <i>startTimeMS</i>
+   **/
+  public void setSchema(String[] name, boolean[] isLong,
+                        long startTimeMS, long startNS)
+    throws IOException {
+
+    if (name.length != isLong.length)
+      throw new IllegalArgumentException("names and types differ in length");
+
+    checkOpen();
+
+    flushBlock();
+
+    StringBuilder text = new StringBuilder();
+
+    text.append("# BRBrain compact frame log\n");
+    text.append("startTimeMS ").append(startTimeMS).append("\n");
+    text.append("startNS ").append(startNS).append("\n");
+
+    for (int c = 0; c < name.length; c++) {
+      text.append("column ").append(name[c]);
+      text.append(isLong[c] ? " long\n" : " int\n");
+    }
+
+    byte[] b = text.toString().getBytes("UTF-8");
+
+    schemaOffset = offset;
+    schemaStartTimeMS = startTimeMS;
+    schemaStartNS = startNS;
+
+    body.len = 0;
+    body.put(b, 0, b.length);
+    writeRecord(T_SCHEMA);
+
+    this.name = name.clone();
+    this.isLong = isLong.clone();
+    schemaPlan = null;
+
+    if (block.length != name.length) {
+      block = new long[name.length][];
+      for (int c = 0; c < name.length; c++)
+        block[c] = new long[blockRows];
+    }
+  }
+
+  /** use the columns of <i>recording</i> for the following rows **/
+  public void setSchema(FrameRecording recording) throws IOException {
+
+    int n = recording.getNumColumns();
+
+    String[] name = new String[n];
+    boolean[] isLong = new boolean[n];
+
+    for (int c = 0; c < n; c++) {
+      name[c] = recording.getColumnName(c);
+      isLong[c] = recording.isLongColumn(c);
+    }
+
+    setSchema(name, isLong,
+              recording.getStartTimeMS(), recording.getStartNS());
+  }
+
+  /**
+   * <p>Check whether the current schema has the columns and start times of
+   * <i>recording</i>.</p>
+   *
+   * <p>Segments of different runs have unrelated nanotime origins, so a
+   * segment with other start times always gets its own schema.</p>
+   **/
+  protected boolean sameSchema(FrameRecording recording) {
+
+    if ((name == null) || (name.length != recording.getNumColumns()))
+      return false;
+
+    if ((schemaStartTimeMS != recording.getStartTimeMS()) ||
+        (schemaStartNS != recording.getStartNS()))
+      return false;
+
+    for (int c = 0; c < name.length; c++)
+      if (!name[c].equals(recording.getColumnName(c)) ||
+          (isLong[c] != recording.isLongColumn(c)))
+        return false;
+
+    return true;
+  }
+
+  /** throw if {@link #close}d **/
+  protected void checkOpen() throws IOException {
+    if (closed)
+      throw new IOException("compact frame log closed");
+  }
+
+  /** append a row with a value for each column of the current schema **/
+  public void write(long[] row) throws IOException {
+
+    if (name == null)
+      throw new IllegalStateException("no schema");
+
+    if (row.length < name.length)
+      throw new IllegalArgumentException(
+        "need "+name.length+" values, got "+row.length);
+
+    checkOpen();
+
+    for (int c = 0; c < name.length; c++)
+      block[c][blockRowsWritten] = row[c];
+
+    endRow();
+  }
+
+  /**
+   * <p>Append a frame with the columns of a {@link FrameRecorder} segment,
+   * starting a new schema if its read format differs from the last
+   * frame's.</p>
+   **/
+  public void write(BRBrain.Frame frame) throws IOException {
+
+    checkOpen();
+
+    BRBrain.FormatPlan plan = frame.plan;
+
+    if ((schemaPlan == null) || !FrameRecorder.samePlan(plan, schemaPlan)) {
+
+      int n = FrameRecorder.NUM_FRAME_COLUMNS+plan.numRegs;
+
+      String[] name = new String[n];
+      boolean[] isLong = new boolean[n];
+
+      int c = 0;
+      name[c] = FrameRecorder.TIME_NS; isLong[c++] = true;
+      name[c++] = FrameRecorder.STATUS;
+      name[c++] = FrameRecorder.RETRIES;
+      for (int i = 0; i < FrameRecorder.ADC.length; i++)
+        name[c++] = FrameRecorder.ADC[i];
+      for (int k = 0; k < plan.numRegs; k++)
+        name[c++] = plan.id[k]+":"+plan.reg[k].toIdentifierString();
+
+      setSchema(name, isLong, System.currentTimeMillis(), System.nanoTime());
+
+      schemaPlan = plan;
+    }
+
+    int r = blockRowsWritten;
+    int c = 0;
+
+    block[c++][r] = frame.timeNS;
+    block[c++][r] = frame.status&0xff;
+    block[c++][r] = (frame.status>>8)&0xff;
+    for (int i = 0; i < FrameRecorder.ADC.length; i++)
+      block[c++][r] = frame.adc.get(i);
+    for (int k = 0; k < frame.numValues; k++)
+      block[c++][r] = frame.data.get(k);
+
+    endRow();
+  }
+
+  /**
+   * <p>Append all rows of <i>recording</i>, starting a new schema if its
+   * columns or start times differ from the current ones.</p>
+   **/
+  public void write(FrameRecording recording) throws IOException {
+
+    checkOpen();
+
+    if (!sameSchema(recording))
+      setSchema(recording);
+
+    schemaPlan = null;
+
+    int n = recording.getNumRows();
+    int[] ints = new int[blockRows];
+
+    for (int row = 0; row < n; ) {
+
+      int m = Math.min(n-row, blockRows-blockRowsWritten);
+
+      for (int c = 0; c < name.length; c++) {
+
+        long[] dest = block[c];
+
+        if (isLong[c]) {
+          recording.getLongs(c, row, dest, blockRowsWritten, m);
+        } else {
+          recording.getInts(c, row, ints, 0, m);
+          for (int i = 0; i < m; i++)
+            dest[blockRowsWritten+i] = ints[i];
+        }
+      }
+
+      row += m;
+      rows += m;
+      blockRowsWritten += m;
+
+      if (blockRowsWritten == blockRows)
+        flushBlock();
+    }
+  }
+
+  /** finish a row, writing out the block if full **/
+  protected void endRow() throws IOException {
+
+    rows++;
+
+    if (++blockRowsWritten == blockRows)
+      flushBlock();
+  }
+
+  /** write out the buffered rows, if any, as a block **/
+  protected void flushBlock() throws IOException {
+
+    int n = blockRowsWritten;
+
+    if (n == 0)
+      return;
+
+    int i = 4*indexBlocks;
+    index[i++] = rows-n;
+    index[i++] = offset;
+    index[i++] = schemaOffset;
+    index[i++] = block[0][0];
+
+    body.len = 0;
+    body.putVarint(n);
+
+    for (int c = 0; c < name.length; c++) {
+      int mode = encode(block[c], n, column);
+      body.put(mode);
+      body.putVarint(column.len);
+      body.put(column.buf, 0, column.len);
+    }
+
+    writeRecord(T_BLOCK);
+
+    blockRowsWritten = 0;
+
+    if (++indexBlocks == indexInterval)
+      flushIndex();
+  }
+
+  /** write out the pending index entries, if any **/
+  protected void flushIndex() throws IOException {
+
+    if (indexBlocks == 0)
+      return;
+
+    body.len = 0;
+    body.putVarint(Math.max(lastIndexOffset, 0));
+    body.putVarint(indexBlocks);
+
+    for (int i = 0; i < 4*indexBlocks; ) {
+      body.putVarint(index[i++]);
+      body.putVarint(index[i++]);
+      body.putVarint(index[i++]);
+      body.putSigned(index[i++]);
+    }
+
+    lastIndexOffset = offset;
+
+    writeRecord(T_INDEX);
+
+    indexBlocks = 0;
+  }
+
+  /**
+   * <p>Encode the first <i>n</i> values in the mode taking the fewest bytes,
+   * returning the mode.</p>
+   **/
+  protected static int encode(long[] v, int n, Buffer dest) {
+
+    //size all modes in one pass
+    int delta = 0, delta2 = 0, run = 0;
+    long prev = 0, prevDelta = 0, runValue = 0;
+    int runLength = 0;
+
+    for (int i = 0; i < n; i++) {
+
+      long d = v[i]-prev;
+
+      delta += varintLength(zigZag(d));
+      delta2 += varintLength(zigZag((i < 2) ? d : d-prevDelta));
+
+      if ((i > 0) && (v[i] == v[i-1])) {
+        runLength++;
+      } else {
+        if (i > 0)
+          run += varintLength(zigZag(v[i-1]-runValue))+
+            varintLength(runLength);
+        runValue = (i > 0) ? v[i-1] : 0;
+        runLength = 1;
+      }
+
+      prevDelta = d;
+      prev = v[i];
+    }
+
+    if (n > 0)
+      run += varintLength(zigZag(v[n-1]-runValue))+varintLength(runLength);
+
+    dest.len = 0;
+
+    if ((run < delta) && (run < delta2)) {
+
+      runValue = 0;
+
+      for (int i = 0; i < n; ) {
+        int j = i+1;
+        while ((j < n) && (v[j] == v[i]))
+          j++;
+        dest.putSigned(v[i]-runValue);
+        dest.putVarint(j-i);
+        runValue = v[i];
+        i = j;
+      }
+
+      return M_RUN;
+    }
+
+    int mode = (delta2 < delta) ? M_DELTA2 : M_DELTA;
+
+    prev = 0;
+    prevDelta = 0;
+
+    for (int i = 0; i < n; i++) {
+      long d = v[i]-prev;
+      dest.putSigned(((mode == M_DELTA2) && (i >= 2)) ? d-prevDelta : d);
+      prevDelta = d;
+      prev = v[i];
+    }
+
+    return mode;
+  }
+
+  /** write out the buffered rows and flush the destination **/
+  public void flush() throws IOException {
+    checkOpen();
+    flushBlock();
+    out.flush();
+  }
+
+  /** finish the log and close the destination **/
+  public void close() throws IOException {
+
+    if (closed)
+      return;
+
+    flushBlock();
+    flushIndex();
+
+    body.len = 0;
+    writeRecord(T_END);
+
+    writeInt((int) (lastIndexOffset>>>32));
+    writeInt((int) lastIndexOffset);
+    writeInt(MAGIC);
+
+    closed = true;
+
+    out.close();
+  }
+
+  /**
+   * <p>Convert the {@link FrameRecorder} segments and directories of
+   * segments given after the output file into one compact log.</p>
+   **/
+  public static void main(String[] argv) throws IOException {
+
+    if (argv.length < 2) {
+      System.err.println(
+        "usage: CompactFrameWriter out segment|directory "+
+        "[segment|directory...]");
+      System.exit(1);
+    }
+
+    CompactFrameWriter w = new CompactFrameWriter(new File(argv[0]));
+
+    long raw = 0;
+
+    for (int i = 1; i < argv.length; i++) {
+
+      File f = new File(argv[i]);
+
+      File[] segments =
+        f.isDirectory() ? FrameRecording.getSegments(f) : new File[] {f};
+
+      for (File segment : segments) {
+        FrameRecording r = new FrameRecording(segment);
+        w.write(r);
+        for (int c = 0; c < r.getNumColumns(); c++)
+          raw += (r.isLongColumn(c) ? 8L : 4L)*r.getNumRows();
+      }
+    }
+
+    w.close();
+
+    System.out.println(
+      w.getRowsWritten()+" rows, "+raw+" bytes of columns to "+
+      w.getBytesWritten()+" bytes");
+  }
+}
@@ -0,0 +1,157 @@
+/**
+ * <p>CM-5 link over a serial port accessed as a regular file.</p>
+ *
+ * <p>This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.</p>
+ *
+ * <p>This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.</p>
+ *
+ * <p>You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 59
+ * Temple Place - Suite 330, Boston, MA 02111-1307, USA.</p>
+ **/
+
+package brbrain;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * <p>{@link CM5Link} over a serial port accessed as a regular file, using NIO
+ * {@link FileChannel}s.</p>
+ *
+ * <p>The serial port must be externally configured (e.g. using
+ * <tt>stty</tt> on Linux) for the correct baud rate, 8N1, no flow control, and
+ * "raw" mode so that it is 8-bit clean.  Baud rate control is therefore not
+ * available through this link.</p>
+ *
+ * <p>Regular files have no native receive timeout, so blocking receives poll
+ * {@link #available} every {@link #POLL_NS}.</p>
+ **/
+public class FileLink implements CM5Link {
+
+  /** period in ns at which a blocking {@link #recv} polls **/
+  public static final long POLL_NS = 50000;
+
+  /** open the given file for both reading and writing **/
+  public FileLink(File port) throws IOException {
+
+    if (port == null)
+      throw new IllegalArgumentException("null port");
+
+    out = new FileOutputStream(port);
+    in = new FileInputStream(port);
+
+    outChannel = out.getChannel();
+    inChannel = in.getChannel();
+  }
+
+  public void send(byte[] buf, int off, int len) throws IOException {
+
+    sendWrapper = wrap(sendWrapper, buf, off, len);
+
+    while (sendWrapper.hasRemaining())
+      outChannel.write(sendWrapper);
+  }
+
+  public int recv(byte[] buf, int off, int len, long timeoutNS)
+    throws IOException, InterruptedException {
+
+    long deadline = System.nanoTime()+timeoutNS;
+
+    int available = in.available();
+
+    while (available <= 0) {
+
+      if (System.nanoTime() >= deadline)
+        return 0;
+
+      LockSupport.parkNanos(POLL_NS);
+
+      if (Thread.interrupted())
+        throw new InterruptedException();
+
+      available = in.available();
+    }
+
+    recvWrapper = wrap(recvWrapper, buf, off, Math.min(available, len));
+
+    int n = inChannel.read(recvWrapper);
+
+    if (n < 0)
+      throw new IOException("end of stream from CM-5");
+
+    return n;
+  }
+
+  /** uses {@link FileInputStream#available} which works on ttys **/
+  public int available() throws IOException {
+    return in.available();
+  }
+
+  public void drain() throws IOException {
+    byte[] scratch = new byte[64];
+    for (int n = in.available(); n > 0; n = in.available())
+      in.read(scratch, 0, Math.min(n, scratch.length));
+  }
+
+  /** not supported **/
+  public void setBaudRate(int baudRate) {
+    throw new IllegalStateException(
+      "no baud rate control for a regular file, configure it externally");
+  }
+
+  /** always -1 **/
+  public int getBaudRate() {
+    return -1;
+  }
+
+  public void close() throws IOException {
+    try {
+      inChannel.close();
+    } finally {
+      outChannel.close();
+    }
+  }
+
+  /**
+   * <p>Get a ByteBuffer view of the given region, reusing <i>wrapper</i> if
+   * it wraps the same array.</p>
+   **/
+  protected static ByteBuffer wrap(ByteBuffer wrapper,
+                                   byte[] buf, int off, int len) {
+
+    if ((wrapper == null) || (wrapper.array() != buf))
+      wrapper = ByteBuffer.wrap(buf);
+
+    wrapper.limit(off+len);
+    wrapper.position(off);
+
+    return wrapper;
+  }
+
+  /** output stream to CM-5 **/
+  protected FileOutputStream out;
+
+  /** input stream from CM-5 **/
+  protected FileInputStream in;
+
+  /** channel of {@link #out} **/
+  protected FileChannel outChannel;
+
+  /** channel of {@link #in} **/
+  protected FileChannel inChannel;
+
+  /** most recent {@link #wrap}per used in {@link #send} **/
+  protected ByteBuffer sendWrapper;
+
+  /** most recent {@link #wrap}per used in {@link #recv} **/
+  protected ByteBuffer recvWrapper;
+}
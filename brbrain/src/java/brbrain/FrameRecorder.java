@@ -0,0 +1,478 @@
+/**
+ * <p>Records {@link BRBrain} frames to memory-mapped column files.</p>
+ *
+ * <p>This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.</p>
+ *
+ * <p>This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.</p>
+ *
+ * <p>You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 59
+ * Temple Place - Suite 330, Boston, MA 02111-1307, USA.</p>
+ **/
+
+package brbrain;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * <p>Records {@link BRBrain} frames to memory-mapped column files.</p>
+ *
+ * <p>A recorder listens for every frame decoded by its BRBrain, see {@link
+ * BRBrain#addFrameListener}.  On the I/O thread it just copies the frame
+ * into a preallocated ring of {@link BRBrain.Frame}s, without allocating.  A
+ * writer thread appends the ring entries to the current segment file, one
+ * row per frame.  If the writer falls a whole ring behind further frames are
+ * dropped, see {@link #getNumDropped}.</p>
+ *
+ * <p>Each segment holds up to a fixed number of rows and is mapped whole when
+ * created, so it is as large as its capacity from the start, sparsely where
+ * the filesystem allows.  A new segment is started when the current one is
+ * full and when the read format changes.  Segments are named {@link
+ * #SEGMENT_PREFIX}NNNNNN{@link #SEGMENT_SUFFIX}, numbered on from any
+ * already in the directory.  Each is in the following form:<pre>
+ *
+ * int {@link #MAGIC}
+ * int {@link #VERSION}
+ * int header bytes, a multiple of 8
+ * int capacity rows
+ * int rows written so far
+ * int text bytes
+ * text
+ * [padding]
+ * column 0
+ * ...
+ * column (n-1)
+ *
+ * </pre>Where the text is UTF-8 lines of the form "key value...", including
+ * "startTimeMS" and "startNS", the wall clock and nanotime at which the
+ * segment was started, and "column name type offset" for each column in
+ * order.  The type is "long" or "int", the offset is from the end of the
+ * header, and each column holds capacity values, the first rows of which are
+ * valid.  Multi-byte values are big endian.</p>
+ *
+ * <p>The first columns are {@link #TIME_NS}, the nanotime at which the frame
+ * was decoded, {@link #STATUS} and {@link #RETRIES}, the CM-5 status and
+ * retry bytes, and the raw ADC channels {@link #ADC}.  Then there is an int
+ * column for each register value in the read format, named
+ * "id:register", where the register is its {@link
+ * AXRegister#toIdentifierString}.</p>
+ *
+ * <p>Use {@link FrameRecording} to read the segments, including while they
+ * are being recorded.</p>
+ **/
+public class FrameRecorder implements BRBrain.FrameListener {
+
+  /** segment magic, "BRBF" **/
+  public static final int MAGIC = 0x42524246;
+
+  /** segment version **/
+  public static final int VERSION = 1;
+
+  /** byte offset of the number of rows written in a segment **/
+  public static final int NUM_ROWS_OFFSET = 16;
+
+  /** byte offset of the text in a segment **/
+  public static final int TEXT_OFFSET = 24;
+
+  /** segment file name prefix **/
+  public static final String SEGMENT_PREFIX = "frames-";
+
+  /** segment file name suffix **/
+  public static final String SEGMENT_SUFFIX = ".brbf";
+
+  /** name of the frame time column **/
+  public static final String TIME_NS = "TIME_NS";
+
+  /** name of the CM-5 status column **/
+  public static final String STATUS = "STATUS";
+
+  /** name of the CM-5 retry count column **/
+  public static final String RETRIES = "RETRIES";
+
+  /** names of the ADC columns, indexed by BRBrain channel **/
+  public static final String[] ADC = new String[] {
+    "ADC_POS", "ADC_NEG", "ADC_THERM"
+  };
+
+  /** number of columns before the register values **/
+  public static final int NUM_FRAME_COLUMNS = 3+ADC.length;
+
+  /** default segment capacity, about 20 minutes at 100Hz **/
+  public static final int DEF_SEGMENT_ROWS = 1<<17;
+
+  /** default frame ring size **/
+  public static final int DEF_RING_SIZE = 1024;
+
+  /** writer thread poll period **/
+  public static final long POLL_NS = 10*1000*1000;
+
+  /** the recorded BRBrain **/
+  protected final BRBrain brain;
+
+  /** the segment directory **/
+  protected final File dir;
+
+  /** see {@link #DEF_SEGMENT_ROWS} **/
+  protected final int segmentRows;
+
+  /** frames copied on the I/O thread for the {@link #writer} **/
+  protected final BRBrain.Frame[] ring;
+
+  /** number of frames put in the {@link #ring} **/
+  protected final AtomicLong head = new AtomicLong();
+
+  /** number of frames taken from the {@link #ring} **/
+  protected final AtomicLong tail = new AtomicLong();
+
+  /** see {@link #getNumDropped}, only written on the I/O thread **/
+  protected volatile long numDropped = 0;
+
+  /** see {@link #getError} **/
+  protected volatile IOException error;
+
+  /** whether {@link #close}d **/
+  protected volatile boolean closed = false;
+
+  /** writes the segments **/
+  protected final Thread writer;
+
+  /** number of the next segment **/
+  protected int nextSegment;
+
+  /** the current segment file, null if none **/
+  protected RandomAccessFile segmentFile;
+
+  /** the current segment mapping **/
+  protected MappedByteBuffer segment;
+
+  /** capacity of the current segment **/
+  protected int segmentCapacity;
+
+  /** rows in the current segment **/
+  protected int segmentRowsWritten;
+
+  /** read format of the current segment **/
+  protected BRBrain.FormatPlan segmentPlan;
+
+  /** byte offsets of the columns of the current segment **/
+  protected int[] columnOffset = new int[0];
+
+  /**
+   * <p>Start recording the frames of <i>brain</i> to segments in
+   * <i>dir</i>, which is created if necessary.</p>
+   *
+   * @param brain the BRBrain to record
+   * @param dir the segment directory
+   * @param segmentRows the capacity of each segment
+   * @param ringSize the number of frames buffered for the writer
+   **/
+  public FrameRecorder(BRBrain brain, File dir, int segmentRows, int ringSize)
+    throws IOException {
+
+    if (brain == null)
+      throw new IllegalArgumentException("null brain");
+
+    if (segmentRows < 1)
+      throw new IllegalArgumentException("invalid segmentRows "+segmentRows);
+
+    if (ringSize < 1)
+      throw new IllegalArgumentException("invalid ringSize "+ringSize);
+
+    if (!dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("failed to create "+dir);
+
+    this.brain = brain;
+    this.dir = dir;
+    this.segmentRows = segmentRows;
+
+    File[] segments = FrameRecording.getSegments(dir);
+    nextSegment = (segments.length > 0) ?
+      FrameRecording.getSegmentNumber(segments[segments.length-1])+1 : 0;
+
+    ring = new BRBrain.Frame[ringSize];
+    for (int i = 0; i < ringSize; i++)
+      ring[i] = new BRBrain.Frame();
+
+    writer = new Thread("BRBrain frame recorder") {
+        public void run() {
+          writeLoop();
+        }
+      };
+    writer.setDaemon(true);
+    writer.start();
+
+    brain.addFrameListener(this);
+  }
+
+  /** covers {@link #FrameRecorder(BRBrain, File, int, int)}, defaults **/
+  public FrameRecorder(BRBrain brain, File dir) throws IOException {
+    this(brain, dir, DEF_SEGMENT_ROWS, DEF_RING_SIZE);
+  }
+
+  /** get the segment directory **/
+  public File getDirectory() {
+    return dir;
+  }
+
+  /** get the number of frames dropped because the writer fell behind **/
+  public long getNumDropped() {
+    return numDropped;
+  }
+
+  /** get the number of frames written **/
+  public long getNumWritten() {
+    return tail.get();
+  }
+
+  /**
+   * <p>Get the exception which stopped the writer, if any.  Frames are not
+   * recorded after that.</p>
+   **/
+  public IOException getError() {
+    return error;
+  }
+
+  /** copies the latest frame into the {@link #ring} **/
+  public void frameReceived(BRBrain brain, int[] data, int status) {
+
+    long h = head.get();
+
+    if (closed || (h-tail.get() >= ring.length)) {
+      numDropped++;
+      return;
+    }
+
+    brain.getLatestFrame().copy(ring[(int) (h%ring.length)]);
+
+    head.lazySet(h+1);
+
+    //the writer polls, only hurry it along in a burst
+    if (h-tail.get() == ring.length/2)
+      LockSupport.unpark(writer);
+  }
+
+  /** body of the {@link #writer} **/
+  protected void writeLoop() {
+
+    for (;;) {
+
+      long t = tail.get();
+
+      if (t < head.get()) {
+
+        if (error == null) {
+          try {
+            writeRow(ring[(int) (t%ring.length)]);
+          } catch (IOException e) {
+            System.err.println("W: frame recorder failed: "+e);
+            error = e;
+          }
+        }
+
+        tail.lazySet(t+1);
+
+      } else if (closed) {
+        break;
+      } else {
+        LockSupport.parkNanos(POLL_NS);
+      }
+    }
+
+    try {
+      closeSegment();
+    } catch (IOException e) {
+      if (error == null)
+        error = e;
+    }
+  }
+
+  /** append a frame to the current segment, starting one if necessary **/
+  protected void writeRow(BRBrain.Frame frame) throws IOException {
+
+    if ((segment == null) || (segmentRowsWritten == segmentCapacity) ||
+        !samePlan(frame.plan, segmentPlan)) {
+      closeSegment();
+      openSegment(frame.plan);
+    }
+
+    int r = segmentRowsWritten;
+    int c = 0;
+
+    segment.putLong(columnOffset[c++]+8*r, frame.timeNS);
+    segment.putInt(columnOffset[c++]+4*r, frame.status&0xff);
+    segment.putInt(columnOffset[c++]+4*r, (frame.status>>8)&0xff);
+
+    for (int i = 0; i < ADC.length; i++)
+      segment.putInt(columnOffset[c++]+4*r, frame.adc.get(i));
+
+    for (int k = 0; k < frame.numValues; k++)
+      segment.putInt(columnOffset[c++]+4*r, frame.data.get(k));
+
+    segment.putInt(NUM_ROWS_OFFSET, ++segmentRowsWritten);
+  }
+
+  /** check whether two read formats have the same register values **/
+  protected static boolean samePlan(BRBrain.FormatPlan a,
+                                    BRBrain.FormatPlan b) {
+
+    if (a == b)
+      return true;
+
+    if ((a == null) || (b == null) || (a.numRegs != b.numRegs))
+      return false;
+
+    for (int k = 0; k < a.numRegs; k++)
+      if ((a.id[k] != b.id[k]) || (a.reg[k] != b.reg[k]))
+        return false;
+
+    return true;
+  }
+
+  /** start a segment for frames in the given read format **/
+  protected void openSegment(BRBrain.FormatPlan plan) throws IOException {
+
+    int numColumns = NUM_FRAME_COLUMNS+plan.numRegs;
+
+    String[] name = new String[numColumns];
+    int[] width = new int[numColumns];
+
+    int c = 0;
+
+    name[c] = TIME_NS; width[c++] = 8;
+    name[c] = STATUS; width[c++] = 4;
+    name[c] = RETRIES; width[c++] = 4;
+
+    for (int i = 0; i < ADC.length; i++) {
+      name[c] = ADC[i]; width[c++] = 4;
+    }
+
+    for (int k = 0; k < plan.numRegs; k++) {
+      name[c] = plan.id[k]+":"+plan.reg[k].toIdentifierString();
+      width[c++] = 4;
+    }
+
+    int rowBytes = 0;
+    for (c = 0; c < numColumns; c++)
+      rowBytes += width[c];
+
+    long startTimeMS = System.currentTimeMillis();
+    long startNS = System.nanoTime();
+
+    //a smaller capacity only shortens the offsets, so size for the largest
+    int capacity = segmentRows;
+    byte[] text = headerText(name, width, capacity, startTimeMS, startNS);
+
+    int headerBytes = (TEXT_OFFSET+text.length+7)&~7;
+
+    capacity = Math.min(capacity, (Integer.MAX_VALUE-headerBytes)/rowBytes);
+
+    text = headerText(name, width, capacity, startTimeMS, startNS);
+
+    File file = new File(dir, FrameRecording.getSegmentName(nextSegment++));
+
+    segmentFile = new RandomAccessFile(file, "rw");
+    segmentFile.setLength(0);
+
+    segment =
+      segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                   headerBytes+(long) rowBytes*capacity);
+
+    segment.putInt(0, MAGIC);
+    segment.putInt(4, VERSION);
+    segment.putInt(8, headerBytes);
+    segment.putInt(12, capacity);
+    segment.putInt(NUM_ROWS_OFFSET, 0);
+    segment.putInt(20, text.length);
+    segment.position(TEXT_OFFSET);
+    segment.put(text);
+
+    columnOffset = new int[numColumns];
+    for (c = 0, columnOffset[0] = headerBytes; c+1 < numColumns; c++)
+      columnOffset[c+1] = columnOffset[c]+width[c]*capacity;
+
+    segmentCapacity = capacity;
+    segmentRowsWritten = 0;
+    segmentPlan = plan;
+  }
+
+  /** get the text header of a segment **/
+  protected static byte[] headerText(String[] name, int[] width,
+                                     int capacity,
+                                     long startTimeMS, long startNS) {
+
+    StringBuilder text = new StringBuilder();
+
+    text.append("# BRBrain frame recording\n");
+    text.append("startTimeMS ").append(startTimeMS).append("\n");
+    text.append("startNS ").append(startNS).append("\n");
+
+    long offset = 0;
+    for (int c = 0; c < name.length; c++) {
+      text.append("column ").append(name[c]);
+      text.append((width[c] == 8) ? " long " : " int ");
+      text.append(offset).append("\n");
+      offset += ((long) width[c])*capacity;
+    }
+
+    try {
+      return text.toString().getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e); //UTF-8 is always supported
+    }
+  }
+
+  /** finish the current segment, if any **/
+  protected void closeSegment() throws IOException {
+
+    if (segment == null)
+      return;
+
+    segment.force();
+    segmentFile.close();
+
+    segment = null;
+    segmentFile = null;
+  }
+
+  /**
+   * <p>Stop recording, write out the frames still in the ring and finish the
+   * current segment.</p>
+   *
+   * <p>The listener is removed on the I/O thread, so no frame is in flight
+   * when the writer is told to finish, and afterwards {@link #getNumWritten}
+   * plus {@link #getNumDropped} is the number of frames received.</p>
+   *
+   * @exception IOException if the writer failed, see {@link #getError}
+   **/
+  public void close() throws IOException, InterruptedException {
+
+    try {
+      brain.call(new BRBrain.IOTask<Void>() {
+          public Void run() {
+            brain.removeFrameListener(FrameRecorder.this);
+            return null;
+          } });
+    } catch (IOException e) {
+      //the brain is closed, its I/O thread delivers no more frames
+      brain.removeFrameListener(this);
+    }
+
+    closed = true;
+
+    LockSupport.unpark(writer);
+    writer.join();
+
+    if (error != null)
+      throw error;
+  }
+}
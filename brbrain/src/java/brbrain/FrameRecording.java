@@ -0,0 +1,403 @@
+/**
+ * <p>Reads a segment written by a {@link FrameRecorder}.</p>
+ *
+ * <p>This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.</p>
+ *
+ * <p>This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.</p>
+ *
+ * <p>You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 59
+ * Temple Place - Suite 330, Boston, MA 02111-1307, USA.</p>
+ **/
+
+package brbrain;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * <p>Reads a segment written by a {@link FrameRecorder}.</p>
+ *
+ * <p>The segment is memory-mapped read only, and its values are read
+ * straight from the mapping, so a recording need not fit on the heap.  The
+ * number of rows is re-read on each call to {@link #getNumRows}, so a
+ * segment can be read while it is still being recorded.</p>
+ *
+ * <p>{@link #main} dumps segments as text.</p>
+ **/
+public class FrameRecording {
+
+  /** the segment file **/
+  protected final File file;
+
+  /** the segment mapping **/
+  protected final MappedByteBuffer segment;
+
+  /** see {@link #getCapacity} **/
+  protected final int capacity;
+
+  /** see {@link #getStartTimeMS} **/
+  protected long startTimeMS;
+
+  /** see {@link #getStartNS} **/
+  protected long startNS;
+
+  /** see {@link #getColumnName} **/
+  protected final String[] name;
+
+  /** see {@link #isLongColumn} **/
+  protected final boolean[] isLong;
+
+  /** byte offsets of the columns **/
+  protected final int[] offset;
+
+  /** see {@link #getColumnID} **/
+  protected final int[] id;
+
+  /** see {@link #getColumnRegister} **/
+  protected final AXRegister[] reg;
+
+  /** open a segment **/
+  public FrameRecording(File file) throws IOException {
+
+    this.file = file;
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+    try {
+
+      long length = raf.length();
+
+      if (length > Integer.MAX_VALUE)
+        throw new IOException("segment too long");
+
+      segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                                     0, length);
+
+    } finally {
+      raf.close();
+    }
+
+    if ((segment.limit() < FrameRecorder.TEXT_OFFSET) ||
+        (segment.getInt(0) != FrameRecorder.MAGIC))
+      throw new IOException("not a frame recording: "+file);
+
+    int version = segment.getInt(4);
+    if (version != FrameRecorder.VERSION)
+      throw new IOException("unsupported frame recording version "+version);
+
+    int headerBytes = segment.getInt(8);
+    capacity = segment.getInt(12);
+
+    byte[] text = new byte[segment.getInt(20)];
+    segment.position(FrameRecorder.TEXT_OFFSET);
+    segment.get(text);
+
+    List<String> names = new ArrayList<String>();
+    List<Long> offsets = new ArrayList<Long>();
+    List<Boolean> longs = new ArrayList<Boolean>();
+
+    BufferedReader r = new BufferedReader(
+      new InputStreamReader(new ByteArrayInputStream(text), "UTF-8"));
+
+    try {
+      for (String line = r.readLine(); line != null; line = r.readLine()) {
+
+        String[] f = line.trim().split("\\s+");
+
+        if (f[0].equals("startTimeMS")) {
+          startTimeMS = Long.parseLong(f[1]);
+        } else if (f[0].equals("startNS")) {
+          startNS = Long.parseLong(f[1]);
+        } else if (f[0].equals("column")) {
+          names.add(f[1]);
+          longs.add(f[2].equals("long"));
+          offsets.add(headerBytes+Long.parseLong(f[3]));
+        }
+      }
+    } catch (RuntimeException e) {
+      throw new IOException("invalid frame recording header: "+e);
+    }
+
+    int n = names.size();
+
+    name = names.toArray(new String[n]);
+    isLong = new boolean[n];
+    offset = new int[n];
+    id = new int[n];
+    reg = new AXRegister[n];
+
+    for (int c = 0; c < n; c++) {
+
+      isLong[c] = longs.get(c);
+
+      long end = offsets.get(c)+(isLong[c] ? 8L : 4L)*capacity;
+      if (end > segment.limit())
+        throw new IOException("truncated frame recording: "+file);
+
+      offset[c] = (int) (long) offsets.get(c);
+
+      id[c] = parseColumnID(name[c]);
+      reg[c] = parseColumnRegister(name[c]);
+    }
+  }
+
+  /** get the dynamixel id of a register column name, or -1 **/
+  public static int parseColumnID(String columnName) throws IOException {
+
+    int colon = columnName.indexOf(':');
+
+    if (colon <= 0)
+      return -1;
+
+    try {
+      return Integer.parseInt(columnName.substring(0, colon));
+    } catch (NumberFormatException e) {
+      throw new IOException("invalid column "+columnName);
+    }
+  }
+
+  /** get the register of a register column name, or null **/
+  public static AXRegister parseColumnRegister(String columnName) {
+
+    int colon = columnName.indexOf(':');
+
+    return
+      (colon > 0) ?
+      AXRegister.fromIdentifierString(columnName.substring(colon+1)) : null;
+  }
+
+  /**
+   * <p>Get the segments in <i>dir</i> in order, an empty array if there are
+   * none.</p>
+   **/
+  public static File[] getSegments(File dir) {
+
+    File[] segments = dir.listFiles(new FilenameFilter() {
+        public boolean accept(File dir, String name) {
+          return
+            name.startsWith(FrameRecorder.SEGMENT_PREFIX) &&
+            name.endsWith(FrameRecorder.SEGMENT_SUFFIX);
+        }
+      });
+
+    if (segments == null)
+      return new File[0];
+
+    //fixed width numbers, so name order is segment order
+    Arrays.sort(segments);
+
+    return segments;
+  }
+
+  /** get the name of the segment with the given number **/
+  public static String getSegmentName(int number) {
+    return
+      FrameRecorder.SEGMENT_PREFIX+String.format("%06d", number)+
+      FrameRecorder.SEGMENT_SUFFIX;
+  }
+
+  /** get the number of a segment, or -1 if it's not named as one **/
+  public static int getSegmentNumber(File segment) {
+
+    String n = segment.getName();
+
+    if (!n.startsWith(FrameRecorder.SEGMENT_PREFIX) ||
+        !n.endsWith(FrameRecorder.SEGMENT_SUFFIX))
+      return -1;
+
+    try {
+      return Integer.parseInt(
+        n.substring(FrameRecorder.SEGMENT_PREFIX.length(),
+                    n.length()-FrameRecorder.SEGMENT_SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** get the segment file **/
+  public File getFile() {
+    return file;
+  }
+
+  /** get the maximum number of rows in the segment **/
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /** get the number of rows recorded so far **/
+  public int getNumRows() {
+    return Math.min(Math.max(segment.getInt(FrameRecorder.NUM_ROWS_OFFSET),
+                             0),
+                    capacity);
+  }
+
+  /** get the wall clock time at which the segment was started **/
+  public long getStartTimeMS() {
+    return startTimeMS;
+  }
+
+  /** get the nanotime at which the segment was started **/
+  public long getStartNS() {
+    return startNS;
+  }
+
+  /** convert a {@link FrameRecorder#TIME_NS} value to wall clock time **/
+  public long toTimeMS(long timeNS) {
+    return startTimeMS+(timeNS-startNS)/1000000;
+  }
+
+  /** get the number of columns **/
+  public int getNumColumns() {
+    return name.length;
+  }
+
+  /** get the name of a column **/
+  public String getColumnName(int column) {
+    return name[column];
+  }
+
+  /** check whether a column holds longs rather than ints **/
+  public boolean isLongColumn(int column) {
+    return isLong[column];
+  }
+
+  /** get the dynamixel id of a register column, or -1 **/
+  public int getColumnID(int column) {
+    return id[column];
+  }
+
+  /**
+   * <p>Get the register of a register column, or null, also if the register
+   * is unknown to this version.</p>
+   **/
+  public AXRegister getColumnRegister(int column) {
+    return reg[column];
+  }
+
+  /** get the index of a named column, or -1 if there is none **/
+  public int indexOf(String columnName) {
+    for (int c = 0; c < name.length; c++)
+      if (name[c].equals(columnName))
+        return c;
+    return -1;
+  }
+
+  /** get the index of a register column, or -1 if there is none **/
+  public int indexOf(int axID, AXRegister register) {
+    for (int c = 0; c < name.length; c++)
+      if ((id[c] == axID) && (reg[c] == register))
+        return c;
+    return -1;
+  }
+
+  /** check a row index **/
+  protected void checkRow(int row) {
+    if ((row < 0) || (row >= capacity))
+      throw new IndexOutOfBoundsException("no row "+row);
+  }
+
+  /** get a value of any column **/
+  public long getLong(int column, int row) {
+    checkRow(row);
+    return
+      isLong[column] ?
+      segment.getLong(offset[column]+8*row) :
+      segment.getInt(offset[column]+4*row);
+  }
+
+  /** get a value of an int column **/
+  public int getInt(int column, int row) {
+
+    if (isLong[column])
+      throw new IllegalArgumentException("column "+name[column]+" is long");
+
+    checkRow(row);
+
+    return segment.getInt(offset[column]+4*row);
+  }
+
+  /**
+   * <p>Bulk copy <i>n</i> values of an int column starting at <i>row</i>
+   * into <i>values</i> starting at <i>off</i>.</p>
+   **/
+  public void getInts(int column, int row, int[] values, int off, int n) {
+
+    if (isLong[column])
+      throw new IllegalArgumentException("column "+name[column]+" is long");
+
+    checkRow(row);
+    if (n > 0)
+      checkRow(row+n-1);
+
+    //absolute bulk gets are Java 13+, so slice a duplicate
+    ByteBuffer b = segment.duplicate();
+    b.position(offset[column]+4*row);
+    b.asIntBuffer().get(values, off, n);
+  }
+
+  /**
+   * <p>Bulk copy <i>n</i> values of a long column starting at <i>row</i>
+   * into <i>values</i> starting at <i>off</i>.</p>
+   **/
+  public void getLongs(int column, int row, long[] values, int off, int n) {
+
+    if (!isLong[column])
+      throw new IllegalArgumentException("column "+name[column]+" is int");
+
+    checkRow(row);
+    if (n > 0)
+      checkRow(row+n-1);
+
+    ByteBuffer b = segment.duplicate();
+    b.position(offset[column]+8*row);
+    b.asLongBuffer().get(values, off, n);
+  }
+
+  /** dump the rows as tab separated text with a line of column names **/
+  public void dump(PrintStream out) {
+
+    for (int c = 0; c < name.length; c++)
+      out.print(((c > 0) ? "\t" : "")+name[c]);
+    out.println();
+
+    for (int row = 0, n = getNumRows(); row < n; row++) {
+      for (int c = 0; c < name.length; c++)
+        out.print(((c > 0) ? "\t" : "")+getLong(c, row));
+      out.println();
+    }
+  }
+
+  /**
+   * <p>Dump the segment files and directories of segments given as arguments
+   * to stdout.</p>
+   **/
+  public static void main(String[] argv) throws IOException {
+
+    if (argv.length == 0) {
+      System.err.println(
+        "usage: FrameRecording segment|directory [segment|directory...]");
+      System.exit(1);
+    }
+
+    for (String arg : argv) {
+
+      File f = new File(arg);
+
+      File[] segments = f.isDirectory() ? getSegments(f) : new File[] {f};
+
+      for (File segment : segments) {
+        System.out.println("# "+segment);
+        new FrameRecording(segment).dump(System.out);
+      }
+    }
+  }
+}
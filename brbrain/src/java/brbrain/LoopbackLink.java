@@ -0,0 +1,212 @@
+/**
+ * <p>In-memory CM-5 link.</p>
+ *
+ * <p>This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.</p>
+ *
+ * <p>This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.</p>
+ *
+ * <p>You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 59
+ * Temple Place - Suite 330, Boston, MA 02111-1307, USA.</p>
+ **/
+
+package brbrain;
+
+import java.io.*;
+
+/**
+ * <p>In-memory {@link CM5Link}.</p>
+ *
+ * <p>Loopback links come in connected pairs: bytes sent on one end are
+ * received on its {@link #getPeer}.  Typically a {@link BRBrain} is
+ * constructed on one end, and a simulator or test harness services the other
+ * end.</p>
+ *
+ * <p>Each direction is a bounded byte queue; {@link #send} blocks while the
+ * queue is full.  Setting the baud rate on either end sets it for both, but
+ * otherwise has no effect.</p>
+ **/
+public class LoopbackLink implements CM5Link {
+
+  /** default capacity in bytes of each direction **/
+  public static final int DEF_CAPACITY = 4096;
+
+  /** a bounded blocking byte queue **/
+  protected static class Pipe {
+
+    /** queued bytes **/
+    protected final byte[] data;
+
+    /** index of the next byte to read **/
+    protected int head = 0;
+
+    /** number of bytes queued **/
+    protected int size = 0;
+
+    /** whether the pipe has been closed **/
+    protected boolean closed = false;
+
+    /** the baud rate, shared by both ends **/
+    protected int baudRate = -1;
+
+    protected Pipe(int capacity) {
+      data = new byte[capacity];
+    }
+
+    /** enqueue bytes, blocking while full **/
+    protected synchronized void write(byte[] buf, int off, int len)
+      throws IOException {
+
+      try {
+
+        while (len > 0) {
+
+          if (closed)
+            throw new IOException("loopback link closed");
+
+          if (size == data.length) {
+            wait();
+            continue;
+          }
+
+          int tail = (head+size)%data.length;
+          int n = Math.min(len, Math.min(data.length-size, data.length-tail));
+
+          System.arraycopy(buf, off, data, tail, n);
+
+          size += n;
+          off += n;
+          len -= n;
+
+          notifyAll();
+        }
+
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted sending to loopback");
+      }
+    }
+
+    /** dequeue up to len bytes, waiting up to timeoutNS for at least one **/
+    protected synchronized int read(byte[] buf, int off, int len,
+                                    long timeoutNS)
+      throws IOException, InterruptedException {
+
+      long deadline = System.nanoTime()+timeoutNS;
+
+      while (size == 0) {
+
+        if (closed)
+          throw new IOException("loopback link closed");
+
+        long remaining = deadline-System.nanoTime();
+
+        if (remaining <= 0)
+          return 0;
+
+        wait(remaining/1000000, (int) (remaining%1000000));
+      }
+
+      int n = 0;
+
+      while ((n < len) && (size > 0)) {
+
+        int m = Math.min(len-n, Math.min(size, data.length-head));
+
+        System.arraycopy(data, head, buf, off+n, m);
+
+        head = (head+m)%data.length;
+        size -= m;
+        n += m;
+      }
+
+      notifyAll();
+
+      return n;
+    }
+
+    protected synchronized int available() {
+      return size;
+    }
+
+    protected synchronized void drain() {
+      head = size = 0;
+      notifyAll();
+    }
+
+    protected synchronized void close() {
+      closed = true;
+      notifyAll();
+    }
+  }
+
+  /** create one end of a new connected pair, see {@link #getPeer} **/
+  public LoopbackLink(int capacity) {
+    in = new Pipe(capacity);
+    out = new Pipe(capacity);
+    peer = new LoopbackLink(out, in, this);
+  }
+
+  /** covers {@link #LoopbackLink(int)}, uses {@link #DEF_CAPACITY} **/
+  public LoopbackLink() {
+    this(DEF_CAPACITY);
+  }
+
+  /** make the peer end **/
+  protected LoopbackLink(Pipe in, Pipe out, LoopbackLink peer) {
+    this.in = in;
+    this.out = out;
+    this.peer = peer;
+  }
+
+  /** get the other end of this link **/
+  public LoopbackLink getPeer() {
+    return peer;
+  }
+
+  public void send(byte[] buf, int off, int len) throws IOException {
+    out.write(buf, off, len);
+  }
+
+  public int recv(byte[] buf, int off, int len, long timeoutNS)
+    throws IOException, InterruptedException {
+    return in.read(buf, off, len, timeoutNS);
+  }
+
+  public int available() {
+    return in.available();
+  }
+
+  public void drain() {
+    in.drain();
+  }
+
+  public void setBaudRate(int baudRate) {
+    in.baudRate = out.baudRate = baudRate;
+  }
+
+  public int getBaudRate() {
+    return in.baudRate;
+  }
+
+  /** closes both directions, for both ends **/
+  public void close() {
+    in.close();
+    out.close();
+  }
+
+  /** bytes received on this end **/
+  protected final Pipe in;
+
+  /** bytes sent from this end **/
+  protected final Pipe out;
+
+  /** the other end **/
+  protected final LoopbackLink peer;
+}
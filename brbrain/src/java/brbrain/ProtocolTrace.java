@@ -0,0 +1,767 @@
+/**
+ * <p>Always-on binary trace of the bytes exchanged with the CM-5.</p>
+ *
+ * <p>This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.</p>
+ *
+ * <p>This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.</p>
+ *
+ * <p>You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 59
+ * Temple Place - Suite 330, Boston, MA 02111-1307, USA.</p>
+ **/
+
+package brbrain;
+
+import java.io.*;
+import java.nio.*;
+
+/**
+ * <p>Always-on binary trace of the bytes exchanged with the CM-5.</p>
+ *
+ * <p>The trace is a fixed size ring of {@link #RECORD_BYTES} byte records in
+ * a direct (off-heap) buffer.  Each record holds the nanotime at which it was
+ * made, its kind, and up to {@link #MAX_RECORD_DATA} bytes.  Longer chunks
+ * take several records, all but the first flagged {@link #CONTINUED}.
+ * Recording allocates nothing and costs little more than copying the bytes,
+ * so {@link BRBrain} leaves a trace on by default, unlike {@link
+ * BRBrain#debug}.  Once the ring is full the oldest records are
+ * overwritten.</p>
+ *
+ * <p>{@link #dump} writes the records still in the ring, oldest first, to a
+ * compact binary file in the following form:<pre>
+ *
+ * int {@link #MAGIC}
+ * int {@link #VERSION}
+ * int {@link #RECORD_BYTES}
+ * long number of records
+ * the records
+ *
+ * </pre>Where each record is a long nanotime, a kind byte, a data length byte
+ * and {@link #MAX_RECORD_DATA} data bytes, of which only the first data
+ * length are meaningful.  Multi-byte values are big endian.</p>
+ *
+ * <p>{@link #main} renders such a file as text, one line per packet, with the
+ * {@link BRBrain.Instruction} names and, since the decoder follows the
+ * formats, slots and mode set along the way, with the {@link AX12Register}
+ * names and values of register data.  It assumes the mode after a CM-5
+ * reset until it sees an {@link BRBrain.Instruction#I_SET_MODE}.  Packets
+ * which depend on state set before the oldest record are shown as raw bytes
+ * until it is set again.</p>
+ *
+ * <p>A ProtocolTrace is not thread safe.  {@link BRBrain} records and dumps
+ * it only on its I/O thread.</p>
+ **/
+public class ProtocolTrace {
+
+  /** bytes per record **/
+  public static final int RECORD_BYTES = 32;
+
+  /** offset of the data bytes in a record **/
+  protected static final int DATA_OFFSET = 10;
+
+  /** maximum data bytes per record **/
+  public static final int MAX_RECORD_DATA = RECORD_BYTES-DATA_OFFSET;
+
+  /** record kind: (part of) a packet sent to the CM-5 **/
+  public static final int SEND = 1;
+
+  /** record kind: bytes sent outside a packet, e.g. to the bootloader **/
+  public static final int SEND_RAW = 2;
+
+  /** record kind: bytes received from the CM-5 **/
+  public static final int RECV = 3;
+
+  /** record kind flag, set on the records which continue a chunk **/
+  public static final int CONTINUED = 0x80;
+
+  /** default capacity in records, 128kB **/
+  public static final int DEF_CAPACITY = 4096;
+
+  /** dump file magic, "BRBT" **/
+  public static final int MAGIC = 0x42524254;
+
+  /** dump file version **/
+  public static final int VERSION = 1;
+
+  /** the records **/
+  protected final ByteBuffer ring;
+
+  /** capacity in records **/
+  protected final int capacity;
+
+  /** number of records made since construction or {@link #clear} **/
+  protected long numRecords = 0;
+
+  /** make a trace holding the most recent <i>capacity</i> records **/
+  public ProtocolTrace(int capacity) {
+
+    if (capacity <= 0)
+      throw new IllegalArgumentException("invalid capacity "+capacity);
+
+    this.capacity = capacity;
+
+    ring = ByteBuffer.allocateDirect(capacity*RECORD_BYTES);
+  }
+
+  /** covers {@link #ProtocolTrace(int)}, uses {@link #DEF_CAPACITY} **/
+  public ProtocolTrace() {
+    this(DEF_CAPACITY);
+  }
+
+  /** get the capacity in records **/
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /** get the number of records made since construction or {@link #clear} **/
+  public long getNumRecords() {
+    return numRecords;
+  }
+
+  /** forget all records **/
+  public void clear() {
+    numRecords = 0;
+  }
+
+  /**
+   * <p>Record a chunk of bytes.</p>
+   *
+   * @param kind {@link #SEND}, {@link #SEND_RAW} or {@link #RECV}
+   * @param buf the bytes
+   * @param off the offset of the first byte in <i>buf</i>
+   * @param len the number of bytes
+   **/
+  public void record(int kind, byte[] buf, int off, int len) {
+
+    long ns = System.nanoTime();
+
+    do {
+
+      int n = Math.min(len, MAX_RECORD_DATA);
+
+      int at = ((int) (numRecords++%capacity))*RECORD_BYTES;
+
+      ring.putLong(at, ns);
+      ring.put(at+8, (byte) kind);
+      ring.put(at+9, (byte) n);
+
+      for (int i = 0; i < n; i++)
+        ring.put(at+DATA_OFFSET+i, buf[off+i]);
+
+      off += n;
+      len -= n;
+
+      kind |= CONTINUED;
+
+    } while (len > 0);
+  }
+
+  /** write the records in the ring, oldest first, see class header doc **/
+  public void dump(OutputStream out) throws IOException {
+
+    DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+
+    long first = Math.max(numRecords-capacity, 0);
+
+    dos.writeInt(MAGIC);
+    dos.writeInt(VERSION);
+    dos.writeInt(RECORD_BYTES);
+    dos.writeLong(numRecords-first);
+
+    for (long r = first; r < numRecords; r++) {
+      int at = ((int) (r%capacity))*RECORD_BYTES;
+      for (int i = 0; i < RECORD_BYTES; i++)
+        dos.write(ring.get(at+i));
+    }
+
+    dos.flush();
+  }
+
+  /** covers {@link #dump(OutputStream)}, (over)writes <i>file</i> **/
+  public void dump(File file) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      dump(out);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * <p>Render a file written by {@link #dump} as text on <i>out</i>, see class
+   * header doc.</p>
+   **/
+  public static void decode(InputStream in, PrintStream out)
+    throws IOException {
+
+    DataInputStream dis = new DataInputStream(new BufferedInputStream(in));
+
+    if (dis.readInt() != MAGIC)
+      throw new IOException("not a protocol trace");
+
+    int version = dis.readInt();
+    if (version != VERSION)
+      throw new IOException("unsupported trace version "+version);
+
+    int recordBytes = dis.readInt();
+    if (recordBytes != RECORD_BYTES)
+      throw new IOException("unsupported record size "+recordBytes);
+
+    long n = dis.readLong();
+
+    Decoder decoder = new Decoder(out);
+
+    byte[] data = new byte[MAX_RECORD_DATA];
+
+    for (long r = 0; r < n; r++) {
+
+      long ns = dis.readLong();
+      int kind = dis.readUnsignedByte();
+      int len = dis.readUnsignedByte();
+      dis.readFully(data);
+
+      if (len > MAX_RECORD_DATA)
+        throw new IOException("invalid record "+r);
+
+      decoder.record(ns, kind, data, len);
+    }
+
+    decoder.flush();
+  }
+
+  /** decode the trace file named by the single argument to stdout **/
+  public static void main(String[] argv) throws IOException {
+
+    if (argv.length != 1) {
+      System.err.println("usage: ProtocolTrace <trace-file>");
+      System.exit(1);
+    }
+
+    InputStream in = new FileInputStream(argv[0]);
+    try {
+      decode(in, System.out);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * <p>Reassembles traced chunks into packets and renders them, following the
+   * protocol state set along the way.</p>
+   **/
+  protected static class Decoder {
+
+    /** where to render **/
+    protected final PrintStream out;
+
+    /** nanotime of the first record **/
+    protected long startNS;
+
+    /** whether {@link #startNS} is set **/
+    protected boolean started = false;
+
+    /** the packet being sent, or raw bytes **/
+    protected ByteArrayOutputStream send = new ByteArrayOutputStream();
+
+    /** kind of {@link #send} **/
+    protected int sendKind = 0;
+
+    /** nanotime of {@link #send} **/
+    protected long sendNS;
+
+    /** received bytes not yet rendered **/
+    protected ByteArrayOutputStream recv = new ByteArrayOutputStream();
+
+    /** nanotime of the last received chunk **/
+    protected long recvNS;
+
+    /** whether {@link #recv} starts with a packet of unknown length **/
+    protected boolean recvUnknown = false;
+
+    /** the known formats, by F_READ/F_WRITE and slot, null if unknown **/
+    protected int[][][] format =
+      new int[2][BRBrain.NUM_FORMAT_SLOTS][];
+
+    /** the selected slots **/
+    protected int[] slot = new int[2];
+
+    /** the CM-5 mode **/
+    protected int mode = 0;
+
+    /** last host packet awaiting its status, applied if that is ok **/
+    protected byte[] pending;
+
+    /** first and last id of the last {@link Instruction#I_SCAN} **/
+    protected int scanFirst = -1, scanLast = -1;
+
+    /** the payload of the last frame, for delta frames **/
+    protected byte[] deltaRef;
+
+    /** register by AX-12 start address **/
+    protected AXRegister[] byAddr = new AXRegister[256];
+
+    /** make a decoder rendering on <i>out</i> **/
+    protected Decoder(PrintStream out) {
+
+      this.out = out;
+
+      for (int i = 0; i < AX12Register.NUM_REGISTERS; i++) {
+        AXRegister r = AX12Register.getRegister(i);
+        byAddr[r.startAddr] = r;
+      }
+    }
+
+    /** add one record **/
+    protected void record(long ns, int kind, byte[] data, int len) {
+
+      if (!started) {
+        startNS = ns;
+        started = true;
+      }
+
+      int k = kind&~CONTINUED;
+
+      if (k == RECV) {
+        flushSend();
+        recv.write(data, 0, len);
+        recvNS = ns;
+        parseRecv();
+        return;
+      }
+
+      if (((kind&CONTINUED) == 0) || (k != sendKind))
+        flushSend();
+
+      if (recvUnknown)
+        flushRecv();
+
+      if (send.size() == 0) {
+        sendKind = k;
+        sendNS = ns;
+      }
+
+      send.write(data, 0, len);
+    }
+
+    /** render anything left **/
+    protected void flush() {
+      flushSend();
+      flushRecv();
+    }
+
+    /** render the unparsed received bytes, if any, as raw bytes **/
+    protected void flushRecv() {
+
+      byte[] b = recv.toByteArray();
+
+      if (b.length > 0)
+        line(recvNS, "< ? "+hex(b, 0, b.length));
+
+      recv.reset();
+      recvUnknown = false;
+    }
+
+    /** render {@link #send} if any **/
+    protected void flushSend() {
+
+      if (send.size() == 0)
+        return;
+
+      byte[] p = send.toByteArray();
+      send.reset();
+
+      if (sendKind == SEND_RAW)
+        line(sendNS, "> raw "+hex(p, 0, p.length));
+      else
+        line(sendNS, "> "+renderCommand(p));
+    }
+
+    /** render a line at the given nanotime **/
+    protected void line(long ns, String msg) {
+      out.printf("%12.3fms %s%n", (ns-startNS)/1e6, msg);
+    }
+
+    /** name of an instruction code **/
+    protected static String name(int code) {
+      for (BRBrain.Instruction i : BRBrain.Instruction.values())
+        if (i.code == code)
+          return i.name();
+      return "0x"+Integer.toHexString(code);
+    }
+
+    /** total data bytes of a format **/
+    protected static int numBytes(int[] fmt) {
+      int n = 0;
+      for (int i = 2; i < fmt.length; i += 3)
+        n += fmt[i];
+      return n;
+    }
+
+    /** render a host to CM-5 packet **/
+    protected String renderCommand(byte[] p) {
+
+      int code = p[0]&0xff;
+
+      StringBuilder sb = new StringBuilder(name(code));
+
+      int len = p.length-2; //without instruction and checksum
+
+      pending = null;
+
+      if ((code == BRBrain.Instruction.I_SET_READ_FORMAT.code) ||
+          (code == BRBrain.Instruction.I_SET_WRITE_FORMAT.code)) {
+
+        for (int i = 2; i+2 < p.length-1; i += 3)
+          sb.append(" "+(p[i]&0xff)+":"+
+                    addrName(p[i+1]&0xff)+"("+(p[i+2]&0xff)+" bytes)");
+
+        pending = p;
+
+      } else if ((code == BRBrain.Instruction.I_WRITE_DATA.code) ||
+                 (code == BRBrain.Instruction.I_WRITE_READ.code)) {
+
+        int[] fmt = format[BRBrain.F_WRITE][slot[BRBrain.F_WRITE]];
+
+        if ((fmt != null) && (numBytes(fmt) == len))
+          renderData(sb, fmt, p, 1);
+        else
+          sb.append(" "+hex(p, 1, len));
+
+      } else if ((code == BRBrain.Instruction.I_SET_MODE.code) ||
+                 (code == BRBrain.Instruction.I_SELECT_SLOT.code)) {
+
+        sb.append(" 0x"+Integer.toHexString(p[1]&0xff));
+        pending = p;
+
+      } else if (code == BRBrain.Instruction.I_SET_BAUD.code) {
+
+        int i = p[1]&0xff;
+        sb.append(" "+((i < BRBrain.CM5_BAUD_RATES.length) ?
+                       (BRBrain.CM5_BAUD_RATES[i]+"bps") : ("index "+i)));
+
+      } else if ((code == BRBrain.Instruction.I_SCAN.code) && (len == 2)) {
+
+        scanFirst = p[1]&0xff;
+        scanLast = p[2]&0xff;
+        sb.append(" "+scanFirst+".."+scanLast);
+
+      } else if (len > 0) {
+        sb.append(" "+hex(p, 1, len));
+      }
+
+      if (!checksumOK(p, 0, p.length))
+        sb.append(" BAD CHECKSUM");
+
+      return sb.toString();
+    }
+
+    /** adopt the state set by {@link #pending} after an ok status **/
+    protected void applyPending() {
+
+      if (pending == null)
+        return;
+
+      int code = pending[0]&0xff;
+
+      if (code == BRBrain.Instruction.I_SET_READ_FORMAT.code ||
+          code == BRBrain.Instruction.I_SET_WRITE_FORMAT.code) {
+
+        int f = (code == BRBrain.Instruction.I_SET_READ_FORMAT.code) ?
+          BRBrain.F_READ : BRBrain.F_WRITE;
+
+        int n = pending[1]&0xff;
+        int[] fmt = new int[3*n];
+
+        for (int i = 0; i < 3*n; i++)
+          fmt[i] = pending[2+i]&0xff;
+
+        format[f][slot[f]] = fmt;
+
+        if (f == BRBrain.F_READ)
+          deltaRef = null;
+
+      } else if (code == BRBrain.Instruction.I_SET_MODE.code) {
+
+        mode = pending[1]&0xff;
+        deltaRef = null;
+
+      } else if (code == BRBrain.Instruction.I_SELECT_SLOT.code) {
+
+        int f = (pending[1]&0x80) >> 7;
+
+        slot[f] = pending[1]&0x7f;
+
+        if (f == BRBrain.F_READ)
+          deltaRef = null;
+      }
+
+      pending = null;
+    }
+
+    /** render as many complete CM-5 packets from {@link #recv} as possible **/
+    protected void parseRecv() {
+
+      if (recvUnknown) //until the next command
+        return;
+
+      byte[] b = recv.toByteArray();
+
+      int at = 0;
+
+      while (at < b.length) {
+
+        int n = packetLength(b, at);
+
+        if (n == 0) //incomplete
+          break;
+
+        if (n < 0) {
+          recvUnknown = true;
+          break;
+        }
+
+        line(recvNS, "< "+renderReply(b, at, n));
+
+        at += n;
+      }
+
+      recv.reset();
+      recv.write(b, at, b.length-at);
+    }
+
+    /**
+     * <p>Length of the CM-5 packet at <i>at</i> including instruction and
+     * checksum, 0 if incomplete, or -1 if it can't be determined.</p>
+     **/
+    protected int packetLength(byte[] b, int at) {
+
+      int code = b[at]&0xff;
+      int avail = b.length-at;
+
+      int n = -1;
+
+      if (code == BRBrain.Instruction.I_STATUS.code) {
+
+        n = BRBrain.STATUS_LENGTH+2;
+
+      } else if ((code == BRBrain.Instruction.I_DATA.code) ||
+                 (code == BRBrain.Instruction.I_DELTA_DATA.code)) {
+
+        int len = frameLength();
+
+        if (len < 0)
+          return -1;
+
+        if (code == BRBrain.Instruction.I_DATA.code) {
+          n = len+2;
+        } else {
+
+          int bitmap = (len+7)/8;
+
+          if (avail < 1+bitmap)
+            return 0;
+
+          n = 1+bitmap+1;
+
+          for (int i = 0; i < bitmap; i++)
+            n += Integer.bitCount(b[at+1+i]&0xff);
+        }
+
+      } else if ((code == BRBrain.Instruction.I_SCAN.code) &&
+                 (scanFirst >= 0)) {
+
+        n = 1;
+
+        for (int id = scanFirst; id <= scanLast; id += 8) {
+
+          if (avail < n+1)
+            return 0;
+
+          n += 1+2*Integer.bitCount(b[at+n]&0xff);
+        }
+
+        n += BRBrain.STATUS_LENGTH+1;
+      }
+
+      if (n < 0)
+        return -1;
+
+      return (avail < n) ? 0 : n;
+    }
+
+    /**
+     * <p>Data length of an {@link BRBrain.Instruction#I_DATA} packet, -1 if
+     * unknown.</p>
+     **/
+    protected int frameLength() {
+
+      int[] fmt = format[BRBrain.F_READ][slot[BRBrain.F_READ]];
+
+      if (fmt == null)
+        return -1;
+
+      return numBytes(fmt)+BRBrain.STATUS_LENGTH+
+        (((mode&BRBrain.MODE_POLL) != 0) ? 1 : 0)+
+        (((mode&BRBrain.MODE_DELTA) != 0) ? 1 : 0);
+    }
+
+    /** render a complete CM-5 to host packet **/
+    protected String renderReply(byte[] b, int at, int n) {
+
+      int code = b[at]&0xff;
+
+      StringBuilder sb = new StringBuilder(name(code));
+
+      byte[] frame = null;
+
+      if (code == BRBrain.Instruction.I_STATUS.code) {
+
+        if ((b[at+1]&0xff) == 0)
+          applyPending();
+        else
+          pending = null;
+
+        renderStatus(sb, b, at+1);
+
+      } else if (code == BRBrain.Instruction.I_DATA.code) {
+
+        frame = new byte[n-2];
+        System.arraycopy(b, at+1, frame, 0, n-2);
+
+      } else if (code == BRBrain.Instruction.I_DELTA_DATA.code) {
+
+        int len = frameLength();
+
+        if ((deltaRef != null) && (deltaRef.length == len)) {
+
+          frame = new byte[len];
+
+          int bitmap = (len+7)/8;
+
+          for (int k = 0, j = at+1+bitmap; k < len; k++)
+            frame[k] = ((b[at+1+k/8]&(1<<(k%8))) != 0) ? b[j++] : deltaRef[k];
+
+        } else {
+          sb.append(" (no reference) "+hex(b, at+1, n-2));
+        }
+
+      } else if (code == BRBrain.Instruction.I_SCAN.code) {
+
+        int j = at+1;
+
+        for (int id = scanFirst; id <= scanLast; id += 8) {
+
+          int present = b[j++]&0xff;
+
+          for (int i = 0; (i < 8) && (id+i <= scanLast); i++) {
+            if ((present&(1<<i)) != 0) {
+              sb.append(" "+(id+i)+":model "+
+                        ((b[j]&0xff)|((b[j+1]&0xff)<<8)));
+              j += 2;
+            }
+          }
+        }
+
+        renderStatus(sb, b, j);
+      }
+
+      if (frame != null) {
+
+        deltaRef = frame;
+
+        int[] fmt = format[BRBrain.F_READ][slot[BRBrain.F_READ]];
+
+        renderData(sb, fmt, frame, 0);
+
+        int j = numBytes(fmt);
+
+        renderStatus(sb, frame, j);
+
+        j += BRBrain.STATUS_LENGTH;
+
+        if ((mode&BRBrain.MODE_POLL) != 0)
+          sb.append(" age="+(frame[j++]&0xff));
+
+        if ((mode&BRBrain.MODE_DELTA) != 0)
+          sb.append(" seq="+(frame[j++]&0xff));
+      }
+
+      if (!checksumOK(b, at, n))
+        sb.append(" BAD CHECKSUM");
+
+      return sb.toString();
+    }
+
+    /** render status, retry and ADC bytes **/
+    protected static void renderStatus(StringBuilder sb, byte[] b, int at) {
+
+      int status = b[at]&0xff;
+
+      sb.append(" status="+
+                ((status == 0) ? "ok" : BRBrain.statusToString(status)));
+
+      if (b[at+1] != 0)
+        sb.append(" retries="+(b[at+1]&0xff));
+
+      sb.append(" adc="+(b[at+2]&0xff)+","+(b[at+3]&0xff)+","+
+                (b[at+4]&0xff));
+    }
+
+    /** render register values of a format starting at <i>at</i> **/
+    protected void renderData(StringBuilder sb, int[] fmt, byte[] b, int at) {
+
+      for (int i = 0; i < fmt.length; i += 3) {
+
+        int id = fmt[i], addr = fmt[i+1], end = fmt[i+1]+fmt[i+2];
+
+        while (addr < end) {
+
+          AXRegister r = byAddr[addr];
+
+          int w = ((r != null) && (addr+r.width <= end)) ? r.width : 1;
+
+          int v = 0;
+          for (int j = 0; j < w; j++)
+            v |= (b[at+j]&0xff)<<(8*j);
+
+          sb.append(" "+id+":"+addrName(addr)+"="+
+                    (((r != null) && (w == r.width)) ? r.decode(v) : v));
+
+          addr += w;
+          at += w;
+        }
+      }
+    }
+
+    /** the AX-12 register name of an address **/
+    protected String addrName(int addr) {
+      AXRegister r = byAddr[addr];
+      return (r != null) ? r.prettyName.replace(' ', '_') : ("@"+addr);
+    }
+
+    /** check the checksum of a packet **/
+    protected static boolean checksumOK(byte[] b, int at, int n) {
+      int sum = 0;
+      for (int i = at; i < at+n-1; i++)
+        sum += b[i]&0xff;
+      return (b[at+n-1]&0xff) == ((~sum)&0xff);
+    }
+
+    /** hex dump **/
+    protected static String hex(byte[] b, int at, int n) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = at; i < at+n; i++) {
+        if (i > at)
+          sb.append(' ');
+        sb.append(String.format("%02x", b[i]&0xff));
+      }
+      return sb.toString();
+    }
+  }
+}
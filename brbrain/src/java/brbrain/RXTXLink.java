@@ -0,0 +1,244 @@
+/**
+ * <p>CM-5 link over a serial port accessed with RXTX.</p>
+ *
+ * <p>This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.</p>
+ *
+ * <p>This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.</p>
+ *
+ * <p>You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 59
+ * Temple Place - Suite 330, Boston, MA 02111-1307, USA.</p>
+ **/
+
+package brbrain;
+
+import gnu.io.*;
+import java.util.*;
+import java.io.*;
+
+/**
+ * <p>{@link CM5Link} over a serial port accessed with the RXTX library.</p>
+ *
+ * <p>RXTX internally sets the communications parameters (8N1, no flow
+ * control) and guarantees the port is 8-bit clean.  Blocking receives use the
+ * RXTX native receive timeout.</p>
+ **/
+public class RXTXLink implements CM5Link {
+
+  /** RXTX port owner name **/
+  public static final String RXTX_PORT_OWNER_NAME = "BRBrain";
+
+  /** timeout in ms to wait to open a port with RXTX **/
+  public static final int RXTX_OPEN_TIMEOUT_MS = 1000;
+
+  /**
+   * NOTE: do not reference any RXTX classes in static initializers to avoid
+   * runtime NoClassDefFoundError when using the ADMIN jar without RXTX on
+   * systems with no RXTX jar.
+   **/
+
+  /**
+   * <p>Convenience method to query the list of available ports according to
+   * RXTX.</p>
+   *
+   * @param printStream the stream on which to print the list,
+   * e.g. <code>System.out</code>
+   *
+   * @return printStream
+   **/
+  public static PrintStream listPorts(PrintStream printStream) {
+   
+    //do this here as it prints stuff
+    Enumeration e = CommPortIdentifier.getPortIdentifiers();
+
+    printStream.println("\nAvailable Ports:\n");
+
+    while(e.hasMoreElements()) {
+      
+      CommPortIdentifier id = (CommPortIdentifier) (e.nextElement());
+
+      printStream.println("name: " + id.getName());
+      printStream.println("  type: " +
+                          ((id.getPortType()==CommPortIdentifier.PORT_SERIAL) ?
+                           "serial" : "parallel"));
+      printStream.println("  current owner: " + id.getCurrentOwner());
+    }
+
+    return printStream;
+  }
+
+  /**
+   * <p>Open the specified serial port at the specified baud rate.</p>
+   *
+   * @param portName an RXTX serial port name, see {@link #listPorts} 
+   * @param baudRate the baud rate in bits per second
+   *
+   * @exception IOException if there was a problem opening the port
+   * @exception IllegalStateException if the specified port is not recognized
+   * by RXTX as a serial port, or if RXTX silently failed to open the port 
+   **/
+  public RXTXLink(String portName, int baudRate) throws IOException {
+
+    if (portName == null)
+      throw new IllegalArgumentException("null port name");
+
+    try {
+
+      CommPortIdentifier id = CommPortIdentifier.getPortIdentifier(portName);
+      CommPort port = id.open(RXTX_PORT_OWNER_NAME, RXTX_OPEN_TIMEOUT_MS);
+
+      if (!(port instanceof SerialPort))
+        throw new IllegalStateException("RXTX port \"" + portName +
+                                        "\" is not a SerialPort");
+
+      serialPort = (SerialPort) port;
+
+      serialPort.disableReceiveFraming();
+      serialPort.disableReceiveThreshold();
+      serialPort.disableReceiveTimeout();
+
+      setBaudRate(baudRate);
+
+      serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_NONE);
+
+      out = serialPort.getOutputStream();
+      in = serialPort.getInputStream();
+
+/*
+
+  NOTE: Do not directly reference RXTX exceptions, by doing so you would
+  require the RXTX jar to be present at runtime or a NoClassDefFoundError is
+  thrown.  Instead a generic Exception clause handles these exceptions below.
+
+*/
+
+    } catch (IllegalStateException e) {
+
+      throw e;
+
+    } catch (Exception e) {
+
+      IOException ioe = new IOException("error opening RXTX port");
+      ioe.initCause(e);
+
+      throw ioe;
+    }
+
+    if (in == null)
+      throw new IllegalStateException("RXTX failed to provide input stream");
+
+    if (out == null)
+      throw new IllegalStateException("RXTX failed to provide output stream");
+  }
+
+  /** send the bytes and flush **/
+  public void send(byte[] buf, int off, int len) throws IOException {
+    out.write(buf, off, len);
+    out.flush();
+  }
+
+  /** blocking receives use the RXTX native receive timeout **/
+  public int recv(byte[] buf, int off, int len, long timeoutNS)
+    throws IOException, InterruptedException {
+
+    if (timeoutNS <= 0) {
+
+      int available = in.available();
+
+      if (available <= 0)
+        return 0;
+
+      return read(buf, off, Math.min(available, len));
+    }
+
+    int timeoutMS = (int) Math.max(1, (timeoutNS+999999)/1000000);
+
+    if (timeoutMS != receiveTimeoutMS) {
+
+      try {
+        serialPort.enableReceiveThreshold(1);
+        serialPort.enableReceiveTimeout(timeoutMS);
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Exception e) { //see NOTE above re RXTX exceptions
+        IOException ioe = new IOException("unsupported comm operation");
+        ioe.initCause(e);
+        throw ioe;
+      }
+
+      receiveTimeoutMS = timeoutMS;
+    }
+
+    int n = read(buf, off, len);
+
+    if (Thread.interrupted())
+      throw new InterruptedException();
+
+    return n;
+  }
+
+  /** RXTX returns -1 on a receive timeout, map that to 0 **/
+  protected int read(byte[] buf, int off, int len) throws IOException {
+    int n = in.read(buf, off, len);
+    return (n < 0) ? 0 : n;
+  }
+
+  public int available() throws IOException {
+    return in.available();
+  }
+
+  public void drain() throws IOException {
+    byte[] scratch = new byte[64];
+    for (int n = in.available(); n > 0; n = in.available())
+      in.read(scratch, 0, Math.min(n, scratch.length));
+  }
+
+  public void setBaudRate(int baudRate) throws IOException {
+    try {
+      //NOTE: Do not make the databits, stopbits, parity, or flowcontrol
+      //settings static class constants.  By doing so you would require the
+      //RXTX jar to be present at runtime or a NoClassDefFoundError is thrown.
+      serialPort.setSerialPortParams(baudRate,
+                                     SerialPort.DATABITS_8,
+                                     SerialPort.STOPBITS_1,
+                                     SerialPort.PARITY_NONE);
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) { //see NOTE above re RXTX exceptions
+      IOException ioe = new IOException("unsupported comm operation");
+      ioe.initCause(e);
+      throw ioe;
+    }
+  }
+
+  public int getBaudRate() {
+    return serialPort.getBaudRate();
+  }
+
+  public void close() {
+    serialPort.close();
+  }
+
+  /** get the underlying RXTX port **/
+  public SerialPort getSerialPort() {
+    return serialPort;
+  }
+
+  /** serial port talking to the CM-5 **/
+  protected SerialPort serialPort;
+
+  /** output stream to CM-5 **/
+  protected OutputStream out; 
+
+  /** input stream from CM-5 **/
+  protected InputStream in;
+
+  /** native receive timeout currently set on {@link #serialPort}, or -1 **/
+  protected int receiveTimeoutMS = -1;
+}
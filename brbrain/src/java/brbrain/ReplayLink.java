@@ -0,0 +1,376 @@
+/**
+ * <p>{@link CM5Link} replaying a session recorded by a {@link CaptureLink}.</p>
+ *
+ * <p>This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.</p>
+ *
+ * <p>This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.</p>
+ *
+ * <p>You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 59
+ * Temple Place - Suite 330, Boston, MA 02111-1307, USA.</p>
+ **/
+
+package brbrain;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * <p>{@link CM5Link} replaying a session recorded by a {@link
+ * CaptureLink}.</p>
+ *
+ * <p>The replay link plays the part of the CM-5: the captured received bytes
+ * are delivered with the same chunking, each only once the host has sent all
+ * the bytes which were captured before it, and no sooner than its captured
+ * delay after the preceding event, divided by the {@link #setSpeed}.  So a
+ * {@link BRBrain} running the same code as during the capture sees the exact
+ * same byte sequence, including whatever broke a packet, at the desk.</p>
+ *
+ * <p>The bytes the host sends are compared to the captured ones.  A
+ * difference counts as a divergence, see {@link #getNumDivergences}, and in
+ * {@link #setStrict} mode throws an IOException.  Sending continues with the
+ * next captured bytes either way.</p>
+ *
+ * <p>{@link #mark} and {@link #reset} replay (part of) a capture
+ * repeatedly, e.g. as realistic input for receive path benchmarks.</p>
+ **/
+public class ReplayLink implements CM5Link {
+
+  /** a position in the capture **/
+  protected static class Cursor {
+
+    /** file offset of the current record **/
+    protected int pos = CaptureLink.HEADER_BYTES;
+
+    /** offset in the data of the current record **/
+    protected int off = 0;
+
+    /** total sent bytes passed **/
+    protected long sent = 0;
+
+    /** copy <i>c</i> into this **/
+    protected void set(Cursor c) {
+      pos = c.pos;
+      off = c.off;
+      sent = c.sent;
+    }
+  }
+
+  /** the capture **/
+  protected final MappedByteBuffer capture;
+
+  /** see {@link #setSpeed} **/
+  protected volatile double speed = 1.0;
+
+  /** see {@link #setStrict} **/
+  protected volatile boolean strict = false;
+
+  /** see {@link #getNumDivergences} **/
+  protected long numDivergences = 0;
+
+  /** walks the sent records, {@link Cursor#sent} counts host bytes **/
+  protected final Cursor sendCursor = new Cursor();
+
+  /** walks all records, delivering the received ones **/
+  protected final Cursor recvCursor = new Cursor();
+
+  /** see {@link #mark} **/
+  protected final Cursor sendMark = new Cursor(), recvMark = new Cursor();
+
+  /** capture nanotime of the last record passed by {@link #recvCursor} **/
+  protected long anchorNS = 0;
+
+  /** replay nanotime at which {@link #anchorNS} was passed **/
+  protected long anchorWallNS;
+
+  /** replay nanotime of the most recent {@link #send} **/
+  protected long lastSendWallNS;
+
+  /** see {@link #setBaudRate} **/
+  protected int baudRate = -1;
+
+  /** whether {@link #close}d **/
+  protected volatile boolean closed = false;
+
+  /** replay the capture in <i>file</i> **/
+  public ReplayLink(File file) throws IOException {
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+    try {
+
+      long length = raf.length();
+
+      if (length > Integer.MAX_VALUE)
+        throw new IOException("capture too long");
+
+      capture = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                                     0, length);
+
+    } finally {
+      raf.close();
+    }
+
+    if ((capture.limit() < CaptureLink.HEADER_BYTES) ||
+        (capture.getInt(0) != CaptureLink.MAGIC))
+      throw new IOException("not a capture");
+
+    int version = capture.getInt(4);
+    if (version != CaptureLink.VERSION)
+      throw new IOException("unsupported capture version "+version);
+
+    anchorWallNS = lastSendWallNS = System.nanoTime();
+  }
+
+  /**
+   * <p>Set the replay speed relative to the capture, e.g. 10 to replay ten
+   * times faster, or Double.POSITIVE_INFINITY to deliver each received chunk
+   * as soon as the host has sent what preceded it.  Default 1.</p>
+   **/
+  public void setSpeed(double speed) {
+
+    if (!(speed > 0))
+      throw new IllegalArgumentException("invalid speed "+speed);
+
+    this.speed = speed;
+  }
+
+  /** see {@link #setSpeed} **/
+  public double getSpeed() {
+    return speed;
+  }
+
+  /**
+   * <p>Set whether sending anything other than the captured bytes throws an
+   * IOException.  Default false.</p>
+   **/
+  public void setStrict(boolean strict) {
+    this.strict = strict;
+  }
+
+  /** see {@link #setStrict} **/
+  public boolean isStrict() {
+    return strict;
+  }
+
+  /** get the number of sent bytes which differed from the capture **/
+  public synchronized long getNumDivergences() {
+    return numDivergences;
+  }
+
+  /** check whether the whole capture has been replayed **/
+  public synchronized boolean isFinished() {
+    return (kind(sendCursor.pos) == 0) && (kind(recvCursor.pos) == 0);
+  }
+
+  /** remember the current replay position for {@link #reset} **/
+  public synchronized void mark() {
+    sendMark.set(sendCursor);
+    recvMark.set(recvCursor);
+  }
+
+  /**
+   * <p>Return to the last {@link #mark}, or the start of the capture, with
+   * the captured delays counting from now.</p>
+   **/
+  public synchronized void reset() {
+    sendCursor.set(sendMark);
+    recvCursor.set(recvMark);
+    anchorNS = (recvCursor.off > 0) ? ns(recvCursor.pos) : prevNS();
+    anchorWallNS = lastSendWallNS = System.nanoTime();
+  }
+
+  /** capture nanotime of the last record before {@link #recvCursor} **/
+  protected long prevNS() {
+
+    long ns = 0;
+
+    for (int pos = CaptureLink.HEADER_BYTES; pos < recvCursor.pos;
+         pos = next(pos))
+      ns = ns(pos);
+
+    return ns;
+  }
+
+  /** kind of the record at <i>pos</i>, 0 at the end **/
+  protected int kind(int pos) {
+    return (pos+CaptureLink.RECORD_HEADER_BYTES <= capture.limit()) ?
+      capture.get(pos+8) : 0;
+  }
+
+  /** capture nanotime of the record at <i>pos</i> **/
+  protected long ns(int pos) {
+    return capture.getLong(pos);
+  }
+
+  /** data length of the record at <i>pos</i> **/
+  protected int length(int pos) {
+    return capture.getInt(pos+9);
+  }
+
+  /** file offset of the data of the record at <i>pos</i> **/
+  protected static int data(int pos) {
+    return pos+CaptureLink.RECORD_HEADER_BYTES;
+  }
+
+  /** file offset of the record after the one at <i>pos</i> **/
+  protected int next(int pos) {
+    return data(pos)+length(pos);
+  }
+
+  public synchronized void send(byte[] buf, int off, int len)
+    throws IOException {
+
+    if (closed)
+      throw new IOException("replay link closed");
+
+    lastSendWallNS = System.nanoTime();
+
+    Cursor c = sendCursor;
+
+    for (int i = off; i < off+len; i++) {
+
+      int k;
+      while (((k = kind(c.pos)) != 0) &&
+             ((k != CaptureLink.SEND) || (c.off == length(c.pos)))) {
+        c.pos = next(c.pos);
+        c.off = 0;
+      }
+
+      c.sent++;
+
+      if ((k == 0) || (capture.get(data(c.pos)+c.off++) != buf[i])) {
+
+        numDivergences++;
+
+        if (strict)
+          throw new IOException(
+            "replay diverged from capture at sent byte "+(c.sent-1));
+      }
+    }
+  }
+
+  /**
+   * <p>Advance {@link #recvCursor} to the next received chunk, returning its
+   * replay due nanotime, or -1 if there is none (yet).</p>
+   **/
+  protected long nextRecv() {
+
+    Cursor c = recvCursor;
+
+    for (;;) {
+
+      int k = kind(c.pos);
+
+      if (k == 0)
+        return -1;
+
+      if ((k == CaptureLink.RECV) && (c.off < length(c.pos))) {
+        double delay = (ns(c.pos)-anchorNS)/speed;
+        return anchorWallNS+(long) Math.max(delay, 0);
+      }
+
+      if (k == CaptureLink.SEND) {
+
+        if (sendCursor.sent < c.sent+length(c.pos))
+          return -1; //the host hasn't sent it yet
+
+        c.sent += length(c.pos);
+
+        anchorWallNS = lastSendWallNS;
+
+      } else {
+        anchorWallNS = Math.max(anchorWallNS+
+                                (long) ((ns(c.pos)-anchorNS)/speed),
+                                anchorWallNS);
+      }
+
+      anchorNS = ns(c.pos);
+
+      c.pos = next(c.pos);
+      c.off = 0;
+    }
+  }
+
+  public int recv(byte[] buf, int off, int len, long timeoutNS)
+    throws IOException, InterruptedException {
+
+    long deadline = System.nanoTime()+timeoutNS;
+
+    for (;;) {
+
+      if (closed)
+        throw new IOException("replay link closed");
+
+      long due;
+
+      synchronized (this) {
+
+        due = nextRecv();
+
+        long now = System.nanoTime();
+
+        if ((due >= 0) && (due <= now)) {
+
+          Cursor c = recvCursor;
+
+          int n = Math.min(len, length(c.pos)-c.off);
+
+          for (int i = 0; i < n; i++)
+            buf[off+i] = capture.get(data(c.pos)+c.off+i);
+
+          c.off += n;
+
+          return n;
+        }
+      }
+
+      long now = System.nanoTime();
+
+      if (now >= deadline)
+        return 0;
+
+      LockSupport.parkNanos(((due < 0) ? deadline : Math.min(due, deadline))-
+                            now);
+
+      if (Thread.interrupted())
+        throw new InterruptedException();
+    }
+  }
+
+  public synchronized int available() throws IOException {
+
+    long due = nextRecv();
+
+    if ((due < 0) || (due > System.nanoTime()))
+      return 0;
+
+    return length(recvCursor.pos)-recvCursor.off;
+  }
+
+  public synchronized void drain() throws IOException {
+    for (int n = available(); n > 0; n = available())
+      recvCursor.off += n;
+  }
+
+  /** just remembers the rate **/
+  public synchronized void setBaudRate(int baudRate) {
+    this.baudRate = baudRate;
+  }
+
+  public synchronized int getBaudRate() {
+    return baudRate;
+  }
+
+  public void close() {
+    closed = true;
+  }
+}
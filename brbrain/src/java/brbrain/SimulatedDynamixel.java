@@ -0,0 +1,380 @@
+/**
+ * <p>Simulated Dynamixel AX module for the CM5Simulator.</p>
+ *
+ * <p>This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.</p>
+ *
+ * <p>This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.</p>
+ *
+ * <p>You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 59
+ * Temple Place - Suite 330, Boston, MA 02111-1307, USA.</p>
+ **/
+
+package brbrain;
+
+import static brbrain.AX12Register.*;
+import static brbrain.AXS1Register.*;
+
+/**
+ * <p>Simulated Dynamixel AX module for the {@link CM5Simulator}.</p>
+ *
+ * <p>Holds a raw register bank laid out per {@link AX12Register} or {@link
+ * AXS1Register}, including the virtual error register, and implements the
+ * subset of the Dynamixel instruction set used by the BRBrain firmware:
+ * PING, READ_DATA, WRITE_DATA, REG_WRITE, ACTION and SYNC_WRITE (which is
+ * just a {@link #write} on each addressed module).</p>
+ *
+ * <p>AX-12 modules also get a crude motion model: with torque enabled the
+ * present position slews towards the goal position at the moving speed (or
+ * the no-load maximum if the moving speed is zero).</p>
+ **/
+public class SimulatedDynamixel {
+
+  /** total number of bytes in register bank including virtual **/
+  public static final int NUM_REG_BYTES = 55;
+
+  /** virtual register holding the error code **/
+  public static final int VIRTUAL_ERROR_REG_ADDR = 54;
+
+  /** model number reported by an AX-12 **/
+  public static final int AX12_MODEL = 12;
+
+  /** model number reported by an AX-S1 **/
+  public static final int AXS1_MODEL = 13;
+
+  /** no-load speed in rpm when {@link AX12Register#AX12_MOVING_SPEED} is 0 **/
+  public static final float MAX_RPM = 114.0f;
+
+  /** make an AX-12 with factory default register values **/
+  public static SimulatedDynamixel createAX12(int id) {
+
+    SimulatedDynamixel d =
+      new SimulatedDynamixel(id, AX12Register.getAllRegisters(), AX12_MODEL);
+
+    d.set(AX12_FIRMWARE_VERSION, 24);
+    d.set(AX12_CW_ANGLE_LIMIT, 0);
+    d.set(AX12_CCW_ANGLE_LIMIT, 1023);
+    d.set(AX12_HIGHEST_LIMIT_TEMPERATURE, 85);
+    d.set(AX12_LOWEST_LIMIT_VOLTAGE, 60);
+    d.set(AX12_HIGHEST_LIMIT_VOLTAGE, 190);
+    d.set(AX12_MAX_TORQUE, 1023);
+    d.set(AX12_ALARM_LED, 36);
+    d.set(AX12_ALARM_SHUTDOWN, 36);
+    d.set(AX12_CW_COMPLIANCE_MARGIN, 1);
+    d.set(AX12_CCW_COMPLIANCE_MARGIN, 1);
+    d.set(AX12_CW_COMPLIANCE_SLOPE, 32);
+    d.set(AX12_CCW_COMPLIANCE_SLOPE, 32);
+    d.set(AX12_GOAL_POSITION, 512);
+    d.set(AX12_TORQUE_LIMIT, 1023);
+    d.set(AX12_PRESENT_POSITION, 512);
+    d.set(AX12_PRESENT_VOLTAGE, 96);
+    d.set(AX12_PRESENT_TEMPERATURE, 35);
+    d.set(AX12_PUNCH, 32);
+
+    return d;
+  }
+
+  /** make an AX-S1 with factory default register values **/
+  public static SimulatedDynamixel createAXS1(int id) {
+
+    SimulatedDynamixel d =
+      new SimulatedDynamixel(id, AXS1Register.getAllRegisters(), AXS1_MODEL);
+
+    d.set(AXS1_FIRMWARE_VERSION, 16);
+    d.set(AXS1_HIGHEST_LIMIT_TEMPERATURE, 100);
+    d.set(AXS1_LOWEST_LIMIT_VOLTAGE, 60);
+    d.set(AXS1_HIGHEST_LIMIT_VOLTAGE, 190);
+    d.set(AXS1_OBSTACLE_DETECTED_COMPARE_VALUE, 32);
+    d.set(AXS1_LIGHT_DETECTED_COMPARE_VALUE, 32);
+    d.set(AXS1_SOUND_DATA, 128);
+    d.set(AXS1_PRESENT_VOLTAGE, 96);
+    d.set(AXS1_PRESENT_TEMPERATURE, 35);
+    d.set(AXS1_OBSTACLE_DETECTED_COMPARE, 32);
+    d.set(AXS1_LIGHT_DETECTED_COMPARE, 32);
+
+    return d;
+  }
+
+  /**
+   * <p>Make a module with the given register layout and all registers zero
+   * except model number, id, baud rate (1Mbps), return delay (500us) and
+   * status return level (2).</p>
+   **/
+  public SimulatedDynamixel(int id, AXRegister[] registers, int modelNumber) {
+
+    if (AX12_ID.check(id) != 0)
+      throw new IllegalArgumentException("invalid id "+id);
+
+    for (AXRegister r : registers)
+      for (int b = 0; b < r.width; b++)
+        byAddr[r.startAddr+b] = r;
+
+    set(registers[0], modelNumber); //model number
+    bank[3] = (byte) id;
+    bank[4] = 1;
+    bank[5] = (byte) 250;
+    bank[16] = 2;
+
+    isAX12 = (registers[0] instanceof AX12Register);
+  }
+
+  /** get the current id **/
+  public synchronized int getID() {
+    return bank[3]&0xff;
+  }
+
+  /** get the model number **/
+  public synchronized int getModelNumber() {
+    return (bank[0]&0xff)|((bank[1]&0xff)<<8);
+  }
+
+  /** get the return delay in ns **/
+  public synchronized long getReturnDelayNS() {
+    return (bank[5]&0xff)*2000L;
+  }
+
+  /** get the status return level **/
+  public synchronized int getStatusReturnLevel() {
+    return bank[16]&0xff;
+  }
+
+  /** get the current error bits **/
+  public synchronized int getError() {
+    return error;
+  }
+
+  /** set error bits, e.g. to simulate overheating **/
+  public synchronized void setError(int error) {
+    this.error = error&0x7f;
+  }
+
+  /** get the raw (encoded) value of a register **/
+  public synchronized int get(AXRegister r) {
+
+    if (r.startAddr == VIRTUAL_ERROR_REG_ADDR)
+      return error;
+
+    int value = 0;
+    for (int b = 0; b < r.width; b++)
+      value |= (bank[r.startAddr+b]&0xff)<<(8*b);
+    return value;
+  }
+
+  /**
+   * <p>Set the raw (encoded) value of a register, bypassing write
+   * protection, e.g. to simulate sensor readings.</p>
+   **/
+  public synchronized void set(AXRegister r, int value) {
+
+    if (r.startAddr == VIRTUAL_ERROR_REG_ADDR) {
+      setError(value);
+      return;
+    }
+
+    for (int b = 0; b < r.width; b++)
+      bank[r.startAddr+b] = (byte) (value>>(8*b));
+  }
+
+  /** handle a PING, returns the error byte **/
+  public synchronized int ping() {
+    return error;
+  }
+
+  /**
+   * <p>Handle a READ_DATA.</p>
+   *
+   * @param start the start address
+   * @param n the number of bytes to read
+   * @param dst the read bytes are stored here
+   * @param off the offset in dst of the first byte
+   *
+   * @return the error byte
+   **/
+  public synchronized int read(int start, int n, byte[] dst, int off) {
+
+    if ((start < 0) || (n < 0) || ((start+n) > NUM_REG_BYTES))
+      return error|E_RANGE;
+
+    for (int i = 0; i < n; i++)
+      dst[off+i] =
+        (start+i == VIRTUAL_ERROR_REG_ADDR) ? (byte) error : bank[start+i];
+
+    return error;
+  }
+
+  /**
+   * <p>Handle a WRITE_DATA, the write is applied immediately.</p>
+   *
+   * @param start the start address
+   * @param src the bytes to write
+   * @param off the offset in src of the first byte
+   * @param n the number of bytes to write
+   *
+   * @return the error byte
+   **/
+  public synchronized int write(int start, byte[] src, int off, int n) {
+
+    int e = checkWrite(start, src, off, n);
+
+    if ((e&E_RANGE) == 0)
+      apply(start, src, off, n);
+
+    return e;
+  }
+
+  /**
+   * <p>Handle a REG_WRITE, the write is applied at the next {@link
+   * #action}.</p>
+   *
+   * @return the error byte
+   **/
+  public synchronized int regWrite(int start, byte[] src, int off, int n) {
+
+    int e = checkWrite(start, src, off, n);
+
+    if ((e&E_RANGE) == 0) {
+      pendingStart = start;
+      pendingLength = n;
+      System.arraycopy(src, off, pending, 0, n);
+      bank[44] = 1; //registered instruction
+    }
+
+    return e;
+  }
+
+  /** handle an ACTION, applying any pending {@link #regWrite} **/
+  public synchronized void action() {
+    if (pendingLength > 0) {
+      apply(pendingStart, pending, 0, pendingLength);
+      pendingLength = 0;
+      bank[44] = 0;
+    }
+  }
+
+  /**
+   * <p>Store a validated write in the bank.</p>
+   *
+   * <p>Like the real AX-12, writing the goal position turns on torque.</p>
+   **/
+  protected void apply(int start, byte[] src, int off, int n) {
+
+    System.arraycopy(src, off, bank, start, n);
+
+    if (isAX12 &&
+        (start < AX12_GOAL_POSITION.startAddr+AX12_GOAL_POSITION.width) &&
+        (start+n > AX12_GOAL_POSITION.startAddr))
+      bank[AX12_TORQUE_ENABLE.startAddr] = 1;
+  }
+
+  /** validate a write, returns the error byte **/
+  protected int checkWrite(int start, byte[] src, int off, int n) {
+
+    if ((start < 0) || (n < 0) || ((start+n) > VIRTUAL_ERROR_REG_ADDR))
+      return error|E_RANGE;
+
+    for (int a = start; a < start+n; ) {
+
+      AXRegister r = byAddr[a];
+
+      if (r == null) {
+        a++;
+        continue;
+      }
+
+      if (!r.writeable)
+        return error|E_RANGE;
+
+      int value = 0;
+      for (int b = 0; (b < r.width) && (r.startAddr+b < start+n); b++) {
+        int i = r.startAddr+b;
+        int v = (i >= start) ? src[off+i-start] : bank[i];
+        value |= (v&0xff)<<(8*b);
+      }
+
+      if (r.check(r.decode(value)) != 0)
+        return error|E_RANGE;
+
+      a = r.startAddr+r.width;
+    }
+
+    return error;
+  }
+
+  /**
+   * <p>Advance the motion model to the given absolute simulation time.</p>
+   **/
+  public synchronized void step(long timeNS) {
+
+    long dtNS = (lastStepNS < 0) ? 0 : (timeNS-lastStepNS);
+
+    lastStepNS = timeNS;
+
+    if (!isAX12 || (dtNS <= 0))
+      return;
+
+    int pos = get(AX12_PRESENT_POSITION);
+    int goal = get(AX12_GOAL_POSITION);
+
+    if ((get(AX12_TORQUE_ENABLE) == 0) || (pos == goal)) {
+      set(AX12_PRESENT_SPEED, 0);
+      set(AX12_PRESENT_LOAD, 0);
+      set(AX12_MOVING, 0);
+      return;
+    }
+
+    float rpm = AX12_MOVING_SPEED.toNaturalUnits(
+      Math.abs(AX12_MOVING_SPEED.decode(get(AX12_MOVING_SPEED))));
+
+    if ((rpm <= 0.0f) || (rpm > MAX_RPM))
+      rpm = MAX_RPM;
+
+    //rpm -> deg/s -> counts/s
+    float countsPerS = rpm*6.0f/AX12_PRESENT_POSITION.naturalUnitsPerCount;
+
+    int step = Math.max(1, (int) (countsPerS*dtNS*1e-9f));
+
+    int dir = (goal > pos) ? +1 : -1;
+
+    if (Math.abs(goal-pos) <= step)
+      pos = goal;
+    else
+      pos += dir*step;
+
+    int speed = AX12_PRESENT_SPEED.fromNaturalUnits(rpm);
+
+    set(AX12_PRESENT_POSITION, pos);
+    set(AX12_PRESENT_SPEED, AX12_PRESENT_SPEED.encode(-dir*speed));
+    set(AX12_PRESENT_LOAD, AX12_PRESENT_LOAD.encode(-dir*64));
+    set(AX12_MOVING, (pos != goal) ? 1 : 0);
+  }
+
+  /** raw register bank **/
+  protected final byte[] bank = new byte[NUM_REG_BYTES];
+
+  /** register occupying each address, or null **/
+  protected final AXRegister[] byAddr = new AXRegister[NUM_REG_BYTES];
+
+  /** whether this is an AX-12, which gets the motion model **/
+  protected final boolean isAX12;
+
+  /** current error bits **/
+  protected int error = 0;
+
+  /** pending {@link #regWrite} data **/
+  protected final byte[] pending = new byte[NUM_REG_BYTES];
+
+  /** start address of pending {@link #regWrite} **/
+  protected int pendingStart = 0;
+
+  /** length of pending {@link #regWrite}, 0 if none **/
+  protected int pendingLength = 0;
+
+  /** time of last {@link #step}, or -1 **/
+  protected long lastStepNS = -1;
+}
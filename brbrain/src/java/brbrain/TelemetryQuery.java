@@ -0,0 +1,782 @@
+/**
+ * <p>Windowed aggregate queries over recorded register telemetry.</p>
+ *
+ * <p>This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.</p>
+ *
+ * <p>This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.</p>
+ *
+ * <p>You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 59
+ * Temple Place - Suite 330, Boston, MA 02111-1307, USA.</p>
+ **/
+
+package brbrain;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * <p>Windowed aggregate queries over recorded register telemetry.</p>
+ *
+ * <p>A query selects register columns by dynamixel id and register, and
+ * splits the recording into windows of a fixed duration, counted from the
+ * first frame or {@link #setOrigin}.  For each selected column and window
+ * with at least one value it computes the count, min, max and mean, the
+ * frame times of the min and max, the number of values over the register's
+ * {@link #setThreshold}, and the {@link #setPercentiles}, all in natural
+ * units, see {@link AXRegister#toNaturalUnits}.</p>
+ *
+ * <p>The recording is streamed, not loaded: either {@link FrameRecorder}
+ * segments, through their mappings, or a {@link CompactFrameWriter} log,
+ * decoding only the time column and the selected one.  Memory use is
+ * bounded by the results and one window of values per column.  The columns
+ * are independent, so they are scanned in parallel by fork/join tasks, on
+ * the common pool unless {@link #setPool}.</p>
+ *
+ * <p>Windows are formed in recording order, which is time order for a
+ * recording of one BRBrain.  Frame nanotimes of a segment or schema from a
+ * later run, which has an unrelated nanotime origin, are first moved onto
+ * the nanotime axis of the first run through their wall clock start times,
+ * see {@link #SAME_RUN_SKEW_NS}.</p>
+ *
+ * <p>{@link #main} runs queries from the command line.</p>
+ **/
+public class TelemetryQuery {
+
+  /** the aggregates of one column **/
+  public static class Result {
+
+    /** see {@link #getID} **/
+    protected final int id;
+
+    /** see {@link #getRegister} **/
+    protected final AXRegister reg;
+
+    /** see {@link TelemetryQuery#getWindowNS} **/
+    protected final long windowNS;
+
+    /** see {@link TelemetryQuery#setOrigin} **/
+    protected final long originNS;
+
+    /** wall clock time corresponding to {@link #startNS} **/
+    protected long startTimeMS;
+
+    /** nanotime corresponding to {@link #startTimeMS} **/
+    protected long startNS;
+
+    /** see {@link #getPercentiles} **/
+    protected final double[] percentiles;
+
+    /** see {@link #getNumWindows} **/
+    protected int numWindows = 0;
+
+    /** see {@link #getWindow} **/
+    protected long[] window = new long[16];
+
+    /** see {@link #getCount} **/
+    protected int[] count = new int[16];
+
+    /** see {@link #getMin} **/
+    protected float[] min = new float[16];
+
+    /** see {@link #getMax} **/
+    protected float[] max = new float[16];
+
+    /** see {@link #getMean} **/
+    protected float[] mean = new float[16];
+
+    /** see {@link #getMinTimeNS} **/
+    protected long[] minTimeNS = new long[16];
+
+    /** see {@link #getMaxTimeNS} **/
+    protected long[] maxTimeNS = new long[16];
+
+    /** see {@link #getNumOverThreshold} **/
+    protected int[] over = new int[16];
+
+    /** see {@link #getPercentile}, by window then percentile **/
+    protected float[] percentile;
+
+    /** the values of the current window **/
+    protected float[] values = new float[256];
+
+    /** current window, or Long.MIN_VALUE if none **/
+    protected long curWindow = Long.MIN_VALUE;
+
+    /** aggregates of the current window **/
+    protected int curCount, curOver;
+
+    /** aggregates of the current window **/
+    protected double curSum;
+
+    /** aggregates of the current window **/
+    protected float curMin, curMax;
+
+    /** aggregates of the current window **/
+    protected long curMinTimeNS, curMaxTimeNS;
+
+    /** the query threshold for {@link #reg} **/
+    protected final float threshold;
+
+    /** empty result **/
+    protected Result(int id, AXRegister reg, long windowNS, long originNS,
+                     double[] percentiles, float threshold) {
+      this.id = id;
+      this.reg = reg;
+      this.windowNS = windowNS;
+      this.originNS = originNS;
+      this.percentiles = percentiles;
+      this.threshold = threshold;
+      percentile = new float[16*percentiles.length];
+    }
+
+    /** add a raw register value recorded at the given nanotime **/
+    protected void add(long timeNS, int raw) {
+
+      long w = Math.floorDiv(timeNS-originNS, windowNS);
+
+      if (w != curWindow) {
+        endWindow();
+        curWindow = w;
+      }
+
+      float v = reg.toNaturalUnits(raw);
+
+      if ((curCount == 0) || (v < curMin)) {
+        curMin = v;
+        curMinTimeNS = timeNS;
+      }
+
+      if ((curCount == 0) || (v > curMax)) {
+        curMax = v;
+        curMaxTimeNS = timeNS;
+      }
+
+      if (v > threshold)
+        curOver++;
+
+      curSum += v;
+
+      if (percentiles.length > 0) {
+        if (curCount == values.length)
+          values = Arrays.copyOf(values, 2*values.length);
+        values[curCount] = v;
+      }
+
+      curCount++;
+    }
+
+    /** finish the current window, if any **/
+    protected void endWindow() {
+
+      if (curCount == 0)
+        return;
+
+      int w = numWindows++;
+
+      if (w == window.length) {
+        int n = 2*w;
+        window = Arrays.copyOf(window, n);
+        count = Arrays.copyOf(count, n);
+        min = Arrays.copyOf(min, n);
+        max = Arrays.copyOf(max, n);
+        mean = Arrays.copyOf(mean, n);
+        minTimeNS = Arrays.copyOf(minTimeNS, n);
+        maxTimeNS = Arrays.copyOf(maxTimeNS, n);
+        over = Arrays.copyOf(over, n);
+        percentile = Arrays.copyOf(percentile, n*percentiles.length);
+      }
+
+      window[w] = curWindow;
+      count[w] = curCount;
+      min[w] = curMin;
+      max[w] = curMax;
+      mean[w] = (float) (curSum/curCount);
+      minTimeNS[w] = curMinTimeNS;
+      maxTimeNS[w] = curMaxTimeNS;
+      over[w] = curOver;
+
+      if (percentiles.length > 0) {
+
+        Arrays.sort(values, 0, curCount);
+
+        //nearest rank
+        for (int p = 0; p < percentiles.length; p++) {
+          int rank = (int) Math.ceil(percentiles[p]/100.0*curCount);
+          percentile[w*percentiles.length+p] =
+            values[Math.min(Math.max(rank-1, 0), curCount-1)];
+        }
+      }
+
+      curCount = curOver = 0;
+      curSum = 0;
+    }
+
+    /** dynamixel id of the column **/
+    public int getID() {
+      return id;
+    }
+
+    /** register of the column **/
+    public AXRegister getRegister() {
+      return reg;
+    }
+
+    /** the percentiles computed, in [0, 100] **/
+    public double[] getPercentiles() {
+      return percentiles.clone();
+    }
+
+    /** number of windows with values **/
+    public int getNumWindows() {
+      return numWindows;
+    }
+
+    /** check a window index **/
+    protected void checkWindow(int w) {
+      if ((w < 0) || (w >= numWindows))
+        throw new IndexOutOfBoundsException("no window "+w);
+    }
+
+    /**
+     * <p>Number of the <i>w</i>th window, counting from the one starting at
+     * the origin.</p>
+     **/
+    public long getWindow(int w) {
+      checkWindow(w);
+      return window[w];
+    }
+
+    /** nanotime at which the <i>w</i>th window starts **/
+    public long getWindowStartNS(int w) {
+      return originNS+getWindow(w)*windowNS;
+    }
+
+    /** wall clock time at which the <i>w</i>th window starts **/
+    public long getWindowStartMS(int w) {
+      return toTimeMS(getWindowStartNS(w));
+    }
+
+    /** convert a frame nanotime to wall clock time **/
+    public long toTimeMS(long timeNS) {
+      return startTimeMS+(timeNS-startNS)/1000000;
+    }
+
+    /** number of values in the <i>w</i>th window **/
+    public int getCount(int w) {
+      checkWindow(w);
+      return count[w];
+    }
+
+    /** minimum value in the <i>w</i>th window **/
+    public float getMin(int w) {
+      checkWindow(w);
+      return min[w];
+    }
+
+    /** maximum value in the <i>w</i>th window **/
+    public float getMax(int w) {
+      checkWindow(w);
+      return max[w];
+    }
+
+    /** mean value in the <i>w</i>th window **/
+    public float getMean(int w) {
+      checkWindow(w);
+      return mean[w];
+    }
+
+    /** nanotime of the first minimum value in the <i>w</i>th window **/
+    public long getMinTimeNS(int w) {
+      checkWindow(w);
+      return minTimeNS[w];
+    }
+
+    /** nanotime of the first maximum value in the <i>w</i>th window **/
+    public long getMaxTimeNS(int w) {
+      checkWindow(w);
+      return maxTimeNS[w];
+    }
+
+    /** number of values over the threshold in the <i>w</i>th window **/
+    public int getNumOverThreshold(int w) {
+      checkWindow(w);
+      return over[w];
+    }
+
+    /** the <i>p</i>th {@link #getPercentiles} of the <i>w</i>th window **/
+    public float getPercentile(int w, int p) {
+
+      checkWindow(w);
+
+      if ((p < 0) || (p >= percentiles.length))
+        throw new IndexOutOfBoundsException("no percentile "+p);
+
+      return percentile[w*percentiles.length+p];
+    }
+
+    /** print as tab separated text with a line of column names **/
+    public void print(PrintStream out) {
+
+      String units =
+        ((reg.naturalUnitsLabel != null) &&
+         (reg.naturalUnitsLabel.length() > 0)) ?
+        " ("+reg.naturalUnitsLabel+")" : "";
+
+      out.println("# "+id+":"+reg.toIdentifierString()+units);
+
+      out.print("startMS\tcount\tmin\tmax\tmean\tminMS\tmaxMS\tover");
+      for (int p = 0; p < percentiles.length; p++)
+        out.print("\tp"+percentiles[p]);
+      out.println();
+
+      for (int w = 0; w < numWindows; w++) {
+        out.print(getWindowStartMS(w)+"\t"+count[w]+"\t"+min[w]+"\t"+max[w]+
+                  "\t"+mean[w]+"\t"+toTimeMS(minTimeNS[w])+"\t"+
+                  toTimeMS(maxTimeNS[w])+"\t"+over[w]);
+        for (int p = 0; p < percentiles.length; p++)
+          out.print("\t"+percentile[w*percentiles.length+p]);
+        out.println();
+      }
+    }
+  }
+
+  /**
+   * <p>Start times of a segment or schema which put its frame nanotimes
+   * within this of those of the first run are taken to be of the same run,
+   * the difference being the skew between the two clocks, see {@link
+   * #toFirstRunNS}.</p>
+   **/
+  public static final long SAME_RUN_SKEW_NS = 1000000000L;
+
+  /**
+   * <p>Offset to add to the frame nanotimes of a segment or schema with the
+   * given start times to put them on the nanotime axis of <i>result</i>'s
+   * start, which is that of the first run.</p>
+   **/
+  protected static long toFirstRunNS(Result result,
+                                     long startTimeMS, long startNS) {
+
+    long offset =
+      (startTimeMS-result.startTimeMS)*1000000L-(startNS-result.startNS);
+
+    return (Math.abs(offset) < SAME_RUN_SKEW_NS) ? 0 : offset;
+  }
+
+  /** the recording, one of the two **/
+  protected interface Source {
+
+    /** nanotime of the first frame, or Long.MIN_VALUE if none **/
+    long getFirstTimeNS() throws IOException;
+
+    /** wall clock time and nanotime of the start, into <i>start</i> **/
+    void getStart(long[] start) throws IOException;
+
+    /** feed all values of a column to <i>result</i> **/
+    void scan(Result result) throws IOException;
+  }
+
+  /** see {@link #getWindowNS} **/
+  protected final long windowNS;
+
+  /** selected dynamixel ids, parallel to {@link #regs} **/
+  protected final List<Integer> ids = new ArrayList<Integer>();
+
+  /** selected registers, parallel to {@link #ids} **/
+  protected final List<AXRegister> regs = new ArrayList<AXRegister>();
+
+  /** see {@link #setThreshold} **/
+  protected final Map<AXRegister, Float> thresholds =
+    new HashMap<AXRegister, Float>();
+
+  /** see {@link #setPercentiles} **/
+  protected double[] percentiles = new double[0];
+
+  /** see {@link #setOrigin} **/
+  protected long originNS = Long.MIN_VALUE;
+
+  /** see {@link #setPool} **/
+  protected ForkJoinPool pool;
+
+  /** query windows of the given duration **/
+  public TelemetryQuery(long windowNS) {
+
+    if (windowNS <= 0)
+      throw new IllegalArgumentException("invalid windowNS "+windowNS);
+
+    this.windowNS = windowNS;
+  }
+
+  /** get the window duration **/
+  public long getWindowNS() {
+    return windowNS;
+  }
+
+  /** select a column, returns this **/
+  public TelemetryQuery select(int axID, AXRegister register) {
+
+    if (register == null)
+      throw new IllegalArgumentException("null register");
+
+    for (int i = 0; i < ids.size(); i++)
+      if ((ids.get(i) == axID) && (regs.get(i) == register))
+        return this;
+
+    ids.add(axID);
+    regs.add(register);
+
+    return this;
+  }
+
+  /** select the columns of each register on each id, returns this **/
+  public TelemetryQuery select(int[] axID, AXRegister... register) {
+    for (int i = 0; i < axID.length; i++)
+      for (int j = 0; j < register.length; j++)
+        select(axID[i], register[j]);
+    return this;
+  }
+
+  /**
+   * <p>Count values of <i>register</i> strictly over <i>threshold</i>, in
+   * natural units, returns this.  Without a threshold nothing is
+   * counted.</p>
+   **/
+  public TelemetryQuery setThreshold(AXRegister register, float threshold) {
+    thresholds.put(register, threshold);
+    return this;
+  }
+
+  /** compute the given percentiles, each in [0, 100], returns this **/
+  public TelemetryQuery setPercentiles(double... percentiles) {
+
+    for (double p : percentiles)
+      if (!((p >= 0) && (p <= 100)))
+        throw new IllegalArgumentException("invalid percentile "+p);
+
+    this.percentiles = percentiles.clone();
+
+    return this;
+  }
+
+  /**
+   * <p>Start the windows at the given frame nanotime, rather than the first
+   * frame, returns this.</p>
+   **/
+  public TelemetryQuery setOrigin(long originNS) {
+    this.originNS = originNS;
+    return this;
+  }
+
+  /** scan the columns on the given pool rather than the common one **/
+  public TelemetryQuery setPool(ForkJoinPool pool) {
+    this.pool = pool;
+    return this;
+  }
+
+  /** run the query on {@link FrameRecorder} segments **/
+  public Result[] run(final FrameRecording... segments) throws IOException {
+
+    return run(new Source() {
+
+        public long getFirstTimeNS() {
+          for (FrameRecording s : segments) {
+            int t = s.indexOf(FrameRecorder.TIME_NS);
+            if ((t >= 0) && (s.getNumRows() > 0))
+              return s.getLong(t, 0);
+          }
+          return Long.MIN_VALUE;
+        }
+
+        public void getStart(long[] start) {
+          if (segments.length > 0) {
+            start[0] = segments[0].getStartTimeMS();
+            start[1] = segments[0].getStartNS();
+          }
+        }
+
+        public void scan(Result result) {
+
+          int n = CompactFrameWriter.DEF_BLOCK_ROWS;
+          long[] time = new long[n];
+          int[] value = new int[n];
+
+          for (FrameRecording s : segments) {
+
+            int t = s.indexOf(FrameRecorder.TIME_NS);
+            int c = s.indexOf(result.id, result.reg);
+
+            if ((t < 0) || (c < 0))
+              continue;
+
+            long offset =
+              toFirstRunNS(result, s.getStartTimeMS(), s.getStartNS());
+
+            for (int row = 0, rows = s.getNumRows(); row < rows; ) {
+
+              int m = Math.min(rows-row, n);
+
+              s.getLongs(t, row, time, 0, m);
+              s.getInts(c, row, value, 0, m);
+
+              for (int i = 0; i < m; i++)
+                result.add(time[i]+offset, value[i]);
+
+              row += m;
+            }
+          }
+        }
+      });
+  }
+
+  /** run the query on a {@link CompactFrameWriter} log **/
+  public Result[] run(final File compactLog) throws IOException {
+
+    return run(new Source() {
+
+        public long getFirstTimeNS() throws IOException {
+          CompactFrameReader r = new CompactFrameReader(compactLog);
+          try {
+            boolean[] columns = new boolean[] {true};
+            while (r.nextBlock(columns))
+              if ((r.getBlockRows() > 0) &&
+                  (r.indexOf(FrameRecorder.TIME_NS) == 0))
+                return r.getValues(0)[0];
+            return Long.MIN_VALUE;
+          } finally {
+            r.close();
+          }
+        }
+
+        public void getStart(long[] start) throws IOException {
+          CompactFrameReader r = new CompactFrameReader(compactLog);
+          try {
+            r.nextBlock(new boolean[0]);
+            start[0] = r.getStartTimeMS();
+            start[1] = r.getStartNS();
+          } finally {
+            r.close();
+          }
+        }
+
+        public void scan(Result result) throws IOException {
+
+          CompactFrameReader r = new CompactFrameReader(compactLog);
+
+          try {
+
+            int schema = -1, t = -1, c = -1;
+            long offset = 0;
+            boolean[] columns = new boolean[0];
+
+            while (r.nextBlock(columns)) {
+
+              if (schema != r.getSchemaNumber()) {
+
+                //new columns, this block was decoded with the old selection
+                schema = r.getSchemaNumber();
+                t = r.indexOf(FrameRecorder.TIME_NS);
+                c = r.indexOf(result.id, result.reg);
+                offset =
+                  toFirstRunNS(result, r.getStartTimeMS(), r.getStartNS());
+
+                columns = new boolean[r.getNumColumns()];
+                if ((t >= 0) && (c >= 0))
+                  columns[t] = columns[c] = true;
+
+                r.redecodeBlock(columns);
+              }
+
+              if ((t < 0) || (c < 0))
+                continue;
+
+              long[] time = r.getValues(t);
+              long[] value = r.getValues(c);
+
+              for (int i = 0, n = r.getBlockRows(); i < n; i++)
+                result.add(time[i]+offset, (int) value[i]);
+            }
+
+          } finally {
+            r.close();
+          }
+        }
+      });
+  }
+
+  /** fork/join scan of a range of the results **/
+  protected static class ScanTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    /** the recording **/
+    protected final Source source;
+
+    /** all results **/
+    protected final Result[] results;
+
+    /** range of {@link #results} to scan **/
+    protected final int lo, hi;
+
+    /** scan results [lo, hi) **/
+    protected ScanTask(Source source, Result[] results, int lo, int hi) {
+      this.source = source;
+      this.results = results;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    protected void compute() {
+
+      if (hi-lo > 1) {
+        int mid = (lo+hi)>>>1;
+        invokeAll(new ScanTask(source, results, lo, mid),
+                  new ScanTask(source, results, mid, hi));
+        return;
+      }
+
+      Result r = results[lo];
+
+      try {
+        source.scan(r);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+
+      r.endWindow();
+    }
+  }
+
+  /** run the query on a source **/
+  protected Result[] run(Source source) throws IOException {
+
+    long origin = originNS;
+
+    if (origin == Long.MIN_VALUE)
+      origin = source.getFirstTimeNS();
+
+    if (origin == Long.MIN_VALUE) //no frames
+      origin = 0;
+
+    long[] start = new long[2];
+    source.getStart(start);
+
+    Result[] results = new Result[ids.size()];
+
+    for (int i = 0; i < results.length; i++) {
+
+      AXRegister reg = regs.get(i);
+
+      Float threshold = thresholds.get(reg);
+
+      results[i] =
+        new Result(ids.get(i), reg, windowNS, origin, percentiles,
+                   (threshold != null) ? threshold : Float.POSITIVE_INFINITY);
+
+      results[i].startTimeMS = start[0];
+      results[i].startNS = start[1];
+    }
+
+    if (results.length == 0)
+      return results;
+
+    ForkJoinPool p = (pool != null) ? pool : ForkJoinPool.commonPool();
+
+    try {
+      p.invoke(new ScanTask(source, results, 0, results.length));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+
+    return results;
+  }
+
+  /**
+   * <p>Run a query from the command line and print the results.</p>
+   *
+   * <p>Usage: TelemetryQuery windowMS ids registers [-p percentiles]
+   * [-t register=threshold...] source...</p>
+   *
+   * <p>Where ids is a comma separated list of dynamixel ids, registers a
+   * comma separated list of register identifiers like
+   * AX12_PRESENT_LOAD, percentiles a comma separated list, and each source a
+   * compact log, a {@link FrameRecorder} segment, or a directory of
+   * segments.</p>
+   **/
+  public static void main(String[] argv) throws IOException {
+
+    if (argv.length < 4) {
+      System.err.println(
+        "usage: TelemetryQuery windowMS ids registers [-p percentiles] "+
+        "[-t register=threshold...] source...");
+      System.exit(1);
+    }
+
+    TelemetryQuery q =
+      new TelemetryQuery((long) (Double.parseDouble(argv[0])*1e6));
+
+    String[] idStrings = argv[1].split(",");
+    int[] ids = new int[idStrings.length];
+    for (int i = 0; i < ids.length; i++)
+      ids[i] = Integer.parseInt(idStrings[i]);
+
+    for (String r : argv[2].split(","))
+      q.select(ids, parseRegister(r));
+
+    int a = 3;
+
+    for (; a < argv.length; a++) {
+      if (argv[a].equals("-p") && (a+1 < argv.length)) {
+        String[] ps = argv[++a].split(",");
+        double[] p = new double[ps.length];
+        for (int i = 0; i < p.length; i++)
+          p[i] = Double.parseDouble(ps[i]);
+        q.setPercentiles(p);
+      } else if (argv[a].equals("-t") && (a+1 < argv.length)) {
+        String[] t = argv[++a].split("=");
+        q.setThreshold(parseRegister(t[0]), Float.parseFloat(t[1]));
+      } else {
+        break;
+      }
+    }
+
+    List<FrameRecording> segments = new ArrayList<FrameRecording>();
+
+    for (; a < argv.length; a++) {
+
+      File f = new File(argv[a]);
+
+      if (f.isDirectory()) {
+        for (File s : FrameRecording.getSegments(f))
+          segments.add(new FrameRecording(s));
+      } else if (FrameRecording.getSegmentNumber(f) >= 0) {
+        segments.add(new FrameRecording(f));
+      } else {
+        for (Result r : q.run(f))
+          r.print(System.out);
+      }
+    }
+
+    if (!segments.isEmpty())
+      for (Result r :
+             q.run(segments.toArray(new FrameRecording[segments.size()])))
+        r.print(System.out);
+  }
+
+  /** look up a register by identifier **/
+  protected static AXRegister parseRegister(String identifier) {
+
+    AXRegister r = AXRegister.fromIdentifierString(identifier);
+
+    if (r == null)
+      throw new IllegalArgumentException("unknown register "+identifier);
+
+    return r;
+  }
+}
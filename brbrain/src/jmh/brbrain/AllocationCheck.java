@@ -0,0 +1,193 @@
+/**
+ * <p>Regression check that the write and read cycle allocates nothing, both
+ * on the I/O thread and synchronously from a control thread.</p>
+ *
+ * <p>This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.</p>
+ *
+ * <p>This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.</p>
+ *
+ * <p>You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 59
+ * Temple Place - Suite 330, Boston, MA 02111-1307, USA.</p>
+ **/
+
+package brbrain;
+
+import java.io.*;
+import java.lang.management.*;
+
+import static brbrain.AX12Register.*;
+
+/**
+ * <p>Regression check that the write and read cycle allocates nothing, both
+ * on the I/O thread and synchronously from a control thread.</p>
+ *
+ * <p>Runs {@link #CYCLES} cycles of each kind against a {@link CM5Simulator}
+ * on its virtual clock, once inside a {@link BRBrain.IOTask} and once from
+ * the main thread, after {@link #WARMUP} cycles to let the JIT settle,
+ * measuring the running thread's allocation with
+ * <code>com.sun.management.ThreadMXBean.getThreadAllocatedBytes</code>.  The
+ * measurement is repeated up to {@link #ROUNDS} times, and the check fails,
+ * exiting with status 1, if no round of a kind allocated nothing.</p>
+ *
+ * <p>Run with <code>gradle allocationCheck</code>, which <code>gradle
+ * check</code> includes.</p>
+ **/
+public class AllocationCheck {
+
+  /** warm up cycles per kind **/
+  public static final int WARMUP = 20000;
+
+  /** measured cycles per round **/
+  public static final int CYCLES = 2000;
+
+  /** maximum measurement rounds per kind **/
+  public static final int ROUNDS = 5;
+
+  /** number of simulated AX-12s **/
+  public static final int SERVOS = 4;
+
+  /** a write and read cycle **/
+  protected interface Cycle {
+    void run() throws IOException, InterruptedException;
+  }
+
+  /** the JVM's thread allocation counter **/
+  protected static final com.sun.management.ThreadMXBean threads =
+    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  /** bytes allocated by the calling thread per cycle, min over rounds **/
+  protected static double bytesPerCycle(Cycle cycle)
+    throws IOException, InterruptedException {
+
+    long id = Thread.currentThread().getId();
+
+    for (int i = 0; i < WARMUP; i++)
+      cycle.run();
+
+    double min = Double.POSITIVE_INFINITY;
+
+    for (int r = 0; (r < ROUNDS) && (min > 0); r++) {
+
+      long before = threads.getThreadAllocatedBytes(id);
+
+      for (int i = 0; i < CYCLES; i++)
+        cycle.run();
+
+      long after = threads.getThreadAllocatedBytes(id);
+
+      min = Math.min(min, ((double) (after-before))/CYCLES);
+    }
+
+    return min;
+  }
+
+  /** run the check **/
+  public static void main(String[] argv) throws Exception {
+
+    if (!threads.isThreadAllocatedMemorySupported())
+      throw new IllegalStateException("thread allocation not measurable");
+
+    threads.setThreadAllocatedMemoryEnabled(true);
+
+    CM5Simulator sim = new CM5Simulator();
+    sim.setRealTime(false);
+
+    int[] id = new int[SERVOS];
+    AXRegister[] readStart = new AXRegister[SERVOS];
+    AXRegister[] writeStart = new AXRegister[SERVOS];
+    int[] num = new int[SERVOS];
+
+    for (int i = 0; i < SERVOS; i++) {
+      id[i] = i+1;
+      readStart[i] = AX12_PRESENT_POSITION;
+      writeStart[i] = AX12_GOAL_POSITION;
+      num[i] = 2;
+      sim.addDynamixel(SimulatedDynamixel.createAX12(id[i]));
+    }
+
+    final BRBrain brain = new BRBrain(sim);
+
+    BRBrain.verifyStatus(brain.setReadFormat(id, readStart, num),
+                         "set read format");
+    BRBrain.verifyStatus(brain.setWriteFormat(id, writeStart, num),
+                         "set write format");
+
+    brain.setReuseResults(true);
+
+    final int[] out = new int[2*SERVOS];
+    final int[] in = new int[2*SERVOS];
+    final float[] outNatural = new float[2*SERVOS];
+    final float[] inNatural = new float[2*SERVOS];
+
+    for (int i = 0; i < SERVOS; i++) {
+      out[2*i] = 512;
+      out[2*i+1] = 100;
+      outNatural[2*i] = AX12_GOAL_POSITION.toNaturalUnits(512);
+      outNatural[2*i+1] = AX12_MOVING_SPEED.toNaturalUnits(100);
+    }
+
+    final String[] names = new String[] {
+      "write(int[]) + read(int[])",
+      "write(float[]) + read(float[])",
+      "writeRead(int[], int[])",
+      "read() with reused results",
+    };
+
+    final Cycle[] cycles = new Cycle[] {
+      new Cycle() {
+        public void run() throws IOException, InterruptedException {
+          brain.write(out);
+          brain.read(in);
+        } },
+      new Cycle() {
+        public void run() throws IOException, InterruptedException {
+          brain.write(outNatural);
+          brain.read(inNatural);
+        } },
+      new Cycle() {
+        public void run() throws IOException, InterruptedException {
+          brain.writeRead(out, in);
+        } },
+      new Cycle() {
+        public void run() throws IOException, InterruptedException {
+          brain.read();
+        } },
+    };
+
+    double[] bytes = brain.call(new BRBrain.IOTask<double[]>() {
+        public double[] run() throws IOException, InterruptedException {
+          double[] b = new double[cycles.length];
+          for (int i = 0; i < cycles.length; i++)
+            b[i] = bytesPerCycle(cycles[i]);
+          return b;
+        } });
+
+    boolean ok = true;
+
+    for (int i = 0; i < cycles.length; i++) {
+      System.out.println(
+        "I/O thread "+names[i]+": "+bytes[i]+" bytes/cycle");
+      ok &= (bytes[i] == 0);
+    }
+
+    for (int i = 0; i < cycles.length; i++) {
+      double b = bytesPerCycle(cycles[i]);
+      System.out.println("caller thread "+names[i]+": "+b+" bytes/cycle");
+      ok &= (b == 0);
+    }
+
+    brain.close();
+
+    if (!ok) {
+      System.err.println("FAILED: the write and read cycle allocates");
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,180 @@
+/**
+ * <p>JMH benchmarks of the BRBrain host protocol round trips.</p>
+ *
+ * <p>This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.</p>
+ *
+ * <p>This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.</p>
+ *
+ * <p>You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 59
+ * Temple Place - Suite 330, Boston, MA 02111-1307, USA.</p>
+ **/
+
+package brbrain;
+
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import static brbrain.AX12Register.*;
+
+/**
+ * <p>JMH benchmarks of the BRBrain host protocol round trips.</p>
+ *
+ * <p>Each benchmark talks to a {@link CM5Simulator} running on its virtual
+ * clock, so the measured time is the host side cost of assembling, sending,
+ * receiving and decoding packets plus the cost of the simulator itself, and
+ * not the modeled serial and Dynamixel bus time.  Run with the gc profiler
+ * (the default in <tt>build.gradle</tt>) to see the per-tick allocation
+ * rate.</p>
+ *
+ * <p>The read format covers <i>regs</i> consecutive registers starting at
+ * {@link AX12Register#AX12_PRESENT_POSITION} on each of <i>servos</i>
+ * AX-12s, the write format <i>regs</i> consecutive registers starting at
+ * {@link AX12Register#AX12_GOAL_POSITION}.</p>
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProtocolBenchmark {
+
+  /** number of simulated AX-12s **/
+  @Param({"1", "2", "4", "8", "16", "32"})
+  public int servos;
+
+  /** number of registers per servo in the read and write formats **/
+  @Param({"1", "2", "3"})
+  public int regs;
+
+  /** the simulated CM-5 **/
+  protected CM5Simulator sim;
+
+  /** the host under test **/
+  protected BRBrain brain;
+
+  /** read format **/
+  protected int[] id;
+
+  /** read format **/
+  protected AXRegister[] readStart;
+
+  /** write format **/
+  protected AXRegister[] writeStart;
+
+  /** read and write format **/
+  protected int[] num;
+
+  /** read destination **/
+  protected int[] readInts;
+
+  /** read destination **/
+  protected float[] readFloats;
+
+  /** write source **/
+  protected int[] writeInts;
+
+  /** write source **/
+  protected float[] writeFloats;
+
+  /** build the simulated bus and set the formats **/
+  @Setup
+  public void setup() throws Exception {
+
+    sim = new CM5Simulator();
+    sim.setRealTime(false);
+
+    id = new int[servos];
+    readStart = new AXRegister[servos];
+    writeStart = new AXRegister[servos];
+    num = new int[servos];
+
+    for (int i = 0; i < servos; i++) {
+      id[i] = i+1;
+      readStart[i] = AX12_PRESENT_POSITION;
+      writeStart[i] = AX12_GOAL_POSITION;
+      num[i] = regs;
+      sim.addDynamixel(SimulatedDynamixel.createAX12(id[i]));
+    }
+
+    brain = new BRBrain(sim);
+
+    BRBrain.verifyStatus(brain.setReadFormat(id, readStart, num),
+                         "set read format");
+    BRBrain.verifyStatus(brain.setWriteFormat(id, writeStart, num),
+                         "set write format");
+
+    readInts = new int[servos*regs];
+    readFloats = new float[servos*regs];
+
+    //goal position, moving speed, torque limit
+    int[] values = new int[] {512, 100, 1023};
+
+    writeInts = new int[servos*regs];
+    writeFloats = new float[servos*regs];
+
+    for (int i = 0, k = 0; i < servos; i++) {
+      for (int j = 0; j < regs; j++, k++) {
+        writeInts[k] = values[j];
+        writeFloats[k] =
+          AX12_GOAL_POSITION.getRelativeRegister(j).toNaturalUnits(values[j]);
+      }
+    }
+
+    //leave a frame in the receive buffer for decodeFloats()
+    BRBrain.verifyStatus(brain.read(readFloats), "read");
+  }
+
+  /** close the host **/
+  @TearDown
+  public void tearDown() {
+    brain.close();
+  }
+
+  /** {@link BRBrain#read(int[])} **/
+  @Benchmark
+  public int readInts() throws Exception {
+    return brain.read(readInts);
+  }
+
+  /** {@link BRBrain#read(float[])} **/
+  @Benchmark
+  public int readFloats() throws Exception {
+    return brain.read(readFloats);
+  }
+
+  /** {@link BRBrain#write(int[])} **/
+  @Benchmark
+  public int writeInts() throws Exception {
+    return brain.write(writeInts);
+  }
+
+  /** {@link BRBrain#write(float[])} **/
+  @Benchmark
+  public int writeFloats() throws Exception {
+    return brain.write(writeFloats);
+  }
+
+  /**
+   * <p>{@link BRBrain#decodeData} of the last received frame into natural
+   * units, i.e. the host side read codec alone.</p>
+   **/
+  @Benchmark
+  public float[] decodeFloats() {
+    synchronized (brain.stateLock) {
+      brain.decodeData(null, readFloats);
+    }
+    return readFloats;
+  }
+
+  /** {@link BRBrain#setReadFormat} **/
+  @Benchmark
+  public int setReadFormat() throws Exception {
+    return brain.setReadFormat(id, readStart, num);
+  }
+}
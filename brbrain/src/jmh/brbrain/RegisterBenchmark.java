@@ -0,0 +1,147 @@
+/**
+ * <p>JMH microbenchmarks of the AXRegister codec and the BRBrain value cache.</p>
+ *
+ * <p>This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.</p>
+ *
+ * <p>This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.</p>
+ *
+ * <p>You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 59
+ * Temple Place - Suite 330, Boston, MA 02111-1307, USA.</p>
+ **/
+
+package brbrain;
+
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+import static brbrain.AX12Register.*;
+
+/**
+ * <p>JMH microbenchmarks of the {@link AXRegister} codec and the {@link
+ * BRBrain} value cache.</p>
+ *
+ * <p>Each invocation handles one tick's worth of values, i.e. <i>regs</i>
+ * consecutive registers starting at {@link
+ * AX12Register#AX12_PRESENT_POSITION} (which includes the sign-magnitude
+ * speed and load registers) for each of <i>servos</i> AX-12s.</p>
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RegisterBenchmark {
+
+  /** number of servos per tick **/
+  @Param({"1", "2", "4", "8", "16", "32"})
+  public int servos;
+
+  /** number of registers per servo **/
+  @Param({"1", "2", "3"})
+  public int regs;
+
+  /** the registers, per servo **/
+  protected AXRegister[] reg;
+
+  /** raw register values, per servo and register **/
+  protected int[] raw;
+
+  /** encoded register values, per servo and register **/
+  protected int[] encoded;
+
+  /** natural register values, per servo and register **/
+  protected float[] natural;
+
+  /** servo ids **/
+  protected int[] id;
+
+  /** destination of {@link BRBrain#getCachedValues} **/
+  protected int[] cached;
+
+  /** host for {@link BRBrain#updateCachedValue} **/
+  protected BRBrain brain;
+
+  /** make plausible values **/
+  @Setup
+  public void setup() {
+
+    reg = AXRegister.span(AX12_PRESENT_POSITION, regs);
+
+    raw = new int[servos*regs];
+    encoded = new int[servos*regs];
+    natural = new float[servos*regs];
+
+    id = new int[servos];
+    cached = new int[servos];
+
+    for (int i = 0, k = 0; i < servos; i++) {
+      id[i] = i+1;
+      for (int j = 0; j < regs; j++, k++) {
+        int v = reg[j].clamp(((i%2) == 0) ? 300+i : -300-i);
+        raw[k] = v;
+        encoded[k] = reg[j].encode(v);
+        natural[k] = reg[j].toNaturalUnits(v);
+      }
+    }
+
+    brain = new BRBrain(new LoopbackLink());
+  }
+
+  /** {@link AXRegister#decode} **/
+  @Benchmark
+  public void decode(Blackhole bh) {
+    for (int i = 0, k = 0; i < servos; i++)
+      for (int j = 0; j < regs; j++, k++)
+        bh.consume(reg[j].decode(encoded[k]));
+  }
+
+  /** {@link AXRegister#encode} **/
+  @Benchmark
+  public void encode(Blackhole bh) {
+    for (int i = 0, k = 0; i < servos; i++)
+      for (int j = 0; j < regs; j++, k++)
+        bh.consume(reg[j].encode(raw[k]));
+  }
+
+  /** {@link AXRegister#toNaturalUnits} **/
+  @Benchmark
+  public void toNaturalUnits(Blackhole bh) {
+    for (int i = 0, k = 0; i < servos; i++)
+      for (int j = 0; j < regs; j++, k++)
+        bh.consume(reg[j].toNaturalUnits(raw[k]));
+  }
+
+  /** {@link AXRegister#fromNaturalUnits} **/
+  @Benchmark
+  public void fromNaturalUnits(Blackhole bh) {
+    for (int i = 0, k = 0; i < servos; i++)
+      for (int j = 0; j < regs; j++, k++)
+        bh.consume(reg[j].fromNaturalUnits(natural[k]));
+  }
+
+  /** {@link BRBrain#updateCachedValue}, under the lock like a read **/
+  @Benchmark
+  public void updateCachedValue() {
+    synchronized (brain.stateLock) {
+      for (int i = 0, k = 0; i < servos; i++)
+        for (int j = 0; j < regs; j++, k++)
+          brain.updateCachedValue(i+1, reg[j], raw[k]);
+    }
+  }
+
+  /** {@link BRBrain#getCachedValues}, lock free like a UI thread **/
+  @Benchmark
+  public int getCachedValues() {
+    int n = 0;
+    for (int j = 0; j < regs; j++)
+      n += brain.getCachedValues(reg[j], id, cached);
+    return n;
+  }
+}
@@ -0,0 +1,133 @@
+/**
+ * <p>JMH benchmarks of the BRBrain receive path on replayed captures.</p>
+ *
+ * <p>This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.</p>
+ *
+ * <p>This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.</p>
+ *
+ * <p>You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 59
+ * Temple Place - Suite 330, Boston, MA 02111-1307, USA.</p>
+ **/
+
+package brbrain;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import static brbrain.AX12Register.*;
+
+/**
+ * <p>JMH benchmarks of the BRBrain receive path on replayed captures.</p>
+ *
+ * <p>Setup captures a session of {@link #READS} reads of <i>regs</i>
+ * consecutive registers starting at {@link
+ * AX12Register#AX12_PRESENT_POSITION} on each of <i>servos</i> simulated
+ * AX-12s with a {@link CaptureLink}.  The benchmarks then replay it with a
+ * {@link ReplayLink} at full speed, so unlike {@link ProtocolBenchmark} the
+ * measured time includes no simulator, just the host and the replayed
+ * bytes, with the chunking of the captured session.</p>
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReplayBenchmark {
+
+  /** number of reads in the capture **/
+  public static final int READS = 1000;
+
+  /** number of simulated AX-12s **/
+  @Param({"1", "4", "16"})
+  public int servos;
+
+  /** number of registers per servo in the read format **/
+  @Param({"1", "3"})
+  public int regs;
+
+  /** the capture **/
+  protected File captureFile;
+
+  /** the replay **/
+  protected ReplayLink replay;
+
+  /** the host under test **/
+  protected BRBrain brain;
+
+  /** read destination **/
+  protected int[] readInts;
+
+  /** reads since the last {@link ReplayLink#reset} **/
+  protected int reads;
+
+  /** capture a session and start replaying it **/
+  @Setup
+  public void setup() throws Exception {
+
+    captureFile = File.createTempFile("brbrain", ".brbc");
+
+    CM5Simulator sim = new CM5Simulator();
+    sim.setRealTime(false);
+
+    int[] id = new int[servos];
+    AXRegister[] start = new AXRegister[servos];
+    int[] num = new int[servos];
+
+    for (int i = 0; i < servos; i++) {
+      id[i] = i+1;
+      start[i] = AX12_PRESENT_POSITION;
+      num[i] = regs;
+      sim.addDynamixel(SimulatedDynamixel.createAX12(id[i]));
+    }
+
+    readInts = new int[servos*regs];
+
+    BRBrain capture = new BRBrain(new CaptureLink(sim, captureFile));
+
+    BRBrain.verifyStatus(capture.setReadFormat(id, start, num),
+                         "set read format");
+
+    for (int i = 0; i < READS; i++)
+      BRBrain.verifyStatus(capture.read(readInts), "read");
+
+    capture.close();
+
+    replay = new ReplayLink(captureFile);
+    replay.setSpeed(Double.POSITIVE_INFINITY);
+    replay.setStrict(true);
+
+    brain = new BRBrain(replay);
+
+    BRBrain.verifyStatus(brain.setReadFormat(id, start, num),
+                         "set read format");
+
+    replay.mark();
+    reads = 0;
+  }
+
+  /** close the host and delete the capture **/
+  @TearDown
+  public void tearDown() {
+    brain.close();
+    captureFile.delete();
+  }
+
+  /** {@link BRBrain#read(int[])} of the next captured frame **/
+  @Benchmark
+  public int readInts() throws Exception {
+
+    if (reads++ == READS) {
+      replay.reset();
+      reads = 1;
+    }
+
+    return brain.read(readInts);
+  }
+}
@@ -0,0 +1,227 @@
+/**
+ * <p>JMH benchmarks of scanning recorded frame telemetry.</p>
+ *
+ * <p>This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.</p>
+ *
+ * <p>This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.</p>
+ *
+ * <p>You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 59
+ * Temple Place - Suite 330, Boston, MA 02111-1307, USA.</p>
+ **/
+
+package brbrain;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import static brbrain.AX12Register.*;
+
+/**
+ * <p>JMH benchmarks of scanning recorded frame telemetry.</p>
+ *
+ * <p>Setup records {@link #ROWS} frames of the five registers starting at
+ * {@link AX12Register#AX12_PRESENT_POSITION} on each of <i>servos</i>
+ * simulated AX-12s, which are moved back and forth, with a {@link
+ * FrameRecorder}, and converts the recording to a {@link CompactFrameWriter}
+ * log.  The benchmarks sum one register column, or all columns, of each
+ * form, and run a {@link TelemetryQuery} of per second aggregates of the
+ * load and temperature of every servo on each.</p>
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TelemetryBenchmark {
+
+  /** number of recorded frames **/
+  public static final int ROWS = 20000;
+
+  /** number of registers per servo **/
+  public static final int REGS = 5;
+
+  /** number of simulated AX-12s **/
+  @Param({"1", "8"})
+  public int servos;
+
+  /** the recording **/
+  protected File dir;
+
+  /** the compact log **/
+  protected File log;
+
+  /** the recording segments **/
+  protected FrameRecording[] segments;
+
+  /** scan buffer **/
+  protected int[] ints = new int[CompactFrameWriter.DEF_BLOCK_ROWS];
+
+  /** per second load and temperature of every servo **/
+  protected TelemetryQuery query;
+
+  /** record, and compact the recording **/
+  @Setup
+  public void setup() throws Exception {
+
+    dir = File.createTempFile("brbrain", ".frames");
+    dir.delete();
+
+    log = File.createTempFile("brbrain", ".brbz");
+
+    CM5Simulator sim = new CM5Simulator();
+    sim.setRealTime(false);
+
+    int[] id = new int[servos];
+    AXRegister[] readStart = new AXRegister[servos];
+    AXRegister[] writeStart = new AXRegister[servos];
+    int[] readNum = new int[servos];
+    int[] writeNum = new int[servos];
+
+    for (int i = 0; i < servos; i++) {
+      id[i] = i+1;
+      readStart[i] = AX12_PRESENT_POSITION;
+      writeStart[i] = AX12_GOAL_POSITION;
+      readNum[i] = REGS;
+      writeNum[i] = 1;
+      sim.addDynamixel(SimulatedDynamixel.createAX12(id[i]));
+    }
+
+    BRBrain brain = new BRBrain(sim);
+
+    BRBrain.verifyStatus(brain.setReadFormat(id, readStart, readNum),
+                         "set read format");
+    BRBrain.verifyStatus(brain.setWriteFormat(id, writeStart, writeNum),
+                         "set write format");
+
+    FrameRecorder recorder = new FrameRecorder(brain, dir, ROWS, ROWS);
+
+    int[] goal = new int[servos];
+    int[] data = new int[servos*REGS];
+
+    for (int i = 0; i < ROWS; i++) {
+
+      if (i%500 == 0) {
+        for (int j = 0; j < servos; j++)
+          goal[j] = ((i/500)%2 == 0) ? 200+10*j : 800-10*j;
+        BRBrain.verifyStatus(brain.write(goal), "write");
+      }
+
+      BRBrain.verifyStatus(brain.read(data), "read");
+    }
+
+    recorder.close();
+    brain.close();
+
+    File[] files = FrameRecording.getSegments(dir);
+
+    segments = new FrameRecording[files.length];
+
+    CompactFrameWriter w = new CompactFrameWriter(log);
+
+    for (int i = 0; i < files.length; i++) {
+      segments[i] = new FrameRecording(files[i]);
+      w.write(segments[i]);
+    }
+
+    w.close();
+
+    query = new TelemetryQuery(1000L*1000*1000)
+      .select(id, AX12_PRESENT_LOAD, AX12_PRESENT_TEMPERATURE)
+      .setPercentiles(50, 95)
+      .setThreshold(AX12_PRESENT_LOAD, 0.5f);
+  }
+
+  /** delete the recording and log **/
+  @TearDown
+  public void tearDown() {
+    segments = null;
+    for (File f : FrameRecording.getSegments(dir))
+      f.delete();
+    dir.delete();
+    log.delete();
+  }
+
+  /** sum the first register column of the recording **/
+  @Benchmark
+  public long scanRecordingColumn() {
+
+    long sum = 0;
+
+    for (FrameRecording r : segments) {
+
+      int c = FrameRecorder.NUM_FRAME_COLUMNS;
+
+      for (int row = 0, n = r.getNumRows(); row < n; ) {
+        int m = Math.min(n-row, ints.length);
+        r.getInts(c, row, ints, 0, m);
+        for (int i = 0; i < m; i++)
+          sum += ints[i];
+        row += m;
+      }
+    }
+
+    return sum;
+  }
+
+  /** sum the first register column of the compact log **/
+  @Benchmark
+  public long scanCompactColumn() throws IOException {
+
+    CompactFrameReader r = new CompactFrameReader(log);
+
+    boolean[] columns = new boolean[FrameRecorder.NUM_FRAME_COLUMNS+1];
+    columns[FrameRecorder.NUM_FRAME_COLUMNS] = true;
+
+    long sum = 0;
+
+    while (r.nextBlock(columns)) {
+      long[] v = r.getValues(FrameRecorder.NUM_FRAME_COLUMNS);
+      for (int i = 0, n = r.getBlockRows(); i < n; i++)
+        sum += v[i];
+    }
+
+    r.close();
+
+    return sum;
+  }
+
+  /** {@link #query} the recording **/
+  @Benchmark
+  public TelemetryQuery.Result[] queryRecording() throws IOException {
+    return query.run(segments);
+  }
+
+  /** {@link #query} the compact log **/
+  @Benchmark
+  public TelemetryQuery.Result[] queryCompact() throws IOException {
+    return query.run(log);
+  }
+
+  /** sum all columns of the compact log **/
+  @Benchmark
+  public long scanCompactAll() throws IOException {
+
+    CompactFrameReader r = new CompactFrameReader(log);
+
+    long sum = 0;
+
+    while (r.nextBlock()) {
+      for (int c = 0; c < r.getNumColumns(); c++) {
+        long[] v = r.getValues(c);
+        for (int i = 0, n = r.getBlockRows(); i < n; i++)
+          sum += v[i];
+      }
+    }
+
+    r.close();
+
+    return sum;
+  }
+}
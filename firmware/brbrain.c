@@ -41,7 +41,7 @@
 /* dynamixel bus on UART0 */
 #define DYNAMIXEL_BAUDRATE BAUDRATE_1000000
 
-/* pc link on UART1 */
+/* pc link on UART1, initially, see handleSetBaud() */
 #define PC_BAUDRATE BAUDRATE_115200
 /* #define PC_BAUDRATE BAUDRATE_57600 */
 /* #define PC_BAUDRATE BAUDRATE_38400 */
@@ -52,8 +52,8 @@
 /* broadcast dynamixel ID */
 #define ID_BCAST 0xfe
 
-/* max num dynamixels in a format */
-#define MAX_DYNAMIXELS  32
+/* max num register blocks in a format, a dynamixel may have several */
+#define MAX_FORMAT_BLOCKS 64
 
 /* virtual dynamixel register holding error code */
 #define VIRTUAL_ERROR_REG_ADDR 54
@@ -67,19 +67,48 @@
 /* max number of bytes readable in one block from a dynamixel */
 #define MAX_DYNAMIXEL_BLOCK_READ 20
 
+/* max total ids and data bytes in one SYNC_WRITE packet (255-4) */
+#define MAX_SYNC_WRITE_BYTES 251
+
 /* the formats */
 #define F_READ  0
 #define F_WRITE 1
 
 static uint8_t numDynamixels[2] = { 0, 0 };
 static uint16_t totalNumBytes[2] = { 0, 0 };
-static uint8_t axID[2][MAX_DYNAMIXELS];
-static uint8_t startAddr[2][MAX_DYNAMIXELS];
-static uint8_t numBytes[2][MAX_DYNAMIXELS];
+
+/* number of stored formats in each direction, see handleSelectSlot() */
+#define NUM_FORMAT_SLOTS 4
+
+static uint8_t slotNumDynamixels[2][NUM_FORMAT_SLOTS];
+static uint16_t slotTotalNumBytes[2][NUM_FORMAT_SLOTS];
+static uint8_t slotAxID[2][NUM_FORMAT_SLOTS][MAX_FORMAT_BLOCKS];
+static uint8_t slotStartAddr[2][NUM_FORMAT_SLOTS][MAX_FORMAT_BLOCKS];
+static uint8_t slotNumBytes[2][NUM_FORMAT_SLOTS][MAX_FORMAT_BLOCKS];
+
+/* currently selected slots and their tables, one entry per register block */
+static uint8_t formatSlot[2] = { 0, 0 };
+static uint8_t *axID[2] = { slotAxID[F_READ][0], slotAxID[F_WRITE][0] };
+static uint8_t *startAddr[2] =
+  { slotStartAddr[F_READ][0], slotStartAddr[F_WRITE][0] };
+static uint8_t *numBytes[2] =
+  { slotNumBytes[F_READ][0], slotNumBytes[F_WRITE][0] };
 
 /* buffer for params to/from dynamixel */
 static uint8_t dynamixelParams[64];
 
+/* whether the write format qualifies for SYNC_WRITE, see setFormat() */
+static uint8_t syncWrite = 0;
+
+/* write format blocks sent with WRITE_DATA, LSB first, see formatChanged() */
+static uint8_t writeImmediate[(MAX_FORMAT_BLOCKS+7)/8];
+
+/* buffer for the ids and data of a SYNC_WRITE */
+static uint8_t syncWriteParams[MAX_SYNC_WRITE_BYTES];
+
+/* read format data for one dynamixel on its way to the PC */
+static uint8_t readData[NUM_REG_BYTES];
+
 /* buffer sizes WARNING these must be a power of 2 */
 #define dynamixelRxBuffer_SIZE 128 
 #define dynamixelTxBuffer_SIZE 128 
@@ -246,9 +275,35 @@ static volatile uint8_t adcValue[] = {0, 0, 0};
 #define PB_TOGGLE_RX_BLUETOOTH_PC PB_START
 #define PB_TOGGLE_CHARGE_ENABLE   PB_UP
 
+/* CM-5 mode bits, see handleSetMode() */
+#define M_POLL  (1<<0)
+#define M_DELTA (1<<1)
+#define M_ALL   (M_POLL|M_DELTA)
+
+/* max totalNumBytes[F_READ] with M_POLL or M_DELTA */
+#define POLL_BUFFER_SIZE 256
+
+/* status, retries, 3 ADC channels, and with M_POLL and M_DELTA age and seq */
+#define MAX_FRAME_TRAILER 7
+
+/* max delta frames between keyframes with M_DELTA */
+#define DELTA_KEYFRAME_INTERVAL 50
+
+/* PC to CM-5 packet instructions, others are dispatched by commandHandler */
+#define I_PING 0xf0
+
 /* CM-5 to PC packet instructions */
 #define I_STATUS 0xfa
 #define I_DATA   0xfb
+#define I_DELTA_DATA 0xfc
+#define I_SCAN   0xfe /* reply to the PC to CM-5 instruction of the same code */
+
+/* how long handleScan() waits for the start of a reply from each id */
+#define SCAN_TIMEOUT_US 3000
+
+/* address and width of the model number in every dynamixel */
+#define MODEL_NUMBER_ADDR 0
+#define MODEL_NUMBER_BYTES 2
 
 /* CM-5 to dynamixel packet insructions */
 #define D_I_PING       0x01
@@ -285,6 +340,64 @@ static uint8_t enableRxDynamixelTimeout = 1;
 
 static volatile uint8_t bluetoothTogglePending = 0;
 
+/* whether I_DATA frames are being streamed, see handleStreamStart() */
+static uint8_t streaming = 0;
+
+/* ticks from the start of one streamed frame to the start of the next */
+static uint8_t streamPeriodTicks = 0;
+
+/* ~10ms ticks to go until the next streamed frame is due */
+static volatile uint8_t streamTicksToGo = 0;
+
+/* bitmask of M_* flags */
+static uint8_t mode = 0;
+
+/* double buffered background acquisition of the read format */
+static uint8_t pollBuffer[2][POLL_BUFFER_SIZE];
+
+/* accumulated status and retries of the acquisition into each buffer */
+static uint8_t pollStatus[2];
+static uint8_t pollRetries[2];
+
+/* index of the most recent complete buffer, valid iff pollValid */
+static uint8_t pollFront = 0;
+static uint8_t pollValid = 0;
+
+/* next dynamixel and its byte offset in the back buffer */
+static uint8_t pollNext = 0;
+static uint16_t pollOffset = 0;
+
+/* ~10ms ticks since the front buffer was completed, saturating at 255 */
+static volatile uint8_t pollAge = 0;
+
+/* the last frame sent to the PC with M_DELTA, valid iff deltaValid */
+static uint8_t deltaRef[POLL_BUFFER_SIZE+MAX_FRAME_TRAILER];
+static uint8_t deltaValid = 0;
+
+/* bitmap of the frame bytes that differ from deltaRef */
+static uint8_t deltaBitmap[(POLL_BUFFER_SIZE+MAX_FRAME_TRAILER+7)/8];
+
+/* PC link baud rates indexed by I_SET_BAUD rate code */
+static const uint8_t pcBaudRates[] = {
+  BAUDRATE_38400,
+  BAUDRATE_57600,
+  BAUDRATE_76800,
+  BAUDRATE_115200,
+  BAUDRATE_250000,
+  BAUDRATE_1000000
+};
+
+#define NUM_PC_BAUDRATES (sizeof(pcBaudRates)/sizeof(pcBaudRates[0]))
+
+/* time for the status to leave at the old rate before switching */
+#define BAUD_SWITCH_DELAY_TICKS 2
+
+/* delta frames still allowed before the next keyframe */
+static uint8_t deltaFramesToKey = 0;
+
+/* sequence number of the last frame sent with M_DELTA */
+static uint8_t frameSeq = 0;
+
 static volatile uint8_t chargeEnableTogglePending = 0;
 static volatile uint8_t chargeEnabled = 0;
 static volatile uint8_t charging = 0;
@@ -309,6 +422,13 @@ static void handleSetReadFormat();
 static void handleSetWriteFormat();
 static void handleReadData();
 static void handleWriteData();
+static void handleStreamStart();
+static void handleStreamStop();
+static void handleWriteRead();
+static void handleSetMode();
+static void handleSetBaud();
+static void handleSelectSlot();
+static void handleScan();
 static void handleInvalid();
 
 /* pointer to a function taking no parameters and returning nothing */
@@ -321,19 +441,22 @@ static handler_t commandHandler[] = {
   /* 2 */ handleSetWriteFormat, /* I_SET_WRITE_FORMAT */
   /* 3 */ handleReadData,       /* I_READ_DATA */
   /* 4 */ handleWriteData,      /* I_WRITE_DATA */
-  /* 5 */ handleInvalid,
-  /* 6 */ handleInvalid,
-  /* 7 */ handleInvalid,
-  /* 8 */ handleInvalid,
-  /* 9 */ handleInvalid,
+  /* 5 */ handleStreamStart,    /* I_STREAM_START */
+  /* 6 */ handleStreamStop,     /* I_STREAM_STOP */
+  /* 7 */ handleWriteRead,      /* I_WRITE_READ */
+  /* 8 */ handleSetMode,        /* I_SET_MODE */
+  /* 9 */ handleSetBaud,        /* I_SET_BAUD */
   /* a */ handleInvalid,
   /* b */ handleInvalid,
   /* c */ handleInvalid,
-  /* d */ handleInvalid,
-  /* e */ handleInvalid,
+  /* d */ handleSelectSlot,     /* I_SELECT_SLOT */
+  /* e */ handleScan,           /* I_SCAN */
   /* f */ handleInvalid
 };
 
+/* make the f-th format track any change to the selected format */
+static void formatChanged(uint8_t f);
+
 /* handle commands indefinitely */
 static void commandLoop();
 
@@ -355,6 +478,37 @@ static void endTXPacketPC();
 /* tx a status packet to the PC */
 static void txStatusPC();
 
+/* acquire the read format and tx it in an I_DATA packet to the PC */
+static void txDataPC(uint8_t rxPCok);
+
+/* acquire the read format regs of the i-th dynamixel, return 0 on timeout */
+static uint8_t readDynamixel(uint8_t i, uint8_t *dst);
+
+/* txDataPC() with M_POLL or M_DELTA, from a whole buffered frame */
+static void txBufferedDataPC(uint8_t rxPCok);
+
+/* wait for a complete poll buffer, merge its status, and return it */
+static uint8_t *pollData();
+
+/* acquire the whole read format into pollBuffer[0] and return it */
+static uint8_t *acquireData();
+
+/* acquire one dynamixel of the read format into the back poll buffer */
+static void pollStep();
+
+/* discard both poll buffers and start over with the first dynamixel */
+static void pollReset();
+
+/* get the k-th byte of a buffered frame, data bytes are 0xff if data is 0 */
+static inline uint8_t frameByte(uint8_t *data, uint16_t len,
+                                uint8_t *trailer, uint16_t k);
+
+/* rx write format data from PC and write it, return 0 on failure */
+static uint8_t writeData();
+
+/* writeData() with one SYNC_WRITE packet, PC checksum verified first */
+static uint8_t syncWriteData();
+
 /* tx the adc values to the PC */
 static void txADCValuesPC();
 
@@ -363,6 +517,12 @@ static uint8_t startRXPacketDynamixel(uint8_t *id,
                                       uint8_t *numParams,
                                       uint8_t *error);
 
+/* read the model number of dynamixel id, return 0 if it does not answer */
+static uint8_t scanDynamixel(uint8_t id, uint8_t *model);
+
+/* wait up to us microseconds for a byte from dynamixel bus, ret 0 if none */
+static uint8_t waitRxDynamixel(uint16_t us);
+
 /* rx checksum from dynamixel and validate it, return 0 on timeout */
 static uint8_t endRXPacketDynamixel();
 
@@ -477,10 +637,13 @@ static void setFormat(uint8_t f) {
   numDynamixels[f] = 0;
   totalNumBytes[f] = 0;
 
+  if (f == F_WRITE)
+    syncWrite = 0;
+
   if (!rxPC(&n, 1))
     goto DONE;
 
-  if (n > MAX_DYNAMIXELS) {
+  if (n > MAX_FORMAT_BLOCKS) {
     setStatusFlag(S_INVALID_PC_COMMAND);
     goto DONE;
   }
@@ -526,12 +689,92 @@ static void setFormat(uint8_t f) {
   endRXPacketPC();
   
  DONE:
+
+  /* the format is stored in the selected slot */
+  slotNumDynamixels[f][formatSlot[f]] = numDynamixels[f];
+  slotTotalNumBytes[f][formatSlot[f]] = totalNumBytes[f];
+
+  formatChanged(f);
+
+  if ((f == F_READ) &&
+      (mode&(M_POLL|M_DELTA)) && (totalNumBytes[F_READ] > POLL_BUFFER_SIZE)) {
+    mode &= ~(M_POLL|M_DELTA);
+    setStatusFlag(S_INVALID_PC_COMMAND);
+  }
+
+  txStatusPC();
+}
+
+static void formatChanged(uint8_t f) {
+
+  if (f == F_READ) {
+    pollReset();
+    deltaValid = 0;
+    return;
+  }
+
+  uint8_t n = numDynamixels[f];
+
+  /* a dynamixel only holds one REG_WRITE, so only its last block gets one */
+  for (uint8_t i = 0; i < n; i++) {
+
+    writeImmediate[i>>3] &= ~(1<<(i&0x07));
+
+    for (uint8_t j = i+1; j < n; j++)
+      if (axID[f][j] == axID[f][i])
+        writeImmediate[i>>3] |= (1<<(i&0x07));
+  }
+
+  /* SYNC_WRITE iff all share start and length and it fits in one packet */
+  syncWrite = ((n > 0) && (numBytes[f][0] > 0) &&
+               (((uint16_t) n)*(numBytes[f][0]+1) <= MAX_SYNC_WRITE_BYTES));
+
+  for (uint8_t i = 1; syncWrite && (i < n); i++)
+    if ((startAddr[f][i] != startAddr[f][0]) ||
+        (numBytes[f][i] != numBytes[f][0]))
+      syncWrite = 0;
+}
+
+static void handleSelectSlot() {
+
+  uint8_t b;
+
+  if (rxPC(&b, 1) && endRXPacketPC() && !status) {
+
+    /* high bit is the format, low bits the slot */
+    uint8_t f = b>>7, s = b&0x7f;
+
+    if ((s >= NUM_FORMAT_SLOTS) ||
+        ((f == F_READ) && (mode&(M_POLL|M_DELTA)) &&
+         (slotTotalNumBytes[f][s] > POLL_BUFFER_SIZE))) {
+      setStatusFlag(S_INVALID_PC_COMMAND);
+    } else {
+
+      formatSlot[f] = s;
+
+      numDynamixels[f] = slotNumDynamixels[f][s];
+      totalNumBytes[f] = slotTotalNumBytes[f][s];
+      axID[f] = slotAxID[f][s];
+      startAddr[f] = slotStartAddr[f][s];
+      numBytes[f] = slotNumBytes[f][s];
+
+      formatChanged(f);
+    }
+  }
+
   txStatusPC();
 }
 
 static void handleReadData() {
+  txDataPC(endRXPacketPC());
+}
 
-  uint8_t rxPCok = endRXPacketPC();
+static void txDataPC(uint8_t rxPCok) {
+
+  if (mode&(M_POLL|M_DELTA)) {
+    txBufferedDataPC(rxPCok);
+    return;
+  }
 
   uint16_t bytesToGo = totalNumBytes[F_READ];
 
@@ -539,114 +782,323 @@ static void handleReadData() {
 
   if (!rxPCok)
     goto DONE;
-    
+
+  /* the PC tx buffer drains while the next dynamixel is read */
   for (uint8_t i = 0; i < numDynamixels[F_READ]; i++) {
 
-    uint8_t id = axID[F_READ][i];
-    uint8_t start = startAddr[F_READ][i];
-    uint8_t n = numBytes[F_READ][i];
+    if (!readDynamixel(i, readData))
+      goto DONE;
+
+    for (uint8_t j = 0; j < numBytes[F_READ][i]; j++) {
+      txPC(readData[j], 1);
+      bytesToGo--;
+    }
+  }
+ 
+ DONE: 
+
+  /* stuff the return pkt as necessary */
+  while (bytesToGo--)
+    txPC(0xff, 1);
+
+  txPC(status, 1);
+  txPC(numDynamixelRetries, 1);
+
+  txADCValuesPC();
+  
+  endTXPacketPC();
+}
+
+static uint8_t readDynamixel(uint8_t i, uint8_t *dst) {
+
+  uint8_t id = axID[F_READ][i];
+  uint8_t start = startAddr[F_READ][i];
+  uint8_t n = numBytes[F_READ][i];
 
-    uint8_t rxID, rxN, rxError;
+  uint8_t rxID, rxN, rxError;
 
-    uint8_t returnError = 0;
+  uint8_t returnError = 0;
 
-    uint8_t thisN;
+  uint8_t thisN;
 
-    /* read in blocks of up to MAX_DYNAMIXEL_BLOCK_READ bytes */
+  /* read in blocks of up to MAX_DYNAMIXEL_BLOCK_READ bytes */
 
-    while (n > 0) {
+  while (n > 0) {
 
-      thisN = (n <= MAX_DYNAMIXEL_BLOCK_READ) ? n : MAX_DYNAMIXEL_BLOCK_READ;
+    thisN = (n <= MAX_DYNAMIXEL_BLOCK_READ) ? n : MAX_DYNAMIXEL_BLOCK_READ;
      
-      /* do we need to read the virtual reg? */
-      if ((start+thisN) == VIRTUAL_ERROR_REG_ADDR) {
-        returnError = 1;
-        thisN--;
-      }
+    /* do we need to read the virtual reg? */
+    if ((start+thisN) == VIRTUAL_ERROR_REG_ADDR) {
+      returnError = 1;
+      thisN--;
+    }
 
-      for (uint8_t j = 0; j < thisN; j++)
-        dynamixelParams[j] = 0xff;
+    for (uint8_t j = 0; j < thisN; j++)
+      dynamixelParams[j] = 0xff;
       
-      rxID = rxN = rxError = 0xff;
+    rxID = rxN = rxError = 0xff;
         
-      /* retry loop */
-      do {
+    /* retry loop */
+    do {
 
-        /* send read request packet */
+      /* send read request packet */
         
-        if (thisN > 0) {
+      if (thisN > 0) {
           
-          /* still need to read some non-virtual regs */
+        /* still need to read some non-virtual regs */
           
-          startTXPacketDynamixel(id, 2, D_I_READ_DATA);
-          txDynamixel(start, 1);
-          txDynamixel(thisN, 1);
+        startTXPacketDynamixel(id, 2, D_I_READ_DATA);
+        txDynamixel(start, 1);
+        txDynamixel(thisN, 1);
           
-        } else {
+      } else {
           
-          /* only reading the virtual reg (error) */
+        /* only reading the virtual reg (error) */
           
-          startTXPacketDynamixel(id, 0, D_I_PING);
-        }
+        startTXPacketDynamixel(id, 0, D_I_PING);
+      }
         
-        if (!endTXPacketDynamixel())
-          goto DONE;
+      if (!endTXPacketDynamixel())
+        return 0;
         
-      } while (rxPacketDynamixel(&rxID, &rxN, &rxError, dynamixelParams, thisN)
-               && tryDynamixelAgain(rxError));
+    } while (rxPacketDynamixel(&rxID, &rxN, &rxError, dynamixelParams, thisN)
+             && tryDynamixelAgain(rxError));
 
-      /* fwd read data */
+    /* fwd read data */
 
-      if ((rxID == id) && (rxN == thisN)) {
+    if ((rxID == id) && (rxN == thisN)) {
         
-        /* recv pkt ok, though maybe timed out during params */
+      /* recv pkt ok, though maybe timed out during params */
         
-        for (uint8_t j = 0; j < thisN; j++) {
-          txPC(dynamixelParams[j], 1);
-          bytesToGo--;
-        }
+      for (uint8_t j = 0; j < thisN; j++)
+        *dst++ = dynamixelParams[j];
 
-      } else {
+    } else {
         
-        /* recv pkt from dynamixel bad, stuff return pkt */
+      /* recv pkt from dynamixel bad, stuff return pkt */
         
-        setStatusFlag(S_INVALID_DYNAMIXEL_RESPONSE);
+      setStatusFlag(S_INVALID_DYNAMIXEL_RESPONSE);
         
-        for (uint8_t j = 0; j < thisN; j++) {
-          txPC(0xff, 1);
-          bytesToGo--;
-        }
-      }
+      for (uint8_t j = 0; j < thisN; j++)
+        *dst++ = 0xff;
+    }
+
+    /* return the virtual reg? */
+    if (returnError) {
+      *dst++ = rxError;
+      n--;
+      start++;
+    }
+
+    n -= thisN;
+    start += thisN;
+
+  } /* for each block */
+
+  return 1;
+}
+
+static void txBufferedDataPC(uint8_t rxPCok) {
+
+  uint16_t len = totalNumBytes[F_READ];
+
+  uint8_t *data = 0;
+
+  uint8_t trailer[MAX_FRAME_TRAILER];
+  uint8_t t = 0;
+
+  if (rxPCok)
+    data = (mode&M_POLL) ? pollData() : acquireData();
+
+  trailer[t++] = status;
+  trailer[t++] = numDynamixelRetries;
 
-      /* return the virtual reg? */
-      if (returnError) {
-        txPC(rxError, 1);
-        bytesToGo--;
-        n--;
-        start++;
+  cli();
+  trailer[t++] = adcValue[CHANNEL_POS];
+  trailer[t++] = adcValue[CHANNEL_NEG];
+  trailer[t++] = adcValue[CHANNEL_THERM];
+  sei();
+
+  if (mode&M_POLL)
+    trailer[t++] = pollAge;
+
+  if (mode&M_DELTA)
+    trailer[t++] = ++frameSeq;
+
+  uint16_t total = len+t;
+
+  /* send only the changed bytes if that is shorter */
+  if ((mode&M_DELTA) && deltaValid && deltaFramesToKey) {
+
+    uint16_t numChanged = 0;
+    uint16_t numBitmap = (total+7)/8;
+
+    for (uint16_t j = 0; j < numBitmap; j++)
+      deltaBitmap[j] = 0;
+
+    for (uint16_t k = 0; k < total; k++)
+      if (frameByte(data, len, trailer, k) != deltaRef[k]) {
+        deltaBitmap[k/8] |= (1<<(k%8));
+        numChanged++;
       }
 
-      n -= thisN;
-      start += thisN;
+    if ((numBitmap+numChanged) < total) {
 
-    } /* for each block */
-  } /* for each dynamixel */
- 
- DONE: 
+      startTXPacketPC(I_DELTA_DATA);
 
-  /* stuff the return pkt as necessary */
-  while (bytesToGo)
-    txPC(0xff, 1);
+      for (uint16_t j = 0; j < numBitmap; j++)
+        txPC(deltaBitmap[j], 1);
 
-  txPC(status, 1);
-  txPC(numDynamixelRetries, 1);
+      for (uint16_t k = 0; k < total; k++)
+        if (deltaBitmap[k/8]&(1<<(k%8))) {
+          deltaRef[k] = frameByte(data, len, trailer, k);
+          txPC(deltaRef[k], 1);
+        }
+
+      endTXPacketPC();
+
+      deltaFramesToKey--;
+
+      return;
+    }
+  }
+
+  /* keyframe, or a plain frame without M_DELTA */
+  startTXPacketPC(I_DATA);
+
+  for (uint16_t k = 0; k < total; k++) {
+    uint8_t b = frameByte(data, len, trailer, k);
+    if (mode&M_DELTA)
+      deltaRef[k] = b;
+    txPC(b, 1);
+  }
 
-  txADCValuesPC();
-  
   endTXPacketPC();
+
+  if (mode&M_DELTA) {
+    deltaValid = 1;
+    deltaFramesToKey = DELTA_KEYFRAME_INTERVAL;
+  }
+}
+
+static uint8_t *pollData() {
+
+  uint8_t cmdStatus = status;
+  uint8_t cmdRetries = numDynamixelRetries;
+
+  cli();
+  status = 0;
+  sei();
+
+  numDynamixelRetries = 0;
+
+  /* the first read after a reset waits for one complete acquisition */
+  while (!pollValid)
+    pollStep();
+
+  cli();
+  status = cmdStatus|pollStatus[pollFront];
+  sei();
+
+  numDynamixelRetries = cmdRetries+pollRetries[pollFront];
+  if (numDynamixelRetries < cmdRetries)
+    numDynamixelRetries = 0xff;
+
+  return pollBuffer[pollFront];
+}
+
+static uint8_t *acquireData() {
+
+  uint8_t *dst = pollBuffer[0];
+
+  for (uint16_t k = 0; k < totalNumBytes[F_READ]; k++)
+    dst[k] = 0xff;
+
+  for (uint8_t i = 0; i < numDynamixels[F_READ]; i++) {
+
+    if (!readDynamixel(i, dst))
+      break;
+
+    dst += numBytes[F_READ][i];
+  }
+
+  return pollBuffer[0];
+}
+
+static inline uint8_t frameByte(uint8_t *data, uint16_t len,
+                                uint8_t *trailer, uint16_t k) {
+  if (k >= len)
+    return trailer[k-len];
+  return data ? data[k] : 0xff;
+}
+
+static void pollStep() {
+
+  uint8_t back = pollFront^1;
+
+  if (pollNext < numDynamixels[F_READ]) {
+
+    /* a timeout leaves 0xff in the buffer and S_DYNAMIXEL_TIMEOUT in status */
+    for (uint8_t j = 0; j < numBytes[F_READ][pollNext]; j++)
+      pollBuffer[back][pollOffset+j] = 0xff;
+
+    readDynamixel(pollNext, &(pollBuffer[back][pollOffset]));
+
+    pollStatus[back] |= status;
+
+    if ((uint8_t) (pollRetries[back]+numDynamixelRetries) >= pollRetries[back])
+      pollRetries[back] += numDynamixelRetries;
+    else
+      pollRetries[back] = 0xff;
+
+    cli();
+    status = 0;
+    sei();
+
+    numDynamixelRetries = 0;
+
+    pollOffset += numBytes[F_READ][pollNext];
+    pollNext++;
+  }
+
+  if (pollNext >= numDynamixels[F_READ]) {
+
+    cli();
+    pollFront = back;
+    pollAge = 0;
+    sei();
+
+    pollValid = 1;
+
+    pollNext = 0;
+    pollOffset = 0;
+
+    pollStatus[back^1] = 0;
+    pollRetries[back^1] = 0;
+  }
+}
+
+static void pollReset() {
+  pollValid = 0;
+  pollNext = 0;
+  pollOffset = 0;
+  pollStatus[0] = pollStatus[1] = 0;
+  pollRetries[0] = pollRetries[1] = 0;
 }
 
 static void handleWriteData() {
+  writeData();
+  txStatusPC();
+}
+
+static void handleWriteRead() {
+  txDataPC(writeData());
+}
+
+static uint8_t writeData() {
+
+  if (syncWrite)
+    return syncWriteData();
 
   for (uint8_t i = 0; i < numDynamixels[F_WRITE]; i++) {
 
@@ -659,13 +1111,16 @@ static void handleWriteData() {
 
     for (uint8_t j = 0; j < n; j++) {
       if (!rxPC(&(dynamixelParams[j]), 1))
-        goto DONE;
+        return 0;
     }
 
+    uint8_t instruction = (writeImmediate[i>>3]&(1<<(i&0x07))) ?
+      D_I_WRITE_DATA : D_I_REG_WRITE;
+
     /* retry loop (requires dynamixel status return level = 2) */
     do {
 
-      startTXPacketDynamixel(id, n+1, D_I_REG_WRITE);
+      startTXPacketDynamixel(id, n+1, instruction);
       
       txDynamixel(start, 1);
 
@@ -673,7 +1128,7 @@ static void handleWriteData() {
         txDynamixel(dynamixelParams[j], 1);
       
       if (!endTXPacketDynamixel())
-        goto DONE;
+        return 0;
 
     } while (rxPacketDynamixel(&rxID, 0, &rxError, 0, 0) &&
              tryDynamixelAgain(rxError));
@@ -685,14 +1140,234 @@ static void handleWriteData() {
   /* TBD do this redundantly since we can't verify checksums? */
   startTXPacketDynamixel(ID_BCAST, 0, D_I_ACTION);
   if (!endTXPacketDynamixel())
-    goto DONE;
+    return 0;
   
+  return endRXPacketPC();
+}
+
+static uint8_t syncWriteData() {
+
+  uint8_t n = numBytes[F_WRITE][0];
+  uint8_t k = 0;
+
+  for (uint8_t i = 0; i < numDynamixels[F_WRITE]; i++) {
+
+    syncWriteParams[k++] = axID[F_WRITE][i];
+
+    for (uint8_t j = 0; j < n; j++) {
+      if (!rxPC(&(syncWriteParams[k++]), 1))
+        return 0;
+    }
+  }
+
+  if (!endRXPacketPC())
+    return 0;
+
+  /* there are no status packets to catch bad data, so don't send it */
+  if (status&S_PC_CHECKSUM_ERROR)
+    return 1;
+
+  startTXPacketDynamixel(ID_BCAST, k+2, D_I_SYNC_WRITE);
+
+  txDynamixel(startAddr[F_WRITE][0], 1);
+  txDynamixel(n, 1);
+
+  for (uint8_t j = 0; j < k; j++)
+    txDynamixel(syncWriteParams[j], 1);
+
+  return endTXPacketDynamixel();
+}
+
+static void handleStreamStart() {
+
+  uint8_t period;
+
+  if (rxPC(&period, 1) && endRXPacketPC() && !status) {
+    streamPeriodTicks = period;
+    streamTicksToGo = 0; /* first frame right after the status */
+    streaming = 1;
+  }
+
+  txStatusPC();
+}
+
+static void handleStreamStop() {
+
+  /* stop even on error, the host can always start again */
+  streaming = 0;
+
   endRXPacketPC();
 
- DONE:
   txStatusPC();
 }
 
+static void handleSetMode() {
+
+  uint8_t m;
+
+  if (rxPC(&m, 1) && endRXPacketPC() && !status) {
+
+    if ((m&~M_ALL) ||
+        ((m&(M_POLL|M_DELTA)) && (totalNumBytes[F_READ] > POLL_BUFFER_SIZE))) {
+      setStatusFlag(S_INVALID_PC_COMMAND);
+    } else {
+      mode = m;
+      pollReset();
+      deltaValid = 0; /* also how the PC asks for a keyframe */
+    }
+  }
+
+  txStatusPC();
+}
+
+static void handleSetBaud() {
+
+  uint8_t code, instruction, addr;
+
+  if (!rxPC(&code, 1) || !endRXPacketPC() || status) {
+    txStatusPC();
+    return;
+  }
+
+  if (code >= NUM_PC_BAUDRATES) {
+    setStatusFlag(S_INVALID_PC_COMMAND);
+    txStatusPC();
+    return;
+  }
+
+  /* ack at the old rate */
+  txStatusPC();
+
+  while (!CBUF_IsEmpty(pcTxBuffer))
+    ;
+
+  ticksToGo = BAUD_SWITCH_DELAY_TICKS;
+  while (ticksToGo)
+    ;
+
+  uint8_t was = UBRR1L;
+
+  UBRR1L = pcBaudRates[code];
+
+  clearRxBufPC();
+
+  cli();
+  status = 0;
+  sei();
+
+  numDynamixelRetries = 0;
+  checksumRxPC = 0;
+
+  /* keep the new rate iff the PC pings the CM-5 with it before rx timeout */
+  if (rxPC(&instruction, 1) && (instruction == I_PING) &&
+      rxPC(&addr, 1) && (addr == 255) &&
+      endRXPacketPC() && !status) {
+    txStatusPC();
+    return;
+  }
+
+  UBRR1L = was;
+
+  /* let anything sent at the wrong rate pass */
+  ticksToGo = RX_CLEAR_DELAY_TICKS;
+  while (ticksToGo)
+    ;
+
+  clearRxBufPC();
+}
+
+static void handleScan() {
+
+  uint8_t first, last;
+
+  if (!rxPC(&first, 1) || !rxPC(&last, 1) || !endRXPacketPC() || status) {
+    txStatusPC();
+    return;
+  }
+
+  if ((first > last) || (last > MAX_DYNAMIXEL_ID)) {
+    setStatusFlag(S_INVALID_PC_COMMAND);
+    txStatusPC();
+    return;
+  }
+
+  startTXPacketPC(I_SCAN);
+
+  /* one presence byte per 8 ids, each followed by the model numbers of the
+     present ones, so only 8 model numbers need to be held at a time */
+  uint8_t present = 0, k = 0;
+  uint8_t model[8*MODEL_NUMBER_BYTES];
+
+  for (uint16_t id = first; id <= last; id++) {
+
+    if (scanDynamixel(id, &(model[k*MODEL_NUMBER_BYTES])))
+      present |= (1<<k);
+
+    if ((++k == 8) || (id == last)) {
+
+      txPC(present, 1);
+
+      for (uint8_t j = 0; j < k; j++)
+        if (present&(1<<j))
+          for (uint8_t b = 0; b < MODEL_NUMBER_BYTES; b++)
+            txPC(model[j*MODEL_NUMBER_BYTES+b], 1);
+
+      present = k = 0;
+    }
+  }
+
+  txPC(status, 1);
+  txPC(numDynamixelRetries, 1);
+
+  txADCValuesPC();
+
+  endTXPacketPC();
+}
+
+static uint8_t scanDynamixel(uint8_t id, uint8_t *model) {
+
+  uint8_t rxID, rxN, rxError;
+
+  do {
+
+    rxID = rxN = rxError = 0xff;
+
+    /* a late reply from the previous id could look like this one's */
+    clearRxBufDynamixel();
+
+    startTXPacketDynamixel(id, 2, D_I_READ_DATA);
+    txDynamixel(MODEL_NUMBER_ADDR, 1);
+    txDynamixel(MODEL_NUMBER_BYTES, 1);
+
+    if (!endTXPacketDynamixel())
+      return 0;
+
+    /* most ids are absent, don't wait out the usual rx timeout for them */
+    if (!waitRxDynamixel(SCAN_TIMEOUT_US))
+      return 0;
+
+  } while (rxPacketDynamixel(&rxID, &rxN, &rxError,
+                             model, MODEL_NUMBER_BYTES) &&
+           tryDynamixelAgain(rxError));
+
+  return (rxID == id) && (rxN == MODEL_NUMBER_BYTES);
+}
+
+static uint8_t waitRxDynamixel(uint16_t us) {
+
+  DYNAMIXEL_RXD;
+
+  for (uint16_t t = 0; CBUF_IsEmpty(dynamixelRxBuffer); t += 10) {
+
+    if (t >= us)
+      return 0;
+
+    _delay_us(10);
+  }
+
+  return 1;
+}
+
 static void handleInvalid() {
 
   setStatusFlag(S_INVALID_PC_COMMAND);
@@ -723,8 +1398,36 @@ static void commandLoop() {
     checksumRxPC = 0;
     enableRxPCTimeout = 0;
 
-    while (!rxPC(&instruction, 1))
-      ;
+    /* stream frames or poll while waiting for the next command */
+    while (CBUF_IsEmpty(pcRxBuffer)) {
+
+      if (streaming && !streamTicksToGo) {
+
+        streamTicksToGo = streamPeriodTicks;
+
+        LED_OFF(LED_IDLE);
+
+        txDataPC(1);
+
+        LED_ON(LED_IDLE);
+
+        cli();
+        status = 0;
+        sei();
+
+        numDynamixelRetries = 0;
+
+      } else if (mode&M_POLL) {
+
+        LED_OFF(LED_IDLE);
+
+        pollStep();
+
+        LED_ON(LED_IDLE);
+      }
+    }
+
+    rxPC(&instruction, 1);
 
     enableRxPCTimeout = 1;
 
@@ -1235,6 +1938,12 @@ static void readADCs() {
   if (ticksToGo)
     ticksToGo--;
 
+  if (streamTicksToGo)
+    streamTicksToGo--;
+
+  if (pollAge != 0xff)
+    pollAge++;
+
   if (CBUF_IsEmpty(pcRxBuffer))
     LED_OFF(LED_RXD_PC);
   